@@ -50,6 +50,17 @@ public class AlacDecodeUtils
 
 	/* stream reading */
 
+	/* returns the byte at the given index, or zero if the index lies beyond
+	 * the end of the input. The bit reader looks ahead up to two bytes, so
+	 * this makes padding the input buffer unnecessary */
+	static int readbyte(AlacFile alac, int index)
+	{
+		if (index < alac.ibEnd)
+			return (alac.input_buffer[index] & 0xff);
+		else
+			return 0;
+	}
+
 	/* supports reading 1 to 16 bits, in big endian format */
 	static int readbits_16(AlacFile alac, int bits ) 
 	{
@@ -59,9 +70,9 @@ public class AlacDecodeUtils
 		int part2 = 0;
 		int part3 =0;
 		
-		part1 = (alac.input_buffer[alac.ibIdx] & 0xff);
-		part2 = (alac.input_buffer[alac.ibIdx + 1] & 0xff);
-		part3 = (alac.input_buffer[alac.ibIdx + 2] & 0xff);		
+		part1 = readbyte(alac, alac.ibIdx);
+		part2 = readbyte(alac, alac.ibIdx + 1);
+		part3 = readbyte(alac, alac.ibIdx + 2);
 		
 		result = ((part1 << 16) | (part2 << 8) | part3);
 
@@ -111,7 +122,7 @@ public class AlacDecodeUtils
 		int new_accumulator = 0;
 		int part1 = 0;
 		
-		part1 = (alac.input_buffer[alac.ibIdx] & 0xff);
+		part1 = readbyte(alac, alac.ibIdx);
 
 		result = part1;
 
@@ -594,6 +605,12 @@ public class AlacDecodeUtils
 
 
 	public static int decode_frame(AlacFile alac, byte[] inbuffer, int[] outbuffer, int outputsize )
+	{
+		return decode_frame(alac, inbuffer, 0, inbuffer.length, outbuffer, outputsize);
+	}
+
+	/* decodes the frame stored in inbuffer[offset, offset + length) */
+	public static int decode_frame(AlacFile alac, byte[] inbuffer, int offset, int length, int[] outbuffer, int outputsize )
 	{
 		int channels ;
 		int outputsamples  = alac.setinfo_max_samples_per_frame;
@@ -601,7 +618,8 @@ public class AlacDecodeUtils
 		/* setup the stream */
 		alac.input_buffer = inbuffer;
 		alac.input_buffer_bitaccumulator = 0;
-		alac.ibIdx = 0;
+		alac.ibIdx = offset;
+		alac.ibEnd = offset + length;
 
 
 		channels = readbits(alac, 3);
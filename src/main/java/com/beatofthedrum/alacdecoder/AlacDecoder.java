@@ -0,0 +1,742 @@
+/*
+** AlacDecoder.java
+**
+** Based on AlacDecodeUtils.java, Copyright (c) 2011 Peter McQuillan
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+package com.beatofthedrum.alacdecoder;
+
+import java.util.Arrays;
+
+/*
+** Instance-based ALAC decoder. Produces the same output as AlacDecodeUtils,
+** but keeps its configuration and buffers in final fields, sizes the buffers
+** from the stream parameters and reads the bit stream through a 64-bit
+** accumulator instead of byte by byte.
+**
+** An instance is not thread-safe, but decoding requires no inter-frame state,
+** so independent instances may decode frames of the same stream concurrently.
+*/
+public final class AlacDecoder
+{
+	private static final int RICE_THRESHOLD = 8;
+
+	/* the predictor coefficient count is stored in five bits */
+	private static final int MAX_PREDICTOR_COEFS = 32;
+
+	private final int maxSamplesPerFrame;
+	private final int sampleSize;
+	private final int numChannels;
+	private final int bytesPerSample;
+	private final int riceHistoryMult;
+	private final int riceInitialHistory;
+	private final int riceKModifier;
+
+	/* per-channel sample buffers. The predictor works in place, so these
+	 * hold the prediction errors first and the decoded samples afterwards */
+	private final int[] samplesA;
+	private final int[] samplesB;
+
+	private final int[] uncompressedBytesA;
+	private final int[] uncompressedBytesB;
+
+	private final int[] predictorCoefsA = new int[MAX_PREDICTOR_COEFS];
+	private final int[] predictorCoefsB = new int[MAX_PREDICTOR_COEFS];
+
+	/* bit reader state. The next unread bit is the most significant bit of
+	 * bitCache, which holds bitCacheCount valid bits. Bytes at or beyond
+	 * inputEnd are read as zero */
+	private byte[] input;
+	private int inputIdx;
+	private int inputEnd;
+	private long bitCache;
+	private int bitCacheCount;
+
+	/* output parameters of the most recently decoded frame */
+	private boolean frameStereo;
+	private int frameUncompressedBytes;
+	private int frameInterlacingShift;
+	private int frameInterlacingLeftWeight;
+
+	/*
+	** maxSamplesPerFrame	frames per packet, the first fmtp parameter
+	** sampleSize		bits per sample, 16 or 24
+	** riceHistoryMult	rice history multiplier (fmtp parameter 3, 40 for AirTunes)
+	** riceInitialHistory	rice initial history (fmtp parameter 4, 10 for AirTunes)
+	** riceKModifier	rice parameter limit (fmtp parameter 5, 14 for AirTunes)
+	** numChannels		number of output channels
+	*/
+	public AlacDecoder(int maxSamplesPerFrame, int sampleSize, int riceHistoryMult, int riceInitialHistory, int riceKModifier, int numChannels)
+	{
+		if (maxSamplesPerFrame <= 0)
+			throw new IllegalArgumentException("Samples per frame must be positive, but was " + maxSamplesPerFrame);
+		if ((sampleSize != 16) && (sampleSize != 24))
+			throw new IllegalArgumentException("Sample size must be 16 or 24, but was " + sampleSize);
+		if ((numChannels != 1) && (numChannels != 2))
+			throw new IllegalArgumentException("Channel count must be 1 or 2, but was " + numChannels);
+
+		this.maxSamplesPerFrame = maxSamplesPerFrame;
+		this.sampleSize = sampleSize;
+		this.numChannels = numChannels;
+		this.bytesPerSample = (sampleSize / 8) * numChannels;
+		this.riceHistoryMult = riceHistoryMult;
+		this.riceInitialHistory = riceInitialHistory;
+		this.riceKModifier = riceKModifier;
+
+		samplesA = new int[maxSamplesPerFrame];
+		samplesB = new int[maxSamplesPerFrame];
+		uncompressedBytesA = new int[maxSamplesPerFrame];
+		uncompressedBytesB = new int[maxSamplesPerFrame];
+	}
+
+	public int getMaxSamplesPerFrame()
+	{
+		return maxSamplesPerFrame;
+	}
+
+	/* bit stream reading */
+
+	private void fill()
+	{
+		while (bitCacheCount <= 56)
+		{
+			final int b = (inputIdx < inputEnd) ? (input[inputIdx] & 0xff) : 0;
+			inputIdx++;
+			bitCache |= ((long)b) << (56 - bitCacheCount);
+			bitCacheCount += 8;
+		}
+	}
+
+	/* returns the next 'bits' (0 to 32) bits without consuming them */
+	private int peekBits(int bits)
+	{
+		if (bits == 0)
+			return 0;
+		if (bitCacheCount < bits)
+			fill();
+		return (int)(bitCache >>> (64 - bits));
+	}
+
+	private void skipBits(int bits)
+	{
+		if (bitCacheCount < bits)
+			fill();
+		bitCache <<= bits;
+		bitCacheCount -= bits;
+	}
+
+	/* reads 0 to 32 bits, in big endian format */
+	private int readBits(int bits)
+	{
+		final int result = peekBits(bits);
+		skipBits(bits);
+		return result;
+	}
+
+	/* reads a signed value of 'bits' bits */
+	private int readSignedBits(int bits)
+	{
+		final int shift = 32 - bits;
+		return (readBits(bits) << shift) >> shift;
+	}
+
+	/* entropy decoding */
+
+	private int entropyDecodeValue(int readSampleSize, int k, int riceKModifierMask)
+	{
+		if (bitCacheCount < 32)
+			fill();
+
+		/* number of 1s before a 0, at most RICE_THRESHOLD + 1 */
+		final int ones = Long.numberOfLeadingZeros(~bitCache);
+		if (ones > RICE_THRESHOLD)
+		{
+			/* escape, the value follows in raw form */
+			skipBits(RICE_THRESHOLD + 1);
+			return readBits(readSampleSize);
+		}
+
+		int x = ones;
+		if (k == 1)
+		{
+			skipBits(ones + 1);
+			return x;
+		}
+
+		/* the k extra bits follow the terminating 0. If they don't contribute
+		 * to the value, only k - 1 of them are consumed, i.e. the 0 and the
+		 * first k - 1 bits. Peeking at the 0 as well handles k == 0 */
+		skipBits(ones);
+		final int extraBits = peekBits(k + 1);
+
+		x *= ((1 << k) - 1) & riceKModifierMask;
+
+		if (extraBits > 1)
+		{
+			x += extraBits - 1;
+			skipBits(k + 1);
+		}
+		else
+			skipBits(k);
+
+		return x;
+	}
+
+	private void entropyRiceDecode(int[] outputBuffer, int outputSize, int readSampleSize, int riceHistoryMultiplier)
+	{
+		final int riceKModifierMask = (1 << riceKModifier) - 1;
+		int history = riceInitialHistory;
+		int outputCount = 0;
+		int signModifier = 0;
+
+		while (outputCount < outputSize)
+		{
+			int k = 31 - Integer.numberOfLeadingZeros((history >> 9) + 3);
+			if (k > riceKModifier)
+				k = riceKModifier;
+
+			int decodedValue = entropyDecodeValue(readSampleSize, k, 0xFFFFFFFF) + signModifier;
+
+			/* the sign is stored in the low bit */
+			int finalValue = (decodedValue + 1) / 2;
+			if ((decodedValue & 1) != 0)
+				finalValue = -finalValue;
+
+			outputBuffer[outputCount] = finalValue;
+
+			signModifier = 0;
+
+			history += (decodedValue * riceHistoryMultiplier) - ((history * riceHistoryMultiplier) >> 9);
+
+			if (decodedValue > 0xFFFF)
+				history = 0xFFFF;
+
+			/* special case, for compressed blocks of 0 */
+			if ((history < 128) && (outputCount + 1 < outputSize))
+			{
+				signModifier = 1;
+
+				k = Integer.numberOfLeadingZeros(history) + ((history + 16) / 64) - 24;
+
+				/* blockSize is always 16 bit */
+				final int blockSize = entropyDecodeValue(16, k, riceKModifierMask);
+
+				if (blockSize > 0)
+				{
+					/* zeros beyond the end of the frame are never output */
+					final int zeroEnd = Math.min(outputCount + 1 + blockSize, outputSize);
+					for (int j = outputCount + 1; j < zeroEnd; j++)
+						outputBuffer[j] = 0;
+					outputCount += blockSize;
+				}
+
+				if (blockSize > 0xFFFF)
+					signModifier = 0;
+
+				history = 0;
+			}
+
+			outputCount++;
+		}
+	}
+
+	/* prediction, in place */
+
+	private static void predictorDecompressFirAdapt(int[] buffer, int outputSize, int readSampleSize, int[] coefs, int coefNum, int quantitization)
+	{
+		final int bitsMove = 32 - readSampleSize;
+
+		/* first sample always copies, and so do all others without coefficients */
+		if ((coefNum == 0) || (outputSize <= 1))
+			return;
+
+		if (coefNum == 0x1f)
+		{
+			/* error describes a small difference from the previous sample only */
+			for (int i = 1; i < outputSize; i++)
+				buffer[i] = ((buffer[i - 1] + buffer[i]) << bitsMove) >> bitsMove;
+			return;
+		}
+
+		/* warm-up samples */
+		final int warmUp = Math.min(coefNum, outputSize - 1);
+		for (int i = 0; i < warmUp; i++)
+			buffer[i + 1] = ((buffer[i] + buffer[i + 1]) << bitsMove) >> bitsMove;
+
+		/* general case */
+		final int rounding = 1 << (quantitization - 1);
+		for (int base = 0, i = coefNum + 1; i < outputSize; base++, i++)
+		{
+			final int baseValue = buffer[base];
+			int errorVal = buffer[i];
+
+			int sum = 0;
+			for (int j = 0; j < coefNum; j++)
+				sum += (buffer[base + coefNum - j] - baseValue) * coefs[j];
+
+			int outVal = (rounding + sum) >> quantitization;
+			outVal = outVal + baseValue + errorVal;
+			buffer[i] = (outVal << bitsMove) >> bitsMove;
+
+			if (errorVal > 0)
+			{
+				for (int predictorNum = coefNum - 1; (predictorNum >= 0) && (errorVal > 0); predictorNum--)
+				{
+					int val = baseValue - buffer[base + coefNum - predictorNum];
+					final int sign = (val < 0) ? -1 : ((val > 0) ? 1 : 0);
+
+					coefs[predictorNum] -= sign;
+
+					val *= sign;
+
+					errorVal -= (val >> quantitization) * (coefNum - predictorNum);
+				}
+			}
+			else if (errorVal < 0)
+			{
+				for (int predictorNum = coefNum - 1; (predictorNum >= 0) && (errorVal < 0); predictorNum--)
+				{
+					int val = baseValue - buffer[base + coefNum - predictorNum];
+					final int sign = -((val < 0) ? -1 : ((val > 0) ? 1 : 0));
+
+					coefs[predictorNum] -= sign;
+
+					val *= sign;
+
+					errorVal -= (val >> quantitization) * (coefNum - predictorNum);
+				}
+			}
+		}
+	}
+
+	private int readPredictorCoefs(int[] coefs)
+	{
+		final int coefNum = readBits(5);
+		for (int i = 0; i < coefNum; i++)
+			coefs[i] = readSignedBits(16);
+		return coefNum;
+	}
+
+	/* uncompressed samples of more than 16 bits are stored as 16 bits plus the rest */
+	private int readUncompressedSample()
+	{
+		if (sampleSize <= 16)
+			return readSignedBits(sampleSize);
+
+		final int audioBits = (readBits(16) << (sampleSize - 16)) | readBits(sampleSize - 16);
+		return (audioBits << 8) >> 8; /* sign extend 24 bits */
+	}
+
+	/* output */
+
+	private static void storeSample24(int[] outbuffer, int index, int sample)
+	{
+		outbuffer[index] = sample & 0xFF;
+		outbuffer[index + 1] = (sample >> 8) & 0xFF;
+		outbuffer[index + 2] = (sample >> 16) & 0xFF;
+	}
+
+	private void outputMono(int[] outbuffer, int outputSamples, int uncompressedBytes)
+	{
+		if (sampleSize == 16)
+		{
+			for (int i = 0; i < outputSamples; i++)
+			{
+				outbuffer[i * numChannels] = samplesA[i];
+
+				/* data may be mono while the stream says it has two channels,
+				 * in which case the second channel is silent */
+				if (numChannels > 1)
+					outbuffer[i * numChannels + 1] = 0;
+			}
+		}
+		else
+		{
+			final int mask = ~(0xFFFFFFFF << (uncompressedBytes * 8));
+			for (int i = 0; i < outputSamples; i++)
+			{
+				int sample = samplesA[i];
+				if (uncompressedBytes != 0)
+					sample = (sample << (uncompressedBytes * 8)) | (uncompressedBytesA[i] & mask);
+
+				storeSample24(outbuffer, i * numChannels * 3, sample);
+				if (numChannels > 1)
+					storeSample24(outbuffer, i * numChannels * 3 + 3, 0);
+			}
+		}
+	}
+
+	private void outputStereo(int[] outbuffer, int outputSamples, int uncompressedBytes, int interlacingShift, int interlacingLeftWeight)
+	{
+		final int mask = ~(0xFFFFFFFF << (uncompressedBytes * 8));
+		for (int i = 0; i < outputSamples; i++)
+		{
+			int left;
+			int right;
+
+			if (interlacingLeftWeight != 0)
+			{
+				/* weighted interlacing */
+				final int midRight = samplesA[i];
+				final int difference = samplesB[i];
+
+				right = midRight - ((difference * interlacingLeftWeight) >> interlacingShift);
+				left = right + difference;
+			}
+			else
+			{
+				left = samplesA[i];
+				right = samplesB[i];
+			}
+
+			if (sampleSize == 16)
+			{
+				outbuffer[i * numChannels] = left;
+				outbuffer[i * numChannels + 1] = right;
+			}
+			else
+			{
+				if (uncompressedBytes != 0)
+				{
+					left = (left << (uncompressedBytes * 8)) | (uncompressedBytesA[i] & mask);
+					right = (right << (uncompressedBytes * 8)) | (uncompressedBytesB[i] & mask);
+				}
+
+				storeSample24(outbuffer, i * numChannels * 3, left);
+				storeSample24(outbuffer, i * numChannels * 3 + 3, right);
+			}
+		}
+	}
+
+	/* packed 16-bit output. These fuse stereo reconstruction with the
+	** conversion to the output's signedness and byte order, and process four
+	** samples per iteration. For unsigned output, flip is 0x8000. Adding 0x8000
+	** changes only bit 15 and above, so in the low 16 bits it's the same as
+	** flipping bit 15, which is what the XOR does. hi and lo are the offsets of
+	** a sample's high and low byte, i.e. 0 and 1 for big endian output */
+
+	private static void packStereo16(int[] a, int[] b, int count, byte[] out, int o, int flip, int hi, int lo)
+	{
+		int i = 0;
+		for (final int end = count & ~3; i < end; i += 4, o += 16)
+		{
+			final int l0 = a[i] ^ flip, r0 = b[i] ^ flip;
+			final int l1 = a[i + 1] ^ flip, r1 = b[i + 1] ^ flip;
+			final int l2 = a[i + 2] ^ flip, r2 = b[i + 2] ^ flip;
+			final int l3 = a[i + 3] ^ flip, r3 = b[i + 3] ^ flip;
+
+			out[o + hi] = (byte)(l0 >> 8);
+			out[o + lo] = (byte)l0;
+			out[o + 2 + hi] = (byte)(r0 >> 8);
+			out[o + 2 + lo] = (byte)r0;
+			out[o + 4 + hi] = (byte)(l1 >> 8);
+			out[o + 4 + lo] = (byte)l1;
+			out[o + 6 + hi] = (byte)(r1 >> 8);
+			out[o + 6 + lo] = (byte)r1;
+			out[o + 8 + hi] = (byte)(l2 >> 8);
+			out[o + 8 + lo] = (byte)l2;
+			out[o + 10 + hi] = (byte)(r2 >> 8);
+			out[o + 10 + lo] = (byte)r2;
+			out[o + 12 + hi] = (byte)(l3 >> 8);
+			out[o + 12 + lo] = (byte)l3;
+			out[o + 14 + hi] = (byte)(r3 >> 8);
+			out[o + 14 + lo] = (byte)r3;
+		}
+		for (; i < count; i++, o += 4)
+		{
+			final int l = a[i] ^ flip, r = b[i] ^ flip;
+			out[o + hi] = (byte)(l >> 8);
+			out[o + lo] = (byte)l;
+			out[o + 2 + hi] = (byte)(r >> 8);
+			out[o + 2 + lo] = (byte)r;
+		}
+	}
+
+	private static void packStereoWeighted16(int[] a, int[] b, int count, int shift, int weight, byte[] out, int o, int flip, int hi, int lo)
+	{
+		int i = 0;
+		for (final int end = count & ~3; i < end; i += 4, o += 16)
+		{
+			final int d0 = b[i], d1 = b[i + 1], d2 = b[i + 2], d3 = b[i + 3];
+			final int r0 = a[i] - ((d0 * weight) >> shift);
+			final int r1 = a[i + 1] - ((d1 * weight) >> shift);
+			final int r2 = a[i + 2] - ((d2 * weight) >> shift);
+			final int r3 = a[i + 3] - ((d3 * weight) >> shift);
+			final int l0 = (r0 + d0) ^ flip, u0 = r0 ^ flip;
+			final int l1 = (r1 + d1) ^ flip, u1 = r1 ^ flip;
+			final int l2 = (r2 + d2) ^ flip, u2 = r2 ^ flip;
+			final int l3 = (r3 + d3) ^ flip, u3 = r3 ^ flip;
+
+			out[o + hi] = (byte)(l0 >> 8);
+			out[o + lo] = (byte)l0;
+			out[o + 2 + hi] = (byte)(u0 >> 8);
+			out[o + 2 + lo] = (byte)u0;
+			out[o + 4 + hi] = (byte)(l1 >> 8);
+			out[o + 4 + lo] = (byte)l1;
+			out[o + 6 + hi] = (byte)(u1 >> 8);
+			out[o + 6 + lo] = (byte)u1;
+			out[o + 8 + hi] = (byte)(l2 >> 8);
+			out[o + 8 + lo] = (byte)l2;
+			out[o + 10 + hi] = (byte)(u2 >> 8);
+			out[o + 10 + lo] = (byte)u2;
+			out[o + 12 + hi] = (byte)(l3 >> 8);
+			out[o + 12 + lo] = (byte)l3;
+			out[o + 14 + hi] = (byte)(u3 >> 8);
+			out[o + 14 + lo] = (byte)u3;
+		}
+		for (; i < count; i++, o += 4)
+		{
+			final int d = b[i];
+			final int r = a[i] - ((d * weight) >> shift);
+			final int l = (r + d) ^ flip, u = r ^ flip;
+			out[o + hi] = (byte)(l >> 8);
+			out[o + lo] = (byte)l;
+			out[o + 2 + hi] = (byte)(u >> 8);
+			out[o + 2 + lo] = (byte)u;
+		}
+	}
+
+	private static void packMono16(int[] a, int count, int numChannels, byte[] out, int o, int flip, int hi, int lo)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			final int s = a[i] ^ flip;
+			out[o + hi] = (byte)(s >> 8);
+			out[o + lo] = (byte)s;
+			o += 2;
+
+			/* silent second channel, see outputMono() */
+			if (numChannels > 1)
+			{
+				out[o + hi] = (byte)(flip >> 8);
+				out[o + lo] = 0;
+				o += 2;
+			}
+		}
+	}
+
+	/* frame decoding */
+
+	/*
+	** Decodes the frame stored in inbuffer[offset, offset + length) into outbuffer.
+	** 16-bit samples are stored as one int per sample, 24-bit samples as three
+	** ints holding one byte each, in little endian order. Returns the number of
+	** output bytes, i.e. the number of samples times bytes per sample. Frames
+	** with an unsupported channel count decode to a frame of silence.
+	*/
+	public int decodeFrame(byte[] inbuffer, int offset, int length, int[] outbuffer)
+	{
+		final int outputSamples = decodeSamples(inbuffer, offset, length);
+		if (outputSamples < 0)
+		{
+			/* outbuffer may hold a previous frame, see the byte[] variant */
+			final int values = maxSamplesPerFrame * numChannels * ((sampleSize == 16) ? 1 : 3);
+			Arrays.fill(outbuffer, 0, values, 0);
+			return maxSamplesPerFrame * bytesPerSample;
+		}
+
+		if (frameStereo)
+			outputStereo(outbuffer, outputSamples, frameUncompressedBytes, frameInterlacingShift, frameInterlacingLeftWeight);
+		else
+			outputMono(outbuffer, outputSamples, frameUncompressedBytes);
+
+		return outputSamples * bytesPerSample;
+	}
+
+	/*
+	** Decodes the 16-bit frame stored in inbuffer[offset, offset + length) and
+	** stores the samples in outbuffer, starting at outoffset, as unsigned 16-bit
+	** big endian PCM. Returns the number of output bytes, like
+	** decodeFrame(byte[], int, int, int[]) does.
+	*/
+	public int decodeFrame(byte[] inbuffer, int offset, int length, byte[] outbuffer, int outoffset)
+	{
+		return decodeFrame(inbuffer, offset, length, outbuffer, outoffset, false, true);
+	}
+
+	/*
+	** Decodes the 16-bit frame stored in inbuffer[offset, offset + length) and
+	** stores the samples in outbuffer, starting at outoffset, as 16-bit PCM of
+	** the given signedness and byte order, i.e. in the format the audio line is
+	** fed with. Stereo reconstruction and packing are done in a single pass.
+	** Returns the number of output bytes, like decodeFrame(byte[], int, int, int[])
+	** does. Frames with an unsupported channel count decode to a frame of silence.
+	*/
+	public int decodeFrame(byte[] inbuffer, int offset, int length, byte[] outbuffer, int outoffset, boolean signed, boolean bigEndian)
+	{
+		if (sampleSize != 16)
+			throw new IllegalStateException("Packed output requires 16-bit samples, but sample size is " + sampleSize);
+
+		final int outputSamples = decodeSamples(inbuffer, offset, length);
+		final int flip = signed ? 0 : 0x8000;
+		final int hi = bigEndian ? 0 : 1;
+		final int lo = 1 - hi;
+
+		if (outputSamples < 0)
+		{
+			/* outbuffer is usually a pooled buffer still holding a previous frame */
+			final int end = outoffset + maxSamplesPerFrame * bytesPerSample;
+			for (int o = outoffset; o < end; o += 2)
+			{
+				outbuffer[o + hi] = (byte)(flip >> 8);
+				outbuffer[o + lo] = 0;
+			}
+			return maxSamplesPerFrame * bytesPerSample;
+		}
+		if (frameStereo)
+		{
+			if (frameInterlacingLeftWeight != 0)
+				packStereoWeighted16(samplesA, samplesB, outputSamples, frameInterlacingShift, frameInterlacingLeftWeight, outbuffer, outoffset, flip, hi, lo);
+			else
+				packStereo16(samplesA, samplesB, outputSamples, outbuffer, outoffset, flip, hi, lo);
+		}
+		else
+			packMono16(samplesA, outputSamples, numChannels, outbuffer, outoffset, flip, hi, lo);
+
+		return outputSamples * bytesPerSample;
+	}
+
+	/*
+	** Only the adaptive FIR predictor (type 0) is known. Frames using another
+	** one can't be decoded, and are rejected instead of producing noise.
+	*/
+	private static void checkPredictionType(int predictionType)
+	{
+		if (predictionType != 0)
+			throw new IllegalArgumentException("Prediction type " + predictionType + " is not supported");
+	}
+
+	/*
+	** Decodes the frame's samples into samplesA and samplesB and stores the
+	** frame's output parameters in the frame* fields. Returns the number of
+	** samples, or -1 if the frame has an unsupported channel count and thus
+	** produces no output.
+	*/
+	private int decodeSamples(byte[] inbuffer, int offset, int length)
+	{
+		input = inbuffer;
+		inputIdx = offset;
+		inputEnd = offset + length;
+		bitCache = 0;
+		bitCacheCount = 0;
+
+		int outputSamples = maxSamplesPerFrame;
+
+		final int channels = readBits(3);
+		if (channels > 1)
+		{
+			input = null;
+			return -1;
+		}
+
+		/* 4 bits something to do with output waiting, 12 unknown bits */
+		skipBits(16);
+
+		final int hasSize = readBits(1);
+		int uncompressedBytes = readBits(2);
+		final int isNotCompressed = readBits(1);
+
+		if (hasSize != 0)
+		{
+			outputSamples = readBits(32);
+			if ((outputSamples < 0) || (outputSamples > maxSamplesPerFrame))
+				throw new IllegalArgumentException("Frame contains " + (outputSamples & 0xffffffffL) + " samples, but at most " + maxSamplesPerFrame + " were announced");
+		}
+
+		if (channels == 0)
+		{
+			/* mono */
+			final int readSampleSize = sampleSize - (uncompressedBytes * 8);
+
+			if (isNotCompressed == 0)
+			{
+				/* 16 bits seemingly only used in the two channel case */
+				skipBits(16);
+
+				final int predictionType = readBits(4);
+				final int predictionQuantitization = readBits(4);
+				final int riceModifier = readBits(3);
+				final int predictorCoefNum = readPredictorCoefs(predictorCoefsA);
+				checkPredictionType(predictionType);
+
+				if (uncompressedBytes != 0)
+				{
+					for (int i = 0; i < outputSamples; i++)
+						uncompressedBytesA[i] = readBits(uncompressedBytes * 8);
+				}
+
+				entropyRiceDecode(samplesA, outputSamples, readSampleSize, riceModifier * (riceHistoryMult / 4));
+
+				predictorDecompressFirAdapt(samplesA, outputSamples, readSampleSize, predictorCoefsA, predictorCoefNum, predictionQuantitization);
+			}
+			else
+			{
+				for (int i = 0; i < outputSamples; i++)
+					samplesA[i] = readUncompressedSample();
+				uncompressedBytes = 0;
+			}
+
+			frameStereo = false;
+			frameUncompressedBytes = uncompressedBytes;
+		}
+		else
+		{
+			/* stereo */
+			final int readSampleSize = sampleSize - (uncompressedBytes * 8) + 1;
+			int interlacingShift = 0;
+			int interlacingLeftWeight = 0;
+
+			if (isNotCompressed == 0)
+			{
+				interlacingShift = readBits(8);
+				interlacingLeftWeight = readBits(8);
+
+				final int predictionTypeA = readBits(4);
+				final int predictionQuantitizationA = readBits(4);
+				final int riceModifierA = readBits(3);
+				final int predictorCoefNumA = readPredictorCoefs(predictorCoefsA);
+
+				final int predictionTypeB = readBits(4);
+				final int predictionQuantitizationB = readBits(4);
+				final int riceModifierB = readBits(3);
+				final int predictorCoefNumB = readPredictorCoefs(predictorCoefsB);
+				checkPredictionType(predictionTypeA);
+				checkPredictionType(predictionTypeB);
+
+				if (uncompressedBytes != 0)
+				{
+					for (int i = 0; i < outputSamples; i++)
+					{
+						uncompressedBytesA[i] = readBits(uncompressedBytes * 8);
+						uncompressedBytesB[i] = readBits(uncompressedBytes * 8);
+					}
+				}
+
+				entropyRiceDecode(samplesA, outputSamples, readSampleSize, riceModifierA * (riceHistoryMult / 4));
+				predictorDecompressFirAdapt(samplesA, outputSamples, readSampleSize, predictorCoefsA, predictorCoefNumA, predictionQuantitizationA);
+
+				entropyRiceDecode(samplesB, outputSamples, readSampleSize, riceModifierB * (riceHistoryMult / 4));
+				predictorDecompressFirAdapt(samplesB, outputSamples, readSampleSize, predictorCoefsB, predictorCoefNumB, predictionQuantitizationB);
+			}
+			else
+			{
+				for (int i = 0; i < outputSamples; i++)
+				{
+					samplesA[i] = readUncompressedSample();
+					samplesB[i] = readUncompressedSample();
+				}
+				uncompressedBytes = 0;
+			}
+
+			frameStereo = true;
+			frameUncompressedBytes = uncompressedBytes;
+			frameInterlacingShift = interlacingShift;
+			frameInterlacingLeftWeight = interlacingLeftWeight;
+		}
+
+		input = null;
+		return outputSamples;
+	}
+}
@@ -0,0 +1,412 @@
+/*
+** AlacEncoder.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+package com.beatofthedrum.alacdecoder;
+
+/*
+** ALAC encoder for 16-bit stereo PCM. Produces frames that AlacDecodeUtils
+** and AlacDecoder decode with the same stream parameters, i.e. the ones
+** announced in the fmtp attribute of an ALAC session.
+**
+** Compressed frames are mid/side mixed, run through the same sign-adaptive
+** FIR predictor the decoder implements and then rice coded. The predictor
+** coefficients the encoder adapted to are carried over to the next frame,
+** so an instance keeps state between frames. Frames which don't compress
+** are stored uncompressed instead.
+**
+** An instance is not thread-safe.
+*/
+public final class AlacEncoder
+{
+	private static final int RICE_THRESHOLD = 8;
+
+	/* input is always 16 bit stereo, the side channel needs one extra bit */
+	private static final int SAMPLE_SIZE = 16;
+	private static final int STEREO_SAMPLE_SIZE = SAMPLE_SIZE + 1;
+
+	/* interlacing parameters of plain mid/side mixing */
+	private static final int INTERLACING_SHIFT = 1;
+	private static final int INTERLACING_LEFT_WEIGHT = 1;
+
+	/* predictor parameters, the defaults of Apple's encoder */
+	private static final int PREDICTOR_COEF_NUM = 8;
+	private static final int PREDICTOR_QUANTITIZATION = 9;
+	private static final int RICE_MODIFIER = 4;
+
+	/* the element tag terminating a frame */
+	private static final int ID_END = 7;
+
+	/* frame header, plus the sample count of short frames */
+	private static final int HEADER_BITS = 3 + 16 + 1 + 2 + 1;
+	private static final int SIZE_BITS = 32;
+
+	private final int maxSamplesPerFrame;
+	private final int riceHistoryMult;
+	private final int riceInitialHistory;
+	private final int riceKModifier;
+
+	/* per-channel samples after mixing, and their prediction errors */
+	private final int[] samplesU;
+	private final int[] samplesV;
+	private final int[] residualsU;
+	private final int[] residualsV;
+
+	private final int[] predictorCoefsU = new int[PREDICTOR_COEF_NUM];
+	private final int[] predictorCoefsV = new int[PREDICTOR_COEF_NUM];
+
+	/* compressed frames are built here and only copied to the output if
+	 * they turn out smaller than their uncompressed counterpart */
+	private final byte[] scratch;
+
+	/* bit writer state. Pending bits are stored left-aligned in bitCache,
+	 * which holds bitCacheCount of them, always less than 32 */
+	private byte[] output;
+	private int outputIdx;
+	private long bitCache;
+	private int bitCacheCount;
+
+	/*
+	** maxSamplesPerFrame	frames per packet, the first fmtp parameter
+	** riceHistoryMult	rice history multiplier (fmtp parameter 3, 40 for AirTunes)
+	** riceInitialHistory	rice initial history (fmtp parameter 4, 10 for AirTunes)
+	** riceKModifier	rice parameter limit (fmtp parameter 5, 14 for AirTunes)
+	*/
+	public AlacEncoder(int maxSamplesPerFrame, int riceHistoryMult, int riceInitialHistory, int riceKModifier)
+	{
+		/* zero runs are coded in 16 bits, so they must not span more samples */
+		if ((maxSamplesPerFrame <= 0) || (maxSamplesPerFrame > 0xFFFF))
+			throw new IllegalArgumentException("Samples per frame must be between 1 and 65535, but was " + maxSamplesPerFrame);
+		if ((riceKModifier < 1) || (riceKModifier > 16))
+			throw new IllegalArgumentException("Rice parameter limit must be between 1 and 16, but was " + riceKModifier);
+
+		this.maxSamplesPerFrame = maxSamplesPerFrame;
+		this.riceHistoryMult = riceHistoryMult;
+		this.riceInitialHistory = riceInitialHistory;
+		this.riceKModifier = riceKModifier;
+
+		samplesU = new int[maxSamplesPerFrame];
+		samplesV = new int[maxSamplesPerFrame];
+		residualsU = new int[maxSamplesPerFrame];
+		residualsV = new int[maxSamplesPerFrame];
+
+		/* each value takes at most an escape plus a 17 bit sample, and may
+		 * be followed by a zero run of at most an escape plus 16 bits */
+		scratch = new byte[(HEADER_BITS + SIZE_BITS + 16 + 2 * (19 + PREDICTOR_COEF_NUM * 16) + maxSamplesPerFrame * 2 * (2 * (RICE_THRESHOLD + 1) + STEREO_SAMPLE_SIZE + 16) + 3 + 7) / 8];
+
+		initPredictorCoefs(predictorCoefsU);
+		initPredictorCoefs(predictorCoefsV);
+	}
+
+	public int getMaxSamplesPerFrame()
+	{
+		return maxSamplesPerFrame;
+	}
+
+	/* the largest frame encodeFrame() produces, in bytes */
+	public int getMaxFrameBytes()
+	{
+		return uncompressedFrameBytes(maxSamplesPerFrame);
+	}
+
+	private int uncompressedFrameBytes(int samples)
+	{
+		final int sizeBits = (samples != maxSamplesPerFrame) ? SIZE_BITS : 0;
+		return (HEADER_BITS + sizeBits + samples * 2 * SAMPLE_SIZE + 3 + 7) / 8;
+	}
+
+	/* the starting point of Apple's encoder, adaptation takes it from there */
+	private static void initPredictorCoefs(int[] coefs)
+	{
+		for (int i = 0; i < coefs.length; i++)
+			coefs[i] = 0;
+		coefs[0] = (38 << PREDICTOR_QUANTITIZATION) >> 4;
+		coefs[1] = (-29 << PREDICTOR_QUANTITIZATION) >> 4;
+		coefs[2] = (-2 << PREDICTOR_QUANTITIZATION) >> 4;
+	}
+
+	/* bit stream writing */
+
+	private void begin(byte[] outbuffer, int outoffset)
+	{
+		output = outbuffer;
+		outputIdx = outoffset;
+		bitCache = 0;
+		bitCacheCount = 0;
+	}
+
+	/* writes the low 'bits' (0 to 32) bits of value, in big endian format */
+	private void writeBits(int value, int bits)
+	{
+		if (bits == 0)
+			return;
+
+		bitCache |= (((long)value) << (64 - bits)) >>> bitCacheCount;
+		bitCacheCount += bits;
+
+		if (bitCacheCount >= 32)
+		{
+			output[outputIdx] = (byte)(bitCache >>> 56);
+			output[outputIdx + 1] = (byte)(bitCache >>> 48);
+			output[outputIdx + 2] = (byte)(bitCache >>> 40);
+			output[outputIdx + 3] = (byte)(bitCache >>> 32);
+			outputIdx += 4;
+			bitCache <<= 32;
+			bitCacheCount -= 32;
+		}
+	}
+
+	/* pads the last byte with zeros, returns the index after the last byte written */
+	private int finish()
+	{
+		while (bitCacheCount > 0)
+		{
+			output[outputIdx++] = (byte)(bitCache >>> 56);
+			bitCache <<= 8;
+			bitCacheCount -= 8;
+		}
+
+		final int end = outputIdx;
+		output = null;
+		return end;
+	}
+
+	/* entropy coding, the inverse of AlacDecoder.entropyDecodeValue() */
+
+	private void entropyEncodeValue(int x, int writeSampleSize, int k, int riceKModifierMask)
+	{
+		final int divisor = ((1 << k) - 1) & riceKModifierMask;
+		final int ones = (divisor != 0) ? x / divisor : ((x != 0) ? RICE_THRESHOLD + 1 : 0);
+		if (ones > RICE_THRESHOLD)
+		{
+			/* escape, the value follows in raw form */
+			writeBits((1 << (RICE_THRESHOLD + 1)) - 1, RICE_THRESHOLD + 1);
+			writeBits(x, writeSampleSize);
+			return;
+		}
+
+		/* 'ones' 1s and a 0, followed by k bits holding the remainder plus one.
+		 * A remainder of 0 is stored in k - 1 zero bits, since the decoder
+		 * treats the k-bit values 0 and 1 alike and leaves the last bit unread */
+		final int prefix = ((1 << ones) - 1) << 1;
+		final int remainder = x - ones * divisor;
+		if (remainder != 0)
+			writeBits((prefix << k) | (remainder + 1), ones + 1 + k);
+		else
+			writeBits(prefix << (k - 1), ones + k);
+	}
+
+	private void entropyRiceEncode(int[] residuals, int count, int writeSampleSize, int riceHistoryMultiplier)
+	{
+		final int riceKModifierMask = (1 << riceKModifier) - 1;
+		int history = riceInitialHistory;
+		int signModifier = 0;
+
+		for (int i = 0; i < count; i++)
+		{
+			int k = 31 - Integer.numberOfLeadingZeros((history >> 9) + 3);
+			if (k > riceKModifier)
+				k = riceKModifier;
+
+			/* the sign is stored in the low bit */
+			final int residual = residuals[i];
+			final int value = (residual < 0) ? (-2 * residual - 1) : (2 * residual);
+
+			entropyEncodeValue(value - signModifier, writeSampleSize, k, 0xFFFFFFFF);
+
+			signModifier = 0;
+
+			history += (value * riceHistoryMultiplier) - ((history * riceHistoryMultiplier) >> 9);
+
+			if (value > 0xFFFF)
+				history = 0xFFFF;
+
+			/* special case, for compressed blocks of 0. The value following a
+			 * block is non-zero, and thus stored minus one */
+			if ((history < 128) && (i + 1 < count))
+			{
+				signModifier = 1;
+
+				k = Integer.numberOfLeadingZeros(history) + ((history + 16) / 64) - 24;
+
+				int blockSize = 0;
+				while ((i + 1 + blockSize < count) && (residuals[i + 1 + blockSize] == 0))
+					blockSize++;
+
+				/* blockSize is always 16 bit */
+				entropyEncodeValue(blockSize, 16, k, riceKModifierMask);
+				i += blockSize;
+
+				history = 0;
+			}
+		}
+	}
+
+	/* prediction, the inverse of AlacDecoder.predictorDecompressFirAdapt() */
+
+	private static void predictorCompressFirAdapt(int[] input, int[] residuals, int count, int writeSampleSize, int[] coefs, int coefNum, int quantitization)
+	{
+		final int bitsMove = 32 - writeSampleSize;
+
+		if (count == 0)
+			return;
+
+		residuals[0] = input[0];
+		if (coefNum == 0)
+		{
+			System.arraycopy(input, 1, residuals, 1, count - 1);
+			return;
+		}
+
+		/* warm-up samples */
+		final int warmUp = Math.min(coefNum, count - 1);
+		for (int i = 1; i <= warmUp; i++)
+			residuals[i] = ((input[i] - input[i - 1]) << bitsMove) >> bitsMove;
+
+		/* general case. The coefficients are adapted exactly like the decoder
+		 * does it, since it sees the same samples and errors */
+		final int rounding = 1 << (quantitization - 1);
+		for (int base = 0, i = coefNum + 1; i < count; base++, i++)
+		{
+			final int baseValue = input[base];
+
+			int sum = 0;
+			for (int j = 0; j < coefNum; j++)
+				sum += (input[base + coefNum - j] - baseValue) * coefs[j];
+
+			final int predicted = ((rounding + sum) >> quantitization) + baseValue;
+			int errorVal = ((input[i] - predicted) << bitsMove) >> bitsMove;
+			residuals[i] = errorVal;
+
+			if (errorVal > 0)
+			{
+				for (int predictorNum = coefNum - 1; (predictorNum >= 0) && (errorVal > 0); predictorNum--)
+				{
+					int val = baseValue - input[base + coefNum - predictorNum];
+					final int sign = (val < 0) ? -1 : ((val > 0) ? 1 : 0);
+
+					coefs[predictorNum] -= sign;
+
+					val *= sign;
+
+					errorVal -= (val >> quantitization) * (coefNum - predictorNum);
+				}
+			}
+			else if (errorVal < 0)
+			{
+				for (int predictorNum = coefNum - 1; (predictorNum >= 0) && (errorVal < 0); predictorNum--)
+				{
+					int val = baseValue - input[base + coefNum - predictorNum];
+					final int sign = -((val < 0) ? -1 : ((val > 0) ? 1 : 0));
+
+					coefs[predictorNum] -= sign;
+
+					val *= sign;
+
+					errorVal -= (val >> quantitization) * (coefNum - predictorNum);
+				}
+			}
+		}
+	}
+
+	/* coefficients are transmitted in 16 bits, adaptation may leave that range */
+	private static void clampPredictorCoefs(int[] coefs)
+	{
+		for (int i = 0; i < coefs.length; i++)
+			coefs[i] = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, coefs[i]));
+	}
+
+	private void writePredictorParams(int[] coefs)
+	{
+		writeBits(0, 4); /* prediction type, adaptive fir */
+		writeBits(PREDICTOR_QUANTITIZATION, 4);
+		writeBits(RICE_MODIFIER, 3);
+		writeBits(coefs.length, 5);
+		for (int i = 0; i < coefs.length; i++)
+			writeBits(coefs[i], 16);
+	}
+
+	private void writeHeader(int samples, boolean compressed)
+	{
+		final boolean hasSize = samples != maxSamplesPerFrame;
+
+		writeBits(1, 3); /* two channels */
+		writeBits(0, 16); /* 4 bits output waiting, 12 unused bits */
+		writeBits(hasSize ? 1 : 0, 1);
+		writeBits(0, 2); /* no uncompressed bytes */
+		writeBits(compressed ? 0 : 1, 1);
+		if (hasSize)
+			writeBits(samples, 32);
+	}
+
+	/* frame encoding */
+
+	/*
+	** Encodes 'samples' stereo samples, stored interleaved and signed in
+	** inbuffer starting at inoffset, into outbuffer starting at outoffset.
+	** Returns the number of bytes written, at most getMaxFrameBytes().
+	*/
+	public int encodeFrame(int[] inbuffer, int inoffset, int samples, byte[] outbuffer, int outoffset)
+	{
+		checkSamples(samples);
+
+		/* mid/side mixing, the inverse of the decoder's weighted interlacing */
+		for (int i = 0, j = inoffset; i < samples; i++, j += 2)
+		{
+			final int left = inbuffer[j];
+			final int right = inbuffer[j + 1];
+
+			samplesU[i] = right + (((left - right) * INTERLACING_LEFT_WEIGHT) >> INTERLACING_SHIFT);
+			samplesV[i] = left - right;
+		}
+
+		clampPredictorCoefs(predictorCoefsU);
+		clampPredictorCoefs(predictorCoefsV);
+
+		begin(scratch, 0);
+		writeHeader(samples, true);
+		writeBits(INTERLACING_SHIFT, 8);
+		writeBits(INTERLACING_LEFT_WEIGHT, 8);
+		writePredictorParams(predictorCoefsU);
+		writePredictorParams(predictorCoefsV);
+
+		predictorCompressFirAdapt(samplesU, residualsU, samples, STEREO_SAMPLE_SIZE, predictorCoefsU, PREDICTOR_COEF_NUM, PREDICTOR_QUANTITIZATION);
+		predictorCompressFirAdapt(samplesV, residualsV, samples, STEREO_SAMPLE_SIZE, predictorCoefsV, PREDICTOR_COEF_NUM, PREDICTOR_QUANTITIZATION);
+
+		entropyRiceEncode(residualsU, samples, STEREO_SAMPLE_SIZE, RICE_MODIFIER * (riceHistoryMult / 4));
+		entropyRiceEncode(residualsV, samples, STEREO_SAMPLE_SIZE, RICE_MODIFIER * (riceHistoryMult / 4));
+
+		writeBits(ID_END, 3);
+		final int compressedBytes = finish();
+
+		if (compressedBytes >= uncompressedFrameBytes(samples))
+			return encodeUncompressedFrame(inbuffer, inoffset, samples, outbuffer, outoffset);
+
+		System.arraycopy(scratch, 0, outbuffer, outoffset, compressedBytes);
+		return compressedBytes;
+	}
+
+	/*
+	** Like encodeFrame(), but always produces an uncompressed frame.
+	*/
+	public int encodeUncompressedFrame(int[] inbuffer, int inoffset, int samples, byte[] outbuffer, int outoffset)
+	{
+		checkSamples(samples);
+
+		begin(outbuffer, outoffset);
+		writeHeader(samples, false);
+		for (int i = inoffset, end = inoffset + samples * 2; i < end; i++)
+			writeBits(inbuffer[i], SAMPLE_SIZE);
+		writeBits(ID_END, 3);
+
+		return finish() - outoffset;
+	}
+
+	private void checkSamples(int samples)
+	{
+		if ((samples <= 0) || (samples > maxSamplesPerFrame))
+			throw new IllegalArgumentException("Frame must contain between 1 and " + maxSamplesPerFrame + " samples, but " + samples + " were given");
+	}
+}
@@ -15,6 +15,7 @@ public class AlacFile
 
 	byte input_buffer[];
 	int ibIdx = 0;
+	int ibEnd = 0; /* reads at or beyond this index yield zero bits */
 	int input_buffer_bitaccumulator = 0; /* used so we can do arbitary
 						bit reads */
 
@@ -37,7 +38,6 @@ public class AlacFile
 	int uncompressed_bytes_buffer_b[] = new int[buffer_size];
 
 
-
 	/* stuff from setinfo */
 	public int setinfo_max_samples_per_frame = 0; // 0x1000 = 4096
 	/* max samples per frame? */
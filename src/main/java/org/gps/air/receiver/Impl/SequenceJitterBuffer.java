@@ -0,0 +1,234 @@
+package org.gps.air.receiver.Impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Jitter buffer keyed on 16-bit RTP sequence numbers.
+ *
+ * Sequences are unwrapped into a 64-bit position, relative to the latest
+ * sequence put, so ordering is correct across the wrap-around from 0xffff
+ * to 0. Values live in a preallocated power-of-two slot array indexed by
+ * that position, so put and poll take constant time and allocate nothing.
+ *
+ * Lock-free for a single producer (the network thread calling
+ * {@link #put(int, Object)}) and any number of consumers (the audio writer,
+ * and e.g. a flush draining the buffer). A consumer claims a position
+ * by advancing the head with a CAS, and takes the position's value by
+ * clearing its slot with a CAS. The producer takes a value back the same
+ * way if the position was skipped while it was being put, so every value
+ * is either returned exactly once or rejected by put.
+ *
+ * Poll returns values in sequence order and skips missing sequences. A value
+ * whose sequence was already skipped is rejected by put, as is a duplicate.
+ */
+public class SequenceJitterBuffer<V> {
+
+    /**
+     * Number of distinct RTP sequences
+     */
+    private static final int Sequences = 0x10000;
+
+    private final int capacity;
+
+    private final int mask;
+
+    /**
+     * Values, and the positions they were put at
+     */
+    private final AtomicReferenceArray<V> slots;
+
+    private final AtomicLongArray slotPositions;
+
+    /**
+     * Next position to poll. Advanced by consumers, and by the producer
+     * while the buffer is empty
+     */
+    private final AtomicLong head = new AtomicLong(0);
+
+    /**
+     * Position after the latest one put. Only modified by the producer
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * True until the first put
+     */
+    private volatile boolean unset = true;
+
+    /**
+     * Creates a jitter buffer
+     *
+     * @param capacity maximal distance between the oldest and the newest
+     *        sequence, rounded up to a power of two
+     */
+    public SequenceJitterBuffer(int capacity) {
+        if (capacity <= 0 || capacity > Sequences / 2) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is out of range");
+        }
+
+        int rounded = 1;
+        while (rounded < capacity) {
+            rounded <<= 1;
+        }
+        this.capacity = rounded;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<V>(this.capacity);
+        this.slotPositions = new AtomicLongArray(this.capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds a value. Must only be called by the producer.
+     *
+     * @param sequence RTP sequence of the value
+     * @param value value
+     * @return false if the value was rejected because its sequence was already
+     *         put or polled past, or lies too far ahead of the oldest queued one.
+     *         The caller keeps ownership of rejected values.
+     */
+    public boolean put(int sequence, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        long position;
+        while (true) {
+            final long currentTail = tail.get();
+            if (unset) {
+                position = Sequences + (sequence & 0xffff);
+            } else {
+                // Unwrap relative to the latest sequence put.
+                final long latest = currentTail - 1;
+                position = latest + (short) ((sequence & 0xffff) - (int) (latest & 0xffff));
+            }
+
+            final long currentHead = head.get();
+            final long distance = position - currentHead;
+            if (unset || (currentHead >= currentTail && (distance < -capacity || distance >= capacity))) {
+                // First value, or the sender jumped while we're empty. Start over at the new position.
+                // A consumer which saw the buffer non-empty earlier may still be about to advance the
+                // head, so move it with a CAS too, and start over if a consumer got there first.
+                if (!head.compareAndSet(currentHead, position)) {
+                    continue;
+                }
+                tail.set(position);
+                unset = false;
+            } else if (distance < 0 || distance >= capacity) {
+                // Late, or too far ahead.
+                return false;
+            }
+            break;
+        }
+
+        final int slot = (int) (position & mask);
+        if (slots.get(slot) != null) {
+            // Duplicate, or the slot's previous value wasn't taken yet.
+            return false;
+        }
+        slotPositions.set(slot, position);
+        slots.set(slot, value);
+
+        if (position >= tail.get()) {
+            tail.set(position + 1);
+        } else if (position < head.get()) {
+            // A consumer skipped this position while we were writing it. Take the value back, unless
+            // the consumer took it after all.
+            if (slots.compareAndSet(slot, value, null)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes and returns the value with the lowest sequence, skipping missing sequences.
+     *
+     * @return value, or null if the buffer is empty
+     */
+    public V poll() {
+        while (true) {
+            final long currentHead = head.get();
+            if (currentHead >= tail.get()) {
+                return null;
+            }
+
+            // Claim the position. Only the claiming consumer may take its value.
+            if (!head.compareAndSet(currentHead, currentHead + 1)) {
+                continue;
+            }
+
+            final int slot = (int) (currentHead & mask);
+            final V value = slots.get(slot);
+            if (value != null && slotPositions.get(slot) == currentHead) {
+                // The producer may be taking the value back concurrently, see put. Whoever
+                // clears the slot owns the value, if we lose, the position counts as missing.
+                if (slots.compareAndSet(slot, value, null)) {
+                    return value;
+                }
+            }
+
+            // Missing, skip it.
+        }
+    }
+
+    /**
+     * Removes and returns the value with the lowest sequence if that sequence
+     * lies before the given one, skipping missing sequences. Draining a buffer
+     * with this method leaves its head at the given sequence at most, so values
+     * put later for the drained sequences are rejected as late.
+     *
+     * @param sequence RTP sequence to stop at
+     * @return value, or null if no value lies before the sequence
+     */
+    public V pollBefore(int sequence) {
+        if (unset) {
+            return null;
+        }
+
+        while (true) {
+            final long currentTail = tail.get();
+            final long latest = currentTail - 1;
+            final long end = latest + (short) ((sequence & 0xffff) - (int) (latest & 0xffff));
+
+            final long currentHead = head.get();
+            if (currentHead >= currentTail || currentHead >= end) {
+                return null;
+            }
+
+            // Claim the position. Only the claiming consumer may take its value.
+            if (!head.compareAndSet(currentHead, currentHead + 1)) {
+                continue;
+            }
+
+            final int slot = (int) (currentHead & mask);
+            final V value = slots.get(slot);
+            if (value != null && slotPositions.get(slot) == currentHead) {
+                // The producer may be taking the value back concurrently, see put. Whoever
+                // clears the slot owns the value, if we lose, the position counts as missing.
+                if (slots.compareAndSet(slot, value, null)) {
+                    return value;
+                }
+            }
+
+            // Missing, skip it.
+        }
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * Returns the number of positions between the oldest and the newest
+     * queued value, including missing ones.
+     */
+    public int span() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+}
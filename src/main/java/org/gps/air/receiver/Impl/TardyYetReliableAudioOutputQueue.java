@@ -1,12 +1,22 @@
 package org.gps.air.receiver.Impl;
 
 import org.phlo.AirReceiver.AudioClock;
+import org.phlo.AirReceiver.AudioClockState;
+import org.phlo.AirReceiver.AudioSink;
+import org.phlo.AirReceiver.AudioSinks;
 import org.phlo.AirReceiver.AudioStreamInformationProvider;
+import org.phlo.AirReceiver.DriftCorrector;
+import org.phlo.AirReceiver.JitterBufferDepth;
+import org.phlo.AirReceiver.LatencyHistogram;
+import org.phlo.AirReceiver.LinePositionEstimator;
+import org.phlo.AirReceiver.MonotonicClock;
+import org.phlo.AirReceiver.PcmBuffer;
+import org.phlo.AirReceiver.SoftwareVolume;
 
 import javax.sound.sampled.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 /**
@@ -36,9 +46,25 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
     private final int m_bytesPerFrame;
 
     /**
-     * JavaSounds audio output line
+     * Audio output line, see {@link AudioSinks}
      */
-    private final SourceDataLine m_line;
+    private final AudioSink m_line;
+
+    /**
+     * The line's latency in frames, see {@link AudioSink#getLatency()}
+     */
+    private final long m_lineLatencyFrames;
+
+    /**
+     * Frames written to the line but not yet played, as measured after each write while
+     * playing continuously and smoothed. Starts out as the line's buffer size
+     */
+    private volatile double m_lineBufferedFrames;
+
+    /**
+     * Interpolates the line's playback position between its updates
+     */
+    private final LinePositionEstimator m_linePosition;
 
     /**
      * Signals that the queue is being closed.
@@ -53,20 +79,17 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
     private final byte[] m_lineLastFrame;
 
     /**
-     * Number of frames appended to the line
+     * Number of frames appended to the line and the frame time
+     * corresponding to line time zero. Read without locking, see
+     * {@link AudioClockState}
      */
-    private AtomicLong m_lineFramesWritten = new AtomicLong(0);
+    private final AudioClockState m_clockState = new AudioClockState();
 
     /**
      * Largest frame time seen so far
      */
     private long m_latestSeenFrameTime = 0;
 
-    /**
-     * The frame time corresponding to line time zero
-     */
-    private long m_frameTimeOffset = 0;
-
     /**
      * Average packet size in frames.
      * We use this as the number of silence frames
@@ -75,9 +98,15 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
     private final int m_packetSizeFrames;
 
     /**
-     * Requested line gain
+     * Applies the requested gain and converts samples to signed ones if necessary
+     */
+    private final SoftwareVolume m_volume;
+
+    /**
+     * Corrects the drift between the sender's clock and the line's by resampling.
+     * Null unless the samples are 16-bit PCM
      */
-    private float m_requestedGain = 0.0f;
+    private final DriftCorrector m_driftCorrector;
 
     /**
      * AsyncEnqueuer thread
@@ -95,6 +124,16 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
      */
     private final double m_sampleRate;
 
+    /**
+     * Time from a packet's arrival until its samples were written to the line
+     */
+    private final LatencyHistogram m_lineWriteLatency = new LatencyHistogram();
+
+    /**
+     * Depth the queue must reach before play back (re-)starts
+     */
+    private final JitterBufferDepth m_bufferDepth;
+
     public TardyYetReliableAudioOutputQueue(final AudioStreamInformationProvider streamInfoProvider) throws LineUnavailableException {
 
         final AudioFormat audioFormat = streamInfoProvider.getAudioFormat();
@@ -124,20 +163,34 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
         m_packetSizeFrames = streamInfoProvider.getFramesPerPacket();
         m_bytesPerFrame = m_format.getChannels() * m_format.getSampleSizeInBits() / 8;
         m_sampleRate = m_format.getSampleRate();
+        m_bufferDepth = new JitterBufferDepth(JitterBufferDepth.Policy.fromSystemProperty(), m_sampleRate);
+        try {
+            m_volume = new SoftwareVolume(m_format, m_convertUnsignedToSigned);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new LineUnavailableException(e.getMessage());
+        }
+        if (DriftCorrector.isSupported(m_format)) {
+            m_driftCorrector = new DriftCorrector(m_format, m_packetSizeFrames);
+        }
+        else {
+            s_logger.warning("Audio format " + m_format + " cannot be resampled, clock drift will not be corrected");
+            m_driftCorrector = null;
+        }
         m_lineLastFrame = new byte[m_bytesPerFrame];
         for(int b=0; b < m_lineLastFrame.length; ++b)
             m_lineLastFrame[b] = (b % 2 == 0) ? (byte)-128 : (byte)0;
 
 		/* Compute desired line buffer size and obtain a line */
         final int desiredBufferSize = (int)Math.pow(2, Math.ceil(Math.log(BufferSizeSeconds * m_sampleRate * m_bytesPerFrame) / Math.log(2.0)));
-        final DataLine.Info lineInfo = new DataLine.Info(
-                SourceDataLine.class,
-                m_format,
-                desiredBufferSize
-        );
-        m_line = (SourceDataLine) AudioSystem.getLine(lineInfo);
-        m_line.open(m_format, desiredBufferSize);
+        m_line = AudioSinks.open(m_format, desiredBufferSize);
         s_logger.info("Audio output line created and openend. Requested buffer of " + desiredBufferSize / m_bytesPerFrame  + " frames, got " + m_line.getBufferSize() / m_bytesPerFrame + " frames");
+        m_lineLatencyFrames = Math.round(m_line.getLatency() * m_sampleRate);
+        m_lineBufferedFrames = m_line.getBufferSize() / m_bytesPerFrame;
+        m_linePosition = new LinePositionEstimator(m_sampleRate);
+
+        /* The gain is applied in software, so the line's gain (if any) stays at 0 dB */
+        m_line.setGain(0.0f);
 
 		/* Start enqueuer thread and wait for the line to start.
 		 * The wait guarantees that the AudioClock functions return
@@ -149,40 +202,64 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
         m_queueThread.start();
 
         /* Initialize the seconds time offset now that the line is running. */
-        m_secondsTimeOffset = 2208988800.0 +  System.currentTimeMillis() * 1e-3;
+        m_secondsTimeOffset = MonotonicClock.getNowSecondsTime() - getNowLinePosition() / m_sampleRate;
     }
 
-    public synchronized boolean enqueue(final long frameTime, final byte[] frames) throws InterruptedException {
-        asyncEnqueuer.addToQueue(frameTime, frames);
+    /**
+     * Adds sample data to the queue. The queue takes over the caller's
+     * reference to the buffer, and releases it once the samples were
+     * written to the line or dropped.
+     *
+     * @param pcmBuffer sample data and its playback time
+     * @return true if the sample data was added to the queue
+     */
+    public synchronized boolean enqueue(final PcmBuffer pcmBuffer) {
+        asyncEnqueuer.addToQueue(pcmBuffer);
         return true;
     }
 
     /**
-     * Returns the line's MASTER_GAIN control's value.
+     * Returns the latencies between the arrival of packets and
+     * the time their samples were written to the line
+     *
+     * @return latency histogram
      */
-    private float getLineGain() {
-        if (m_line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-			/* Bound gain value by min and max declared by the control */
-            final FloatControl gainControl = (FloatControl)m_line.getControl(FloatControl.Type.MASTER_GAIN);
-            return gainControl.getValue();
-        }
-        else {
-            s_logger.severe("Audio output line doesn not support volume control");
-            return 0.0f;
-        }
+    public LatencyHistogram getLineWriteLatency() {
+        return m_lineWriteLatency;
+    }
+
+    /**
+     * Returns the jitter buffer's target depth and the measurements it's based on
+     *
+     * @return buffer depth
+     */
+    public JitterBufferDepth getBufferDepth() {
+        return m_bufferDepth;
     }
 
-    private synchronized void applyGain() {
-        setLineGain(m_requestedGain);
+    /**
+     * Returns the time between a packet's arrival and the moment its samples
+     * leave the output line. That's the jitter buffer's current target depth,
+     * plus the frames the line holds at steady state (the difference between the
+     * frames written and its playback position), plus the line's own processing
+     * delay (e.g. resampling, see {@link AudioSink#getLatency()}). Both the target
+     * depth and the line's fill level are measured, so this value follows them.
+     *
+     * @return output latency in frames
+     */
+    public long getOutputLatencyFrames() {
+        final double bufferSeconds = m_bufferDepth.getTargetSeconds();
+        return Math.round(bufferSeconds * m_sampleRate + m_lineBufferedFrames) + m_lineLatencyFrames;
     }
 
     /**
-     * Sets the desired output gain.
+     * Sets the desired output gain. Samples written from now
+     * on ramp to the new gain.
      *
-     * @param gain desired gain
+     * @param gain desired gain in dB
      */
-    public synchronized void setGain(final float gain) {
-        m_requestedGain = gain;
+    public void setGain(final float gain) {
+        m_volume.setGain(gain);
     }
 
     /**
@@ -197,40 +274,29 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
      * Returns the desired output gain.
      *
      */
-    public synchronized float getGain() {
-        return m_requestedGain;
+    public float getGain() {
+        return m_volume.getGain();
     }
 
     /**
-     * Removes all currently queued sample data
+     * Removes all currently queued sample data. The buffers go back to their pool.
      */
     public void flush() {
-        asyncEnqueuer.internalQueue.clear();
-        //s_logger.warning("Overall drop count in the last session: " + dropCount);
-//        s_logger.warning("Overall drop count in the last session: " + droppedStreamObjectsList.size());
-//        droppedStreamObjectsList.clear();
-        System.gc();
+        m_bufferDepth.reset();
+        asyncEnqueuer.releaseQueued();
     }
 
     /**
-     * Sets the line's MASTER_GAIN control to the provided value,
-     * or complains to the log of the line does not support a MASTER_GAIN control
+     * Removes the queued sample data before the given RTP sequence, e.g. upon a seek.
+     * Sample data from the sequence on stays queued, and sample data before it
+     * which arrives later is dropped. The buffers go back to their pool.
      *
-     * @param gain gain to set
+     * @param sequence first RTP sequence to keep
+     * @return number of buffers removed
      */
-    private void setLineGain(final float gain) {
-        if (m_line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-			/* Bound gain value by min and max declared by the control */
-            final FloatControl gainControl = (FloatControl)m_line.getControl(FloatControl.Type.MASTER_GAIN);
-            if (gain < gainControl.getMinimum())
-                gainControl.setValue(gainControl.getMinimum());
-            else if (gain > gainControl.getMaximum())
-                gainControl.setValue(gainControl.getMaximum());
-            else
-                gainControl.setValue(gain);
-        }
-        else
-            s_logger.severe("Audio output line doesn not support volume control");
+    public int flush(final int sequence) {
+        m_bufferDepth.reset();
+        return asyncEnqueuer.releaseQueuedBefore(sequence & 0xffff);
     }
 
     @Override
@@ -238,20 +304,20 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
         final double ageSeconds = getNowSecondsTime() - secondsTime;
         final long lineTime = Math.round((secondsTime - m_secondsTimeOffset) * m_sampleRate);
 
-        final long frameTimeOffsetPrevious = m_frameTimeOffset;
-        m_frameTimeOffset = frameTime - lineTime;
+        final long frameTimeOffset = frameTime - lineTime;
+        final long frameTimeOffsetPrevious = m_clockState.setFrameTimeOffset(frameTimeOffset);
 
-        s_logger.fine("Frame time adjusted by " + (m_frameTimeOffset - frameTimeOffsetPrevious) + " based on timing information " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames before latest seen frame time");
+        s_logger.fine("Frame time adjusted by " + (frameTimeOffset - frameTimeOffsetPrevious) + " based on timing information " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames before latest seen frame time");
     }
 
     @Override
     public double getNowSecondsTime() {
-        return m_secondsTimeOffset + getNowLineTime() / m_sampleRate;
+        return m_secondsTimeOffset + getNowLinePosition() / m_sampleRate;
     }
 
     @Override
     public long getNowFrameTime() {
-        return m_frameTimeOffset + getNowLineTime();
+        return m_clockState.getFrameTimeOffset() + (long) Math.floor(getNowLinePosition());
     }
 
     @Override
@@ -259,116 +325,267 @@ public class TardyYetReliableAudioOutputQueue implements AudioClock {
         return m_secondsTimeOffset + getNextLineTime() / m_sampleRate;
     }
 
-    private synchronized long getNextLineTime() {
-        return m_lineFramesWritten.get();
+    private long getNextLineTime() {
+        return m_clockState.getFramesWritten();
     }
 
     @Override
     public long getNextFrameTime() {
-        return m_frameTimeOffset + getNextLineTime();
+        return m_clockState.getNextFrameTime();
     }
 
     @Override
     public double convertFrameToSecondsTime(final long frameTime) {
-        return m_secondsTimeOffset + (frameTime - m_frameTimeOffset) / m_sampleRate;
+        return m_secondsTimeOffset + (frameTime - m_clockState.getFrameTimeOffset()) / m_sampleRate;
     }
 
-    private long getNowLineTime() {
-        return m_line.getLongFramePosition();
+    /**
+     * @return the line's interpolated playback position in (fractional) frames
+     */
+    private double getNowLinePosition() {
+        return m_linePosition.getPosition(m_line.getLongFramePosition(), System.nanoTime()) - m_lineLatencyFrames;
     }
 
-    private synchronized long convertFrameToLineTime(final long entryFrameTime) {
-        return entryFrameTime - m_frameTimeOffset;
+    private long convertFrameToLineTime(final long entryFrameTime) {
+        return entryFrameTime - m_clockState.getFrameTimeOffset();
     }
 
     private class AsyncEnqueuer implements Runnable {
 
-        private final int FRAME_BUFFER = 300;
-
-        private final int DROP_FRAMES_WHEN_OVER_SECONDS = 300; // If 300secs too late, we'll clear queue.
-
-        private CountDownLatch countDownLatch = new CountDownLatch(FRAME_BUFFER);
-
-        private final LinkedSortedQueue<Long, byte[]> internalQueue = new LinkedSortedQueue<Long, byte[]>();
+        /**
+         * Interval at which the buffer's depth is checked while buffering
+         */
+        private final long BUFFERING_POLL_NANOS = 5000000L;
+
+        /**
+         * Number of sequences the jitter buffer spans, must cover the largest target depth
+         */
+        private final int JITTER_BUFFER_PACKETS = 1024;
+
+        /**
+         * Number of measurements the line's fill level is averaged over (roughly)
+         */
+        private final double LINE_BUFFERED_SMOOTHING = 16.0;
+
+        private final SequenceJitterBuffer<PcmBuffer> internalQueue = new SequenceJitterBuffer<PcmBuffer>(JITTER_BUFFER_PACKETS);
+
+        /**
+         * Latest sequence put into the queue, -1 if none. Only used by the producer
+         */
+        private int latestSequence = -1;
+
+        /**
+         * Packets before this sequence were flushed, -1 if none. Cleared by the
+         * producer once a packet from this sequence on arrives
+         */
+        private volatile int flushedBeforeSequence = -1;
+
+        /**
+         * True while waiting for the queue to reach its target depth
+         */
+        private volatile boolean buffering = true;
+
+        /**
+         * Sequence of the packet last written to the line, -1 if play back just (re-)started
+         */
+        private int lastWrittenSequence = -1;
+
+        /**
+         * Gap between a packet's playback time and the line's end when play back
+         * (re-)started. Deviations from it are corrected by the drift corrector
+         */
+        private long referenceGapFrames = 0;
 
         @Override
         public void run() {
-            s_logger.info("Thread started bitch");
+            s_logger.info("Audio enqueuer started");
 
             /* Start the line */
             m_line.start();
 
             while (!m_closing) {
 
-                try {
+                /* Wait until the queue reaches its target depth, then play until it runs dry */
+                buffering = true;
+                lastWrittenSequence = -1;
+                while (!m_closing && getBufferedSeconds() < m_bufferDepth.getTargetSeconds()) {
+                    LockSupport.parkNanos(BUFFERING_POLL_NANOS);
+                }
+                buffering = false;
+                s_logger.fine("Starting play back with " + getBufferedSeconds() + " seconds buffered, " + m_bufferDepth);
 
-                    countDownLatch.await(); // Wait for buffer to be full.
-                    resetBufferWait(); // Reset buffer wait.
+                PcmBuffer pcmBuffer;
+                while (!m_closing && (pcmBuffer = internalQueue.poll()) != null) {
+                    try {
+                        writeToLine(pcmBuffer);
+                    }
+                    finally {
+                        pcmBuffer.release();
+                    }
+                }
 
+                if (!m_closing) {
+                    s_logger.fine("Audio output queue ran dry, buffering");
+                }
 
-                    while(!internalQueue.isEmpty()) {
-                        if (getLineGain() != m_requestedGain) {
-                            applyGain();
-                        }
+            }
 
-                        Entry<Long, byte[]> entry = internalQueue.firstEntryRemove();
-                        final long entryLineTime = convertFrameToLineTime(entry.getKey());
+            /* Release the line, e.g. to let file sinks complete their output */
+            releaseQueued();
+            m_line.stop();
+            m_line.close();
+        }
 
-                        /* Get sample data and do sanity checks */
-                        /* Convert samples if necessary */
-                        final byte[] samplesConverted = entry.getValue();
-                        final int samplesConvertedLen = samplesConverted.length;
-                        if (m_convertUnsignedToSigned) {
-                            //final byte[] samplesConverted = Arrays.copyOfRange(nextPlaybackSamples, 0, nextPlaybackSamples.length);
-                            /* The line expects signed PCM samples, so we must
-                             * convert the unsigned PCM samples to signed.
-                             * Note that this only affects the high bytes!
-                             */
-                            for (int i = 0; i < samplesConvertedLen; i += 2) {
-                                samplesConverted[i] = (byte) ((samplesConverted[i] & 0xff) - 0x80);
-                            }
-                        }
+        /**
+         * Returns the time span covered by the queued packets, including missing ones
+         */
+        private double getBufferedSeconds() {
+            return (double) internalQueue.span() * m_packetSizeFrames / m_sampleRate;
+        }
 
-                        final long gapFrames = entryLineTime - getNextLineTime();
+        /**
+         * Writes a buffer's samples to the line, applying the gain and converting them
+         * in place. The buffer is owned by the queue at this point, so modifying it is safe.
+         *
+         * @param pcmBuffer sample data
+         */
+        private void writeToLine(final PcmBuffer pcmBuffer) {
+            final long entryLineTime = convertFrameToLineTime(pcmBuffer.getFrameTime());
+
+            /* Apply gain, and convert samples if necessary */
+            final byte[] samplesConverted = pcmBuffer.getBytes();
+            final int samplesConvertedLen = pcmBuffer.getLength() - pcmBuffer.getLength() % m_bytesPerFrame;
+            m_volume.process(samplesConverted, 0, samplesConvertedLen);
+
+            final long gapFrames = entryLineTime - getNextLineTime();
+
+            /* The latency at which play back (re-)started is the jitter buffer's choice, so it
+             * becomes the reference. Afterwards, the gap only changes as the sender's clock drifts
+             * against the line's, which the drift corrector evens out. Lost packets and clock steps
+             * change the gap abruptly, and make the new gap the reference
+             */
+            final int sequence = pcmBuffer.getSequence();
+            final boolean continuous = (lastWrittenSequence >= 0) && (sequence == ((lastWrittenSequence + 1) & 0xffff));
+            lastWrittenSequence = sequence;
+            double timingErrorSeconds = (gapFrames - referenceGapFrames) / m_sampleRate;
+            if (!continuous || (Math.abs(timingErrorSeconds) > DriftCorrector.MaxErrorSeconds)) {
+                referenceGapFrames = gapFrames;
+                timingErrorSeconds = 0.0;
+                if (m_driftCorrector != null)
+                    m_driftCorrector.reset();
+            }
 
-                        /* Write samples to line */
-                        final int bytesWritten = m_line.write(samplesConverted, 0, samplesConvertedLen);
-                        if (bytesWritten != samplesConverted.length) {
-                            s_logger.warning("Audio output line accepted only " + bytesWritten + " bytes of sample data while trying to write " + samplesConvertedLen + " bytes");
-                        }
+            /* While playing continuously, the line is as full as it gets */
+            if (continuous)
+                measureLineBuffered();
+
+            /* Write samples to line */
+            if (m_driftCorrector != null) {
+                final int maxInputFrames = m_driftCorrector.getMaxInputFrames();
+                int off = 0;
+                while (off < samplesConvertedLen) {
+                    final int inputFrames = Math.min((samplesConvertedLen - off) / m_bytesPerFrame, maxInputFrames);
+                    final int outputFrames = m_driftCorrector.process(samplesConverted, off, inputFrames, timingErrorSeconds);
+                    writeFrames(m_driftCorrector.getOutput(), outputFrames * m_bytesPerFrame);
+                    off += inputFrames * m_bytesPerFrame;
+                }
+            }
+            else {
+                writeFrames(samplesConverted, samplesConvertedLen);
+            }
+            if (pcmBuffer.getArrivalNanoTime() != 0)
+                m_lineWriteLatency.add(System.nanoTime() - pcmBuffer.getArrivalNanoTime());
+        }
 
-                        /* Update state */
+        /**
+         * Updates the smoothed number of frames written to the line but not yet played
+         */
+        private void measureLineBuffered() {
+            final long buffered = getNextLineTime() - m_line.getLongFramePosition();
+            m_lineBufferedFrames += (buffered - m_lineBufferedFrames) / LINE_BUFFERED_SMOOTHING;
+        }
 
-                        m_lineFramesWritten.addAndGet(bytesWritten / m_bytesPerFrame);
-                        synchronized (m_lineLastFrame) {
-                            for (int b = 0; b < m_bytesPerFrame; ++b)
-                                m_lineLastFrame[b] = samplesConverted[samplesConvertedLen - (m_bytesPerFrame - b)];
+        /**
+         * Writes the range [0,len) of the given sample data to the line
+         *
+         * @param samples sample data in the line's format
+         * @param len sample data length
+         */
+        private void writeFrames(final byte[] samples, final int len) {
+            if (len == 0)
+                return;
+
+            final int bytesWritten = m_line.write(samples, 0, len);
+            if (bytesWritten != len) {
+                s_logger.warning("Audio output line accepted only " + bytesWritten + " bytes of sample data while trying to write " + len + " bytes");
+            }
 
-                            s_logger.finest("Audio output line end is now at " + getNextLineTime() + " after writing " + samplesConvertedLen / m_bytesPerFrame + " frames");
-                        }
+            /* Update state */
 
-                        final double timingErrorSeconds = gapFrames / m_sampleRate;
-                        if(timingErrorSeconds > DROP_FRAMES_WHEN_OVER_SECONDS) {
-                            //s_logger.warning("Removed: " + internalQueue.firstKey());
-                            internalQueue.clear();
-                        }
+            m_clockState.addFramesWritten(bytesWritten / m_bytesPerFrame);
+            synchronized (m_lineLastFrame) {
+                for (int b = 0; b < m_bytesPerFrame; ++b)
+                    m_lineLastFrame[b] = samples[len - (m_bytesPerFrame - b)];
 
-                    }
+                s_logger.finest("Audio output line end is now at " + getNextLineTime() + " after writing " + len / m_bytesPerFrame + " frames");
+            }
+        }
+
+        public void addToQueue(PcmBuffer pcmBuffer) {
+            final int sequence = pcmBuffer.getSequence();
 
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            /* Drop stragglers from before a flush */
+            final int flushed = flushedBeforeSequence;
+            if (flushed >= 0) {
+                if ((short) (sequence - flushed) < 0) {
+                    s_logger.fine("Dropped packet " + sequence + ", it was flushed");
+                    pcmBuffer.release();
+                    return;
                 }
+                flushedBeforeSequence = -1;
+            }
 
+            final boolean inOrder = (latestSequence < 0) || ((short) (sequence - latestSequence) > 0);
+            if (inOrder) {
+                latestSequence = sequence;
+            }
+            if (pcmBuffer.getArrivalNanoTime() != 0) {
+                m_bufferDepth.packetArrived(pcmBuffer.getFrameTime(), pcmBuffer.getArrivalNanoTime(), inOrder);
+            }
+
+            if (!internalQueue.put(sequence, pcmBuffer)) {
+                s_logger.fine("Dropped packet " + sequence + ", it's a duplicate or arrived after it was due");
+                pcmBuffer.release();
+            }
+
+            /* Wake the enqueuer as soon as the target depth is reached */
+            if (buffering && getBufferedSeconds() >= m_bufferDepth.getTargetSeconds()) {
+                LockSupport.unpark(m_queueThread);
             }
         }
 
-        private void resetBufferWait() {
-            countDownLatch = new CountDownLatch(FRAME_BUFFER);
+        /**
+         * Removes all queued buffers and returns them to their pool
+         */
+        private void releaseQueued() {
+            PcmBuffer pcmBuffer;
+            while ((pcmBuffer = internalQueue.poll()) != null)
+                pcmBuffer.release();
         }
 
-        public void addToQueue(long frameTime, byte[] frames) throws InterruptedException {
-            internalQueue.put(frameTime, frames);
-            countDownLatch.countDown(); // Countdown buffer.
+        /**
+         * Removes the buffers queued before the given sequence and returns them to their pool
+         */
+        private int releaseQueuedBefore(final int sequence) {
+            flushedBeforeSequence = sequence;
+
+            int released = 0;
+            PcmBuffer pcmBuffer;
+            while ((pcmBuffer = internalQueue.pollBefore(sequence)) != null) {
+                pcmBuffer.release();
+                ++released;
+            }
+            return released;
         }
     }
 
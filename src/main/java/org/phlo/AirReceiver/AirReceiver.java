@@ -105,6 +105,20 @@ public class AirReceiver {
 	 */
 	public static final ExecutorService ExecutorService = Executors.newCachedThreadPool();
 
+	/**
+	 * Scheduler shared by all sessions to send their timing and retransmit requests,
+	 * see {@link RaopRtpTimingHandler} and {@link RaopRtpRetransmitRequestHandler}
+	 */
+	public static final ScheduledExecutorService TimingScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			thread.setName("Time Synchronizer");
+			return thread;
+		}
+	});
+
 	/**
 	 * Channel execution handler. Spreads channel message handling over multiple threads
 	 */
@@ -311,8 +325,9 @@ public class AirReceiver {
 		/* Wait for all channels to finish closing */
 		allChannelsClosed.awaitUninterruptibly();
 		
-		/* Stop the ExecutorService */
+		/* Stop the ExecutorService and the timing scheduler */
 		ExecutorService.shutdown();
+		TimingScheduler.shutdownNow();
 
 		/* Release the OrderedMemoryAwareThreadPoolExecutor */
 		ChannelExecutionHandler.releaseExternalResources();
@@ -45,6 +45,28 @@ public final class AirTunesCrytography {
 	 */
 	private static final Provider Provider = new org.bouncycastle.jce.provider.BouncyCastleProvider();
 
+	/**
+	 * Implementations available for the transformations returned by {@link #getCipher(String, CipherProvider)}
+	 */
+	public enum CipherProvider {
+		/**
+		 * The bundled Bouncy Castle provider, see {@link #getCipher(String)}
+		 */
+		BouncyCastle,
+
+		/**
+		 * The JRE's own providers. Their AES implementation is usually
+		 * intrinsified by the JIT to use the CPU's AES instructions
+		 */
+		Jdk
+	}
+
+	/**
+	 * System property selecting the provider of the AES cipher used to
+	 * decrypt the audio data. Either "BouncyCastle" (the default) or "Jdk"
+	 */
+	public static final String AesCipherProviderProperty = "org.phlo.AirReceiver.aesCipherProvider";
+
 	/**
 	 * The AirTunes private key in PEM-encoded PKCS#8 format.
 	 * Original Key from shairport was in PEM-encoded PKCS#1 format
@@ -83,6 +105,12 @@ public final class AirTunesCrytography {
 	 */
 	public static final RSAPrivateKey PrivateKey = rsaPrivateKeyDecode(PrivateKeyData);
 
+	/**
+	 * The AirTunes public key matching {@link #PrivateKey}. Used by senders to
+	 * encrypt the AES session key and to verify the {@code Apple-Response}
+	 */
+	public static final RSAPublicKey PublicKey = rsaPublicKeyDerive(PrivateKey);
+
 	static final Pattern s_transformation_pattern = Pattern.compile("^([A-Za-z0-9_.-]+)(/([A-Za-z0-9_.-]+)/([A-Za-z0-9_.-]+))?");
 	/**
 	 * Replacement for JCA/JCE's {@link javax.crypto.Cipher#getInstance}.
@@ -170,6 +198,50 @@ public final class AirTunesCrytography {
 		}
 	}
 
+	/**
+	 * Returns a {@link javax.crypto.Cipher} for the transformation from the given provider.
+	 *
+	 * @param transformation the transformation to find an implementation for
+	 * @param provider the provider to obtain the implementation from
+	 */
+	public static Cipher getCipher(final String transformation, final CipherProvider provider) {
+		switch (provider) {
+			case Jdk:
+				try {
+					final Cipher cipher = Cipher.getInstance(transformation);
+					s_logger.info("Using provider " + cipher.getProvider().getName() + " for " + transformation);
+					return cipher;
+				}
+				catch (final GeneralSecurityException e) {
+					throw new RuntimeException("JRE failed to instanciate " + transformation, e);
+				}
+
+			case BouncyCastle:
+			default:
+				return getCipher(transformation);
+		}
+	}
+
+	/**
+	 * Returns the provider selected for the AES cipher by the system
+	 * property {@link #AesCipherProviderProperty}.
+	 *
+	 * @return the AES cipher provider
+	 */
+	public static CipherProvider getAesCipherProvider() {
+		final String providerName = System.getProperty(AesCipherProviderProperty);
+		if (providerName == null)
+			return CipherProvider.BouncyCastle;
+
+		for(final CipherProvider provider: CipherProvider.values()) {
+			if (provider.name().equalsIgnoreCase(providerName))
+				return provider;
+		}
+
+		s_logger.warning("Unknown AES cipher provider " + providerName + ", using " + CipherProvider.BouncyCastle);
+		return CipherProvider.BouncyCastle;
+	}
+
 	/**
 	 * Converts a PEM-encoded PKCS#8 private key into an RSAPrivateKey instance
 	 * useable with JCE
@@ -188,6 +260,24 @@ public final class AirTunesCrytography {
 		}
 	}
 
+	/**
+	 * Derives the public key from a RSA private key which includes the public exponent
+	 *
+	 * @param privateKey private key in CRT form
+	 * @return the public key
+	 */
+	private static RSAPublicKey rsaPublicKeyDerive(final RSAPrivateKey privateKey) {
+		try {
+			final RSAPrivateCrtKey privateCrtKey = (RSAPrivateCrtKey)privateKey;
+			final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+			final KeySpec ks = new RSAPublicKeySpec(privateCrtKey.getModulus(), privateCrtKey.getPublicExponent());
+			return (RSAPublicKey)keyFactory.generatePublic(ks);
+		}
+		catch (final Exception e) {
+			throw new RuntimeException("Failed to derive built-in public key", e);
+		}
+	}
+
 	/**
 	 * Creates a {@link javax.crypto.Cipher} instance from a {@link javax.crypto.CipherSpi}.
 	 *
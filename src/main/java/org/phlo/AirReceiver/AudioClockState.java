@@ -0,0 +1,103 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Publishes an audio output queue's frame time offset and the number of
+ * frames written to its line without ever blocking readers.
+ * <p>
+ * Readers (e.g. the network threads converting the time of every packet)
+ * use a sequence lock. They retry if a writer was active while they read,
+ * instead of waiting on a monitor held by the real-time thread writing the
+ * line. Writers are serialized among themselves, but hold the lock only
+ * while storing the new values.
+ */
+public final class AudioClockState {
+	/**
+	 * Odd while a writer is active, incremented twice by every update
+	 */
+	private volatile int m_sequence = 0;
+
+	/**
+	 * The frame time corresponding to line time zero
+	 */
+	private volatile long m_frameTimeOffset = 0;
+
+	/**
+	 * Number of frames appended to the line, i.e. the next line time
+	 */
+	private volatile long m_framesWritten = 0;
+
+	/**
+	 * @return the frame time corresponding to line time zero
+	 */
+	public long getFrameTimeOffset() {
+		return m_frameTimeOffset;
+	}
+
+	/**
+	 * @return the number of frames appended to the line
+	 */
+	public long getFramesWritten() {
+		return m_framesWritten;
+	}
+
+	/**
+	 * Returns the frame time of the next frame appended to the line,
+	 * computed from a consistent pair of offset and frame count
+	 *
+	 * @return next frame time
+	 */
+	public long getNextFrameTime() {
+		while (true) {
+			final int sequence = m_sequence;
+			final long nextFrameTime = m_frameTimeOffset + m_framesWritten;
+			if (((sequence & 1) == 0) && (sequence == m_sequence))
+				return nextFrameTime;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Sets the frame time corresponding to line time zero
+	 *
+	 * @param frameTimeOffset new offset
+	 * @return previous offset
+	 */
+	public synchronized long setFrameTimeOffset(final long frameTimeOffset) {
+		final long previous = m_frameTimeOffset;
+		m_sequence = m_sequence + 1;
+		m_frameTimeOffset = frameTimeOffset;
+		m_sequence = m_sequence + 1;
+		return previous;
+	}
+
+	/**
+	 * Accounts for frames appended to the line
+	 *
+	 * @param frames number of frames appended
+	 * @return new number of frames appended to the line
+	 */
+	public synchronized long addFramesWritten(final long frames) {
+		final long framesWritten = m_framesWritten + frames;
+		m_sequence = m_sequence + 1;
+		m_framesWritten = framesWritten;
+		m_sequence = m_sequence + 1;
+		return framesWritten;
+	}
+}
@@ -18,7 +18,6 @@
 package org.phlo.AirReceiver;
 
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,7 +34,11 @@ public class AudioOutputQueue implements AudioClock {
 
 	private static final double QueueLengthMaxSeconds = 10;
 	private static final double BufferSizeSeconds = 0.05;
-	private static final double TimingPrecision = 0.001;
+
+	/**
+	 * Number of packets which may be enqueued before the enqueuer picks them up
+	 */
+	private static final int InboxPackets = 256;
 
 	/**
 	 * Signals that the queue is being closed.
@@ -73,40 +76,89 @@ public class AudioOutputQueue implements AudioClock {
 	private final int m_packetSizeFrames;
 
 	/**
-	 * JavaSounds audio output line
+	 * Audio output line, see {@link AudioSinks}
 	 */
-	private final SourceDataLine m_line;
+	private final AudioSink m_line;
+
+	/**
+	 * The line's latency in frames, see {@link AudioSink#getLatency()}
+	 */
+	private final long m_lineLatencyFrames;
+
+	/**
+	 * Interpolates the line's playback position between its updates
+	 */
+	private final LinePositionEstimator m_linePosition;
 
 	/**
 	 * The last frame written to the line.
-	 * Used to generate filler data
+	 * Used to generate filler data. Only accessed by the enqueuer thread
 	 */
 	private final byte[] m_lineLastFrame;
 
 	/**
-	 * Packet queue, indexed by playback time
+	 * Samples waiting to be written to the line. Consecutive packets are
+	 * combined here, so that the line sees few large writes instead of
+	 * one per packet. Holds half the line's buffer, so that a write
+	 * doesn't have to wait for the line to run completely dry.
 	 */
-	private final ConcurrentSkipListMap<Long, byte[]> m_queue = new ConcurrentSkipListMap<Long, byte[]>();
+	private final byte[] m_staging;
 
 	/**
-	 * Enqueuer thread
+	 * Number of bytes in {@link #m_staging}
 	 */
-	private final Thread m_queueThread = new Thread(new EnQueuer());
+	private int m_stagingLength = 0;
+
+	/**
+	 * Filler data, i.e. repetitions of {@link #m_silenceFrame}. Only
+	 * regenerated if the last frame written to the line changed
+	 */
+	private final byte[] m_silence;
+
+	/**
+	 * The frame {@link #m_silence} currently repeats
+	 */
+	private final byte[] m_silenceFrame;
+
+	/**
+	 * Corrects small timing errors by resampling.
+	 * Null unless the samples are 16-bit PCM
+	 */
+	private final DriftCorrector m_driftCorrector;
+
+	/**
+	 * Packets handed over by {@link #enqueue(PcmBuffer)}, which the network threads
+	 * call. The enqueuer moves them to {@link #m_queue}. Neither side locks or allocates
+	 */
+	private final PcmBufferInbox m_inbox = new PcmBufferInbox(InboxPackets);
+
+	/**
+	 * Packet queue, ordered by playback time. Only accessed by the enqueuer thread
+	 */
+	private final PcmBufferHeap m_queue;
 
 	/**
-	 * Number of frames appended to the line
+	 * Packets at inbox positions before this were flushed, see {@link #flush()}
 	 */
-	private long m_lineFramesWritten = 0;
+	private volatile long m_flushedBeforePosition = 0;
 
 	/**
-	 * Largest frame time seen so far
+	 * Enqueuer thread
 	 */
-	private long m_latestSeenFrameTime = 0;
+	private final Thread m_queueThread = new Thread(new EnQueuer());
 
 	/**
-	 * The frame time corresponding to line time zero
+	 * Number of frames appended to the line and the frame time
+	 * corresponding to line time zero. Read without locking, see
+	 * {@link AudioClockState}
 	 */
-	private long m_frameTimeOffset = 0;
+	private final AudioClockState m_clockState = new AudioClockState();
+
+	/**
+	 * Largest frame time seen so far. Updated by the network threads without
+	 * synchronization, since it's only logged
+	 */
+	private volatile long m_latestSeenFrameTime = 0;
 
 	/**
 	 * The seconds time corresponding to line time zero
@@ -116,7 +168,7 @@ public class AudioOutputQueue implements AudioClock {
 	/**
 	 * Requested line gain
 	 */
-	private float m_requestedGain = 0.0f;
+	private volatile float m_requestedGain = 0.0f;
 
 	/**
 	 * Enqueuer thread
@@ -135,9 +187,20 @@ public class AudioOutputQueue implements AudioClock {
 				m_line.start();
 
 				boolean lineMuted = true;
+				float lineGain = Float.NEGATIVE_INFINITY;
 				boolean didWarnGap = false;
+				long handledFlushPosition = 0;
 				while (!m_closing) {
-					if (!m_queue.isEmpty()) {
+					/* Drop the queued packets if the queue was flushed, and pick up new ones */
+					final long flushedBeforePosition = m_flushedBeforePosition;
+					if (flushedBeforePosition != handledFlushPosition) {
+						handledFlushPosition = flushedBeforePosition;
+						m_queue.releaseAll();
+					}
+					takeInbox(flushedBeforePosition);
+
+					final PcmBuffer entry = m_queue.peek();
+					if (entry != null) {
 						/* Queue filled */
 
 						/* If the gap between the next packet and the end of line is
@@ -145,14 +208,14 @@ public class AudioOutputQueue implements AudioClock {
 						 * Otherwise, we fill the line buffer with silence and hope for
 						 * further packets to appear in the queue
 						 */
-						final long entryFrameTime = m_queue.firstKey();
+						final long entryFrameTime = entry.getFrameTime();
 						final long entryLineTime = convertFrameToLineTime(entryFrameTime);
 						final long gapFrames = entryLineTime - getNextLineTime();
 						if (gapFrames < -m_packetSizeFrames) {
 							/* Too late for playback */
 							s_logger.warning("Audio data was scheduled for playback " + (-gapFrames) + " frames ago, skipping");
 
-							m_queue.remove(entryFrameTime);
+							m_queue.poll().release();
 							continue;
 						}
 						else if (gapFrames < m_packetSizeFrames) {
@@ -164,15 +227,21 @@ public class AudioOutputQueue implements AudioClock {
 								s_logger.info("Audio data available, un-muting line");
 
 								lineMuted = false;
-								applyGain();
+								lineGain = applyGain();
 							}
-							else if (getLineGain() != m_requestedGain) {
-								applyGain();
+							else if (lineGain != m_requestedGain) {
+								/* Compares against the gain last applied, sparing the line's gain control */
+								lineGain = applyGain();
 							}
 
-							/* Get sample data and do sanity checks */
-							final byte[] nextPlaybackSamples = m_queue.remove(entryFrameTime);
-							int nextPlaybackSamplesLength = nextPlaybackSamples.length;
+							/* Get sample data and do sanity checks. Packets for the same
+							 * playback time (i.e. retransmits) are played only once
+							 */
+							final PcmBuffer nextPlaybackBuffer = m_queue.poll();
+							while ((m_queue.peek() != null) && (m_queue.peek().getFrameTime() == entryFrameTime))
+								m_queue.poll().release();
+							final byte[] nextPlaybackSamples = nextPlaybackBuffer.getBytes();
+							int nextPlaybackSamplesLength = nextPlaybackBuffer.getLength();
 							if (nextPlaybackSamplesLength % m_bytesPerFrame != 0) {
 								s_logger.severe("Audio data contains non-integral number of frames, ignore last " + (nextPlaybackSamplesLength % m_bytesPerFrame) + " bytes");
 
@@ -180,8 +249,14 @@ public class AudioOutputQueue implements AudioClock {
 							}
 
 							/* Append packet to line */
-							s_logger.finest("Audio data containing " + nextPlaybackSamplesLength / m_bytesPerFrame + " frames for playback time " + entryFrameTime + " found in queue, appending to the output line");
-							appendFrames(nextPlaybackSamples, 0, nextPlaybackSamplesLength, entryLineTime);
+							if (s_logger.isLoggable(Level.FINEST))
+								s_logger.finest("Audio data containing " + nextPlaybackSamplesLength / m_bytesPerFrame + " frames for playback time " + entryFrameTime + " found in queue, appending to the output line");
+							try {
+								appendFrames(nextPlaybackSamples, 0, nextPlaybackSamplesLength, entryLineTime);
+							}
+							finally {
+								nextPlaybackBuffer.release();
+							}
 							continue;
 						}
 						else {
@@ -203,13 +278,23 @@ public class AudioOutputQueue implements AudioClock {
 						}
 					}
 
+					/* No samples are ready, so write whatever is staged before appending
+					 * silence, and write the silence right away to keep the line fed
+					 */
 					appendSilence(m_packetSizeFrames);
+					flushStaging();
 				}
 
 				/* Before we exit, we fill the line's buffer with silence. This should prevent
 				 * noise from being output while the line is being stopped
 				 */
+				flushStaging();
 				appendSilence(m_line.available() / m_bytesPerFrame);
+				flushStaging();
+
+				/* Return the remaining packets to their pool */
+				takeInbox(Long.MAX_VALUE);
+				m_queue.releaseAll();
 			}
 			catch (final Throwable e) {
 				s_logger.log(Level.SEVERE, "Audio output thread died unexpectedly", e);
@@ -221,11 +306,34 @@ public class AudioOutputQueue implements AudioClock {
 			}
 		}
 
+		/**
+		 * Moves the packets handed over by {@link #enqueue(PcmBuffer)} to the queue
+		 *
+		 * @param flushedBeforePosition packets at inbox positions before this are released instead
+		 */
+		private void takeInbox(final long flushedBeforePosition) {
+			while (true) {
+				final long position = m_inbox.getHead();
+				final PcmBuffer buffer = m_inbox.poll();
+				if (buffer == null)
+					break;
+
+				if (position < flushedBeforePosition) {
+					buffer.release();
+				}
+				else if (!m_queue.add(buffer)) {
+					s_logger.warning("Audio output queue is full, dropping audio data for frame time " + buffer.getFrameTime());
+					buffer.release();
+				}
+			}
+		}
+
 		/**
 		 * Append the range [off,off+len) from the provided sample data to the line.
-		 * If the requested playback time does not match the line end time, samples are
-		 * skipped or silence is inserted as necessary. If the data is marked as being
-		 * just a filler, some warnings are suppressed.
+		 * If the requested playback time differs slightly from the line end time, the
+		 * playback rate is adjusted to close the gap smoothly. If it differs by more
+		 * than {@link DriftCorrector#MaxErrorSeconds}, samples are skipped or silence is
+		 * inserted as necessary.
 		 *
 		 * @param samples sample data
 		 * @param off sample data offset
@@ -244,16 +352,25 @@ public class AudioOutputQueue implements AudioClock {
 				final long timingErrorFrames = lineTime - endLineTime;
 				final double timingErrorSeconds = timingErrorFrames / m_sampleRate;
 
-				if (Math.abs(timingErrorSeconds) <= TimingPrecision) {
-					/* Samples to append scheduled exactly at line end. Just append them and be done */
-
-					appendFrames(samples, off, len);
+				if (Math.abs(timingErrorSeconds) <= DriftCorrector.MaxErrorSeconds) {
+					/* Samples to append scheduled close to the line end. Adjust the playback rate
+					 * to the timing error, and append them
+					 */
+					if (m_driftCorrector != null)
+						appendResampledFrames(samples, off, len, timingErrorSeconds);
+					else
+						appendFrames(samples, off, len);
 					break;
 				}
 				else if (timingErrorFrames > 0) {
-					/* Samples to append scheduled after the line end. Fill the gap with silence */
+					/* Samples to append scheduled after the line end. Fill the gap with silence.
+					 * The frames still buffered by the resampler belong before the gap, so they're
+					 * dropped. The drift estimate stays valid
+					 */
 					s_logger.warning("Audio output non-continous (gap of " + timingErrorFrames + " frames), filling with silence");
 
+					if (m_driftCorrector != null)
+						m_driftCorrector.reset();
 					appendSilence((int)(lineTime - endLineTime));
 				}
 				else if (timingErrorFrames < 0) {
@@ -262,6 +379,9 @@ public class AudioOutputQueue implements AudioClock {
 					 */
 					s_logger.warning("Audio output non-continous (overlap of " + (-timingErrorFrames) + "), skipping overlapping frames");
 
+					if (m_driftCorrector != null)
+						m_driftCorrector.reset();
+
 					off += (endLineTime - lineTime) * m_bytesPerFrame;
 					lineTime += endLineTime - lineTime;
 				}
@@ -272,15 +392,56 @@ public class AudioOutputQueue implements AudioClock {
 			}
 		}
 
+		/**
+		 * Append the range [off,off+len) from the provided sample data to the line,
+		 * resampled by the drift corrector. The drift corrector keeps the last
+		 * few frames, which are appended along with the next samples.
+		 *
+		 * @param samples sample data
+		 * @param off sample data offset
+		 * @param len sample data length
+		 * @param timingErrorSeconds time by which the samples are due after the line end
+		 */
+		private void appendResampledFrames(final byte[] samples, int off, final int len, final double timingErrorSeconds) {
+			final int maxInputFrames = m_driftCorrector.getMaxInputFrames();
+
+			int frames = len / m_bytesPerFrame;
+			while (frames > 0) {
+				final int inputFrames = Math.min(frames, maxInputFrames);
+				final int outputFrames = m_driftCorrector.process(samples, off, inputFrames, timingErrorSeconds);
+				appendFrames(m_driftCorrector.getOutput(), 0, outputFrames * m_bytesPerFrame);
+
+				off += inputFrames * m_bytesPerFrame;
+				frames -= inputFrames;
+			}
+		}
+
+		/**
+		 * Append the given number of frames of filler data, i.e. repetitions of
+		 * the last frame written, to the line.
+		 *
+		 * @param frames number of frames
+		 */
 		private void appendSilence(final int frames) {
-			final byte[] silenceFrames = new byte[frames * m_bytesPerFrame];
-			for(int i = 0; i < silenceFrames.length; ++i)
-				silenceFrames[i] = m_lineLastFrame[i % m_bytesPerFrame];
-			appendFrames(silenceFrames, 0, silenceFrames.length);
+			/* Regenerate the filler data only if the last frame changed */
+			if (!Arrays.equals(m_silenceFrame, m_lineLastFrame)) {
+				System.arraycopy(m_lineLastFrame, 0, m_silenceFrame, 0, m_bytesPerFrame);
+				for(int i = 0; i < m_silence.length; ++i)
+					m_silence[i] = m_silenceFrame[i % m_bytesPerFrame];
+			}
+
+			int remaining = frames * m_bytesPerFrame;
+			while (remaining > 0) {
+				final int len = Math.min(remaining, m_silence.length);
+				appendFrames(m_silence, 0, len);
+				remaining -= len;
+			}
 		}
 
 		/**
 		 * Append the range [off,off+len) from the provided sample data to the line.
+		 * The samples are staged, and written once the staging buffer is full or
+		 * {@link #flushStaging()} is called. The line end time includes staged samples.
 		 *
 		 * @param samples sample data
 		 * @param off sample data offset
@@ -296,30 +457,53 @@ public class AudioOutputQueue implements AudioClock {
 			if (len <= 0)
 				return;
 
-			/* Convert samples if necessary */
-			final byte[] samplesConverted = Arrays.copyOfRange(samples, off, off+len);
-			if (m_convertUnsignedToSigned) {
-				/* The line expects signed PCM samples, so we must
-				 * convert the unsigned PCM samples to signed.
-				 * Note that this only affects the high bytes!
+			/* Remember the last (still unconverted) frame for generating filler data */
+			for(int b=0; b < m_bytesPerFrame; ++b)
+				m_lineLastFrame[b] = samples[off + len - (m_bytesPerFrame - b)];
+
+			/* Stage samples, writing the staging buffer whenever it fills up */
+			final int frames = len / m_bytesPerFrame;
+			while (len > 0) {
+				final int staged = Math.min(len, m_staging.length - m_stagingLength);
+				System.arraycopy(samples, off, m_staging, m_stagingLength, staged);
+
+				/* Convert samples if necessary. This happens on the staged copy,
+				 * leaving the caller's sample data (e.g. the filler data) unmodified
 				 */
-				for(int i=0; i < samplesConverted.length; i += 2)
-					samplesConverted[i] = (byte)((samplesConverted[i] & 0xff) - 0x80);
-			}
+				if (m_convertUnsignedToSigned) {
+					/* The line expects signed PCM samples, so we must
+					 * convert the unsigned PCM samples to signed.
+					 * Note that this only affects the high bytes!
+					 */
+					for(int i=m_stagingLength; i < m_stagingLength + staged; i += 2)
+						m_staging[i] = (byte)((m_staging[i] & 0xff) - 0x80);
+				}
 
-			/* Write samples to line */
-			final int bytesWritten = m_line.write(samplesConverted, 0, samplesConverted.length);
-			if (bytesWritten != len)
-				s_logger.warning("Audio output line accepted only " + bytesWritten + " bytes of sample data while trying to write " + samples.length + " bytes");
+				m_stagingLength += staged;
+				off += staged;
+				len -= staged;
+
+				if (m_stagingLength == m_staging.length)
+					flushStaging();
+			}
 
 			/* Update state */
-			synchronized(AudioOutputQueue.this) {
-				m_lineFramesWritten += bytesWritten / m_bytesPerFrame;
-				for(int b=0; b < m_bytesPerFrame; ++b)
-					m_lineLastFrame[b] = samples[off + len - (m_bytesPerFrame - b)];
+			final long framesWritten = m_clockState.addFramesWritten(frames);
+			if (s_logger.isLoggable(Level.FINEST))
+				s_logger.finest("Audio output line end is now at " + framesWritten + " after appending " + frames + " frames");
+		}
 
-				s_logger.finest("Audio output line end is now at " + getNextLineTime() + " after writing " + len / m_bytesPerFrame + " frames");
-			}
+		/**
+		 * Writes the staged samples to the line
+		 */
+		private void flushStaging() {
+			if (m_stagingLength == 0)
+				return;
+
+			final int bytesWritten = m_line.write(m_staging, 0, m_stagingLength);
+			if (bytesWritten != m_stagingLength)
+				s_logger.warning("Audio output line accepted only " + bytesWritten + " bytes of sample data while trying to write " + m_stagingLength + " bytes");
+			m_stagingLength = 0;
 		}
 	}
 
@@ -355,16 +539,32 @@ public class AudioOutputQueue implements AudioClock {
 		for(int b=0; b < m_lineLastFrame.length; ++b)
 			m_lineLastFrame[b] = (b % 2 == 0) ? (byte)-128 : (byte)0;
 
+		/* The queue must hold every packet enqueue() accepts, i.e. up to QueueLengthMaxSeconds
+		 * worth, plus the inbox's contents and some room for retransmitted duplicates
+		 */
+		m_queue = new PcmBufferHeap(2 * (int)Math.ceil(QueueLengthMaxSeconds * m_sampleRate / m_packetSizeFrames) + InboxPackets);
+
 		/* Compute desired line buffer size and obtain a line */
 		final int desiredBufferSize = (int)Math.pow(2, Math.ceil(Math.log(BufferSizeSeconds * m_sampleRate * m_bytesPerFrame) / Math.log(2.0)));
-		final DataLine.Info lineInfo = new DataLine.Info(
-			SourceDataLine.class,
-			m_format,
-			desiredBufferSize
-		);
-		m_line = (SourceDataLine)AudioSystem.getLine(lineInfo);
-		m_line.open(m_format, desiredBufferSize);
+		m_line = AudioSinks.open(m_format, desiredBufferSize);
 		s_logger.info("Audio output line created and openend. Requested buffer of " + desiredBufferSize / m_bytesPerFrame  + " frames, got " + m_line.getBufferSize() / m_bytesPerFrame + " frames");
+		m_lineLatencyFrames = Math.round(m_line.getLatency() * m_sampleRate);
+		m_linePosition = new LinePositionEstimator(m_sampleRate);
+
+		/* Allocate the staging and filler buffers, holding an integral number of frames */
+		final int stagingFrames = Math.max(m_packetSizeFrames, m_line.getBufferSize() / m_bytesPerFrame / 2);
+		m_staging = new byte[stagingFrames * m_bytesPerFrame];
+		m_silence = new byte[stagingFrames * m_bytesPerFrame];
+		m_silenceFrame = new byte[m_bytesPerFrame];
+
+		/* Create the drift corrector, which handles up to one packet at a time */
+		if (DriftCorrector.isSupported(audioFormat)) {
+			m_driftCorrector = new DriftCorrector(audioFormat, m_packetSizeFrames);
+		}
+		else {
+			s_logger.warning("Audio format " + audioFormat + " cannot be resampled, timing errors will be corrected by skipping samples or inserting silence");
+			m_driftCorrector = null;
+		}
 
 		/* Start enqueuer thread and wait for the line to start.
 		 * The wait guarantees that the AudioClock functions return
@@ -378,47 +578,28 @@ public class AudioOutputQueue implements AudioClock {
 			Thread.yield();
 
 		/* Initialize the seconds time offset now that the line is running. */
-		m_secondsTimeOffset = 2208988800.0 +  System.currentTimeMillis() * 1e-3;
+		m_secondsTimeOffset = MonotonicClock.getNowSecondsTime() - getNowLinePosition() / m_sampleRate;
 	}
 
 	/**
-	 * Sets the line's MASTER_GAIN control to the provided value,
-	 * or complains to the log of the line does not support a MASTER_GAIN control
+	 * Sets the line's gain to the provided value,
+	 * bounded by the range the line supports
 	 *
 	 * @param gain gain to set
 	 */
 	private void setLineGain(final float gain) {
-		if (m_line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-			/* Bound gain value by min and max declared by the control */
-			final FloatControl gainControl = (FloatControl)m_line.getControl(FloatControl.Type.MASTER_GAIN);
-			if (gain < gainControl.getMinimum())
-				gainControl.setValue(gainControl.getMinimum());
-			else if (gain > gainControl.getMaximum())
-				gainControl.setValue(gainControl.getMaximum());
-			else
-				gainControl.setValue(gain);
-		}
-		else
-			s_logger.severe("Audio output line doesn not support volume control");
+		m_line.setGain(gain);
 	}
 
 	/**
-	 * Returns the line's MASTER_GAIN control's value.
+	 * Sets the line's gain to the requested gain
+	 *
+	 * @return the gain set
 	 */
-	private float getLineGain() {
-		if (m_line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
-			/* Bound gain value by min and max declared by the control */
-			final FloatControl gainControl = (FloatControl)m_line.getControl(FloatControl.Type.MASTER_GAIN);
-			return gainControl.getValue();
-		}
-		else {
-			s_logger.severe("Audio output line doesn not support volume control");
-			return 0.0f;
-		}
-	}
-
-	private synchronized void applyGain() {
-		setLineGain(m_requestedGain);
+	private float applyGain() {
+		final float gain = m_requestedGain;
+		setLineGain(gain);
+		return gain;
 	}
 
 	/**
@@ -426,7 +607,7 @@ public class AudioOutputQueue implements AudioClock {
 	 *
 	 * @param gain desired gain
 	 */
-	public synchronized void setGain(final float gain) {
+	public void setGain(final float gain) {
 		m_requestedGain = gain;
 	}
 
@@ -435,7 +616,7 @@ public class AudioOutputQueue implements AudioClock {
 	 *
 	 * @param gain desired gain
 	 */
-	public synchronized float getGain() {
+	public float getGain() {
 		return m_requestedGain;
 	}
 
@@ -448,28 +629,33 @@ public class AudioOutputQueue implements AudioClock {
 	}
 
 	/**
-	 * Adds sample data to the queue
+	 * Adds sample data to the queue. The queue takes over the caller's
+	 * reference to the buffer, and releases it once the samples were
+	 * written to the line or dropped.
 	 *
-	 * @param playbackRemoteStartFrameTime start time of sample data
-	 * @param playbackSamples sample data
+	 * @param pcmBuffer sample data and its playback time
 	 * @return true if the sample data was added to the queue
 	 */
-	public synchronized boolean enqueue(final long frameTime, final byte[] frames) {
+	public boolean enqueue(final PcmBuffer pcmBuffer) {
+		final long frameTime = pcmBuffer.getFrameTime();
+
 		/* Playback time of packet */
-		final double packetSeconds = (double)frames.length / (double)(m_bytesPerFrame * m_sampleRate);
+		final double packetSeconds = (double)pcmBuffer.getLength() / (double)(m_bytesPerFrame * m_sampleRate);
 		
 		/* Compute playback delay, i.e., the difference between the last sample's
 		 * playback time and the current line time
 		 */
 		final double delay =
-			(convertFrameToLineTime(frameTime) + frames.length / m_bytesPerFrame - getNextLineTime()) /
+			(frameTime + pcmBuffer.getLength() / m_bytesPerFrame - m_clockState.getNextFrameTime()) /
 			m_sampleRate;
 
-		m_latestSeenFrameTime = Math.max(m_latestSeenFrameTime, frameTime);
+		if (frameTime > m_latestSeenFrameTime)
+			m_latestSeenFrameTime = frameTime;
 
 		if (delay < -packetSeconds) {
 			/* The whole packet is scheduled to be played in the past */
 			s_logger.warning("Audio data arrived " + -(delay) + " seconds too late, dropping");
+			pcmBuffer.release();
 			return false;
 		}
 		else if (delay > QueueLengthMaxSeconds) {
@@ -477,39 +663,45 @@ public class AudioOutputQueue implements AudioClock {
 			 * We reject it, since this is probably the result of some timing discrepancies
 			 */
 			s_logger.warning("Audio data arrived " + delay + " seconds too early, dropping");
+			pcmBuffer.release();
 			return false;
 		}
 
-		m_queue.put(frameTime, frames);
+		if (!m_inbox.offer(pcmBuffer)) {
+			s_logger.warning("Audio output queue didn't pick up the last " + InboxPackets + " packets, dropping audio data");
+			pcmBuffer.release();
+			return false;
+		}
 		return true;
 	}
 
 	/**
-	 * Removes all currently queued sample data
+	 * Removes all currently queued sample data. The enqueuer
+	 * releases the buffers once it picks up the request
 	 */
 	public void flush() {
-		m_queue.clear();
+		m_flushedBeforePosition = m_inbox.getTail();
 	}
 
 	@Override
-	public synchronized void setFrameTime(final long frameTime, final double secondsTime) {
+	public void setFrameTime(final long frameTime, final double secondsTime) {
 		final double ageSeconds = getNowSecondsTime() - secondsTime;
 		final long lineTime = Math.round((secondsTime - m_secondsTimeOffset) * m_sampleRate);
 
-		final long frameTimeOffsetPrevious = m_frameTimeOffset;
-		m_frameTimeOffset = frameTime - lineTime;
+		final long frameTimeOffset = frameTime - lineTime;
+		final long frameTimeOffsetPrevious = m_clockState.setFrameTimeOffset(frameTimeOffset);
 
-		s_logger.fine("Frame time adjusted by " + (m_frameTimeOffset - frameTimeOffsetPrevious) + " based on timing information " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames before latest seen frame time");
+		s_logger.fine("Frame time adjusted by " + (frameTimeOffset - frameTimeOffsetPrevious) + " based on timing information " + ageSeconds + " seconds old and " + (m_latestSeenFrameTime - frameTime) + " frames before latest seen frame time");
 	}
 
 	@Override
 	public double getNowSecondsTime() {
-		return m_secondsTimeOffset + getNowLineTime() / m_sampleRate;
+		return m_secondsTimeOffset + getNowLinePosition() / m_sampleRate;
 	}
 
 	@Override
 	public long getNowFrameTime() {
-		return m_frameTimeOffset + getNowLineTime();
+		return m_clockState.getFrameTimeOffset() + (long)Math.floor(getNowLinePosition());
 	}
 
 	@Override
@@ -519,23 +711,26 @@ public class AudioOutputQueue implements AudioClock {
 
 	@Override
 	public long getNextFrameTime() {
-		return m_frameTimeOffset + getNextLineTime();
+		return m_clockState.getNextFrameTime();
 	}
 
 	@Override
 	public double convertFrameToSecondsTime(final long frameTime) {
-		return m_secondsTimeOffset + (frameTime - m_frameTimeOffset) / m_sampleRate;
+		return m_secondsTimeOffset + (frameTime - m_clockState.getFrameTimeOffset()) / m_sampleRate;
 	}
 
-	private synchronized long getNextLineTime() {
-		return m_lineFramesWritten;
+	private long getNextLineTime() {
+		return m_clockState.getFramesWritten();
 	}
 
-	private long getNowLineTime() {
-		return m_line.getLongFramePosition();
+	/**
+	 * @return the line's interpolated playback position in (fractional) frames
+	 */
+	private double getNowLinePosition() {
+		return m_linePosition.getPosition(m_line.getLongFramePosition(), System.nanoTime()) - m_lineLatencyFrames;
 	}
 
-	private synchronized long convertFrameToLineTime(final long entryFrameTime) {
-		return entryFrameTime - m_frameTimeOffset;
+	private long convertFrameToLineTime(final long entryFrameTime) {
+		return entryFrameTime - m_clockState.getFrameTimeOffset();
 	}
 }
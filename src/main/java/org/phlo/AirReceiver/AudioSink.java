@@ -0,0 +1,103 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Output backend the audio output queues write their samples to.
+ * <p>
+ * Mirrors the subset of {@link javax.sound.sampled.SourceDataLine} the queues
+ * use. In particular, {@link #write} blocks until the samples fit into the
+ * sink's buffer, and {@link #getLongFramePosition()} reports the playback
+ * position the queues derive their {@link AudioClock} from.
+ * <p>
+ * Sinks are obtained from {@link AudioSinks#open}.
+ */
+public interface AudioSink {
+	/**
+	 * @return format of the samples passed to {@link #write}
+	 */
+	public AudioFormat getFormat();
+
+	/**
+	 * @return size of the sink's buffer in bytes
+	 */
+	public int getBufferSize();
+
+	/**
+	 * Starts (or resumes) playback
+	 */
+	public void start();
+
+	/**
+	 * Pauses playback, keeping buffered samples
+	 */
+	public void stop();
+
+	/**
+	 * Releases the sink's resources. Buffered samples are discarded.
+	 */
+	public void close();
+
+	/**
+	 * @return true if playback is started
+	 */
+	public boolean isActive();
+
+	/**
+	 * @return number of bytes which can be written without blocking
+	 */
+	public int available();
+
+	/**
+	 * Appends samples, blocking until they fit into the sink's buffer
+	 *
+	 * @param b sample data
+	 * @param off offset of the first byte
+	 * @param len number of bytes, a multiple of the frame size
+	 * @return number of bytes written
+	 */
+	public int write(byte[] b, int off, int len);
+
+	/**
+	 * @return number of frames played since the sink was opened
+	 */
+	public long getLongFramePosition();
+
+	/**
+	 * Returns the delay the sink adds between the playback position reported by
+	 * {@link #getLongFramePosition()} and the samples actually reaching the output,
+	 * e.g. by resampling. Playback timing must subtract it from the position.
+	 *
+	 * @return delay in seconds
+	 */
+	public double getLatency();
+
+	/**
+	 * @return the output gain in dB
+	 */
+	public float getGain();
+
+	/**
+	 * Sets the output gain, limited to the range the sink supports
+	 *
+	 * @param gain the output gain in dB
+	 */
+	public void setGain(float gain);
+}
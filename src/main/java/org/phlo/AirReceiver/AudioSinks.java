@@ -0,0 +1,205 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phlo.AirReceiver;
+
+import java.io.*;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.*;
+
+/**
+ * Creates the {@link AudioSink} selected by the system property {@link #AudioSinkProperty}.
+ * <p>
+ * Supported values are
+ * <ul>
+ * <li>{@code javasound}, the default. Plays back through JavaSound
+ * <li>{@code null}. Discards the samples
+ * <li>{@code wav:<file>}. Records the samples into a WAV file
+ * <li>{@code pipe:<file>}. Writes raw PCM samples to a file or named pipe,
+ *     or to the standard output if {@code <file>} is {@code -}
+ * </ul>
+ * All but {@code javasound} consume samples at the sample rate, unless
+ * {@link #AudioSinkRealTimeProperty} is set to {@code false}.
+ */
+public final class AudioSinks {
+	private static final Logger s_logger = Logger.getLogger(AudioSinks.class.getName());
+
+	/**
+	 * System property selecting the audio sink
+	 */
+	public static final String AudioSinkProperty = "org.phlo.AirReceiver.audioSink";
+
+	/**
+	 * System property which, if set to {@code false}, makes the sinks without
+	 * sound hardware consume samples as fast as they are written
+	 */
+	public static final String AudioSinkRealTimeProperty = "org.phlo.AirReceiver.audioSinkRealTime";
+
+	/**
+	 * System property overriding the sample rate the sink is opened at. By default,
+	 * JavaSound lines are opened at their native rate, see
+	 * {@link JavaSoundAudioSink#getNativeSampleRate(AudioFormat)}, and the other
+	 * sinks at the rate of the samples. If the rates differ, the samples are
+	 * resampled by a {@link ResamplingAudioSink}
+	 */
+	public static final String AudioSinkSampleRateProperty = "org.phlo.AirReceiver.audioSinkSampleRate";
+
+	/**
+	 * Class is not meant to be instantiated
+	 */
+	private AudioSinks() {
+		throw new RuntimeException();
+	}
+
+	/**
+	 * Returns the variant of the given PCM format the sink selected by
+	 * {@link #AudioSinkProperty} consumes without converting it. Samples
+	 * are best produced in this format in the first place.
+	 * <p>
+	 * JavaSound prefers signed samples in the platform's byte order, WAV files
+	 * signed little endian samples. The other sinks take any format, for them
+	 * the format is only made signed.
+	 *
+	 * @param format sample format
+	 * @return preferred variant of the format, with the same sample rate,
+	 *         sample size and number of channels
+	 */
+	public static AudioFormat getPreferredFormat(final AudioFormat format) {
+		final String sink = System.getProperty(AudioSinkProperty, "javasound");
+		final int colon = sink.indexOf(':');
+		final String type = (colon >= 0) ? sink.substring(0, colon) : sink;
+
+		if ("javasound".equalsIgnoreCase(type))
+			return JavaSoundAudioSink.getPreferredFormat(format);
+
+		final boolean bigEndian = "wav".equalsIgnoreCase(type) ? false : format.isBigEndian();
+		return new AudioFormat(
+			format.getSampleRate(),
+			format.getSampleSizeInBits(),
+			format.getChannels(),
+			true,
+			bigEndian
+		);
+	}
+
+	/**
+	 * Returns the sample rate the sink selected by {@link #AudioSinkProperty}
+	 * is opened at, see {@link #AudioSinkSampleRateProperty}
+	 *
+	 * @param format sample format
+	 * @return sample rate of the sink
+	 */
+	public static float getSampleRate(final AudioFormat format) {
+		final String sampleRate = System.getProperty(AudioSinkSampleRateProperty);
+		if (sampleRate != null) {
+			try {
+				return Float.parseFloat(sampleRate);
+			}
+			catch (final NumberFormatException e) {
+				s_logger.warning("Ignoring invalid audio sink sample rate " + sampleRate);
+			}
+		}
+
+		final String sink = System.getProperty(AudioSinkProperty, "javasound");
+		final int colon = sink.indexOf(':');
+		final String type = (colon >= 0) ? sink.substring(0, colon) : sink;
+		if ("javasound".equalsIgnoreCase(type))
+			return JavaSoundAudioSink.getNativeSampleRate(format);
+		else
+			return format.getSampleRate();
+	}
+
+	/**
+	 * Opens the sink selected by {@link #AudioSinkProperty}. If its sample rate,
+	 * see {@link #getSampleRate(AudioFormat)}, differs from the format's, the
+	 * returned sink resamples the samples written to it. Its latency then includes
+	 * the resampler's delay, see {@link AudioSink#getLatency()}.
+	 *
+	 * @param format sample format
+	 * @param bufferSize desired buffer size in bytes
+	 * @return the opened, but not yet started, sink
+	 * @throws LineUnavailableException if the sink cannot be opened
+	 */
+	public static AudioSink open(final AudioFormat format, final int bufferSize) throws LineUnavailableException {
+		final float sampleRate = getSampleRate(format);
+		if ((sampleRate == format.getSampleRate()) || (sampleRate <= 0))
+			return openSink(format, bufferSize);
+
+		final AudioFormat sinkFormat = new AudioFormat(
+			format.getEncoding(),
+			sampleRate,
+			format.getSampleSizeInBits(),
+			format.getChannels(),
+			format.getFrameSize(),
+			sampleRate,
+			format.isBigEndian()
+		);
+		final AudioSink sink = openSink(sinkFormat, (int)((long)bufferSize * Math.round(sampleRate) / Math.round(format.getSampleRate())));
+		try {
+			final AudioSink resamplingSink = new ResamplingAudioSink(format, sink);
+			s_logger.info("Resampling audio from " + format.getSampleRate() + " to " + sampleRate + " Hz, adding a latency of " + Math.round(resamplingSink.getLatency() * 1e6) / 1e3 + " ms");
+			return resamplingSink;
+		}
+		catch (final IllegalArgumentException e) {
+			sink.close();
+			final LineUnavailableException lineUnavailableException = new LineUnavailableException("Unable to resample audio from " + format.getSampleRate() + " to " + sampleRate + " Hz: " + e.getMessage());
+			lineUnavailableException.initCause(e);
+			throw lineUnavailableException;
+		}
+	}
+
+	/**
+	 * Opens the sink selected by {@link #AudioSinkProperty} without resampling
+	 *
+	 * @param format sample format
+	 * @param bufferSize desired buffer size in bytes
+	 * @return the opened, but not yet started, sink
+	 * @throws LineUnavailableException if the sink cannot be opened
+	 */
+	private static AudioSink openSink(final AudioFormat format, final int bufferSize) throws LineUnavailableException {
+		final String sink = System.getProperty(AudioSinkProperty, "javasound");
+		final boolean realTime = !"false".equalsIgnoreCase(System.getProperty(AudioSinkRealTimeProperty));
+
+		final int colon = sink.indexOf(':');
+		final String type = (colon >= 0) ? sink.substring(0, colon) : sink;
+		final String argument = (colon >= 0) ? sink.substring(colon + 1) : null;
+
+		try {
+			final AudioSink audioSink;
+			if ("javasound".equalsIgnoreCase(type))
+				audioSink = new JavaSoundAudioSink(format, bufferSize);
+			else if ("null".equalsIgnoreCase(type))
+				audioSink = new NullAudioSink(format, bufferSize, realTime);
+			else if ("wav".equalsIgnoreCase(type) && (argument != null))
+				audioSink = new WavFileAudioSink(format, bufferSize, realTime, new File(argument));
+			else if ("pipe".equalsIgnoreCase(type) && "-".equals(argument))
+				audioSink = new PipeAudioSink(format, bufferSize, realTime, System.out, "stdout");
+			else if ("pipe".equalsIgnoreCase(type) && (argument != null))
+				audioSink = new PipeAudioSink(format, bufferSize, realTime, new FileOutputStream(argument), argument);
+			else
+				throw new LineUnavailableException("Unknown audio sink " + sink);
+
+			s_logger.info("Using audio sink " + sink + (!(audioSink instanceof JavaSoundAudioSink) && !realTime ? " without real-time pacing" : ""));
+			return audioSink;
+		}
+		catch (final IOException e) {
+			final LineUnavailableException lineUnavailableException = new LineUnavailableException("Unable to open audio sink " + sink + ": " + e.getMessage());
+			lineUnavailableException.initCause(e);
+			throw lineUnavailableException;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Estimates the offset between a remote and the local clock, and the
+ * rate at which it changes, from NTP-style timing exchanges.
+ * <p>
+ * Keeps a window of the most recent samples. A sample's offset is only as
+ * good as the symmetry of its request's and response's transmission times,
+ * whose difference is bounded by the round-trip time. Samples whose round-trip
+ * time exceeds the window's minimum by more than a tolerance are therefore
+ * ignored, and the others are weighted by how close they come to the minimum.
+ * Offset and skew are then fitted by weighted linear regression, so a single
+ * delayed response can neither pull the offset nor tilt the skew much.
+ */
+public class ClockOffsetEstimator {
+	/**
+	 * Noise of the clocks' time stamps in seconds. Limits the weight
+	 * of the samples whose round-trip time is close to the minimum
+	 */
+	private static final double TimeStampNoise = 1e-4;
+
+	/**
+	 * Shortest time span the samples must cover for the skew to be estimated
+	 */
+	private static final double MinSkewSpan = 2.0;
+
+	/**
+	 * Largest plausible skew between two audio clocks, i.e. 1000 ppm
+	 */
+	private static final double MaxSkew = 1e-3;
+
+	private final double m_roundTripTolerance;
+
+	/**
+	 * Window of samples, oldest one at {@link #m_first}
+	 */
+	private final double[] m_localTimes;
+	private final double[] m_offsets;
+	private final double[] m_roundTripTimes;
+
+	/**
+	 * Weights of the samples in the current estimate, zero for ignored ones
+	 */
+	private final double[] m_weights;
+
+	private int m_first = 0;
+	private int m_count = 0;
+
+	/**
+	 * Estimate. The offset is for the local time {@link #m_referenceTime}
+	 */
+	private double m_referenceTime = Double.NaN;
+	private double m_offset = Double.NaN;
+	private double m_skew = 0.0;
+	private double m_minRoundTripTime = Double.NaN;
+
+	/**
+	 * Creates an estimator without samples
+	 *
+	 * @param windowSize number of samples to keep
+	 * @param roundTripTolerance samples whose round-trip time exceeds the window's
+	 *        minimum by more than this many seconds are ignored
+	 */
+	public ClockOffsetEstimator(final int windowSize, final double roundTripTolerance) {
+		if (windowSize <= 0)
+			throw new IllegalArgumentException("Window size must be positive");
+
+		m_roundTripTolerance = roundTripTolerance;
+		m_localTimes = new double[windowSize];
+		m_offsets = new double[windowSize];
+		m_roundTripTimes = new double[windowSize];
+		m_weights = new double[windowSize];
+	}
+
+	/**
+	 * Adds a sample and updates the estimate
+	 *
+	 * @param localTime local time at which the remote clock had the given offset
+	 * @param offset remote time minus local time, in seconds
+	 * @param roundTripTime round-trip time of the timing exchange, in seconds
+	 */
+	public void add(final double localTime, final double offset, final double roundTripTime) {
+		final int capacity = m_localTimes.length;
+		final int index;
+		if (m_count < capacity) {
+			index = (m_first + m_count) % capacity;
+			++m_count;
+		}
+		else {
+			index = m_first;
+			m_first = (m_first + 1) % capacity;
+		}
+		m_localTimes[index] = localTime;
+		m_offsets[index] = offset;
+		m_roundTripTimes[index] = Math.max(roundTripTime, 0.0);
+
+		estimate();
+	}
+
+	/**
+	 * Fits offset and skew to the window's samples
+	 */
+	private void estimate() {
+		final int capacity = m_localTimes.length;
+
+		double minRoundTripTime = Double.POSITIVE_INFINITY;
+		for(int i=0; i < m_count; ++i)
+			minRoundTripTime = Math.min(minRoundTripTime, m_roundTripTimes[(m_first + i) % capacity]);
+
+		/* Weighted means of time and offset. A sample's offset error is up to half its
+		 * round-trip time's excess over the minimum, its weight is the inverse of that squared
+		 */
+		double weightSum = 0.0;
+		double timeSum = 0.0;
+		double offsetSum = 0.0;
+		double firstTime = Double.POSITIVE_INFINITY;
+		double lastTime = Double.NEGATIVE_INFINITY;
+		final double referenceTime = m_localTimes[m_first];
+		for(int i=0; i < m_count; ++i) {
+			final int index = (m_first + i) % capacity;
+			final double excess = m_roundTripTimes[index] - minRoundTripTime;
+			if (excess > m_roundTripTolerance) {
+				m_weights[index] = 0.0;
+				continue;
+			}
+
+			final double error = TimeStampNoise + 0.5 * excess;
+			final double weight = 1.0 / (error * error);
+			m_weights[index] = weight;
+			weightSum += weight;
+			timeSum += weight * (m_localTimes[index] - referenceTime);
+			offsetSum += weight * m_offsets[index];
+			firstTime = Math.min(firstTime, m_localTimes[index]);
+			lastTime = Math.max(lastTime, m_localTimes[index]);
+		}
+		final double meanTime = timeSum / weightSum;
+		final double meanOffset = offsetSum / weightSum;
+
+		/* Weighted least-squares slope, once the samples span enough time to tell drift from noise */
+		double skew = 0.0;
+		if (lastTime - firstTime >= MinSkewSpan) {
+			double covariance = 0.0;
+			double variance = 0.0;
+			for(int i=0; i < m_count; ++i) {
+				final int index = (m_first + i) % capacity;
+				final double weight = m_weights[index];
+				final double time = m_localTimes[index] - referenceTime - meanTime;
+				covariance += weight * time * (m_offsets[index] - meanOffset);
+				variance += weight * time * time;
+			}
+			if (variance > 0.0)
+				skew = Math.max(-MaxSkew, Math.min(MaxSkew, covariance / variance));
+		}
+
+		m_minRoundTripTime = minRoundTripTime;
+		m_referenceTime = referenceTime + meanTime;
+		m_offset = meanOffset;
+		m_skew = skew;
+	}
+
+	/**
+	 * Returns true until {@link #add(double, double, double)} has been called at least once
+	 */
+	public boolean isEmpty() {
+		return m_count == 0;
+	}
+
+	/**
+	 * @return number of samples in the window
+	 */
+	public int size() {
+		return m_count;
+	}
+
+	/**
+	 * Returns the estimated offset at the given local time, extrapolated
+	 * from the window's samples using the estimated skew
+	 *
+	 * @param localTime local time in seconds
+	 * @return remote time minus local time in seconds, NaN if empty
+	 */
+	public double getOffset(final double localTime) {
+		return m_offset + m_skew * (localTime - m_referenceTime);
+	}
+
+	/**
+	 * Returns the rate at which the offset changes, i.e. by how much
+	 * the remote clock runs faster than the local one
+	 *
+	 * @return seconds per second, zero until the samples span a few seconds
+	 */
+	public double getSkew() {
+		return m_skew;
+	}
+
+	/**
+	 * @return smallest round-trip time in the window in seconds, NaN if empty
+	 */
+	public double getMinRoundTripTime() {
+		return m_minRoundTripTime;
+	}
+}
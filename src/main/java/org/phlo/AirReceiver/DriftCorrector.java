@@ -0,0 +1,184 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.phlo.audio.PlaybackRateController;
+import org.phlo.audio.SincResampler;
+
+/**
+ * Corrects the drift between the clock a stream's samples are timed by and
+ * the clock of the line playing them, by resampling the samples slightly
+ * faster or slower instead of skipping samples or inserting silence.
+ * <p>
+ * The playback rate follows the timing error passed along with each block
+ * of samples, see {@link PlaybackRateController}. Samples are 16-bit PCM,
+ * and are returned in the format they were passed in. Allocates nothing
+ * after construction and is not thread-safe.
+ */
+public final class DriftCorrector {
+	/**
+	 * Timing errors up to this are corrected by resampling. Larger
+	 * ones must be corrected otherwise, e.g. by skipping samples
+	 */
+	public static final double MaxErrorSeconds = 0.02;
+
+	/**
+	 * Largest deviation from the nominal playback rate, i.e. 0.1%
+	 */
+	private static final double MaxDeviation = 0.001;
+
+	/**
+	 * Rate deviation per second of timing error, and per second of timing
+	 * error and second of time. With these, the rate saturates at timing errors
+	 * of 5 ms, and the drift estimate settles within about a minute
+	 */
+	private static final double ProportionalGain = 0.2;
+	private static final double IntegralGain = 0.02;
+
+	/**
+	 * Resampler filter length and resolution. With 16 frames on either side
+	 * of an output frame and a cutoff at 90% of the nyquist frequency, the
+	 * filter passes up to about 19 kHz at a sample rate of 44.1 kHz
+	 */
+	private static final int ResamplerHalfTaps = 16;
+	private static final int ResamplerPhases = 128;
+	private static final double ResamplerCutoff = 0.9;
+
+	private final int m_channels;
+	private final double m_sampleRate;
+	private final int m_signFlip;
+	private final int m_highByte;
+	private final int m_lowByte;
+
+	private final SincResampler m_resampler;
+	private final PlaybackRateController m_rateController = new PlaybackRateController(
+		MaxDeviation,
+		ProportionalGain,
+		IntegralGain
+	);
+
+	/**
+	 * Samples passed to and returned by {@link #m_resampler}, and the
+	 * returned samples encoded in the input format again
+	 */
+	private final short[] m_input;
+	private final short[] m_output;
+	private final byte[] m_outputBytes;
+
+	/**
+	 * @param format sample format
+	 * @return true if samples of the given format can be drift corrected
+	 */
+	public static boolean isSupported(final AudioFormat format) {
+		return (format.getSampleSizeInBits() == 16) && (
+			AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) ||
+			AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding())
+		);
+	}
+
+	/**
+	 * Creates a drift corrector
+	 *
+	 * @param format format of the samples, see {@link #isSupported(AudioFormat)}
+	 * @param maxInputFrames largest number of frames passed to {@link #process} at once
+	 */
+	public DriftCorrector(final AudioFormat format, final int maxInputFrames) {
+		if (!isSupported(format))
+			throw new IllegalArgumentException("Audio format " + format + " cannot be resampled");
+
+		m_channels = format.getChannels();
+		m_sampleRate = format.getSampleRate();
+		m_signFlip = AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding()) ? 0x8000 : 0;
+		m_highByte = format.isBigEndian() ? 0 : 1;
+		m_lowByte = 1 - m_highByte;
+
+		m_resampler = new SincResampler(m_channels, ResamplerHalfTaps, ResamplerPhases, ResamplerCutoff, maxInputFrames);
+		final int maxOutputFrames = (int)Math.ceil((maxInputFrames + m_resampler.getTaps()) / (1.0 - MaxDeviation)) + 1;
+		m_input = new short[maxInputFrames * m_channels];
+		m_output = new short[maxOutputFrames * m_channels];
+		m_outputBytes = new byte[maxOutputFrames * m_channels * 2];
+	}
+
+	/**
+	 * @return largest number of frames passed to {@link #process} at once
+	 */
+	public int getMaxInputFrames() {
+		return m_input.length / m_channels;
+	}
+
+	/**
+	 * Adapts the playback rate to the timing error, and resamples the frames
+	 * [off, off + frames * frame size) of the given sample data. The resampler
+	 * keeps the last few frames, which are returned along with the next ones.
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset in bytes
+	 * @param frames number of frames, at most {@link #getMaxInputFrames()}
+	 * @param errorSeconds time by which the samples are due after the line's end
+	 * @return number of resampled frames stored in {@link #getOutput()}
+	 */
+	public int process(final byte[] samples, final int off, final int frames, final double errorSeconds) {
+		m_resampler.setRatio(m_rateController.update(errorSeconds, frames / m_sampleRate));
+
+		/* Decode the input format's samples */
+		for(int i=0, b=off; i < frames * m_channels; ++i, b += 2)
+			m_input[i] = (short)((((samples[b + m_highByte] & 0xff) << 8) | (samples[b + m_lowByte] & 0xff)) ^ m_signFlip);
+
+		final int outputFrames = m_resampler.process(m_input, 0, frames, m_output, 0);
+
+		/* Encode the resampled samples in the input format again */
+		for(int i=0, b=0; i < outputFrames * m_channels; ++i, b += 2) {
+			final int sample = m_output[i] ^ m_signFlip;
+			m_outputBytes[b + m_highByte] = (byte)(sample >> 8);
+			m_outputBytes[b + m_lowByte] = (byte)sample;
+		}
+
+		return outputFrames;
+	}
+
+	/**
+	 * @return the frames resampled by the last call of {@link #process}
+	 */
+	public byte[] getOutput() {
+		return m_outputBytes;
+	}
+
+	/**
+	 * Discards the buffered frames, e.g. because the next samples don't follow
+	 * the previous ones. The drift estimate stays valid.
+	 */
+	public void reset() {
+		m_resampler.reset();
+	}
+
+	/**
+	 * @return the current ratio of input to output frames
+	 */
+	public double getRatio() {
+		return m_rateController.getRatio();
+	}
+
+	/**
+	 * @return the estimated clock drift, see {@link PlaybackRateController#getDrift()}
+	 */
+	public double getDrift() {
+		return m_rateController.getDrift();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.nio.ByteOrder;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.*;
+
+/**
+ * Audio sink which plays back through a JavaSound {@link SourceDataLine}
+ */
+public class JavaSoundAudioSink implements AudioSink {
+	private static Logger s_logger = Logger.getLogger(JavaSoundAudioSink.class.getName());
+
+	private final SourceDataLine m_line;
+
+	/**
+	 * The line's MASTER_GAIN control, or null if the line has none
+	 */
+	private final FloatControl m_gainControl;
+
+	/**
+	 * Returns the variant of the given format JavaSound's lines play back without
+	 * converting it, i.e. signed PCM in the platform's byte order if a line
+	 * supports that. Other formats are converted sample by sample by the mixer.
+	 *
+	 * @param format sample format
+	 * @return preferred variant of the format, or the format itself
+	 */
+	public static AudioFormat getPreferredFormat(final AudioFormat format) {
+		final boolean nativeBigEndian = ByteOrder.BIG_ENDIAN.equals(ByteOrder.nativeOrder());
+		for(final boolean bigEndian: new boolean[] { nativeBigEndian, !nativeBigEndian }) {
+			final AudioFormat candidate = new AudioFormat(
+				format.getSampleRate(),
+				format.getSampleSizeInBits(),
+				format.getChannels(),
+				true,
+				bigEndian
+			);
+			if (AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, candidate)))
+				return candidate;
+		}
+		return format;
+	}
+
+	/**
+	 * Returns the sample rate the lines play the given format at natively. That's
+	 * the format's own rate if some line supports it, or doesn't restrict the rate.
+	 * Otherwise, it's the lowest supported rate above the format's one, or the highest
+	 * supported rate if there's none above. Only formats with the same sample size
+	 * and number of channels are considered.
+	 *
+	 * @param format sample format
+	 * @return native sample rate
+	 */
+	public static float getNativeSampleRate(final AudioFormat format) {
+		final float sampleRate = format.getSampleRate();
+		float nativeSampleRate = AudioSystem.NOT_SPECIFIED;
+		for(final Line.Info lineInfo: AudioSystem.getSourceLineInfo(new Line.Info(SourceDataLine.class))) {
+			if (!(lineInfo instanceof DataLine.Info))
+				continue;
+
+			for(final AudioFormat supported: ((DataLine.Info)lineInfo).getFormats()) {
+				if ((supported.getChannels() != format.getChannels()) && (supported.getChannels() != AudioSystem.NOT_SPECIFIED))
+					continue;
+				if ((supported.getSampleSizeInBits() != format.getSampleSizeInBits()) && (supported.getSampleSizeInBits() != AudioSystem.NOT_SPECIFIED))
+					continue;
+
+				final float rate = supported.getSampleRate();
+				if ((rate == sampleRate) || (rate == AudioSystem.NOT_SPECIFIED))
+					return sampleRate;
+
+				final boolean better =
+					(nativeSampleRate == AudioSystem.NOT_SPECIFIED) ||
+					((rate > sampleRate) && ((nativeSampleRate < sampleRate) || (rate < nativeSampleRate))) ||
+					((rate < sampleRate) && (nativeSampleRate < sampleRate) && (rate > nativeSampleRate));
+				if (better)
+					nativeSampleRate = rate;
+			}
+		}
+
+		return (nativeSampleRate != AudioSystem.NOT_SPECIFIED) ? nativeSampleRate : sampleRate;
+	}
+
+	/**
+	 * Obtains and opens a line
+	 *
+	 * @param format sample format
+	 * @param bufferSize desired buffer size in bytes
+	 * @throws LineUnavailableException if no line supports the format
+	 */
+	public JavaSoundAudioSink(final AudioFormat format, final int bufferSize) throws LineUnavailableException {
+		final DataLine.Info lineInfo = new DataLine.Info(
+			SourceDataLine.class,
+			format,
+			bufferSize
+		);
+		m_line = (SourceDataLine)AudioSystem.getLine(lineInfo);
+		m_line.open(format, bufferSize);
+
+		if (m_line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
+			m_gainControl = (FloatControl)m_line.getControl(FloatControl.Type.MASTER_GAIN);
+		}
+		else {
+			m_gainControl = null;
+			s_logger.severe("Audio output line doesn not support volume control");
+		}
+	}
+
+	@Override
+	public AudioFormat getFormat() {
+		return m_line.getFormat();
+	}
+
+	@Override
+	public int getBufferSize() {
+		return m_line.getBufferSize();
+	}
+
+	@Override
+	public void start() {
+		m_line.start();
+	}
+
+	@Override
+	public void stop() {
+		m_line.stop();
+	}
+
+	@Override
+	public void close() {
+		m_line.close();
+	}
+
+	@Override
+	public boolean isActive() {
+		return m_line.isActive();
+	}
+
+	@Override
+	public int available() {
+		return m_line.available();
+	}
+
+	@Override
+	public int write(final byte[] b, final int off, final int len) {
+		return m_line.write(b, off, len);
+	}
+
+	@Override
+	public long getLongFramePosition() {
+		return m_line.getLongFramePosition();
+	}
+
+	/**
+	 * JavaSound doesn't report the delay between a line's position and the output.
+	 * Lines talking to the device directly account for the device's buffering in
+	 * their position, so no further delay is known. The frames buffered by the
+	 * line itself are measured by the output queue, from the difference between
+	 * the frames written and {@link #getLongFramePosition()}.
+	 */
+	@Override
+	public double getLatency() {
+		return 0.0;
+	}
+
+	@Override
+	public float getGain() {
+		return (m_gainControl != null) ? m_gainControl.getValue() : 0.0f;
+	}
+
+	@Override
+	public void setGain(final float gain) {
+		if (m_gainControl == null)
+			return;
+
+		/* Bound gain value by min and max declared by the control */
+		m_gainControl.setValue(Math.max(m_gainControl.getMinimum(), Math.min(m_gainControl.getMaximum(), gain)));
+	}
+}
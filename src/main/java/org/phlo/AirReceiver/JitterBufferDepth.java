@@ -0,0 +1,231 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+/**
+ * Computes the depth an audio jitter buffer should reach before play back starts.
+ * <p>
+ * Tracks the interarrival jitter of the audio packets as defined by RFC 3550,
+ * i.e. the smoothed variation of the packet's transit times, where a packet's
+ * transit time is its arrival time minus its RTP time. Also tracks how late
+ * packets which arrive after their successors, typically retransmits, are
+ * compared to the stream's transit time. The target depth combines both
+ * according to a {@link Policy}.
+ * <p>
+ * Updated by the thread which receives the packets, read by any thread.
+ */
+public class JitterBufferDepth {
+	/**
+	 * System property selecting the {@link Policy}, by its name
+	 */
+	public static final String PolicyProperty = "org.phlo.AirReceiver.jitterBufferPolicy";
+
+	/**
+	 * Trade-off between latency and robustness against jitter and loss
+	 */
+	public static enum Policy {
+		/** Play back soon, at the risk of dropouts on bad networks */
+		LowLatency("low-latency", 0.1, 1.0, 3.0, 0.5),
+		/** The default */
+		Balanced("balanced", 0.25, 2.5, 4.0, 1.0),
+		/** Leave time for several retransmits of every packet */
+		Robust("robust", 0.75, 4.0, 8.0, 2.0);
+
+		private final String m_name;
+		private final double m_minSeconds;
+		private final double m_maxSeconds;
+		private final double m_jitterFactor;
+		private final double m_recoveryFactor;
+
+		private Policy(final String name, final double minSeconds, final double maxSeconds, final double jitterFactor, final double recoveryFactor) {
+			m_name = name;
+			m_minSeconds = minSeconds;
+			m_maxSeconds = maxSeconds;
+			m_jitterFactor = jitterFactor;
+			m_recoveryFactor = recoveryFactor;
+		}
+
+		public String getName() {
+			return m_name;
+		}
+
+		/**
+		 * @return the smallest depth in seconds
+		 */
+		public double getMinSeconds() {
+			return m_minSeconds;
+		}
+
+		/**
+		 * @return the largest depth in seconds
+		 */
+		public double getMaxSeconds() {
+			return m_maxSeconds;
+		}
+
+		/**
+		 * Returns the depth for the given measurements
+		 *
+		 * @param jitterSeconds interarrival jitter in seconds
+		 * @param recoverySeconds lateness of out-of-order packets in seconds
+		 * @return depth in seconds
+		 */
+		public double getTargetSeconds(final double jitterSeconds, final double recoverySeconds) {
+			final double seconds = m_minSeconds + m_jitterFactor * jitterSeconds + m_recoveryFactor * recoverySeconds;
+			return Math.min(m_maxSeconds, seconds);
+		}
+
+		/**
+		 * Returns the policy selected by {@link JitterBufferDepth#PolicyProperty}
+		 *
+		 * @return policy, {@link #Balanced} if the property is unset
+		 * @throws IllegalArgumentException if the property names no policy
+		 */
+		public static Policy fromSystemProperty() {
+			final String name = System.getProperty(PolicyProperty, Balanced.getName());
+			for(final Policy policy: values()) {
+				if (policy.getName().equalsIgnoreCase(name))
+					return policy;
+			}
+			throw new IllegalArgumentException("Unknown jitter buffer policy " + name + " set by " + PolicyProperty);
+		}
+	}
+
+	/**
+	 * Weight of a new sample in the recovery time if it's below the current value.
+	 * It rises faster, see {@link #RecoveryRiseWeight}
+	 */
+	private static final double RecoveryDecayWeight = 1.0 / 64.0;
+
+	/**
+	 * Weight of a new sample in the recovery time if it's above the current value
+	 */
+	private static final double RecoveryRiseWeight = 1.0 / 4.0;
+
+	private final Policy m_policy;
+	private final double m_sampleRate;
+
+	/**
+	 * Transit time of the latest in-order packet
+	 */
+	private double m_transitSeconds = Double.NaN;
+
+	/**
+	 * Set by {@link #reset()}, makes the next packet restart the transit time
+	 */
+	private volatile boolean m_resync = false;
+
+	private volatile double m_jitterSeconds = 0.0;
+	private volatile double m_recoverySeconds = 0.0;
+
+	/**
+	 * Creates an estimator without measurements, whose target is
+	 * the policy's minimum
+	 *
+	 * @param policy policy
+	 * @param sampleRate sample rate, i.e. RTP time units per second
+	 */
+	public JitterBufferDepth(final Policy policy, final double sampleRate) {
+		m_policy = policy;
+		m_sampleRate = sampleRate;
+	}
+
+	public Policy getPolicy() {
+		return m_policy;
+	}
+
+	/**
+	 * Updates the measurements with a packet
+	 *
+	 * @param frameTime packet's RTP time
+	 * @param arrivalNanoTime packet's arrival time as returned by {@link System#nanoTime()}
+	 * @param inOrder false if the packet arrived after a packet with a later sequence
+	 */
+	public void packetArrived(final long frameTime, final long arrivalNanoTime, final boolean inOrder) {
+		final double transitSeconds = arrivalNanoTime * 1e-9 - frameTime / m_sampleRate;
+
+		if (m_resync) {
+			m_resync = false;
+			m_transitSeconds = Double.NaN;
+		}
+
+		if (Double.isNaN(m_transitSeconds)) {
+			if (inOrder)
+				m_transitSeconds = transitSeconds;
+			return;
+		}
+
+		if (inOrder) {
+			/* J(i) = J(i-1) + (|D(i-1,i)| - J(i-1))/16 */
+			final double d = Math.abs(transitSeconds - m_transitSeconds);
+			m_jitterSeconds += (d - m_jitterSeconds) / 16.0;
+			m_transitSeconds = transitSeconds;
+		}
+		else {
+			final double lateness = Math.max(0.0, transitSeconds - m_transitSeconds);
+			final double weight = (lateness > m_recoverySeconds) ? RecoveryRiseWeight : RecoveryDecayWeight;
+			m_recoverySeconds += (lateness - m_recoverySeconds) * weight;
+		}
+	}
+
+	/**
+	 * Forgets the transit time of the latest packet, so that the arrival gap or RTP
+	 * time jump of a pause, seek or track change isn't taken for jitter. The jitter
+	 * and recovery time measured so far are kept. May be called by any thread, takes
+	 * effect upon the next {@link #packetArrived(long, long, boolean)}.
+	 */
+	public void reset() {
+		m_resync = true;
+	}
+
+	/**
+	 * @return interarrival jitter in seconds
+	 */
+	public double getJitterSeconds() {
+		return m_jitterSeconds;
+	}
+
+	/**
+	 * @return smoothed lateness of out-of-order packets in seconds
+	 */
+	public double getRecoverySeconds() {
+		return m_recoverySeconds;
+	}
+
+	/**
+	 * @return depth in seconds to reach before play back starts
+	 */
+	public double getTargetSeconds() {
+		return m_policy.getTargetSeconds(m_jitterSeconds, m_recoverySeconds);
+	}
+
+	/**
+	 * Formats the policy, target depth, jitter and recovery time, the latter
+	 * three in microseconds
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder s = new StringBuilder();
+		s.append("policy="); s.append(m_policy.getName());
+		s.append(" target="); s.append(Math.round(getTargetSeconds() * 1e6));
+		s.append(" jitter="); s.append(Math.round(getJitterSeconds() * 1e6));
+		s.append(" recovery="); s.append(Math.round(getRecoverySeconds() * 1e6));
+		return s.toString();
+	}
+}
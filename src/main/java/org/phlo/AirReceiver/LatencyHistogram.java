@@ -0,0 +1,154 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of latencies, used to compute percentiles.
+ * <p>
+ * Buckets are spaced logarithmically, with {@link #SubBuckets} buckets
+ * per power of two. Percentiles are thus accurate to within 12.5%, no
+ * matter how large the latencies are. Recording a latency neither
+ * allocates nor locks.
+ */
+public final class LatencyHistogram {
+	/**
+	 * Number of buckets per power of two. Must be a power of two
+	 */
+	private static final int SubBuckets = 8;
+
+	/**
+	 * log2 of {@link #SubBuckets}
+	 */
+	private static final int SubBucketBits = 3;
+
+	/**
+	 * Enough buckets to cover all non-negative longs
+	 */
+	private static final int Buckets = (64 - SubBucketBits) * SubBuckets;
+
+	private final AtomicLongArray m_buckets = new AtomicLongArray(Buckets);
+	private final AtomicLong m_count = new AtomicLong(0);
+	private final AtomicLong m_maxNanos = new AtomicLong(0);
+
+	/**
+	 * Returns the bucket a latency is counted in. Latencies below
+	 * {@link #SubBuckets} nanoseconds get a bucket each.
+	 *
+	 * @param nanos latency in nanoseconds, not negative
+	 * @return bucket index
+	 */
+	private static int bucket(final long nanos) {
+		if (nanos < SubBuckets)
+			return (int)nanos;
+
+		final int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+		final int subBucket = (int)(nanos >>> (magnitude - SubBucketBits)) & (SubBuckets - 1);
+		return (magnitude - SubBucketBits + 1) * SubBuckets + subBucket;
+	}
+
+	/**
+	 * Returns the largest latency counted in a bucket
+	 *
+	 * @param bucket bucket index
+	 * @return latency in nanoseconds
+	 */
+	private static long bucketUpperBound(final int bucket) {
+		if (bucket < SubBuckets)
+			return bucket;
+
+		final int magnitude = bucket / SubBuckets + SubBucketBits - 1;
+		final long subBucket = bucket & (SubBuckets - 1);
+		return ((SubBuckets + subBucket + 1) << (magnitude - SubBucketBits)) - 1;
+	}
+
+	/**
+	 * Records a latency. Negative latencies are counted as zero.
+	 *
+	 * @param nanos latency in nanoseconds
+	 */
+	public void add(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		m_buckets.incrementAndGet(bucket(nanos));
+		m_count.incrementAndGet();
+
+		long max;
+		while ((max = m_maxNanos.get()) < nanos) {
+			if (m_maxNanos.compareAndSet(max, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * @return number of latencies recorded
+	 */
+	public long getCount() {
+		return m_count.get();
+	}
+
+	/**
+	 * @return largest latency recorded, in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return m_maxNanos.get();
+	}
+
+	/**
+	 * Returns an upper bound for the given percentile of the recorded
+	 * latencies. Zero if no latencies were recorded.
+	 *
+	 * @param percentile percentile, between 0 and 100
+	 * @return latency in nanoseconds
+	 */
+	public long getPercentileNanos(final double percentile) {
+		final long count = m_count.get();
+		if (count == 0)
+			return 0;
+
+		final long rank = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for(int b=0; b < Buckets; ++b) {
+			seen += m_buckets.get(b);
+			if (seen >= rank)
+				return Math.min(bucketUpperBound(b), m_maxNanos.get());
+		}
+
+		/* Concurrently added latencies may not be counted in their buckets yet */
+		return m_maxNanos.get();
+	}
+
+	/**
+	 * Formats the count and the 50th, 90th, 99th and 100th percentile as
+	 * {@code count=<n> p50=<us> p90=<us> p99=<us> max=<us>}, with latencies
+	 * in microseconds.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder s = new StringBuilder();
+		s.append("count="); s.append(getCount());
+		s.append(" p50="); s.append(getPercentileNanos(50) / 1000);
+		s.append(" p90="); s.append(getPercentileNanos(90) / 1000);
+		s.append(" p99="); s.append(getPercentileNanos(99) / 1000);
+		s.append(" max="); s.append(getMaxNanos() / 1000);
+		return s.toString();
+	}
+}
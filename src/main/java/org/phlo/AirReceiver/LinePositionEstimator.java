@@ -0,0 +1,90 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Interpolates an audio line's playback position between the line's updates.
+ * <p>
+ * Many mixers update the position reported by {@link AudioSink#getLongFramePosition()}
+ * only once per hardware period, i.e. every few milliseconds. Between updates, the
+ * estimator advances the last reported position at the sample rate, measured by
+ * {@link System#nanoTime()}. It never runs further ahead of the reported position
+ * than the largest update step seen, so a stalled line stalls the estimate too.
+ * The estimate never decreases, unless the line's position does.
+ */
+public class LinePositionEstimator {
+	/**
+	 * Largest update step in seconds considered to be a hardware period.
+	 * Longer steps, e.g. the line resuming after an underrun, count as this long
+	 */
+	private static final double MaxUpdatePeriod = 0.05;
+
+	private final double m_sampleRate;
+
+	private final long m_maxUpdateStep;
+
+	/**
+	 * Position reported by the last update, and the time at which it was first seen
+	 */
+	private long m_updatePosition = Long.MIN_VALUE;
+	private long m_updateNanoTime;
+
+	/**
+	 * Largest update step seen, in frames
+	 */
+	private long m_updateStep = 0;
+
+	/**
+	 * Last estimate returned
+	 */
+	private double m_position = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param sampleRate the line's sample rate
+	 */
+	public LinePositionEstimator(final double sampleRate) {
+		m_sampleRate = sampleRate;
+		m_maxUpdateStep = Math.round(MaxUpdatePeriod * sampleRate);
+	}
+
+	/**
+	 * Returns the estimated playback position
+	 *
+	 * @param linePosition position currently reported by the line, in frames
+	 * @param nanoTime current {@link System#nanoTime()}
+	 * @return estimated position in (fractional) frames
+	 */
+	public synchronized double getPosition(final long linePosition, final long nanoTime) {
+		if (linePosition != m_updatePosition) {
+			if ((m_updatePosition == Long.MIN_VALUE) || (linePosition < m_updatePosition)) {
+				/* First update, or the line was reset */
+				m_updateStep = 0;
+				m_position = Double.NEGATIVE_INFINITY;
+			}
+			else {
+				m_updateStep = Math.max(m_updateStep, Math.min(linePosition - m_updatePosition, m_maxUpdateStep));
+			}
+			m_updatePosition = linePosition;
+			m_updateNanoTime = nanoTime;
+		}
+
+		final double elapsedFrames = Math.max(0, nanoTime - m_updateNanoTime) * 1e-9 * m_sampleRate;
+		m_position = Math.max(m_position, m_updatePosition + Math.min(elapsedFrames, m_updateStep));
+		return m_position;
+	}
+}
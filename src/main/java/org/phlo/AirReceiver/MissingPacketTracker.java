@@ -0,0 +1,469 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the packets a session requested (or is about to request) retransmits for.
+ * <p>
+ * The state of a packet is kept in a fixed pool of entries, one per packet
+ * which may be tracked at the same time. An open-addressed hash table with
+ * linear probing maps sequences to entries, so marking and unmarking a packet
+ * takes constant time and allocates nothing, and the memory used is proportional
+ * to the capacity instead of the number of sequences. The tracked packets are
+ * additionally chained in the order they were added, which allows iterating over
+ * them in time proportional to their number using {@link #first()} and
+ * {@link #next(int)}.
+ * <p>
+ * Each packet also carries a deadline, the earlier of the times by which it
+ * is expected to arrive and by which it must be queued. The deadlines are
+ * kept on a hashed timer wheel of {@link #WheelSlots} slots, each covering
+ * one tick. {@link #expire(double, int[])} thus only visits the slots of the
+ * ticks which passed since its last invocation, and the packets whose
+ * deadlines fall into them (or into the same slot one or more revolutions
+ * later).
+ * <p>
+ * Not thread-safe, callers synchronize.
+ */
+public final class MissingPacketTracker {
+	/**
+	 * Number of slots of the timer wheel, must be a power of two
+	 */
+	public static final int WheelSlots = 256;
+
+	/**
+	 * Marks the end of the chain, and unused slots and entries
+	 */
+	public static final int None = -1;
+
+	/**
+	 * Maps sequences to entries. Holds entry indices, or {@link #None} in unused
+	 * slots. At most half full, so that probe sequences stay short
+	 */
+	private final int[] m_index;
+	private final int m_indexMask;
+	private final int m_indexShift;
+
+	/**
+	 * Unused entries, a stack of entry indices
+	 */
+	private final int[] m_free;
+	private int m_freeCount;
+
+	/**
+	 * Chain of tracked entries, in the order they were added
+	 */
+	private final int[] m_previous;
+	private final int[] m_next;
+	private int m_first = None;
+	private int m_last = None;
+
+	/**
+	 * Per-entry state
+	 */
+	private final int[] m_sequence;
+	private final long[] m_requiredUntilFrameTime;
+	private final double[] m_requiredUntilSecondsTime;
+	private final double[] m_expectedUntilSecondsTime;
+	private final int[] m_retransmitRequestCount;
+	private final double[] m_requestSecondsTime;
+
+	/**
+	 * Duration of one tick of the timer wheel in seconds
+	 */
+	private final double m_tickSeconds;
+
+	/**
+	 * Chains of scheduled entries, one per slot of the timer wheel
+	 */
+	private final int[] m_slotFirst = new int[WheelSlots];
+	private final int[] m_slotPrevious;
+	private final int[] m_slotNext;
+	private final boolean[] m_scheduled;
+	private final long[] m_deadlineTick;
+
+	/**
+	 * Latest tick whose slot was expired, {@link Long#MIN_VALUE} before
+	 * the first call to {@link #expire(double, int[])}
+	 */
+	private long m_expiredTick = Long.MIN_VALUE;
+
+	/**
+	 * Creates a tracker
+	 *
+	 * @param capacity maximum number of packets tracked at the same time
+	 * @param tickSeconds resolution of the packet's deadlines in seconds
+	 */
+	public MissingPacketTracker(final int capacity, final double tickSeconds) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive, but was " + capacity);
+
+		m_tickSeconds = tickSeconds;
+
+		m_index = new int[Integer.highestOneBit(capacity) * 4];
+		m_indexMask = m_index.length - 1;
+		m_indexShift = 32 - Integer.numberOfTrailingZeros(m_index.length);
+		Arrays.fill(m_index, None);
+
+		m_free = new int[capacity];
+		for(int entry=0; entry < capacity; ++entry)
+			m_free[entry] = capacity - 1 - entry;
+		m_freeCount = capacity;
+
+		m_previous = new int[capacity];
+		m_next = new int[capacity];
+		m_sequence = new int[capacity];
+		m_requiredUntilFrameTime = new long[capacity];
+		m_requiredUntilSecondsTime = new double[capacity];
+		m_expectedUntilSecondsTime = new double[capacity];
+		m_retransmitRequestCount = new int[capacity];
+		m_requestSecondsTime = new double[capacity];
+
+		m_slotPrevious = new int[capacity];
+		m_slotNext = new int[capacity];
+		m_scheduled = new boolean[capacity];
+		m_deadlineTick = new long[capacity];
+		Arrays.fill(m_slotFirst, None);
+	}
+
+	/**
+	 * Starts tracking a packet. Does nothing if the packet is already tracked.
+	 *
+	 * @param sequence packet's sequence
+	 * @param requiredUntilFrameTime frame time by which the packet must be queued
+	 * @param requiredUntilSecondsTime seconds time by which the packet must be queued
+	 * @param expectedUntilSecondsTime seconds time by which the packet is expected to arrive
+	 * @return true if the packet wasn't tracked before
+	 * @throws IllegalStateException if the tracker is tracking as many packets as its capacity
+	 */
+	public boolean add(final int sequence, final long requiredUntilFrameTime, final double requiredUntilSecondsTime, final double expectedUntilSecondsTime) {
+		assert (sequence & 0xffff) == sequence;
+
+		/* Find the sequence's slot in the index, or the free slot it goes into */
+		int slot = hash(sequence);
+		for(int entry; (entry = m_index[slot]) != None; slot = (slot + 1) & m_indexMask) {
+			if (m_sequence[entry] == sequence)
+				return false;
+		}
+
+		if (m_freeCount == 0)
+			throw new IllegalStateException("Cannot track more than " + m_free.length + " packets");
+
+		final int entry = m_free[--m_freeCount];
+		m_index[slot] = entry;
+		m_sequence[entry] = sequence;
+		m_requiredUntilFrameTime[entry] = requiredUntilFrameTime;
+		m_requiredUntilSecondsTime[entry] = requiredUntilSecondsTime;
+		m_expectedUntilSecondsTime[entry] = expectedUntilSecondsTime;
+		m_retransmitRequestCount[entry] = 0;
+
+		/* Append to chain */
+		m_previous[entry] = m_last;
+		m_next[entry] = None;
+		if (m_last != None)
+			m_next[m_last] = entry;
+		else
+			m_first = entry;
+		m_last = entry;
+
+		schedule(entry);
+
+		return true;
+	}
+
+	/**
+	 * Stops tracking a packet
+	 *
+	 * @param sequence packet's sequence
+	 * @return true if the packet was tracked
+	 */
+	public boolean remove(final int sequence) {
+		assert (sequence & 0xffff) == sequence;
+
+		final int slot = findSlot(sequence);
+		if (slot == None)
+			return false;
+
+		final int entry = m_index[slot];
+		unindex(slot);
+		unschedule(entry);
+
+		/* Unlink from chain */
+		final int previous = m_previous[entry];
+		final int next = m_next[entry];
+		if (previous != None)
+			m_next[previous] = next;
+		else
+			m_first = next;
+		if (next != None)
+			m_previous[next] = previous;
+		else
+			m_last = previous;
+
+		m_free[m_freeCount++] = entry;
+
+		return true;
+	}
+
+	/**
+	 * Stops tracking all packets
+	 */
+	public void clear() {
+		while (m_first != None)
+			remove(m_sequence[m_first]);
+		m_expiredTick = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param sequence packet's sequence
+	 * @return true if the packet is tracked
+	 */
+	public boolean contains(final int sequence) {
+		return findSlot(sequence & 0xffff) != None;
+	}
+
+	/**
+	 * @return number of tracked packets
+	 */
+	public int size() {
+		return m_free.length - m_freeCount;
+	}
+
+	/**
+	 * @return maximum number of packets tracked at the same time
+	 */
+	public int getCapacity() {
+		return m_free.length;
+	}
+
+	/**
+	 * @return sequence of the packet tracked the longest, or {@link #None}
+	 */
+	public int first() {
+		return (m_first != None) ? m_sequence[m_first] : None;
+	}
+
+	/**
+	 * Returns the packet added after the given one. A loop may remove
+	 * the current packet once it has obtained its successor.
+	 *
+	 * @param sequence sequence of a tracked packet
+	 * @return sequence of the next tracked packet, or {@link #None}
+	 */
+	public int next(final int sequence) {
+		final int next = m_next[entry(sequence)];
+		return (next != None) ? m_sequence[next] : None;
+	}
+
+	/**
+	 * @return frame time by which the packet must be queued
+	 */
+	public long getRequiredUntilFrameTime(final int sequence) {
+		return m_requiredUntilFrameTime[entry(sequence)];
+	}
+
+	/**
+	 * @return seconds time by which the packet must be queued
+	 */
+	public double getRequiredUntilSecondsTime(final int sequence) {
+		return m_requiredUntilSecondsTime[entry(sequence)];
+	}
+
+	/**
+	 * @return seconds time by which the packet is expected to arrive
+	 */
+	public double getExpectedUntilSecondsTime(final int sequence) {
+		return m_expectedUntilSecondsTime[entry(sequence)];
+	}
+
+	/**
+	 * @return number of retransmit requests sent for the packet
+	 */
+	public int getRetransmitRequestCount(final int sequence) {
+		return m_retransmitRequestCount[entry(sequence)];
+	}
+
+	/**
+	 * @return seconds time at which the latest retransmit request for the packet was sent
+	 */
+	public double getRequestSecondsTime(final int sequence) {
+		return m_requestSecondsTime[entry(sequence)];
+	}
+
+	/**
+	 * Records that a retransmit request was sent for the packet, and
+	 * re-schedules it for the new time it's expected to arrive.
+	 *
+	 * @param sequence packet's sequence
+	 * @param requestSecondsTime seconds time at which the request was sent
+	 * @param expectedUntilSecondsTime seconds time by which the packet is now expected to arrive
+	 */
+	public void sentRetransmitRequest(final int sequence, final double requestSecondsTime, final double expectedUntilSecondsTime) {
+		final int entry = entry(sequence);
+		++m_retransmitRequestCount[entry];
+		m_requestSecondsTime[entry] = requestSecondsTime;
+		m_expectedUntilSecondsTime[entry] = expectedUntilSecondsTime;
+
+		unschedule(entry);
+		schedule(entry);
+	}
+
+	/**
+	 * Collects the packets whose deadline passed, i.e. whose deadline lies in a tick
+	 * which ended no later than the given time. The collected packets remain tracked,
+	 * but are no longer scheduled until {@link #sentRetransmitRequest(int, double)}
+	 * is called for them.
+	 * <p>
+	 * If the array is too small to hold all such packets, the remaining ones are
+	 * collected by the next call.
+	 *
+	 * @param nowSecondsTime current seconds time
+	 * @param due receives the sequences of the collected packets, in no particular order
+	 * @return number of packets collected
+	 */
+	public int expire(final double nowSecondsTime, final int[] due) {
+		final long nowTick = (long)Math.floor(nowSecondsTime / m_tickSeconds);
+
+		/* Ticks before nowTick have ended. Each slot needs to be visited at most once */
+		long tick = (m_expiredTick == Long.MIN_VALUE) ? nowTick - WheelSlots : m_expiredTick + 1;
+		if (tick < nowTick - WheelSlots)
+			tick = nowTick - WheelSlots;
+
+		int count = 0;
+		for(; tick < nowTick; ++tick) {
+			final int slot = (int)(tick & (WheelSlots - 1));
+
+			int next;
+			for(int entry = m_slotFirst[slot]; entry != None; entry = next) {
+				next = m_slotNext[entry];
+				if (m_deadlineTick[entry] >= nowTick)
+					continue;
+
+				if (count >= due.length) {
+					/* Out of space, resume with this slot next time */
+					m_expiredTick = tick - 1;
+					return count;
+				}
+
+				unschedule(entry);
+				due[count++] = m_sequence[entry];
+			}
+		}
+		m_expiredTick = nowTick - 1;
+
+		return count;
+	}
+
+	/**
+	 * Spreads consecutive sequences over the index
+	 *
+	 * @param sequence packet's sequence
+	 * @return the sequence's preferred slot in the index
+	 */
+	private int hash(final int sequence) {
+		return (sequence * 0x9e3779b1) >>> m_indexShift;
+	}
+
+	/**
+	 * @param sequence packet's sequence
+	 * @return the index slot holding the packet's entry, or {@link #None}
+	 */
+	private int findSlot(final int sequence) {
+		for(int slot = hash(sequence), entry; (entry = m_index[slot]) != None; slot = (slot + 1) & m_indexMask) {
+			if (m_sequence[entry] == sequence)
+				return slot;
+		}
+		return None;
+	}
+
+	/**
+	 * @param sequence sequence of a tracked packet
+	 * @return the packet's entry
+	 */
+	private int entry(final int sequence) {
+		final int slot = findSlot(sequence & 0xffff);
+		if (slot == None)
+			throw new IllegalArgumentException("Packet " + sequence + " is not tracked");
+		return m_index[slot];
+	}
+
+	/**
+	 * Clears a slot of the index. Entries further along the probe sequence
+	 * are moved back into the gap, so that lookups don't stop at it early.
+	 *
+	 * @param slot slot to clear
+	 */
+	private void unindex(int slot) {
+		for(int next = (slot + 1) & m_indexMask, entry; (entry = m_index[next]) != None; next = (next + 1) & m_indexMask) {
+			/* The entry may fill the gap unless its preferred slot lies after the gap */
+			final int preferred = hash(m_sequence[entry]);
+			if (((next - preferred) & m_indexMask) >= ((next - slot) & m_indexMask)) {
+				m_index[slot] = entry;
+				slot = next;
+			}
+		}
+		m_index[slot] = None;
+	}
+
+	/**
+	 * Places the entry on the timer wheel according to its deadline. Deadlines in
+	 * ticks which were already expired are moved to the next tick.
+	 *
+	 * @param entry packet's entry
+	 */
+	private void schedule(final int entry) {
+		final double deadline = Math.min(m_expectedUntilSecondsTime[entry], m_requiredUntilSecondsTime[entry]);
+		long tick = (long)Math.floor(deadline / m_tickSeconds);
+		if ((m_expiredTick != Long.MIN_VALUE) && (tick <= m_expiredTick))
+			tick = m_expiredTick + 1;
+
+		final int slot = (int)(tick & (WheelSlots - 1));
+		m_deadlineTick[entry] = tick;
+		m_scheduled[entry] = true;
+
+		/* Prepend to the slot's chain */
+		final int first = m_slotFirst[slot];
+		m_slotPrevious[entry] = None;
+		m_slotNext[entry] = first;
+		if (first != None)
+			m_slotPrevious[first] = entry;
+		m_slotFirst[slot] = entry;
+	}
+
+	/**
+	 * Removes the entry from the timer wheel
+	 *
+	 * @param entry packet's entry
+	 */
+	private void unschedule(final int entry) {
+		if (!m_scheduled[entry])
+			return;
+		m_scheduled[entry] = false;
+
+		final int previous = m_slotPrevious[entry];
+		final int next = m_slotNext[entry];
+		if (previous != None)
+			m_slotNext[previous] = next;
+		else
+			m_slotFirst[(int)(m_deadlineTick[entry] & (WheelSlots - 1))] = next;
+		if (next != None)
+			m_slotPrevious[next] = previous;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Monotonic, high-resolution time in seconds since the NTP epoch.
+ * <p>
+ * Anchored to the wall clock once, when the class is loaded, and advanced by
+ * {@link System#nanoTime()} from then on. Unlike {@link System#currentTimeMillis()},
+ * it has microsecond resolution and doesn't jump when the wall clock is adjusted.
+ */
+public final class MonotonicClock {
+	/**
+	 * Seconds between the NTP epoch (1900) and the unix epoch (1970)
+	 */
+	public static final double NtpEpochOffset = 2208988800.0;
+
+	/**
+	 * NTP seconds time at {@link #s_anchorNanoTime}
+	 */
+	private static final double s_anchorSecondsTime;
+	private static final long s_anchorNanoTime;
+
+	static {
+		s_anchorNanoTime = System.nanoTime();
+		s_anchorSecondsTime = NtpEpochOffset + System.currentTimeMillis() * 1e-3;
+	}
+
+	/**
+	 * Class is not meant to be instantiated
+	 */
+	private MonotonicClock() {
+		throw new RuntimeException();
+	}
+
+	/**
+	 * @return the current NTP time in seconds
+	 */
+	public static double getNowSecondsTime() {
+		return convertNanoToSecondsTime(System.nanoTime());
+	}
+
+	/**
+	 * Converts a {@link System#nanoTime()} value to NTP time
+	 *
+	 * @param nanoTime value returned by {@link System#nanoTime()}
+	 * @return corresponding NTP time in seconds
+	 */
+	public static double convertNanoToSecondsTime(final long nanoTime) {
+		return s_anchorSecondsTime + (nanoTime - s_anchorNanoTime) * 1e-9;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phlo.AirReceiver;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Audio sink which discards all samples. Useful to run and benchmark
+ * the receiver on machines without sound hardware.
+ */
+public class NullAudioSink extends SoftwareAudioSink {
+	/**
+	 * @param format sample format
+	 * @param bufferSize buffer size in bytes
+	 * @param realTime true to consume samples at the sample rate, false to consume them immediately
+	 */
+	public NullAudioSink(final AudioFormat format, final int bufferSize, final boolean realTime) {
+		super(format, bufferSize, realTime);
+	}
+
+	@Override
+	protected void output(final byte[] b, final int off, final int len) {
+		/* Discard */
+	}
+
+	@Override
+	protected void closeOutput() {
+		/* Nothing to release */
+	}
+
+	@Override
+	public String toString() {
+		return "null";
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted buffer holding the decoded PCM samples of one packet.
+ *
+ * Buffers are obtained from a {@link PcmBufferPool} with a reference count
+ * of one. Whoever holds the last reference (usually the audio output queue
+ * after writing the samples to the line) must call {@link #release()},
+ * which returns the buffer to its pool.
+ */
+public final class PcmBuffer {
+	/**
+	 * The pool this buffer is returned to once released
+	 */
+	private final PcmBufferPool m_pool;
+
+	/**
+	 * Sample data
+	 */
+	private final byte[] m_bytes;
+
+	/**
+	 * Number of valid bytes in {@link #m_bytes}
+	 */
+	private int m_length;
+
+	/**
+	 * Playback time of the first frame
+	 */
+	private long m_frameTime;
+
+	/**
+	 * RTP sequence number of the packet the samples were decoded from
+	 */
+	private int m_sequence;
+
+	/**
+	 * Local time at which the packet the samples were decoded from
+	 * was received, see {@link System#nanoTime()}. Zero if unknown
+	 */
+	private long m_arrivalNanoTime;
+
+	/**
+	 * Number of outstanding references
+	 */
+	private final AtomicInteger m_references = new AtomicInteger(0);
+
+	PcmBuffer(final PcmBufferPool pool, final int size) {
+		m_pool = pool;
+		m_bytes = new byte[size];
+	}
+
+	/**
+	 * Returns the buffer's backing array. Only the first {@link #getLength()}
+	 * bytes contain valid sample data
+	 *
+	 * @return sample data
+	 */
+	public byte[] getBytes() {
+		return m_bytes;
+	}
+
+	/**
+	 * @return number of valid bytes
+	 */
+	public int getLength() {
+		return m_length;
+	}
+
+	public void setLength(final int length) {
+		if ((length < 0) || (length > m_bytes.length))
+			throw new IllegalArgumentException("Length " + length + " exceeds buffer size " + m_bytes.length);
+		m_length = length;
+	}
+
+	public long getFrameTime() {
+		return m_frameTime;
+	}
+
+	public void setFrameTime(final long frameTime) {
+		m_frameTime = frameTime;
+	}
+
+	public int getSequence() {
+		return m_sequence;
+	}
+
+	public void setSequence(final int sequence) {
+		m_sequence = sequence;
+	}
+
+	public long getArrivalNanoTime() {
+		return m_arrivalNanoTime;
+	}
+
+	public void setArrivalNanoTime(final long arrivalNanoTime) {
+		m_arrivalNanoTime = arrivalNanoTime;
+	}
+
+	/**
+	 * Adds a reference to the buffer
+	 *
+	 * @return this buffer
+	 */
+	public PcmBuffer retain() {
+		if (m_references.getAndIncrement() <= 0)
+			throw new IllegalStateException("Buffer was already released");
+		return this;
+	}
+
+	/**
+	 * Drops a reference to the buffer, and returns the buffer to its
+	 * pool if it was the last one. The buffer must not be accessed
+	 * after its last reference was dropped.
+	 */
+	public void release() {
+		final int references = m_references.decrementAndGet();
+		if (references == 0)
+			m_pool.recycle(this);
+		else if (references < 0)
+			throw new IllegalStateException("Buffer was released more often than retained");
+	}
+
+	/**
+	 * Marks the buffer as being in use, called by the pool before
+	 * handing out the buffer
+	 */
+	void acquired() {
+		m_references.set(1);
+		m_length = 0;
+		m_arrivalNanoTime = 0;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+/**
+ * Fixed-capacity binary min-heap of {@link PcmBuffer}s ordered by frame time.
+ * <p>
+ * Adding and removing buffers allocates nothing. Buffers with equal frame
+ * times are all kept. Not thread-safe, meant to be confined to one thread.
+ */
+final class PcmBufferHeap {
+	/**
+	 * Frame times of the buffers, kept unboxed for the comparisons
+	 */
+	private final long[] m_frameTimes;
+	private final PcmBuffer[] m_buffers;
+	private int m_size = 0;
+
+	/**
+	 * Creates an empty heap
+	 *
+	 * @param capacity maximal number of buffers
+	 */
+	PcmBufferHeap(final int capacity) {
+		m_frameTimes = new long[capacity];
+		m_buffers = new PcmBuffer[capacity];
+	}
+
+	/**
+	 * Adds a buffer
+	 *
+	 * @param buffer buffer
+	 * @return false if the heap is full. The caller keeps ownership of rejected buffers.
+	 */
+	boolean add(final PcmBuffer buffer) {
+		if (m_size == m_buffers.length)
+			return false;
+
+		final long frameTime = buffer.getFrameTime();
+		int index = m_size++;
+		while (index > 0) {
+			final int parent = (index - 1) / 2;
+			if (m_frameTimes[parent] <= frameTime)
+				break;
+			m_frameTimes[index] = m_frameTimes[parent];
+			m_buffers[index] = m_buffers[parent];
+			index = parent;
+		}
+		m_frameTimes[index] = frameTime;
+		m_buffers[index] = buffer;
+		return true;
+	}
+
+	/**
+	 * @return the buffer with the earliest frame time, or null if empty
+	 */
+	PcmBuffer peek() {
+		return (m_size > 0) ? m_buffers[0] : null;
+	}
+
+	/**
+	 * Removes and returns the buffer with the earliest frame time
+	 *
+	 * @return buffer, or null if empty
+	 */
+	PcmBuffer poll() {
+		if (m_size == 0)
+			return null;
+
+		final PcmBuffer first = m_buffers[0];
+		final int size = --m_size;
+		final long frameTime = m_frameTimes[size];
+		final PcmBuffer buffer = m_buffers[size];
+		m_buffers[size] = null;
+
+		/* Sift the last buffer down from the root */
+		if (size > 0) {
+			int index = 0;
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if ((child + 1 < size) && (m_frameTimes[child + 1] < m_frameTimes[child]))
+					++child;
+				if (frameTime <= m_frameTimes[child])
+					break;
+				m_frameTimes[index] = m_frameTimes[child];
+				m_buffers[index] = m_buffers[child];
+				index = child;
+			}
+			m_frameTimes[index] = frameTime;
+			m_buffers[index] = buffer;
+		}
+
+		return first;
+	}
+
+	/**
+	 * @return number of buffers
+	 */
+	int size() {
+		return m_size;
+	}
+
+	/**
+	 * Removes all buffers and releases them
+	 */
+	void releaseAll() {
+		PcmBuffer buffer;
+		while ((buffer = poll()) != null)
+			buffer.release();
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue handing {@link PcmBuffer}s from any number of producer
+ * threads to a single consumer thread.
+ * <p>
+ * A ring of slots indexed by position. Producers claim a position by advancing
+ * the tail with a compare-and-set, and then publish their buffer in its slot.
+ * The consumer takes the buffers in position order, waiting for a claimed
+ * position's buffer to be published before moving past it. Neither side
+ * locks or allocates, so a real-time consumer is never held up by a
+ * producer and vice versa.
+ */
+final class PcmBufferInbox {
+	/**
+	 * Published buffers, indexed by position modulo the capacity
+	 */
+	private final AtomicReferenceArray<PcmBuffer> m_slots;
+	private final int m_mask;
+
+	/**
+	 * Next position a producer claims
+	 */
+	private final AtomicLong m_tail = new AtomicLong(0);
+
+	/**
+	 * Next position the consumer takes. Only modified by the consumer
+	 */
+	private volatile long m_head = 0;
+
+	/**
+	 * Creates an inbox
+	 *
+	 * @param capacity maximal number of buffers held, rounded up to a power of two
+	 */
+	PcmBufferInbox(final int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size *= 2;
+		m_slots = new AtomicReferenceArray<PcmBuffer>(size);
+		m_mask = size - 1;
+	}
+
+	/**
+	 * Adds a buffer. May be called by any thread.
+	 *
+	 * @param buffer buffer
+	 * @return false if the inbox is full. The caller keeps ownership of rejected buffers.
+	 */
+	boolean offer(final PcmBuffer buffer) {
+		while (true) {
+			final long tail = m_tail.get();
+			if (tail - m_head >= m_slots.length())
+				return false;
+
+			if (m_tail.compareAndSet(tail, tail + 1)) {
+				m_slots.set((int)(tail & m_mask), buffer);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the buffer at the head. Must only be called by the consumer.
+	 *
+	 * @return buffer, or null if the inbox is empty or the head's buffer isn't published yet
+	 */
+	PcmBuffer poll() {
+		final long head = m_head;
+		final int slot = (int)(head & m_mask);
+		final PcmBuffer buffer = m_slots.get(slot);
+		if (buffer == null)
+			return null;
+
+		/* Clear the slot before releasing it to the producers */
+		m_slots.set(slot, null);
+		m_head = head + 1;
+		return buffer;
+	}
+
+	/**
+	 * @return the position {@link #poll()} takes next
+	 */
+	long getHead() {
+		return m_head;
+	}
+
+	/**
+	 * @return the position the next {@link #offer(PcmBuffer)} claims
+	 */
+	long getTail() {
+		return m_tail.get();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of fixed-size {@link PcmBuffer}s.
+ *
+ * The number of frames per packet is constant during a session, so all
+ * buffers of a pool have the same size. Released buffers are kept on a
+ * bounded free list and handed out again by {@link #acquire()}. If the free
+ * list is empty, a new buffer is allocated, so acquiring a buffer never blocks.
+ * Buffers released while the free list is full are left to the garbage collector.
+ */
+public final class PcmBufferPool {
+	/**
+	 * Size of each buffer in bytes
+	 */
+	private final int m_bufferSize;
+
+	/**
+	 * Released buffers available for re-use
+	 */
+	private final ArrayBlockingQueue<PcmBuffer> m_free;
+
+	/**
+	 * Creates an empty pool
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param capacity maximum number of released buffers kept for re-use
+	 */
+	public PcmBufferPool(final int bufferSize, final int capacity) {
+		m_bufferSize = bufferSize;
+		m_free = new ArrayBlockingQueue<PcmBuffer>(capacity);
+	}
+
+	/**
+	 * @return size of each buffer in bytes
+	 */
+	public int getBufferSize() {
+		return m_bufferSize;
+	}
+
+	/**
+	 * @return number of buffers currently available for re-use
+	 */
+	public int getFreeCount() {
+		return m_free.size();
+	}
+
+	/**
+	 * Returns a buffer with a reference count of one and a length of zero
+	 *
+	 * @return buffer
+	 */
+	public PcmBuffer acquire() {
+		PcmBuffer buffer = m_free.poll();
+		if (buffer == null)
+			buffer = new PcmBuffer(this, m_bufferSize);
+		buffer.acquired();
+		return buffer;
+	}
+
+	/**
+	 * Puts a buffer whose last reference was dropped back onto the free list
+	 *
+	 * @param buffer released buffer
+	 */
+	void recycle(final PcmBuffer buffer) {
+		m_free.offer(buffer);
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phlo.AirReceiver;
+
+import java.io.*;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Audio sink which writes raw PCM samples, in the sink's format and without any
+ * header, to a stream. Used to feed the audio to another process through
+ * the standard output or a named pipe (FIFO).
+ */
+public class PipeAudioSink extends SoftwareAudioSink {
+	private final OutputStream m_stream;
+	private final String m_name;
+
+	/**
+	 * @param format sample format
+	 * @param bufferSize buffer size in bytes
+	 * @param realTime true to consume samples at the sample rate, false to pass them on immediately
+	 * @param stream the stream to write to
+	 * @param name name of the stream, used in log messages
+	 */
+	public PipeAudioSink(final AudioFormat format, final int bufferSize, final boolean realTime, final OutputStream stream, final String name) {
+		super(format, bufferSize, realTime);
+		m_stream = stream;
+		m_name = name;
+	}
+
+	@Override
+	protected void output(final byte[] b, final int off, final int len) throws IOException {
+		m_stream.write(b, off, len);
+		m_stream.flush();
+	}
+
+	@Override
+	protected void closeOutput() throws IOException {
+		/* Never close the standard output */
+		if (m_stream == System.out)
+			m_stream.flush();
+		else
+			m_stream.close();
+	}
+
+	@Override
+	public String toString() {
+		return "pipe:" + m_name;
+	}
+}
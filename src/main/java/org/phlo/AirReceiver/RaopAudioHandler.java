@@ -21,12 +21,14 @@ import java.net.*;
 import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.*;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import javax.sound.sampled.AudioFormat;
 
 import org.gps.air.receiver.Impl.TardyYetReliableAudioOutputQueue;
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
@@ -50,6 +52,21 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 
 	private static final String HeaderTransport = "Transport";
 	private static final String HeaderSession = "Session";
+	private static final String HeaderRtpInfo = "RTP-Info";
+
+	/**
+	 * GET_PARAMETER parameter reporting the latencies between the arrival of
+	 * audio packets and the time their samples were written to the line, as
+	 * formatted by {@link LatencyHistogram#toString()}
+	 */
+	public static final String ParameterLineLatency = "line_latency";
+
+	/**
+	 * GET_PARAMETER parameter reporting the jitter buffer's policy, its target
+	 * depth and the measured jitter and recovery time it is based on, as
+	 * formatted by {@link JitterBufferDepth#toString()}
+	 */
+	public static final String ParameterJitterBuffer = "jitter_buffer";
 
 	/**
 	 * Routes incoming packets from the control and timing channel to
@@ -118,12 +135,12 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
 			throws Exception
 		{
-			if (!(evt.getMessage() instanceof RaopRtpPacket.Audio)) {
+			if (!(evt.getMessage() instanceof PcmBuffer)) {
 				super.messageReceived(ctx, evt);
 				return;
 			}
 
-			final RaopRtpPacket.Audio audioPacket = (RaopRtpPacket.Audio)evt.getMessage();
+			final PcmBuffer pcmBuffer = (PcmBuffer)evt.getMessage();
 
 			/* Get audio output queue from the enclosing RaopAudioHandler */
 			TardyYetReliableAudioOutputQueue audioOutputQueue;
@@ -131,18 +148,18 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 				audioOutputQueue = m_audioOutputQueue;
 			}
 
+			/* The queue takes over our reference to the buffer, and releases
+			 * it once the samples were written to the line
+			 */
 			if (audioOutputQueue != null) {
-				final byte[] samples = new byte[audioPacket.getPayload().capacity()];
-				audioPacket.getPayload().getBytes(0, samples);
-				m_audioOutputQueue.enqueue(audioPacket.getTimeStamp(), samples);
+				audioOutputQueue.enqueue(pcmBuffer);
 				if (s_logger.isLoggable(Level.FINEST))
-					s_logger.finest("Packet with sequence " + audioPacket.getSequence() + " for playback at " + audioPacket.getTimeStamp() + " submitted to audio output queue");
+					s_logger.finest("Packet with sequence " + pcmBuffer.getSequence() + " for playback at " + pcmBuffer.getFrameTime() + " submitted to audio output queue");
 			}
 			else {
+				pcmBuffer.release();
 				s_logger.warning("No audio queue available, dropping packet");
 			}
-
-			super.messageReceived(ctx, evt);
 		}
 	}
 
@@ -156,6 +173,11 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	 */
 	private final ExecutorService m_rtpExecutorService;
 
+	/**
+	 * Scheduler used to send timing and retransmit requests, shared by all sessions
+	 */
+	private final ScheduledExecutorService m_timingScheduler;
+
 	private final ChannelHandler m_exceptionLoggingHandler = new ExceptionLoggingHandler();
 	private final ChannelHandler m_decodeHandler = new RaopRtpDecodeHandler();
 	private final ChannelHandler m_encodeHandler = new RtpEncodeHandler();
@@ -164,7 +186,7 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	private final ChannelHandler m_audioToOutputRouterUpstreamHandler = new RaopRtpAudioToOutputRouterDownstreamHandler();
 	private ChannelHandler m_decryptionHandler;
 	private ChannelHandler m_audioDecodeHandler;
-	private ChannelHandler m_resendRequestHandler;
+	private RaopRtpRetransmitRequestHandler m_resendRequestHandler;
 	private ChannelHandler m_timingHandler;
 	private final ChannelHandler m_audioEnqueueHandler = new RaopRtpAudioEnqueueHandler();
 
@@ -183,12 +205,27 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	/**
 	 * Creates an instance, using the ExecutorService for the RTP channel's datagram socket factory
 	 * @param rtpExecutorService
+	 * @param timingScheduler scheduler used to send timing and retransmit requests
 	 */
-	public RaopAudioHandler(final ExecutorService rtpExecutorService) {
+	public RaopAudioHandler(final ExecutorService rtpExecutorService, final ScheduledExecutorService timingScheduler) {
 		m_rtpExecutorService = rtpExecutorService;
+		m_timingScheduler = timingScheduler;
 		reset();
 	}
 
+	/**
+	 * Returns the current session's output latency, i.e. how far ahead of
+	 * its play back time a packet must arrive
+	 *
+	 * @return latency in frames, or -1 if no session was announced yet
+	 */
+	public synchronized long getAudioLatencyFrames() {
+		if (m_audioOutputQueue == null)
+			return -1;
+
+		return m_audioOutputQueue.getOutputLatencyFrames();
+	}
+
 	/**
 	 * Resets stream-related data (i.e. undoes the effect of ANNOUNCE, SETUP and RECORD
 	 */
@@ -196,6 +233,9 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		if (m_audioOutputQueue != null)
 			m_audioOutputQueue.close();
 
+		if (m_resendRequestHandler != null)
+			m_resendRequestHandler.stop();
+
 		m_rtpChannels.close();
 
 		m_decryptionHandler = null;
@@ -428,8 +468,12 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		if ((aesKey != null) && (aesIv != null))
 			m_decryptionHandler = new RaopRtpAudioDecryptionHandler(aesKey, aesIv);
 
-		/* Create an ALAC decoder. The ALAC decoder is our stream information provider */
-		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions);
+		/* Create an ALAC decoder which produces the sample format the audio output line
+		 * prefers, so that samples aren't converted again between decoding and playback.
+		 * The ALAC decoder is our stream information provider
+		 */
+		final AudioFormat audioOutputFormat = AudioSinks.getPreferredFormat(RaopRtpAudioAlacDecodeHandler.DefaultAudioOutputFormat);
+		final RaopRtpAudioAlacDecodeHandler handler = new RaopRtpAudioAlacDecodeHandler(formatOptions, audioOutputFormat);
 		m_audioStreamInformationProvider = handler;
 		m_audioDecodeHandler = handler;
 
@@ -437,10 +481,10 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 		m_audioOutputQueue = new TardyYetReliableAudioOutputQueue(m_audioStreamInformationProvider);
 
 		/* Create timing handle, using the AudioOutputQueue as time source */
-		m_timingHandler = new RaopRtpTimingHandler(m_audioOutputQueue);
+		m_timingHandler = new RaopRtpTimingHandler(m_audioOutputQueue, m_timingScheduler);
 
 		/* Create retransmit request handler using the audio output queue as time source */
-		m_resendRequestHandler = new RaopRtpRetransmitRequestHandler(m_audioStreamInformationProvider, m_audioOutputQueue);
+		m_resendRequestHandler = new RaopRtpRetransmitRequestHandler(m_audioStreamInformationProvider, m_audioOutputQueue, m_timingScheduler);
 
 		final HttpResponse response = new DefaultHttpResponse(RtspVersions.RTSP_1_0,  RtspResponseStatuses.OK);
 		ctx.getChannel().write(response);
@@ -535,6 +579,9 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			RaopRtpChannelType.Audio
 		);
 		s_logger.info("Launched RTP audio service on " + m_audioChannel.getLocalAddress());
+
+		/* Retransmit requests go out through the audio channel, see RaopRtpAudioToOutputRouterDownstreamHandler */
+		m_resendRequestHandler.start(m_audioChannel);
 		responseOptions.add("server_port=" + ((InetSocketAddress)m_audioChannel.getLocalAddress()).getPort());
 
 		/* Build response options string */
@@ -574,14 +621,48 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	/**
 	 * Handle FLUSH requests.
 	 * 
-	 * iTunes reports the last RTP sequence and playback time here, which would actually be
-	 * helpful. But iOS doesn't, so we ignore it all together.
+	 * iTunes reports the first RTP sequence and playback time after the flush in the
+	 * {@code RTP-Info} header, formatted as {@code seq=<sequence>;rtptime=<time>}. If it's
+	 * present, only the packets before that sequence are removed from the audio output queue,
+	 * so that play back resumes without waiting for packets we already had. iOS doesn't send
+	 * it, in which case the whole queue is flushed.
 	 */
-	private synchronized void flushReceived(final ChannelHandlerContext ctx, final HttpRequest req) {
-		if (m_audioOutputQueue != null)
-			m_audioOutputQueue.flush();
+	private synchronized void flushReceived(final ChannelHandlerContext ctx, final HttpRequest req)
+		throws ProtocolException
+	{
+		/* Parse RTP-Info header, if present */
+		Integer flushSequence = null;
+		Long flushTime = null;
+		if (req.containsHeader(HeaderRtpInfo)) {
+			for(final String rtpInfoOption: req.getHeader(HeaderRtpInfo).split(";")) {
+				final Matcher m_rtpInfoOption = s_pattern_transportOption.matcher(rtpInfoOption.trim());
+				if (!m_rtpInfoOption.matches() || (m_rtpInfoOption.group(3) == null))
+					throw new ProtocolException("Cannot parse RTP-Info option " + rtpInfoOption);
+				final String key = m_rtpInfoOption.group(1);
+				final String value = m_rtpInfoOption.group(3);
+
+				try {
+					if ("seq".equals(key))
+						flushSequence = Integer.valueOf(value) & 0xffff;
+					else if ("rtptime".equals(key))
+						flushTime = Long.valueOf(value) & 0xffffffffL;
+				}
+				catch (final NumberFormatException e) {
+					throw new ProtocolException("Cannot parse RTP-Info option " + rtpInfoOption);
+				}
+			}
+		}
 
-		s_logger.info("Client paused streaming, flushed audio output queue");
+		if (m_audioOutputQueue != null) {
+			if (flushSequence != null) {
+				final int removed = m_audioOutputQueue.flush(flushSequence);
+				s_logger.info("Client paused streaming, flushed " + removed + " packets before sequence " + flushSequence + " and time " + flushTime + " from audio output queue");
+			}
+			else {
+				m_audioOutputQueue.flush();
+				s_logger.info("Client paused streaming, flushed audio output queue");
+			}
+		}
 
 		final HttpResponse response = new DefaultHttpResponse(RtspVersions.RTSP_1_0,  RtspResponseStatuses.OK);
 		ctx.getChannel().write(response);
@@ -647,11 +728,19 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 	}
 
 	/**
-	 * Handle GET_PARAMETER request. Currently only {@code volume} is supported
+	 * Handle GET_PARAMETER request. The {@code volume} is always reported,
+	 * {@link #ParameterLineLatency} and {@link #ParameterJitterBuffer} only
+	 * if they are requested
 	 */
 	public synchronized void getParameterReceived(final ChannelHandlerContext ctx, final HttpRequest req)
 		throws ProtocolException
 	{
+		/* Body in ASCII encoding with unix newlines, one parameter name per line */
+		final String requestBody = req.getContent().toString(Charset.forName("ASCII")).replace("\r", "");
+		final Set<String> requestedParameters = new HashSet<String>();
+		for(final String line: requestBody.split("\n"))
+			requestedParameters.add(line.trim());
+
 		final StringBuilder body = new StringBuilder();
 
 		if (m_audioOutputQueue != null) {
@@ -659,6 +748,20 @@ public class RaopAudioHandler extends SimpleChannelUpstreamHandler {
 			body.append("volume: ");
 			body.append(m_audioOutputQueue.getGain());
 			body.append("\r\n");
+
+			if (requestedParameters.contains(ParameterLineLatency)) {
+				body.append(ParameterLineLatency);
+				body.append(": ");
+				body.append(m_audioOutputQueue.getLineWriteLatency());
+				body.append("\r\n");
+			}
+
+			if (requestedParameters.contains(ParameterJitterBuffer)) {
+				body.append(ParameterJitterBuffer);
+				body.append(": ");
+				body.append(m_audioOutputQueue.getBufferDepth());
+				body.append("\r\n");
+			}
 		}
 
 		final HttpResponse response = new DefaultHttpResponse(RtspVersions.RTSP_1_0,  RtspResponseStatuses.OK);
@@ -0,0 +1,274 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.*;
+
+import com.beatofthedrum.alacdecoder.AlacEncoder;
+
+/**
+ * Headless load generator for end-to-end benchmarks of a running AirReceiver.
+ * <p>
+ * Opens a number of concurrent {@link RaopLoadSession}s, streams encrypted ALAC
+ * audio at (a multiple of) real time while injecting packet loss, reordering,
+ * duplication and jitter, and finally reports the number of sessions sustained,
+ * the packet rate, the effectiveness of retransmits and the receiver's latency
+ * between packet arrival and line write.
+ * <p>
+ * Usage: {@code RaopLoadGenerator [name=value ...]}, see {@link Settings} for the
+ * names and defaults.
+ */
+public class RaopLoadGenerator {
+	private static Logger s_logger = Logger.getLogger(RaopLoadGenerator.class.getName());
+
+	/**
+	 * Interval at which due packets are sent
+	 */
+	private static final long TickMillis = 2;
+
+	/**
+	 * Benchmark settings, parsed from {@code name=value} arguments
+	 */
+	public static final class Settings {
+		/** Receiver host */
+		public String host = "localhost";
+		/** Receiver RTSP port */
+		public int port = AirReceiver.AirtunesServiceRTSPPort;
+		/** Number of concurrent sessions */
+		public int sessions = 1;
+		/** Streaming duration in seconds */
+		public int duration = 30;
+		/** Streaming speed, 1.0 being real time */
+		public double rate = 1.0;
+		/** Probability of dropping an audio packet */
+		public double loss = 0.0;
+		/** Probability of sending an audio packet after its successor */
+		public double reorder = 0.0;
+		/** Probability of sending an audio packet twice */
+		public double duplicate = 0.0;
+		/** Maximal random delay of an audio packet in milliseconds */
+		public int jitterMillis = 0;
+
+		/**
+		 * Parses {@code name=value} arguments
+		 *
+		 * @param args arguments
+		 * @return settings
+		 * @throws IllegalArgumentException if an argument is unknown or malformed
+		 */
+		public static Settings parse(final String[] args) {
+			final Settings settings = new Settings();
+			for(final String arg: args) {
+				final int equals = arg.indexOf('=');
+				if (equals <= 0)
+					throw new IllegalArgumentException("Argument " + arg + " is not of the form name=value");
+				final String name = arg.substring(0, equals);
+				final String value = arg.substring(equals + 1);
+
+				if ("host".equals(name))
+					settings.host = value;
+				else if ("port".equals(name))
+					settings.port = Integer.parseInt(value);
+				else if ("sessions".equals(name))
+					settings.sessions = Integer.parseInt(value);
+				else if ("duration".equals(name))
+					settings.duration = Integer.parseInt(value);
+				else if ("rate".equals(name))
+					settings.rate = Double.parseDouble(value);
+				else if ("loss".equals(name))
+					settings.loss = Double.parseDouble(value);
+				else if ("reorder".equals(name))
+					settings.reorder = Double.parseDouble(value);
+				else if ("duplicate".equals(name))
+					settings.duplicate = Double.parseDouble(value);
+				else if ("jitter".equals(name))
+					settings.jitterMillis = Integer.parseInt(value);
+				else
+					throw new IllegalArgumentException("Unknown argument " + name);
+			}
+			return settings;
+		}
+	}
+
+	/**
+	 * Counters shared by all sessions
+	 */
+	public static final class Statistics {
+		public final AtomicLong packetsSent = new AtomicLong(0);
+		public final AtomicLong retransmitsRequested = new AtomicLong(0);
+		public final AtomicLong retransmitsSent = new AtomicLong(0);
+		/** Retransmits of packets the fault injector dropped, counted once per packet */
+		public final AtomicLong retransmitsRecovered = new AtomicLong(0);
+		public final AtomicLong timingRequestsAnswered = new AtomicLong(0);
+	}
+
+	private final Settings m_settings;
+	private final Statistics m_statistics = new Statistics();
+	private final ExecutorService m_executorService = Executors.newCachedThreadPool();
+	private final ScheduledExecutorService m_scheduler = Executors.newScheduledThreadPool(2);
+
+	public RaopLoadGenerator(final Settings settings) {
+		m_settings = settings;
+	}
+
+	/**
+	 * Encodes one second of a stereo tone into ALAC packets. The packets are
+	 * streamed in a loop, so encoding doesn't limit the achievable packet rate.
+	 *
+	 * @return ALAC packets of {@link RaopLoadSession#FramesPerPacket} frames each
+	 */
+	private static byte[][] encodeFrames() {
+		final int packets = RaopLoadSession.SampleRate / RaopLoadSession.FramesPerPacket;
+		final AlacEncoder encoder = new AlacEncoder(RaopLoadSession.FramesPerPacket, 40, 10, 14);
+		final byte[] frame = new byte[encoder.getMaxFrameBytes()];
+		final int[] samples = new int[RaopLoadSession.FramesPerPacket * 2];
+
+		final byte[][] frames = new byte[packets][];
+		for(int p=0; p < packets; ++p) {
+			for(int i=0; i < RaopLoadSession.FramesPerPacket; ++i) {
+				final double t = (double)(p * RaopLoadSession.FramesPerPacket + i) / RaopLoadSession.SampleRate;
+				samples[2*i] = (int)Math.round(8000 * Math.sin(2 * Math.PI * 440 * t));
+				samples[2*i + 1] = (int)Math.round(8000 * Math.sin(2 * Math.PI * 660 * t));
+			}
+			final int length = encoder.encodeFrame(samples, 0, RaopLoadSession.FramesPerPacket, frame, 0);
+			frames[p] = Arrays.copyOf(frame, length);
+		}
+		return frames;
+	}
+
+	/**
+	 * Runs the benchmark and prints the report to {@link System#out}
+	 */
+	public void run() throws Exception {
+		final InetSocketAddress server = new InetSocketAddress(m_settings.host, m_settings.port);
+		final byte[][] frames = encodeFrames();
+		final ChannelFactory rtspChannelFactory = new NioClientSocketChannelFactory(m_executorService, m_executorService);
+		final ChannelFactory rtpChannelFactory = new NioDatagramChannelFactory(m_executorService);
+
+		/* Set up all sessions before streaming starts */
+		final List<RaopLoadSession> sessions = new java.util.concurrent.CopyOnWriteArrayList<RaopLoadSession>();
+		final AtomicLong sessionsFailed = new AtomicLong(0);
+		for(int s=0; s < m_settings.sessions; ++s) {
+			final RaopLoadSession session = new RaopLoadSession(
+				server,
+				m_settings,
+				m_statistics,
+				frames,
+				rtspChannelFactory,
+				rtpChannelFactory,
+				m_scheduler
+			);
+			try {
+				session.start();
+				sessions.add(session);
+			}
+			catch (final Exception e) {
+				s_logger.log(Level.WARNING, "Session " + s + " failed to start", e);
+				sessionsFailed.incrementAndGet();
+				session.close();
+			}
+		}
+		final int sessionsStarted = sessions.size();
+		final List<RaopLoadSession> allSessions = new ArrayList<RaopLoadSession>(sessions);
+
+		/* Stream, dropping sessions whose channels fail */
+		final long startNanoTime = System.nanoTime();
+		final ScheduledFuture<?> ticker = m_scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				final long now = System.nanoTime();
+				for(final RaopLoadSession session: sessions) {
+					try {
+						session.sendDue(now);
+					}
+					catch (final RuntimeException e) {
+						s_logger.log(Level.WARNING, "Session failed while streaming", e);
+						sessions.remove(session);
+						sessionsFailed.incrementAndGet();
+						session.close();
+					}
+				}
+			}
+		}, 0, TickMillis, TimeUnit.MILLISECONDS);
+
+		Thread.sleep(m_settings.duration * 1000L);
+		ticker.cancel(false);
+		final double seconds = (System.nanoTime() - startNanoTime) * 1e-9;
+
+		/* Collect the receiver's latencies while tearing down */
+		final List<String> lineLatencies = new ArrayList<String>();
+		long sessionsSustained = 0;
+		for(final RaopLoadSession session: sessions) {
+			try {
+				lineLatencies.add(session.finish());
+				++sessionsSustained;
+			}
+			catch (final Exception e) {
+				s_logger.log(Level.WARNING, "Session failed to finish", e);
+				sessionsFailed.incrementAndGet();
+			}
+		}
+
+		long dropped = 0;
+		long duplicated = 0;
+		long reordered = 0;
+		for(final RaopLoadSession session: allSessions) {
+			dropped += session.getFaultInjector().getDroppedCount();
+			duplicated += session.getFaultInjector().getDuplicatedCount();
+			reordered += session.getFaultInjector().getReorderedCount();
+		}
+
+		rtspChannelFactory.releaseExternalResources();
+		rtpChannelFactory.releaseExternalResources();
+		m_scheduler.shutdownNow();
+		m_executorService.shutdownNow();
+
+		final long packetsSent = m_statistics.packetsSent.get();
+		final long recovered = m_statistics.retransmitsRecovered.get();
+		System.out.println("sessions: requested=" + m_settings.sessions + " started=" + sessionsStarted + " sustained=" + sessionsSustained + " failed=" + sessionsFailed.get());
+		System.out.println("packets: sent=" + packetsSent + " rate=" + Math.round(packetsSent / seconds) + "/s (" + Math.round(packetsSent * RaopLoadSession.FramesPerPacket / seconds / RaopLoadSession.SampleRate * 100) / 100.0 + "x real time)");
+		System.out.println("faults: dropped=" + dropped + " duplicated=" + duplicated + " reordered=" + reordered);
+		System.out.println("retransmits: requested=" + m_statistics.retransmitsRequested.get() + " sent=" + m_statistics.retransmitsSent.get() + " recovered=" + recovered + " (" + ((dropped > 0) ? Math.round(100.0 * recovered / dropped) + "%" : "n/a") + " of dropped)");
+		System.out.println("timing: requests answered=" + m_statistics.timingRequestsAnswered.get());
+		for(int s=0; s < lineLatencies.size(); ++s)
+			System.out.println("line latency (us), session " + s + ": " + lineLatencies.get(s));
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Settings settings;
+		try {
+			settings = Settings.parse(args);
+		}
+		catch (final IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: RaopLoadGenerator [host=<host>] [port=<port>] [sessions=<n>] [duration=<seconds>] [rate=<x real time>] [loss=<p>] [reorder=<p>] [duplicate=<p>] [jitter=<ms>]");
+			System.exit(1);
+			return;
+		}
+
+		new RaopLoadGenerator(settings).run();
+	}
+}
@@ -0,0 +1,609 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import org.jboss.netty.bootstrap.*;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.rtsp.*;
+
+/**
+ * A single simulated AirTunes source, streaming to the receiver under test.
+ * <p>
+ * Connects like iTunes does (OPTIONS with {@code Apple-Challenge}, ANNOUNCE with
+ * an RSA-encrypted AES key, SETUP and RECORD), streams AES-encrypted ALAC packets
+ * paced by {@link #sendDue(long)}, answers timing and retransmit requests and
+ * sends a sync packet every second. Outgoing audio packets pass through a
+ * {@link RaopRtpFaultInjectionHandler}.
+ * <p>
+ * Sessions are created and driven by {@link RaopLoadGenerator}.
+ */
+public class RaopLoadSession {
+	private static Logger s_logger = Logger.getLogger(RaopLoadSession.class.getName());
+
+	/**
+	 * Format options announced for the stream, see {@link RaopRtpAudioAlacDecodeHandler}
+	 */
+	public static final String FormatOptions = "352 0 16 40 10 14 2 255 0 0 44100";
+
+	public static final int FramesPerPacket = 352;
+	public static final int SampleRate = 44100;
+
+	/**
+	 * Playback latency announced in the sync packets, in frames
+	 */
+	private static final long LatencyFrames = 88200;
+
+	/**
+	 * Number of packets kept for retransmission
+	 */
+	private static final int HistoryPackets = 1024;
+
+	/**
+	 * Seconds to wait for an RTSP response
+	 */
+	private static final int ResponseTimeoutSeconds = 10;
+
+	private static final String HeaderChallenge = "Apple-Challenge";
+	private static final String HeaderSignature = "Apple-Response";
+	private static final String HeaderTransport = "Transport";
+	private static final String HeaderSession = "Session";
+
+	/**
+	 * Answers timing requests like iTunes does
+	 */
+	private class TimingResponder extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+			throws Exception
+		{
+			if (!(evt.getMessage() instanceof RaopRtpPacket.TimingRequest)) {
+				super.messageReceived(ctx, evt);
+				return;
+			}
+
+			final RaopRtpPacket.TimingRequest request = (RaopRtpPacket.TimingRequest)evt.getMessage();
+			final double now = getNowSecondsTime();
+
+			final RaopRtpPacket.TimingResponse response = new RaopRtpPacket.TimingResponse();
+			response.setSequence(request.getSequence());
+			response.getReferenceTime().setDouble(request.getSendTime().getDouble());
+			response.getReceivedTime().setDouble(now);
+			response.getSendTime().setDouble(now);
+
+			ctx.getChannel().write(response);
+			m_statistics.timingRequestsAnswered.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Answers retransmit requests from the history of sent packets
+	 */
+	private class RetransmitResponder extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+			throws Exception
+		{
+			if (!(evt.getMessage() instanceof RaopRtpPacket.RetransmitRequest)) {
+				super.messageReceived(ctx, evt);
+				return;
+			}
+
+			final RaopRtpPacket.RetransmitRequest request = (RaopRtpPacket.RetransmitRequest)evt.getMessage();
+			m_statistics.retransmitsRequested.addAndGet(request.getSequenceCount());
+
+			for(int i=0; i < request.getSequenceCount(); ++i) {
+				final int sequence = (request.getSequenceFirst() + i) & 0xffff;
+				final RaopRtpPacket.AudioRetransmit retransmit = getRetransmit(sequence);
+				if (retransmit == null)
+					continue;
+
+				ctx.getChannel().write(retransmit);
+				m_statistics.retransmitsSent.incrementAndGet();
+				if (m_faultInjector.clearDropped(sequence))
+					m_statistics.retransmitsRecovered.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Queues RTSP responses for {@link RaopLoadSession#request}
+	 */
+	private class ResponseQueuer extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
+			throws Exception
+		{
+			if (evt.getMessage() instanceof HttpResponse)
+				m_responses.add((HttpResponse)evt.getMessage());
+			else
+				super.messageReceived(ctx, evt);
+		}
+	}
+
+	private final InetSocketAddress m_server;
+	private final RaopLoadGenerator.Settings m_settings;
+	private final RaopLoadGenerator.Statistics m_statistics;
+
+	/**
+	 * Pre-encoded ALAC packets, streamed in a loop
+	 */
+	private final byte[][] m_frames;
+
+	private final ClientBootstrap m_rtspBootstrap;
+	private final ConnectionlessBootstrap m_rtpBootstrap;
+	private final RaopRtpFaultInjectionHandler m_faultInjector;
+
+	private final Random m_random = new Random();
+	private final String m_sessionId = Integer.toString(m_random.nextInt(Integer.MAX_VALUE));
+	private final BlockingQueue<HttpResponse> m_responses = new LinkedBlockingQueue<HttpResponse>();
+	private final ChannelGroup m_channels = new DefaultChannelGroup();
+
+	private final SecretKey m_aesKey;
+	private final IvParameterSpec m_aesIv;
+	private final Cipher m_aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding", AirTunesCrytography.getAesCipherProvider());
+
+	private Channel m_rtspChannel;
+	private Channel m_audioChannel;
+	private Channel m_controlChannel;
+	private Channel m_timingChannel;
+	private int m_cseq = 0;
+	private String m_session;
+
+	/**
+	 * Sent packets, indexed by sequence modulo {@link #HistoryPackets}
+	 */
+	private final RaopRtpPacket.AudioTransmit[] m_history = new RaopRtpPacket.AudioTransmit[HistoryPackets];
+
+	private final int m_initialSequence = m_random.nextInt(0x10000);
+	private final long m_initialTimeStamp = m_random.nextInt() & 0xffffffffL;
+	private long m_packetsSent = 0;
+	private long m_startNanoTime;
+
+	/**
+	 * Creates a session, but doesn't connect yet
+	 *
+	 * @param server address of the receiver's RTSP service
+	 * @param settings stream and fault injection settings
+	 * @param statistics counters updated by the session
+	 * @param frames pre-encoded ALAC packets
+	 * @param rtspChannelFactory factory for the RTSP connection
+	 * @param rtpChannelFactory factory for the RTP channels
+	 * @param scheduler executor used to delay packets
+	 */
+	public RaopLoadSession(
+		final InetSocketAddress server,
+		final RaopLoadGenerator.Settings settings,
+		final RaopLoadGenerator.Statistics statistics,
+		final byte[][] frames,
+		final ChannelFactory rtspChannelFactory,
+		final ChannelFactory rtpChannelFactory,
+		final ScheduledExecutorService scheduler
+	) {
+		m_server = server;
+		m_settings = settings;
+		m_statistics = statistics;
+		m_frames = frames;
+
+		final byte[] aesKey = new byte[16];
+		m_random.nextBytes(aesKey);
+		m_aesKey = new SecretKeySpec(aesKey, "AES");
+		final byte[] aesIv = new byte[16];
+		m_random.nextBytes(aesIv);
+		m_aesIv = new IvParameterSpec(aesIv);
+
+		m_faultInjector = new RaopRtpFaultInjectionHandler(
+			settings.loss,
+			settings.reorder,
+			settings.duplicate,
+			settings.jitterMillis,
+			scheduler
+		);
+
+		m_rtspBootstrap = new ClientBootstrap(rtspChannelFactory);
+		m_rtspBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				final ChannelPipeline pipeline = Channels.pipeline();
+
+				pipeline.addLast("exceptionLogger", new ExceptionLoggingHandler());
+				pipeline.addLast("encoder", new RtspRequestEncoder());
+				pipeline.addLast("decoder", new RtspResponseDecoder());
+				pipeline.addLast("responses", new ResponseQueuer());
+
+				return pipeline;
+			}
+		});
+
+		m_rtpBootstrap = new ConnectionlessBootstrap(rtpChannelFactory);
+		m_rtpBootstrap.setOption("receiveBufferSizePredictorFactory", new FixedReceiveBufferSizePredictorFactory(1500));
+	}
+
+	/**
+	 * Sets up the stream, i.e. performs OPTIONS, ANNOUNCE, SETUP and RECORD
+	 *
+	 * @throws Exception if the receiver refused the stream or didn't respond
+	 */
+	public void start() throws Exception {
+		final ChannelFuture connectFuture = m_rtspBootstrap.connect(m_server).awaitUninterruptibly();
+		if (!connectFuture.isSuccess())
+			throw new IOException("Unable to connect to " + m_server, connectFuture.getCause());
+		m_rtspChannel = connectFuture.getChannel();
+		m_channels.add(m_rtspChannel);
+
+		options();
+		announce();
+
+		m_audioChannel = bindRtpChannel(
+			new RtpEncodeHandler(),
+			m_faultInjector
+		);
+		m_controlChannel = bindRtpChannel(
+			new RaopRtpDecodeHandler(),
+			new RtpEncodeHandler(),
+			new RetransmitResponder()
+		);
+		m_timingChannel = bindRtpChannel(
+			new RaopRtpDecodeHandler(),
+			new RtpEncodeHandler(),
+			new TimingResponder()
+		);
+
+		setup();
+		record();
+
+		m_startNanoTime = System.nanoTime();
+	}
+
+	/**
+	 * Sends all audio packets which are due at the given time
+	 *
+	 * @param nowNanoTime current time as returned by {@link System#nanoTime()}
+	 */
+	public void sendDue(final long nowNanoTime) {
+		final long packetsDue = (long)(
+			(nowNanoTime - m_startNanoTime) * 1e-9 *
+			m_settings.rate * SampleRate / FramesPerPacket
+		);
+
+		while (m_packetsSent < packetsDue) {
+			/* Sync roughly once a second, like iTunes */
+			if (m_packetsSent % (SampleRate / FramesPerPacket) == 0)
+				sendSync();
+			sendAudio();
+		}
+	}
+
+	/**
+	 * Requests the receiver's latency statistics and tears down the stream
+	 *
+	 * @return the receiver's {@link RaopAudioHandler#ParameterLineLatency}, or null
+	 * @throws Exception if the receiver didn't respond
+	 */
+	public String finish() throws Exception {
+		try {
+			final HttpResponse response = request(
+				RaopRtspMethods.GET_PARAMETER,
+				"text/parameters",
+				RaopAudioHandler.ParameterLineLatency + "\r\n"
+			);
+
+			final String prefix = RaopAudioHandler.ParameterLineLatency + ":";
+			final String body = response.getContent().toString(Charset.forName("ASCII")).replace("\r", "");
+			String lineLatency = null;
+			for(final String line: body.split("\n")) {
+				if (line.startsWith(prefix))
+					lineLatency = line.substring(prefix.length()).trim();
+			}
+
+			request(RaopRtspMethods.TEARDOWN, null, null);
+
+			return lineLatency;
+		}
+		finally {
+			close();
+		}
+	}
+
+	/**
+	 * Closes all channels
+	 */
+	public void close() {
+		m_channels.close().awaitUninterruptibly();
+	}
+
+	/**
+	 * @return the fault injector applied to the audio packets
+	 */
+	public RaopRtpFaultInjectionHandler getFaultInjector() {
+		return m_faultInjector;
+	}
+
+	/**
+	 * Sends OPTIONS with an Apple-Challenge and verifies the Apple-Response
+	 */
+	private void options() throws Exception {
+		final byte[] challenge = new byte[16];
+		m_random.nextBytes(challenge);
+
+		final HttpResponse response = request(
+			RaopRtspMethods.OPTIONS,
+			null,
+			null,
+			HeaderChallenge, Base64.encodeUnpadded(challenge)
+		);
+		if (!response.containsHeader(HeaderSignature))
+			throw new ProtocolException("No Apple-Response header");
+
+		/* The response is the challenge followed by the receiver's address, signed with the private key */
+		final Cipher rsaPkCS1PaddingCipher = AirTunesCrytography.getCipher("RSA/None/PKCS1Padding");
+		rsaPkCS1PaddingCipher.init(Cipher.DECRYPT_MODE, AirTunesCrytography.PublicKey);
+		final byte[] signature = rsaPkCS1PaddingCipher.doFinal(Base64.decodePadded(response.getHeader(HeaderSignature)));
+		final byte[] address = ((InetSocketAddress)m_rtspChannel.getRemoteAddress()).getAddress().getAddress();
+
+		if (
+			(signature.length < challenge.length + address.length) ||
+			!Arrays.equals(challenge, Arrays.copyOfRange(signature, 0, challenge.length)) ||
+			!Arrays.equals(address, Arrays.copyOfRange(signature, challenge.length, challenge.length + address.length))
+		)
+			throw new ProtocolException("Invalid Apple-Response header");
+	}
+
+	/**
+	 * Sends ANNOUNCE, with the AES key encrypted with the AirTunes public key
+	 */
+	private void announce() throws Exception {
+		final Cipher rsaPkCS1OaepCipher = AirTunesCrytography.getCipher("RSA/None/OAEPWithSHA1AndMGF1Padding");
+		rsaPkCS1OaepCipher.init(Cipher.ENCRYPT_MODE, AirTunesCrytography.PublicKey);
+		final byte[] aesKeyEncrypted = rsaPkCS1OaepCipher.doFinal(m_aesKey.getEncoded());
+
+		final String localAddress = ((InetSocketAddress)m_rtspChannel.getLocalAddress()).getAddress().getHostAddress();
+		final String serverAddress = ((InetSocketAddress)m_rtspChannel.getRemoteAddress()).getAddress().getHostAddress();
+
+		final StringBuilder sdp = new StringBuilder();
+		sdp.append("v=0\r\n");
+		sdp.append("o=iTunes " + m_sessionId + " 0 IN IP4 " + localAddress + "\r\n");
+		sdp.append("s=iTunes\r\n");
+		sdp.append("c=IN IP4 " + serverAddress + "\r\n");
+		sdp.append("t=0 0\r\n");
+		sdp.append("m=audio 0 RTP/AVP 96\r\n");
+		sdp.append("a=rtpmap:96 AppleLossless\r\n");
+		sdp.append("a=fmtp:96 " + FormatOptions + "\r\n");
+		sdp.append("a=rsaaeskey:" + Base64.encodeUnpadded(aesKeyEncrypted) + "\r\n");
+		sdp.append("a=aesiv:" + Base64.encodeUnpadded(m_aesIv.getIV()) + "\r\n");
+
+		request(RaopRtspMethods.ANNOUNCE, "application/sdp", sdp.toString());
+	}
+
+	/**
+	 * Sends SETUP and connects the RTP channels to the ports the receiver reported
+	 */
+	private void setup() throws Exception {
+		final HttpResponse response = request(
+			RaopRtspMethods.SETUP,
+			null,
+			null,
+			HeaderTransport,
+				"RTP/AVP/UDP;unicast;interleaved=0-1;mode=record" +
+				";control_port=" + ((InetSocketAddress)m_controlChannel.getLocalAddress()).getPort() +
+				";timing_port=" + ((InetSocketAddress)m_timingChannel.getLocalAddress()).getPort()
+		);
+		if (!response.containsHeader(HeaderTransport))
+			throw new ProtocolException("No Transport header");
+		m_session = response.getHeader(HeaderSession);
+
+		final Map<String, Integer> ports = new java.util.HashMap<String, Integer>();
+		for(final String option: response.getHeader(HeaderTransport).split(";")) {
+			final int equals = option.indexOf('=');
+			if ((equals > 0) && option.substring(0, equals).endsWith("_port"))
+				ports.put(option.substring(0, equals), Integer.valueOf(option.substring(equals + 1)));
+		}
+		if (!ports.containsKey("server_port") || !ports.containsKey("control_port") || !ports.containsKey("timing_port"))
+			throw new ProtocolException("Incomplete Transport header " + response.getHeader(HeaderTransport));
+
+		final InetAddress serverAddress = ((InetSocketAddress)m_rtspChannel.getRemoteAddress()).getAddress();
+		m_audioChannel.connect(new InetSocketAddress(serverAddress, ports.get("server_port"))).awaitUninterruptibly();
+		m_controlChannel.connect(new InetSocketAddress(serverAddress, ports.get("control_port"))).awaitUninterruptibly();
+		m_timingChannel.connect(new InetSocketAddress(serverAddress, ports.get("timing_port"))).awaitUninterruptibly();
+	}
+
+	/**
+	 * Sends RECORD, announcing the initial sequence and time stamp
+	 */
+	private void record() throws Exception {
+		request(
+			RaopRtspMethods.RECORD,
+			null,
+			null,
+			"Range", "npt=0-",
+			"RTP-Info", "seq=" + m_initialSequence + ";rtptime=" + m_initialTimeStamp
+		);
+	}
+
+	/**
+	 * Sends an RTSP request and waits for the response
+	 *
+	 * @param method RTSP method
+	 * @param contentType content type of the body, or null
+	 * @param body request body, or null
+	 * @param headers additional headers as name1, value1, name2, value2, ...
+	 * @return the response
+	 * @throws Exception if the receiver didn't respond or didn't respond with 200 OK
+	 */
+	private HttpResponse request(final HttpMethod method, final String contentType, final String body, final String... headers)
+		throws Exception
+	{
+		assert headers.length % 2 == 0;
+
+		final InetSocketAddress localAddress = (InetSocketAddress)m_rtspChannel.getLocalAddress();
+		final HttpRequest request = new DefaultHttpRequest(
+			RtspVersions.RTSP_1_0,
+			method,
+			"rtsp://" + localAddress.getAddress().getHostAddress() + "/" + m_sessionId
+		);
+		request.setHeader("CSeq", Integer.toString(++m_cseq));
+		request.setHeader("User-Agent", "AirReceiver load generator");
+		if (m_session != null)
+			request.setHeader(HeaderSession, m_session);
+		for(int i=0; i < headers.length; i += 2)
+			request.setHeader(headers[i], headers[i+1]);
+
+		if (body != null) {
+			final byte[] content = body.getBytes(Charset.forName("ASCII"));
+			request.setHeader("Content-Type", contentType);
+			request.setHeader("Content-Length", Integer.toString(content.length));
+			request.setContent(ChannelBuffers.wrappedBuffer(content));
+		}
+
+		m_rtspChannel.write(request);
+
+		final HttpResponse response = m_responses.poll(ResponseTimeoutSeconds, TimeUnit.SECONDS);
+		if (response == null)
+			throw new IOException("No response to " + method + " within " + ResponseTimeoutSeconds + " seconds");
+		if (response.getStatus().getCode() != HttpResponseStatus.OK.getCode())
+			throw new ProtocolException(method + " failed with " + response.getStatus());
+
+		s_logger.fine("Session " + m_sessionId + " received " + response.getStatus() + " for " + method);
+		return response;
+	}
+
+	/**
+	 * Binds an RTP channel to an ephemeral port
+	 *
+	 * @param handlers the channel's handlers
+	 * @return the bound but unconnected channel
+	 */
+	private Channel bindRtpChannel(final ChannelHandler... handlers) {
+		final ChannelPipeline pipeline = Channels.pipeline();
+		pipeline.addLast("exceptionLogger", new ExceptionLoggingHandler());
+		for(int i=0; i < handlers.length; ++i)
+			pipeline.addLast("handler" + i, handlers[i]);
+
+		m_rtpBootstrap.setPipeline(pipeline);
+		final Channel channel = m_rtpBootstrap.bind(new InetSocketAddress(0));
+		m_channels.add(channel);
+		return channel;
+	}
+
+	/**
+	 * Sends the next audio packet, and remembers it for retransmission
+	 */
+	private void sendAudio() {
+		final byte[] frame = m_frames[(int)(m_packetsSent % m_frames.length)];
+
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(frame.length);
+		packet.setMarker(m_packetsSent == 0);
+		packet.setSequence((int)((m_initialSequence + m_packetsSent) & 0xffff));
+		packet.setTimeStamp(getTimeStamp(m_packetsSent));
+		packet.getBuffer().setBytes(packet.getPayloadOffset(), frame);
+		encrypt(packet);
+
+		synchronized(m_history) {
+			m_history[packet.getSequence() % HistoryPackets] = packet;
+		}
+
+		m_audioChannel.write(packet);
+		++m_packetsSent;
+		m_statistics.packetsSent.incrementAndGet();
+	}
+
+	/**
+	 * Sends a sync packet announcing the time stamp of the next audio packet
+	 */
+	private void sendSync() {
+		final long timeStamp = getTimeStamp(m_packetsSent);
+
+		final RaopRtpPacket.Sync sync = new RaopRtpPacket.Sync();
+		sync.setExtension(m_packetsSent == 0);
+		sync.setSequence(7);
+		sync.setTimeStamp(timeStamp);
+		sync.setTimeStampMinusLatency((timeStamp - LatencyFrames) & 0xffffffffL);
+		sync.getTime().setDouble(getNowSecondsTime());
+
+		m_controlChannel.write(sync);
+	}
+
+	/**
+	 * Returns the retransmission of a previously sent packet
+	 *
+	 * @param sequence the packet's sequence
+	 * @return the retransmission, or null if the packet is no longer available
+	 */
+	private RaopRtpPacket.AudioRetransmit getRetransmit(final int sequence) {
+		final RaopRtpPacket.AudioTransmit packet;
+		synchronized(m_history) {
+			packet = m_history[sequence % HistoryPackets];
+		}
+		if ((packet == null) || (packet.getSequence() != sequence))
+			return null;
+
+		final int payloadLength = packet.getLength() - packet.getPayloadOffset();
+		final RaopRtpPacket.AudioRetransmit retransmit = new RaopRtpPacket.AudioRetransmit(payloadLength);
+		retransmit.setMarker(true);
+		retransmit.setSequence(sequence);
+		retransmit.setOriginalSequence(sequence);
+		retransmit.setTimeStamp(packet.getTimeStamp());
+		retransmit.setSSrc(packet.getSSrc());
+		retransmit.getBuffer().setBytes(retransmit.getPayloadOffset(), packet.getBuffer(), packet.getPayloadOffset(), payloadLength);
+		return retransmit;
+	}
+
+	/**
+	 * Encrypts the full 16-byte blocks of the packet's audio data, leaving
+	 * the trailing partial block unencrypted like iTunes does
+	 */
+	private void encrypt(final RaopRtpPacket.AudioTransmit packet) {
+		final byte[] buffer = packet.getBuffer().array();
+		final int offset = packet.getBuffer().arrayOffset() + packet.getPayloadOffset();
+		final int length = (packet.getLength() - packet.getPayloadOffset()) & ~0xf;
+
+		try {
+			m_aesCipher.init(Cipher.ENCRYPT_MODE, m_aesKey, m_aesIv);
+			m_aesCipher.doFinal(buffer, offset, length, buffer, offset);
+		}
+		catch (final Exception e) {
+			throw new RuntimeException("Unable to encrypt audio data", e);
+		}
+	}
+
+	/**
+	 * @return the RTP time stamp of the given packet
+	 */
+	private long getTimeStamp(final long packetIndex) {
+		return (m_initialTimeStamp + packetIndex * FramesPerPacket) & 0xffffffffL;
+	}
+
+	/**
+	 * @return the current NTP time in seconds
+	 */
+	private static double getNowSecondsTime() {
+		return MonotonicClock.getNowSecondsTime();
+	}
+}
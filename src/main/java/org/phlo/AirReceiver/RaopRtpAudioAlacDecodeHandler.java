@@ -22,13 +22,17 @@ import java.util.logging.*;
 
 import javax.sound.sampled.AudioFormat;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 
 import com.beatofthedrum.alacdecoder.*;
 
 /**
- * Decodes the ALAC audio data in incoming audio packets to big endian unsigned PCM.
+ * Decodes the ALAC audio data in incoming audio packets to 16-bit PCM, by default
+ * big endian unsigned. The signedness and byte order can be chosen to match the
+ * audio output line, see {@link AudioSinks#getPreferredFormat(AudioFormat)}.
+ * The decoded samples are passed on as {@link PcmBuffer}s obtained from a pool.
  * Also serves as an {@link AudioStreamInformationProvider}
  * 
  * This class assumes that ALAC requires no inter-packet state - it doesn't make
@@ -55,8 +59,9 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 
 	/**
 	 * The {@link AudioFormat} that corresponds to the output produced by the decoder
+	 * unless another one was requested
 	 */
-	private static final AudioFormat AudioOutputFormat = new AudioFormat(
+	public static final AudioFormat DefaultAudioOutputFormat = new AudioFormat(
 		44100 /* sample rate */,
 		16 /* bits per sample */,
 		2 /* number of channels */,
@@ -64,6 +69,12 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 		true /* big endian */
 	);
 
+	/**
+	 * Number of released PCM buffers kept for re-use. Should exceed
+	 * the number of packets the audio output queue holds at once
+	 */
+	private static final int PcmBufferPoolCapacity = 512;
+
 	/**
 	 * Number of samples per ALAC frame (packet).
 	 * One sample here means *two* amplitues, one
@@ -72,13 +83,36 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	private final int m_samplesPerFrame;
 	
 	/**
-	 * Decoder state
+	 * Decoder
+	 */
+	private final AlacDecoder m_alacDecoder;
+
+	/**
+	 * The {@link AudioFormat} of the decoder's output
+	 */
+	private final AudioFormat m_audioOutputFormat;
+
+	/**
+	 * Signedness and byte order of the decoder's output
 	 */
-	private final AlacFile m_alacFile;
+	private final boolean m_outputSigned;
+	private final boolean m_outputBigEndian;
+
+	/**
+	 * Scratch copy of the ALAC data, used only if the
+	 * incoming packet's buffer isn't backed by an array
+	 */
+	private byte[] m_alacBytes = new byte[0];
+
+	/**
+	 * Pool of the buffers the decoded PCM data is stored in
+	 */
+	private final PcmBufferPool m_pcmBufferPool;
 
 	/**
 	 * Creates an ALAC decoder instance from a list of format options as
-	 * they appear in the SDP session announcement.
+	 * they appear in the SDP session announcement, which produces
+	 * {@link #DefaultAudioOutputFormat}.
 	 * 
 	 * @param formatOptions list of format options
 	 * @throws ProtocolException if the format options are invalid for ALAC
@@ -86,6 +120,34 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions)
 		throws ProtocolException
 	{
+		this(formatOptions, DefaultAudioOutputFormat);
+	}
+
+	/**
+	 * Creates an ALAC decoder instance from a list of format options as
+	 * they appear in the SDP session announcement, which produces the
+	 * given output format.
+	 * 
+	 * @param formatOptions list of format options
+	 * @param audioOutputFormat output format, a signed or unsigned variant of
+	 *        {@link #DefaultAudioOutputFormat} in either byte order
+	 * @throws ProtocolException if the format options are invalid for ALAC
+	 */
+	public RaopRtpAudioAlacDecodeHandler(final String[] formatOptions, final AudioFormat audioOutputFormat)
+		throws ProtocolException
+	{
+		if (!AudioFormat.Encoding.PCM_SIGNED.equals(audioOutputFormat.getEncoding()) && !AudioFormat.Encoding.PCM_UNSIGNED.equals(audioOutputFormat.getEncoding()))
+			throw new IllegalArgumentException("Audio encoding " + audioOutputFormat.getEncoding() + " is not supported");
+		if (
+			(audioOutputFormat.getSampleSizeInBits() != DefaultAudioOutputFormat.getSampleSizeInBits()) ||
+			(audioOutputFormat.getChannels() != DefaultAudioOutputFormat.getChannels()) ||
+			(audioOutputFormat.getSampleRate() != DefaultAudioOutputFormat.getSampleRate())
+		)
+			throw new IllegalArgumentException("Audio format " + audioOutputFormat + " is not supported");
+		m_audioOutputFormat = audioOutputFormat;
+		m_outputSigned = AudioFormat.Encoding.PCM_SIGNED.equals(audioOutputFormat.getEncoding());
+		m_outputBigEndian = audioOutputFormat.isBigEndian();
+
 		m_samplesPerFrame = Integer.valueOf(formatOptions[FormatOptionSamplesPerFrame]);
 
 		/* We support only 16-bit ALAC */
@@ -98,20 +160,23 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 		if (sampleRate != 44100)
 			throw new ProtocolException("Sample rate must be 44100, but was " + sampleRate);
 
-		m_alacFile = AlacDecodeUtils.create_alac(bitsPerSample, 2);
-		m_alacFile.setinfo_max_samples_per_frame = m_samplesPerFrame;
-		m_alacFile.setinfo_7a = Integer.valueOf(formatOptions[FormatOption7a]);
-		m_alacFile.setinfo_sample_size = bitsPerSample;
-		m_alacFile.setinfo_rice_historymult = Integer.valueOf(formatOptions[FormatOptionRiceHistoryMult]);
-		m_alacFile.setinfo_rice_initialhistory = Integer.valueOf(formatOptions[FormatOptionRiceInitialHistory]);
-		m_alacFile.setinfo_rice_kmodifier = Integer.valueOf(formatOptions[FormatOptionRiceKModifier]);
-		m_alacFile.setinfo_7f = Integer.valueOf(formatOptions[FormatOption7f]);
-		m_alacFile.setinfo_80 = Integer.valueOf(formatOptions[FormatOption80]);
-		m_alacFile.setinfo_82 = Integer.valueOf(formatOptions[FormatOption82]);
-		m_alacFile.setinfo_86 = Integer.valueOf(formatOptions[FormatOption86]);
-		m_alacFile.setinfo_8a_rate = sampleRate;
-
-		s_logger.info("Created ALAC decode for options " + Arrays.toString(formatOptions));
+		try {
+			m_alacDecoder = new AlacDecoder(
+				m_samplesPerFrame,
+				bitsPerSample,
+				Integer.valueOf(formatOptions[FormatOptionRiceHistoryMult]),
+				Integer.valueOf(formatOptions[FormatOptionRiceInitialHistory]),
+				Integer.valueOf(formatOptions[FormatOptionRiceKModifier]),
+				2
+			);
+		}
+		catch (final IllegalArgumentException e) {
+			throw new ProtocolException("Invalid ALAC format options " + Arrays.toString(formatOptions) + ": " + e.getMessage());
+		}
+
+		m_pcmBufferPool = new PcmBufferPool(m_samplesPerFrame * 4, PcmBufferPoolCapacity);
+
+		s_logger.info("Created ALAC decode for options " + Arrays.toString(formatOptions) + " producing " + m_audioOutputFormat);
 	}
 
 	@Override
@@ -122,59 +187,56 @@ public class RaopRtpAudioAlacDecodeHandler extends OneToOneDecoder implements Au
 			return msg;
 
 		final RaopRtpPacket.Audio alacPacket = (RaopRtpPacket.Audio)msg;
-
-		/* The ALAC decode sometimes reads beyond the input's bounds
-		 * (but later discards the data). To alleviate, we allocate
-		 * 3 spare bytes at input buffer's end.
-		 */
-		final byte[] alacBytes = new byte[alacPacket.getPayload().capacity() + 3];
-		alacPacket.getPayload().getBytes(0, alacBytes, 0, alacPacket.getPayload().capacity());
-
-		/* Decode ALAC to PCM */
-		final int[] pcmSamples = new int[m_samplesPerFrame * 2];
-		final int pcmSamplesBytes = AlacDecodeUtils.decode_frame(m_alacFile, alacBytes, pcmSamples, m_samplesPerFrame);
-
-		/* decode_frame() returns the number of *bytes*, not samples! */
-		final int pcmSamplesLength = pcmSamplesBytes / 4;
-		final Level level = Level.FINEST;
-		if (s_logger.isLoggable(level))
-			s_logger.log(level, "Decoded " + alacBytes.length + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
-
-		/* Complain if the sender doesn't honour it's commitment */
-		if (pcmSamplesLength != m_samplesPerFrame)
-			throw new ProtocolException("Frame declared to contain " + m_samplesPerFrame + ", but contained " + pcmSamplesLength);
-
-		/* Assemble PCM audio packet from original packet header and decoded data.
-		 * The ALAC decode emits signed PCM samples as integers. We store them as
-		 * as unsigned big endian integers in the packet.
+		final ChannelBuffer alacBuffer = alacPacket.getBuffer();
+		final int alacOffset = alacPacket.getPayloadOffset();
+		final int alacLength = alacBuffer.capacity() - alacOffset;
+
+		/* Decode ALAC directly into a pooled buffer, in the output format.
+		 * Array-backed buffers (the usual case) are decoded in place, others are
+		 * copied into our scratch buffer first. The decoder treats bytes beyond
+		 * the input's end as zero, so no padding is necessary. The buffer is passed
+		 * on to the audio output queue, which releases it once the samples were
+		 * written to the line.
 		 */
-		
-		RaopRtpPacket.Audio pcmPacket;
-		if (alacPacket instanceof RaopRtpPacket.AudioTransmit) {
-			pcmPacket = new RaopRtpPacket.AudioTransmit(pcmSamplesLength * 4);
-			alacPacket.getBuffer().getBytes(0, pcmPacket.getBuffer(), 0, RaopRtpPacket.AudioTransmit.Length);
+		final PcmBuffer pcmBuffer = m_pcmBufferPool.acquire();
+		final int pcmSamplesBytes;
+		try {
+			if (alacBuffer.hasArray()) {
+				pcmSamplesBytes = m_alacDecoder.decodeFrame(alacBuffer.array(), alacBuffer.arrayOffset() + alacOffset, alacLength, pcmBuffer.getBytes(), 0, m_outputSigned, m_outputBigEndian);
+			}
+			else {
+				if (m_alacBytes.length < alacLength)
+					m_alacBytes = new byte[alacLength];
+				alacBuffer.getBytes(alacOffset, m_alacBytes, 0, alacLength);
+				pcmSamplesBytes = m_alacDecoder.decodeFrame(m_alacBytes, 0, alacLength, pcmBuffer.getBytes(), 0, m_outputSigned, m_outputBigEndian);
+			}
+
+			/* decodeFrame() returns the number of *bytes*, not samples! */
+			final int pcmSamplesLength = pcmSamplesBytes / 4;
+			final Level level = Level.FINEST;
+			if (s_logger.isLoggable(level))
+				s_logger.log(level, "Decoded " + alacLength + " bytes of ALAC audio data to " + pcmSamplesLength + " PCM samples");
+
+			/* Complain if the sender doesn't honour it's commitment */
+			if (pcmSamplesLength != m_samplesPerFrame)
+				throw new ProtocolException("Frame declared to contain " + m_samplesPerFrame + ", but contained " + pcmSamplesLength);
 		}
-		else if (alacPacket instanceof RaopRtpPacket.AudioRetransmit) {
-			pcmPacket = new RaopRtpPacket.AudioRetransmit(pcmSamplesLength * 4);
-			alacPacket.getBuffer().getBytes(0, pcmPacket.getBuffer(), 0, RaopRtpPacket.AudioRetransmit.Length);
+		catch (final Exception e) {
+			pcmBuffer.release();
+			throw e;
 		}
-		else
-			throw new ProtocolException("Packet type " + alacPacket.getClass() + " is not supported by the ALAC decoder");
 
-		for(int i=0; i < pcmSamples.length; ++i) {
-			/* Convert sample to big endian unsigned integer PCM */
-			final int pcmSampleUnsigned = pcmSamples[i] + 0x8000;
-
-			pcmPacket.getPayload().setByte(2*i, (pcmSampleUnsigned & 0xff00) >> 8);
-			pcmPacket.getPayload().setByte(2*i + 1, pcmSampleUnsigned & 0x00ff);
-		}
+		pcmBuffer.setLength(pcmSamplesBytes);
+		pcmBuffer.setFrameTime(alacPacket.getTimeStamp());
+		pcmBuffer.setSequence(alacPacket.getSequence());
+		pcmBuffer.setArrivalNanoTime(alacPacket.getArrivalNanoTime());
 
-		return pcmPacket;
+		return pcmBuffer;
 	}
 
 	@Override
 	public AudioFormat getAudioFormat() {
-		return AudioOutputFormat;
+		return m_audioOutputFormat;
 	}
 
 	@Override
@@ -14,9 +14,10 @@
  * You should have received a copy of the GNU General Public License
  * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package org.phlo.AirReceiver;
 
+import java.security.GeneralSecurityException;
+
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -33,20 +34,45 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 	 *  The AES cipher. We request no padding because RAOP/AirTunes only encrypts full
 	 * block anyway and leaves the trailing byte unencrypted
 	 */
-	private final Cipher m_aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding");
-	
+	private final Cipher m_aesCipher;
+
 	/**
-	 *  AES key */
-	private final SecretKey m_aesKey;
-	
+	 * Scratch copy of the encrypted data, used only if the
+	 * incoming packet's buffer isn't backed by an array
+	 */
+	private byte[] m_scratchBytes = new byte[0];
+
 	/**
-	 * AES initialization vector
+	 * Creates a decryption handler using the AES cipher provider
+	 * selected by {@link AirTunesCrytography#AesCipherProviderProperty}
+	 *
+	 * @param aesKey AES key
+	 * @param aesIv AES initialization vector
+	 * @throws GeneralSecurityException if the key or IV are invalid
 	 */
-	private final IvParameterSpec m_aesIv;
+	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv)
+		throws GeneralSecurityException
+	{
+		this(aesKey, aesIv, AirTunesCrytography.getAesCipherProvider());
+	}
 
-	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv) {
-		m_aesKey = aesKey;
-		m_aesIv = aesIv;
+	/**
+	 * Creates a decryption handler using the specified AES cipher provider
+	 *
+	 * @param aesKey AES key
+	 * @param aesIv AES initialization vector
+	 * @param provider AES cipher provider
+	 * @throws GeneralSecurityException if the key or IV are invalid
+	 */
+	public RaopRtpAudioDecryptionHandler(final SecretKey aesKey, final IvParameterSpec aesIv, final AirTunesCrytography.CipherProvider provider)
+		throws GeneralSecurityException
+	{
+		m_aesCipher = AirTunesCrytography.getCipher("AES/CBC/NoPadding", provider);
+
+		/* The cipher is restarted for every packet. Since doFinal() resets the
+		 * cipher to the state established by init(), we only need to init once
+		 */
+		m_aesCipher.init(Cipher.DECRYPT_MODE, aesKey, aesIv);
 	}
 
 	@Override
@@ -55,17 +81,30 @@ public class RaopRtpAudioDecryptionHandler extends OneToOneDecoder {
 	{
 		if (msg instanceof RaopRtpPacket.Audio) {
 			final RaopRtpPacket.Audio audioPacket = (RaopRtpPacket.Audio)msg;
-			final ChannelBuffer audioPayload = audioPacket.getPayload();
+			final ChannelBuffer audioBuffer = audioPacket.getBuffer();
+			final int audioOffset = audioPacket.getPayloadOffset();
+
+			/* Only whole blocks are encrypted, any trailing bytes are plain text */
+			final int encryptedLength = (audioBuffer.capacity() - audioOffset) & ~0xf;
+			if (encryptedLength == 0)
+				return msg;
 
-			/* Cipher is restarted for every packet. We simply overwrite the
-			 * encrypted data with the corresponding plain text
+			/* We simply overwrite the encrypted data with the corresponding plain
+			 * text, decrypting all blocks in one go. Array-backed buffers (the
+			 * usual case) are decrypted in place, others are copied into our
+			 * scratch buffer first.
 			 */
-			m_aesCipher.init(Cipher.DECRYPT_MODE, m_aesKey, m_aesIv);
-			for(int i=0; (i + 16) <= audioPayload.capacity(); i += 16) {
-				byte[] block = new byte[16];
-				audioPayload.getBytes(i, block);
-				block = m_aesCipher.update(block);
-				audioPayload.setBytes(i, block);
+			if (audioBuffer.hasArray()) {
+				final byte[] audioBytes = audioBuffer.array();
+				final int audioBytesOffset = audioBuffer.arrayOffset() + audioOffset;
+				m_aesCipher.doFinal(audioBytes, audioBytesOffset, encryptedLength, audioBytes, audioBytesOffset);
+			}
+			else {
+				if (m_scratchBytes.length < encryptedLength)
+					m_scratchBytes = new byte[encryptedLength];
+				audioBuffer.getBytes(audioOffset, m_scratchBytes, 0, encryptedLength);
+				m_aesCipher.doFinal(m_scratchBytes, 0, encryptedLength, m_scratchBytes, 0);
+				audioBuffer.setBytes(audioOffset, m_scratchBytes, 0, encryptedLength);
 			}
 		}
 
@@ -37,7 +37,13 @@ public class RaopRtpDecodeHandler extends OneToOneDecoder {
 			final ChannelBuffer buffer = (ChannelBuffer)msg;
 
 			try {
-				return RaopRtpPacket.decode(buffer);
+				final RaopRtpPacket packet = RaopRtpPacket.decode(buffer);
+
+				/* Remember when audio arrived, to measure the latency until playback */
+				if (packet instanceof RaopRtpPacket.Audio)
+					((RaopRtpPacket.Audio)packet).setArrivalNanoTime(System.nanoTime());
+
+				return packet;
 			}
 			catch (final InvalidPacketException e1) {
 				s_logger.warning(e1.getMessage());
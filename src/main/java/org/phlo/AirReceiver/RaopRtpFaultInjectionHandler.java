@@ -0,0 +1,182 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+
+/**
+ * Simulates an unreliable network for outgoing audio packets.
+ * <p>
+ * Drops, duplicates, reorders and delays {@link RaopRtpPacket.AudioTransmit}
+ * packets with the configured probabilities. All other packets pass unchanged.
+ * Used by {@link RaopLoadGenerator} to exercise the receiver's retransmit and
+ * reordering logic.
+ */
+public class RaopRtpFaultInjectionHandler extends SimpleChannelDownstreamHandler {
+	private final double m_lossProbability;
+	private final double m_reorderProbability;
+	private final double m_duplicateProbability;
+	private final int m_maxJitterMillis;
+
+	/**
+	 * Used to delay packets by up to {@link #m_maxJitterMillis}
+	 */
+	private final ScheduledExecutorService m_scheduler;
+
+	private final Random m_random = new Random();
+
+	/**
+	 * Packet held back to be sent after the next one
+	 */
+	private MessageEvent m_heldBack = null;
+
+	/**
+	 * Sequences of the dropped packets which weren't sent since
+	 */
+	private final boolean[] m_dropped = new boolean[0x10000];
+
+	private final AtomicLong m_droppedCount = new AtomicLong(0);
+	private final AtomicLong m_duplicatedCount = new AtomicLong(0);
+	private final AtomicLong m_reorderedCount = new AtomicLong(0);
+
+	/**
+	 * Creates a fault injector
+	 *
+	 * @param lossProbability probability of dropping a packet
+	 * @param reorderProbability probability of sending a packet after its successor
+	 * @param duplicateProbability probability of sending a packet twice
+	 * @param maxJitterMillis maximal random delay of a packet, zero to send packets immediately
+	 * @param scheduler executor used to send delayed packets
+	 */
+	public RaopRtpFaultInjectionHandler(
+		final double lossProbability,
+		final double reorderProbability,
+		final double duplicateProbability,
+		final int maxJitterMillis,
+		final ScheduledExecutorService scheduler
+	) {
+		m_lossProbability = lossProbability;
+		m_reorderProbability = reorderProbability;
+		m_duplicateProbability = duplicateProbability;
+		m_maxJitterMillis = maxJitterMillis;
+		m_scheduler = scheduler;
+	}
+
+	/**
+	 * @return number of packets dropped
+	 */
+	public long getDroppedCount() {
+		return m_droppedCount.get();
+	}
+
+	/**
+	 * @return number of packets sent twice
+	 */
+	public long getDuplicatedCount() {
+		return m_duplicatedCount.get();
+	}
+
+	/**
+	 * @return number of packets sent after their successor
+	 */
+	public long getReorderedCount() {
+		return m_reorderedCount.get();
+	}
+
+	/**
+	 * Forgets that the last packet with the given sequence was dropped,
+	 * e.g. because it was retransmitted
+	 *
+	 * @param sequence RTP sequence
+	 * @return true if the packet was dropped and not yet forgotten
+	 */
+	public synchronized boolean clearDropped(final int sequence) {
+		final boolean dropped = m_dropped[sequence & 0xffff];
+		m_dropped[sequence & 0xffff] = false;
+		return dropped;
+	}
+
+	@Override
+	public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent evt)
+		throws Exception
+	{
+		if (!(evt.getMessage() instanceof RaopRtpPacket.AudioTransmit)) {
+			super.writeRequested(ctx, evt);
+			return;
+		}
+
+		final RaopRtpPacket.AudioTransmit packet = (RaopRtpPacket.AudioTransmit)evt.getMessage();
+
+		MessageEvent heldBack = null;
+		synchronized(this) {
+			final int sequence = packet.getSequence();
+
+			if (m_random.nextDouble() < m_lossProbability) {
+				m_dropped[sequence] = true;
+				m_droppedCount.incrementAndGet();
+				evt.getFuture().setSuccess();
+				return;
+			}
+			m_dropped[sequence] = false;
+
+			/* Hold the packet back until the next one was sent */
+			if ((m_heldBack == null) && (m_random.nextDouble() < m_reorderProbability)) {
+				m_heldBack = evt;
+				m_reorderedCount.incrementAndGet();
+				return;
+			}
+
+			heldBack = m_heldBack;
+			m_heldBack = null;
+		}
+
+		send(ctx, evt);
+
+		if (m_random.nextDouble() < m_duplicateProbability) {
+			/* The encoder passes the packet's buffer on as-is, so the duplicate needs its own */
+			final RaopRtpPacket duplicate = RaopRtpPacket.decode(ChannelBuffers.copiedBuffer(packet.getBuffer()));
+			m_duplicatedCount.incrementAndGet();
+			send(ctx, new DownstreamMessageEvent(ctx.getChannel(), Channels.future(ctx.getChannel()), duplicate, evt.getRemoteAddress()));
+		}
+
+		if (heldBack != null)
+			send(ctx, heldBack);
+	}
+
+	/**
+	 * Passes a packet on, after a random delay if jitter was requested
+	 */
+	private void send(final ChannelHandlerContext ctx, final MessageEvent evt) {
+		if (m_maxJitterMillis <= 0) {
+			ctx.sendDownstream(evt);
+			return;
+		}
+
+		m_scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				ctx.sendDownstream(evt);
+			}
+		}, m_random.nextInt(m_maxJitterMillis + 1), TimeUnit.MILLISECONDS);
+	}
+}
@@ -378,6 +378,12 @@ public abstract class RaopRtpPacket extends RtpPacket {
 	 * Base class for {@link AudioTransmit} and {@link AudioRetransmit}.
 	 */
 	public static abstract class Audio extends RaopRtpPacket {
+		/**
+		 * Local time at which the packet was received, see {@link System#nanoTime()}.
+		 * Zero for packets which weren't received from the network.
+		 */
+		private long m_arrivalNanoTime = 0;
+
 		public Audio(final int length) {
 			super(length);
 		}
@@ -413,6 +419,30 @@ public abstract class RaopRtpPacket extends RtpPacket {
 		 * @return channel buffer containing audio data
 		 */
 		abstract public ChannelBuffer getPayload();
+
+		/**
+		 * Offset of the audio data inside the packet's buffer.
+		 * Allows the audio data to be accessed without creating
+		 * a slice like {@link #getPayload()} does.
+		 * @return offset of the audio data
+		 */
+		abstract public int getPayloadOffset();
+
+		/**
+		 * Gets the local time at which the packet was received
+		 * @return arrival time as returned by {@link System#nanoTime()}, or zero
+		 */
+		public long getArrivalNanoTime() {
+			return m_arrivalNanoTime;
+		}
+
+		/**
+		 * Sets the local time at which the packet was received
+		 * @param arrivalNanoTime arrival time as returned by {@link System#nanoTime()}
+		 */
+		public void setArrivalNanoTime(final long arrivalNanoTime) {
+			m_arrivalNanoTime = arrivalNanoTime;
+		}
 	}
 
 	/**
@@ -460,6 +490,11 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			return getBuffer().slice(Length, getLength() - Length);
 		}
 
+		@Override
+		public int getPayloadOffset() {
+			return Length;
+		}
+
 		@Override
 		public String toString() {
 			final StringBuilder s = new StringBuilder();
@@ -551,6 +586,11 @@ public abstract class RaopRtpPacket extends RtpPacket {
 			return getBuffer().slice(Length, getLength() - Length);
 		}
 
+		@Override
+		public int getPayloadOffset() {
+			return Length;
+		}
+
 		@Override
 		public String toString() {
 			final StringBuilder s = new StringBuilder();
@@ -17,7 +17,11 @@
 
 package org.phlo.AirReceiver;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jboss.netty.channel.Channel;
@@ -33,6 +37,16 @@ import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
  * <p>
  * Uses an {@link AudioClock} as it's time source, any thus only re-requests packets
  * which can reasonably be expected to arrive before their play back time.
+ * <p>
+ * Missing packets are scheduled on the timer wheel of a {@link MissingPacketTracker}.
+ * While packets are missing, a {@link RetransmitRequester} expires the wheel every
+ * {@link #RetransmitTickInterval} seconds, so requests go out on time even if no packets
+ * arrive, and requests for consecutive sequences are coalesced. It runs on a scheduler
+ * shared by all sessions, and only between {@link #start(Channel)} and {@link #stop()}.
+ * <p>
+ * The round-trip time of retransmit requests is measured per session, and once known
+ * determines how long to wait for a requested packet, and whether another request could
+ * still be answered before the packet's play back time.
  *
  */
 public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandler {
@@ -44,69 +58,44 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	private static final double RetransmitInFlightLimit = 128;
 	
 	/**
-	 * Maximum number of retransmit requests sent per packet
+	 * Maximum number of retransmit requests sent per packet until
+	 * the round-trip time of retransmit requests is known
 	 */
 	private static final int RetransmitAttempts = 2;
 
 	/**
-	 * Represents a missing packet
+	 * Maximum number of retransmit requests sent per packet once
+	 * the round-trip time of retransmit requests is known. The actual
+	 * number is limited by the packet's remaining play back slack.
 	 */
-	private class MissingPacket {
-		/**
-		 *  Packet's sequence number
-		 */
-		public final int sequence;
-		
-		/**
-		 * Packet must be placed on the audio output queue no later than this frame time
-		 */
-		public final long requiredUntilFrameTime;
-		
-		/**
-		 * Packet must be placed on the audio output queue no later than this seconds time
-		 */
-		public final double requiredUntilSecondsTime;
-		
-		/**
-		 * Number of retransmit requests already sent for the packet
-		 */
-		public int retransmitRequestCount = 0;
-		
-		/**
-		 * Packet expected to arrive until this seconds time. If not, a retransmit request
-		 * is sent.
-		 */
-		public double expectedUntilSecondsTime;
-
-		/**
-		 * Creates a MissingPacket instance for a given sequence, using the provided
-		 * time to compute the times at which the packet is expected.
-		 * 
-		 * @param _sequence sequence number
-		 * @param nextSecondsTime next possible play back time
-		 */
-		public MissingPacket(final int _sequence, final double nextSecondsTime) {
-			sequence = _sequence;
-			requiredUntilFrameTime = convertSequenceToFrameTime(_sequence);
-			requiredUntilSecondsTime = m_audioClock.convertFrameToSecondsTime(requiredUntilFrameTime);
-			computeExpectedUntil(nextSecondsTime);
-		}
+	private static final int RetransmitAttemptLimit = 8;
 
-		/**
-		 * Updates the state after a retransmit request has been sent.
-		 * @param nextSecondsTime next possible play back time
-		 */
-		public void sentRetransmitRequest(final double nextSecondsTime) {
-			++retransmitRequestCount;
-			computeExpectedUntil(nextSecondsTime);
-		}
+	/**
+	 * Bounds of the retransmit timeout derived from the measured round-trip time
+	 */
+	private static final double RetransmitMinTimeout = 0.01;
+	private static final double RetransmitMaxTimeout = 1.0;
 
-		/**
-		 * Updates the time until which we expect the packet to arrive.
-		 * @param nextSecondsTime next possible play back time
-		 */
-		private void computeExpectedUntil(final double nextSecondsTimee) {
-			expectedUntilSecondsTime = 0.5 * nextSecondsTimee + 0.5 * m_audioClock.convertFrameToSecondsTime(requiredUntilFrameTime);
+	/**
+	 * Number of seconds between checks for overdue packets
+	 */
+	public static final double RetransmitTickInterval = 0.005;
+
+	/**
+	 * Sends out {@link RetransmitRequest}s for overdue packets, and schedules
+	 * itself for the next tick as long as packets are missing
+	 */
+	private class RetransmitRequester implements Runnable {
+		@Override
+		public void run() {
+			synchronized(RaopRtpRetransmitRequestHandler.this) {
+				m_retransmitRequesterFuture = null;
+				if (m_channel == null)
+					return;
+
+				requestRetransmits(m_channel, m_audioClock.getNextSecondsTime());
+				scheduleRetransmitRequester();
+			}
 		}
 	}
 
@@ -133,18 +122,145 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	private long m_latestReceivedSequenceFrameTime;
 	
 	/**
-	 * List of in-flight retransmit requests
+	 * In-flight retransmit requests of this session. Holds one more than the limit,
+	 * since the oldest one is only dropped after adding a new one
+	 */
+	private final MissingPacketTracker m_missingPackets = new MissingPacketTracker((int)RetransmitInFlightLimit + 1, RetransmitTickInterval);
+
+	/**
+	 * Sequences of the overdue packets, filled by {@link MissingPacketTracker#expire(double, int[])}
+	 */
+	private final int[] m_duePackets = new int[(int)RetransmitInFlightLimit + 1];
+
+	/**
+	 * Round-trip time between sending a retransmit request and receiving the packet
+	 */
+	private final RoundTripTimeEstimator m_retransmitRoundTrip = new RoundTripTimeEstimator(
+		RetransmitTickInterval,
+		RetransmitMinTimeout,
+		RetransmitMaxTimeout
+	);
+
+	/**
+	 * Scheduler the {@link RetransmitRequester} runs on, shared by all sessions
+	 */
+	private final ScheduledExecutorService m_scheduler;
+
+	private final RetransmitRequester m_retransmitRequester = new RetransmitRequester();
+
+	/**
+	 * Audio channel the retransmit requests are sent on, null unless started
 	 */
-	private static final List<MissingPacket> m_missingPackets = new java.util.LinkedList<MissingPacket>();
+	private Channel m_channel;
+
+	/**
+	 * The next scheduled {@link RetransmitRequester} run, null while no packets are missing
+	 */
+	private ScheduledFuture<?> m_retransmitRequesterFuture;
 
 	/**
 	 * Header sequence number for retransmit requests
 	 */
 	private int m_retransmitRequestSequence = 0;
 
-	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock) {
+	/**
+	 * @param streamInfoProvider stream information provider
+	 * @param audioClock audio time source
+	 * @param scheduler scheduler used to send retransmit requests
+	 */
+	public RaopRtpRetransmitRequestHandler(final AudioStreamInformationProvider streamInfoProvider, final AudioClock audioClock, final ScheduledExecutorService scheduler) {
 		m_framesPerPacket = streamInfoProvider.getFramesPerPacket();
 		m_audioClock = audioClock;
+		m_scheduler = scheduler;
+	}
+
+	/**
+	 * Starts sending retransmit requests for missing packets
+	 *
+	 * @param audioChannel the session's audio channel, which routes the requests to the control channel
+	 */
+	public synchronized void start(final Channel audioChannel) {
+		m_channel = audioChannel;
+		scheduleRetransmitRequester();
+		s_logger.fine("Retransmit requester started");
+	}
+
+	/**
+	 * Stops sending retransmit requests
+	 */
+	public synchronized void stop() {
+		m_channel = null;
+		if (m_retransmitRequesterFuture != null) {
+			m_retransmitRequesterFuture.cancel(false);
+			m_retransmitRequesterFuture = null;
+		}
+	}
+
+	/**
+	 * Schedules the {@link RetransmitRequester} for the next tick, unless it is
+	 * already scheduled, the handler isn't started, or no packets are missing
+	 */
+	private synchronized void scheduleRetransmitRequester() {
+		if ((m_retransmitRequesterFuture != null) || (m_channel == null) || (m_missingPackets.size() == 0))
+			return;
+
+		m_retransmitRequesterFuture = m_scheduler.schedule(m_retransmitRequester, Math.round(RetransmitTickInterval * 1e6), TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Computes the time until which we expect a packet to arrive. Until the
+	 * round-trip time of retransmit requests is known, that's half-way to the
+	 * time the packet is required. Afterwards, it's one retransmit timeout
+	 * from now.
+	 * 
+	 * @param requiredUntilFrameTime frame time by which the packet must be queued
+	 * @param nextSecondsTime next possible play back time
+	 * @return seconds time until which the packet is expected
+	 */
+	private double computeExpectedUntil(final long requiredUntilFrameTime, final double nextSecondsTime) {
+		final double requiredUntilSecondsTime = m_audioClock.convertFrameToSecondsTime(requiredUntilFrameTime);
+		if (m_retransmitRoundTrip.isEmpty())
+			return 0.5 * nextSecondsTime + 0.5 * requiredUntilSecondsTime;
+		else
+			return Math.min(nextSecondsTime + m_retransmitRoundTrip.getTimeout(), requiredUntilSecondsTime);
+	}
+
+	/**
+	 * Decides whether to request a packet (again). Until the round-trip time of
+	 * retransmit requests is known, at most {@link #RetransmitAttempts} requests
+	 * are sent. Afterwards, requests are sent as long as they can be expected to
+	 * be answered before the packet is required, up to {@link #RetransmitAttemptLimit}.
+	 * 
+	 * @param sequence sequence number of packet
+	 * @param nextSecondsTime next possible play back time
+	 * @return true if another retransmit request should be sent
+	 */
+	private boolean shouldRequestRetransmit(final int sequence, final double nextSecondsTime) {
+		final int retransmitRequestCount = m_missingPackets.getRetransmitRequestCount(sequence);
+		if (m_retransmitRoundTrip.isEmpty())
+			return retransmitRequestCount < RetransmitAttempts;
+		else
+			return
+				(retransmitRequestCount < RetransmitAttemptLimit) &&
+				(nextSecondsTime + m_retransmitRoundTrip.getSmoothed() < m_missingPackets.getRequiredUntilSecondsTime(sequence));
+	}
+
+	/**
+	 * Updates the round-trip time of retransmit requests from a retransmitted
+	 * packet. Packets which were requested more than once are ignored, since it's
+	 * unknown which request was answered.
+	 * 
+	 * @param sequence sequence number of packet
+	 * @param nowSecondsTime current time
+	 */
+	private void measureRetransmitRoundTrip(final int sequence, final double nowSecondsTime) {
+		if (!m_missingPackets.contains(sequence) || (m_missingPackets.getRetransmitRequestCount(sequence) != 1))
+			return;
+
+		m_retransmitRoundTrip.add(nowSecondsTime - m_missingPackets.getRequestSecondsTime(sequence));
+
+		if (s_logger.isLoggable(Level.FINE))
+			s_logger.fine("Retransmit round-trip time is " + m_retransmitRoundTrip.getSmoothed() + " +/- " + m_retransmitRoundTrip.getDeviation() + " seconds, timeout is " + m_retransmitRoundTrip.getTimeout() + " seconds");
 	}
 
 	/**
@@ -154,14 +270,11 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 * @param sequence sequence number of packet
 	 * @param nextSecondsTime next possible play back time
 	 */
-	private void markRetransmitted(final int sequence, final double nextSecondsTimee) {
-		final Iterator<MissingPacket> i = m_missingPackets.iterator();
-		while (i.hasNext()) {
-			final MissingPacket missingPacket = i.next();
-			if (missingPacket.sequence == sequence) {
-				s_logger.fine("Packet " + sequence + " arrived " + (missingPacket.expectedUntilSecondsTime - nextSecondsTimee) + " seconds before it was due");
-				i.remove();
-			}
+	private void markRetransmitted(final int sequence, final double nextSecondsTime) {
+		if (m_missingPackets.contains(sequence)) {
+			if (s_logger.isLoggable(Level.FINE))
+				s_logger.fine("Packet " + sequence + " arrived " + (m_missingPackets.getExpectedUntilSecondsTime(sequence) - nextSecondsTime) + " seconds before it was due");
+			m_missingPackets.remove(sequence);
 		}
 	}
 
@@ -174,83 +287,101 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 	 */
 	private void markMissing(final int sequence, final double nextSecondsTime) {
 		/* Add packet to list of in-flight retransmit requests */
-		final MissingPacket missingPacket = new MissingPacket(sequence, nextSecondsTime);
-		if (missingPacket.requiredUntilSecondsTime > nextSecondsTime) {
-			s_logger.fine("Packet " + sequence + " expected to arive in " + (missingPacket.expectedUntilSecondsTime - nextSecondsTime) + " seconds");
-
-			m_missingPackets.add(missingPacket);
+		final long requiredUntilFrameTime = convertSequenceToFrameTime(sequence);
+		final double requiredUntilSecondsTime = m_audioClock.convertFrameToSecondsTime(requiredUntilFrameTime);
+		final double expectedUntilSecondsTime = computeExpectedUntil(requiredUntilFrameTime, nextSecondsTime);
+		if (requiredUntilSecondsTime > nextSecondsTime) {
+			if (s_logger.isLoggable(Level.FINE))
+				s_logger.fine("Packet " + sequence + " expected to arive in " + (expectedUntilSecondsTime - nextSecondsTime) + " seconds");
+
+			m_missingPackets.add(sequence, requiredUntilFrameTime, requiredUntilSecondsTime, expectedUntilSecondsTime);
+			scheduleRetransmitRequester();
 		}
 		else {
-			s_logger.warning("Packet " + sequence + " was required " + (nextSecondsTime - missingPacket.expectedUntilSecondsTime ) + " seconds ago, not requesting retransmit");
+			s_logger.warning("Packet " + sequence + " was required " + (nextSecondsTime - expectedUntilSecondsTime) + " seconds ago, not requesting retransmit");
 		}
 
 		/* Forget about old missing packets if we exceeded the number
 		 * of in-flight retransmit requests
 		 */
 		while (m_missingPackets.size() > RetransmitInFlightLimit) {
-			final MissingPacket m = m_missingPackets.get(0);
-			m_missingPackets.remove(0);
+			final int oldSequence = m_missingPackets.first();
+			m_missingPackets.remove(oldSequence);
 
-			s_logger.warning("Packet " + sequence + " overflowed in-flight retransmit count, giving up on old packet " + m.sequence);
+			s_logger.warning("Packet " + oldSequence + " dropped from in-flight retransmit requests to make room for packet " + sequence + ", giving up on it");
 		}
 	}
 
 	/**
-	 * Scan the list of in-flight retransmit requests and send
-	 * {@link RetransmitRequest} packets if it's past the time
-	 * at which we expected the packet to arrive
+	 * Expire the timer wheel of in-flight retransmit requests and send
+	 * {@link RetransmitRequest} packets for the packets which are overdue.
+	 * Requests for consecutive sequences are coalesced into one packet.
 	 * 
 	 * @param channel channel used to send retransmit requests
-	 * @param nextSecondsTime
+	 * @param nextSecondsTime next possible play back time
 	 */
 	private synchronized void requestRetransmits(final Channel channel, final double nextSecondsTime) {
+		final int dueCount = m_missingPackets.expire(nextSecondsTime, m_duePackets);
+		if (dueCount == 0)
+			return;
+
+		/* Requests are stamped with the current time to measure their round-trip time */
+		final double nowSecondsTime = m_audioClock.getNowSecondsTime();
+
+		/* Order the overdue packets by sequence, relative to the latest received
+		 * one to handle sequences which wrap around
+		 */
+		for(int i=0; i < dueCount; ++i)
+			m_duePackets[i] = (int)sequenceDelta(m_latestReceivedSequence, m_duePackets[i]);
+		Arrays.sort(m_duePackets, 0, dueCount);
+
 		/* The retransmit request we're currently building */
 		RaopRtpPacket.RetransmitRequest retransmitRequest = null;
 
-		/* Run through open retransmit requests */
-		final Iterator<MissingPacket> missingPacketIterator = m_missingPackets.iterator();
-		while (missingPacketIterator.hasNext()) {
-			final MissingPacket missingPacket = missingPacketIterator.next();
+		for(int i=0; i < dueCount; ++i) {
+			final int sequence = sequenceAdd(m_latestReceivedSequence, m_duePackets[i]);
+
+			final double requiredUntilSecondsTime = m_missingPackets.getRequiredUntilSecondsTime(sequence);
+			final double expectedUntilSecondsTime = m_missingPackets.getExpectedUntilSecondsTime(sequence);
+			final int retransmitRequestCount = m_missingPackets.getRetransmitRequestCount(sequence);
 
 			/* If it's past the time at which the packet would have needed to be queued,
 			 * warn and forget about it
 			 */
-			if (missingPacket.requiredUntilSecondsTime <= nextSecondsTime) {
-				s_logger.warning("Packet " + missingPacket.sequence + " was required " + (nextSecondsTime - missingPacket.requiredUntilSecondsTime) + " secons ago, giving up");
+			if (requiredUntilSecondsTime <= nextSecondsTime) {
+				s_logger.warning("Packet " + sequence + " was required " + (nextSecondsTime - requiredUntilSecondsTime) + " secons ago, giving up");
 
-				missingPacketIterator.remove();
+				m_missingPackets.remove(sequence);
 				continue;
 			}
 
-			/* If the packet isn't expected until later,
-			 * skip it for now */
-			if (missingPacket.expectedUntilSecondsTime > nextSecondsTime)
-				continue;
-
 			/* Ok, the packet is overdue */
 			
-			if (missingPacket.retransmitRequestCount >= RetransmitAttempts) {
-				/* If the packet was already requests too often,
-				 * warn and forget about it */
-				s_logger.warning("Packet " + missingPacket.sequence + " overdue " + (nextSecondsTime - missingPacket.expectedUntilSecondsTime) + " seconds after " + missingPacket.retransmitRequestCount + " retransmit requests, giving up");
+			if (!shouldRequestRetransmit(sequence, nextSecondsTime)) {
+				/* If the packet was already requests too often, or another
+				 * request couldn't be answered in time, warn and forget about it */
+				s_logger.warning("Packet " + sequence + " overdue " + (nextSecondsTime - expectedUntilSecondsTime) + " seconds after " + retransmitRequestCount + " retransmit requests, giving up");
 
-				missingPacketIterator.remove();
+				m_missingPackets.remove(sequence);
 				continue;
 			}
 			else {
-				/* Log that we're about to request retransmission */
-				final int retransmitRequestCountPrevious = missingPacket.retransmitRequestCount;
-				final double expectedUntilSecondsTimePrevious = missingPacket.expectedUntilSecondsTime;
-				missingPacket.sentRetransmitRequest(nextSecondsTime);
-
-				s_logger.fine("Packet " + missingPacket.sequence + " overdue " + (nextSecondsTime - expectedUntilSecondsTimePrevious) + " seconds after " + retransmitRequestCountPrevious + " retransmit requests, requesting again expecting response in " + (missingPacket.expectedUntilSecondsTime - nextSecondsTime) + " seconds");
+				/* Log that we're about to request retransmission, and re-schedule the packet */
+				m_missingPackets.sentRetransmitRequest(
+					sequence,
+					nowSecondsTime,
+					computeExpectedUntil(m_missingPackets.getRequiredUntilFrameTime(sequence), nextSecondsTime)
+				);
+
+				if (s_logger.isLoggable(Level.FINE))
+					s_logger.fine("Packet " + sequence + " overdue " + (nextSecondsTime - expectedUntilSecondsTime) + " seconds after " + retransmitRequestCount + " retransmit requests, requesting again expecting response in " + (m_missingPackets.getExpectedUntilSecondsTime(sequence) - nextSecondsTime) + " seconds");
 			}
 
 			/* Ok, really request re-transmission */
 			
 			if (
 				(retransmitRequest != null) &&
-				(sequenceAdd(retransmitRequest.getSequenceFirst(), retransmitRequest.getSequenceCount()) != missingPacket.sequence)
+				(sequenceAdd(retransmitRequest.getSequenceFirst(), retransmitRequest.getSequenceCount()) != sequence)
 			) {
 				/* There is a current retransmit request, but the sequence cannot be appended.
 				 * We transmit the current request and start building a new one
@@ -267,7 +398,7 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 				m_retransmitRequestSequence = sequenceSuccessor(m_retransmitRequestSequence);
 				retransmitRequest = new RaopRtpPacket.RetransmitRequest();
 				retransmitRequest.setSequence(m_retransmitRequestSequence);
-				retransmitRequest.setSequenceFirst(missingPacket.sequence);
+				retransmitRequest.setSequenceFirst(sequence);
 				retransmitRequest.setSequenceCount(1);
 			}
 			else {
@@ -292,15 +423,13 @@ public class RaopRtpRetransmitRequestHandler extends SimpleChannelUpstreamHandle
 			audioRetransmitReceived(ctx, (RaopRtpPacket.AudioRetransmit)evt.getMessage());
 
 		super.messageReceived(ctx, evt);
-
-		/* Request retransmits if necessary */
-		requestRetransmits(ctx.getChannel(), m_audioClock.getNextSecondsTime());
 	}
 
 	private synchronized void audioRetransmitReceived(final ChannelHandlerContext ctx, final RaopRtpPacket.AudioRetransmit audioPacket) {
 		final double nextSecondsTime = m_audioClock.getNextSecondsTime();
 
-		/* Mark packet as retransmitted */
+		/* Measure the round-trip time, then mark packet as retransmitted */
+		measureRetransmitRoundTrip(audioPacket.getOriginalSequence(), m_audioClock.getNowSecondsTime());
 		markRetransmitted(audioPacket.getOriginalSequence(), nextSecondsTime);
 	}
 
@@ -17,6 +17,7 @@
 
 package org.phlo.AirReceiver;
 
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 import org.jboss.netty.channel.*;
@@ -25,42 +26,82 @@ import org.jboss.netty.channel.*;
  * Handles RTP timing.
  * <p>
  * Keeps track of the offset between the local audio clock and the remote clock,
- * and uses the information to re-sync the audio output queue upon receiving a
- * sync packet.
+ * and of the rate at which it drifts, see {@link ClockOffsetEstimator}. Uses the
+ * information to re-sync the audio output queue upon receiving a sync packet.
+ * Small corrections are slewed, i.e. spread over several sync packets, so that
+ * the output doesn't jump. Large ones, and those following a flush, are applied
+ * at once.
+ * <p>
+ * Timing requests are sent from a scheduler shared by all sessions. A session
+ * starts with a quick burst of requests, after which the interval grows while
+ * the responses agree with the estimate, see {@link TimingRequestSchedule}.
  */
 public class RaopRtpTimingHandler extends SimpleChannelHandler {
 	private static Logger s_logger = Logger.getLogger(RaopRtpTimingHandler.class.getName());
 
 	/**
-	 * Number of seconds between {@link TimingRequest}s.
+	 * Shortest number of seconds between {@link TimingRequest}s after the initial burst
 	 */
 	public static final double TimeRequestInterval = 0.2;
 
 	/**
-	 * Thread which sends out {@link TimingRequests}s.
+	 * Longest number of seconds between {@link TimingRequest}s
 	 */
-	private class TimingRequester implements Runnable {
-		private final Channel m_channel;
+	public static final double MaxTimeRequestInterval = 2.0;
 
-		public TimingRequester(final Channel channel) {
-			m_channel = channel;
-		}
+	/**
+	 * Number of {@link TimingRequest}s sent at session start, and the seconds between them
+	 */
+	private static final int BurstTimeRequests = 8;
+	private static final double BurstTimeRequestInterval = 0.05;
+
+	/**
+	 * Timing responses deviating from the estimated offset by more than this many
+	 * seconds (plus what their round-trip time explains) reset the interval
+	 */
+	private static final double MaxTimingResidual = 1e-3;
 
+	/**
+	 * Number of timing responses the clock offset is estimated from, i.e.
+	 * between one and ten minutes' worth, depending on the interval
+	 */
+	private static final int TimingWindowSize = 300;
+
+	/**
+	 * Timing responses whose round-trip time exceeds the shortest one by
+	 * more than this many seconds are ignored
+	 */
+	private static final double RoundTripTolerance = 0.005;
+
+	/**
+	 * Frame time corrections larger than this many seconds are applied at once
+	 */
+	private static final double MaxSlewSeconds = 0.05;
+
+	/**
+	 * Largest frame time correction per second while slewing, i.e. 1000 ppm
+	 */
+	private static final double SlewRate = 1e-3;
+
+	/**
+	 * Sends a {@link TimingRequest} and schedules itself for the next one
+	 */
+	private class TimingRequester implements Runnable {
 		@Override
 		public void run() {
-			while (!Thread.currentThread().isInterrupted()) {
+			synchronized(RaopRtpTimingHandler.this) {
+				if (m_timingChannel == null)
+					return;
+
 				final RaopRtpPacket.TimingRequest timingRequestPacket = new RaopRtpPacket.TimingRequest();
 				timingRequestPacket.getReceivedTime().setDouble(0); /* Set by the source */
 				timingRequestPacket.getReferenceTime().setDouble(0); /* Set by the source */
 				timingRequestPacket.getSendTime().setDouble(m_audioClock.getNowSecondsTime());
 
-				m_channel.write(timingRequestPacket);
-				try {
-					Thread.sleep(Math.round(TimeRequestInterval * 1000));
-				}
-				catch (final InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
+				m_timingChannel.write(timingRequestPacket);
+
+				final double interval = m_timingRequestSchedule.requestSent();
+				m_timingRequestFuture = m_timingScheduler.schedule(this, Math.round(interval * 1e3), TimeUnit.MILLISECONDS);
 			}
 		}
 	}
@@ -71,17 +112,45 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 	private final AudioClock m_audioClock;
 	
 	/**
-	 * Exponential averager used to smooth the remote seconds offset
+	 * Estimates the remote seconds offset and its drift
 	 */
-	private final RunningExponentialAverage m_remoteSecondsOffset = new RunningExponentialAverage();
+	private final ClockOffsetEstimator m_remoteSecondsOffset = new ClockOffsetEstimator(TimingWindowSize, RoundTripTolerance);
+
+	/**
+	 * Local seconds time of the last sync packet, NaN before the first one
+	 */
+	private double m_lastSyncSecondsTime = Double.NaN;
 	
 	/**
-	 * The {@link TimingRequester} thread.
+	 * Scheduler the {@link TimingRequester} runs on, shared by all sessions
+	 */
+	private final ScheduledExecutorService m_timingScheduler;
+
+	private final TimingRequestSchedule m_timingRequestSchedule = new TimingRequestSchedule(
+		BurstTimeRequests,
+		BurstTimeRequestInterval,
+		TimeRequestInterval,
+		MaxTimeRequestInterval,
+		MaxTimingResidual
+	);
+
+	/**
+	 * Channel the timing requests are sent on, null while closed
+	 */
+	private Channel m_timingChannel;
+
+	/**
+	 * The next scheduled {@link TimingRequester} run, null while closed
 	 */
-	private Thread m_synchronizationThread;
+	private ScheduledFuture<?> m_timingRequestFuture;
 
-	public RaopRtpTimingHandler(final AudioClock audioClock) {
+	/**
+	 * @param audioClock audio time source
+	 * @param timingScheduler scheduler used to send timing requests
+	 */
+	public RaopRtpTimingHandler(final AudioClock audioClock, final ScheduledExecutorService timingScheduler) {
 		m_audioClock = audioClock;
+		m_timingScheduler = timingScheduler;
 	}
 
 	@Override
@@ -90,12 +159,11 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 	{
 		channelClosed(ctx, evt);
 
-		/* Start synchronization thread if it isn't already running */
-		if (m_synchronizationThread == null) {
-			m_synchronizationThread = new Thread(new TimingRequester(ctx.getChannel()));
-			m_synchronizationThread.setDaemon(true);
-			m_synchronizationThread.setName("Time Synchronizer");
-			m_synchronizationThread.start();
+		/* Start sending timing requests, beginning with a burst */
+		synchronized(this) {
+			m_timingChannel = ctx.getChannel();
+			m_timingRequestSchedule.reset();
+			m_timingRequestFuture = m_timingScheduler.schedule(new TimingRequester(), 0, TimeUnit.MILLISECONDS);
 			s_logger.fine("Time synchronizer started");
 		}
 
@@ -107,8 +175,11 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 		throws Exception
 	{
 		synchronized(this) {
-			if (m_synchronizationThread != null)
-				m_synchronizationThread.interrupt();
+			m_timingChannel = null;
+			if (m_timingRequestFuture != null) {
+				m_timingRequestFuture.cancel(false);
+				m_timingRequestFuture = null;
+			}
 		}
 	}
 
@@ -139,17 +210,11 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 		final double remoteSecondsOffset = remoteSecondsTime - localSecondsTime;
 
 		/*
-		 * Compute the overall transmission time, and use that to compute
-		 * a weight of the remoteSecondsOffset we just computed. The idea
-		 * here is that the quality of the estimate depends on the difference
-		 * between the transmission times of request and response. We cannot
-		 * measure those independently, but since they're obviously bound
-		 * by the total transmission time (request + response), which we
-		 * <b>can</b> measure, we can use that to judge the quality.
-		 * 
-		 * The constants are picked such that the weight is never larger than
-		 * 1e-3, and starts to decrease rapidly for transmission times significantly
-		 * larger than 1ms.
+		 * Compute the overall transmission time. The quality of the offset
+		 * depends on the difference between the transmission times of request
+		 * and response. We cannot measure those independently, but since they're
+		 * obviously bound by the total transmission time (request + response),
+		 * which we <b>can</b> measure, the estimator uses that to judge the quality.
 		 */
 		final double localInterval =
 			localReceiveSecondsTime -
@@ -158,47 +223,84 @@ public class RaopRtpTimingHandler extends SimpleChannelHandler {
 			timingResponsePacket.getSendTime().getDouble() -
 			timingResponsePacket.getReceivedTime().getDouble();
 		final double transmissionTime = Math.max(localInterval - remoteInterval, 0);
-		final double weight = 1e-6 / (transmissionTime + 1e-3);
 
-		/* Update exponential average */
-		final double remoteSecondsOffsetPrevious = (!m_remoteSecondsOffset.isEmpty() ? m_remoteSecondsOffset.get() : 0.0);
-		m_remoteSecondsOffset.add(remoteSecondsOffset, weight);
-		final double secondsTimeAdjustment = m_remoteSecondsOffset.get() - remoteSecondsOffsetPrevious;
+		/* Adapt the request interval to how well the response agrees with the estimate.
+		 * Half the transmission time's excess over the minimum may be asymmetry, which
+		 * doesn't count against the estimate
+		 */
+		if (!m_remoteSecondsOffset.isEmpty()) {
+			final double excess = transmissionTime - m_remoteSecondsOffset.getMinRoundTripTime();
+			if (excess <= RoundTripTolerance) {
+				final double residual = remoteSecondsOffset - m_remoteSecondsOffset.getOffset(localSecondsTime);
+				m_timingRequestSchedule.responseReceived(Math.max(0.0, Math.abs(residual) - 0.5 * Math.max(excess, 0.0)));
+			}
+		}
+
+		m_remoteSecondsOffset.add(localSecondsTime, remoteSecondsOffset, transmissionTime);
 
-		s_logger.finest("Timing response with weight " + weight + " indicated offset " + remoteSecondsOffset + " thereby adjusting the averaged offset by " + secondsTimeAdjustment + " leading to the new averaged offset " + m_remoteSecondsOffset.get());
+		s_logger.finest("Timing response with transmission time " + transmissionTime + " indicated offset " + remoteSecondsOffset + " leading to the new estimated offset " + m_remoteSecondsOffset.getOffset(localSecondsTime) + " and skew " + m_remoteSecondsOffset.getSkew() + ", request interval now " + m_timingRequestSchedule.getInterval() + " seconds");
 	}
 
 	private synchronized void syncReceived(final RaopRtpPacket.Sync syncPacket) {
-		if (!m_remoteSecondsOffset.isEmpty()) {
-			/* If the times are synchronized, we can correct for the transmission
-			 * time of the sync packet since it contains the time it was sent as
-			 * a source's NTP time.
+		final long frameTime = syncPacket.getTimeStampMinusLatency();
+		final double nowSecondsTime = m_audioClock.getNowSecondsTime();
+
+		if (m_remoteSecondsOffset.isEmpty()) {
+			/* If the times aren't yet synchronized, we simply assume the sync
+			 * packet's transmission time is zero.
 			 */
-			m_audioClock.setFrameTime(
-				syncPacket.getTimeStampMinusLatency(),
-				convertRemoteToLocalSecondsTime(syncPacket.getTime().getDouble())
-			);
+			m_audioClock.setFrameTime(frameTime, 0.0);
+			m_lastSyncSecondsTime = Double.NaN;
+			s_logger.warning("Times not synchronized, cannot correct latency of sync packet");
+			return;
+		}
+
+		/* If the times are synchronized, we can correct for the transmission
+		 * time of the sync packet since it contains the time it was sent as
+		 * a source's NTP time.
+		 */
+		final double secondsTime = convertRemoteToLocalSecondsTime(syncPacket.getTime().getDouble());
+		final double currentSecondsTime = m_audioClock.convertFrameToSecondsTime(frameTime);
+		final double correction = secondsTime - currentSecondsTime;
+		final double elapsedSeconds = nowSecondsTime - m_lastSyncSecondsTime;
+		m_lastSyncSecondsTime = nowSecondsTime;
+
+		if (syncPacket.getExtension() || Double.isNaN(elapsedSeconds) || (Math.abs(correction) > MaxSlewSeconds)) {
+			/* First sync packet after a flush, or too far off to slew. Step */
+			m_audioClock.setFrameTime(frameTime, secondsTime);
 		}
 		else {
-			/* If the times aren't yet synchronized, we simply assume the sync
-			 * packet's transmission time is zero.
+			/* Slew, i.e. correct by at most the slew rate. The remaining
+			 * error is corrected by the following sync packets
 			 */
-			m_audioClock.setFrameTime(
-				syncPacket.getTimeStampMinusLatency(),
-				0.0
-			);
-			s_logger.warning("Times synchronized, cannot correct latency of sync packet");
+			final double maxCorrection = SlewRate * Math.max(elapsedSeconds, 0.0);
+			final double slewedCorrection = Math.max(-maxCorrection, Math.min(maxCorrection, correction));
+			m_audioClock.setFrameTime(frameTime, currentSecondsTime + slewedCorrection);
+			s_logger.finest("Slewing frame time by " + slewedCorrection + " of " + correction + " seconds");
 		}
 	}
 
+	/**
+	 * Returns the estimated rate at which the remote clock runs faster than
+	 * the local one. The output stage may use it to correct for the drift
+	 * before it accumulates into timing errors.
+	 *
+	 * @return seconds per second, zero if unknown
+	 */
+	public synchronized double getSkew() {
+		return m_remoteSecondsOffset.getSkew();
+	}
+
 	/**
 	 * Convert remote NTP time (in seconds) to local NTP time (in seconds),
-	 * using the offset obtain from the TimingRequest/TimingResponse packets.
-	 * 
+	 * using the offset and skew obtained from the TimingRequest/TimingResponse packets.
+	 *
 	 * @param remoteSecondsTime remote NTP time
 	 * @return local NTP time
 	 */
 	private double convertRemoteToLocalSecondsTime(final double remoteSecondsTime) {
-		return remoteSecondsTime - m_remoteSecondsOffset.get();
+		/* The offset depends on the local time, so refine the estimate once */
+		final double localSecondsTime = remoteSecondsTime - m_remoteSecondsOffset.getOffset(m_audioClock.getNowSecondsTime());
+		return remoteSecondsTime - m_remoteSecondsOffset.getOffset(localSecondsTime);
 	}
 }
@@ -30,13 +30,22 @@ public class RaopRtspHeaderHandler extends SimpleChannelHandler
 	private static final String HeaderAudioJackStatus = "Audio-Jack-Status";
 	private static final String HeaderAudioJackStatusDefault = "connected; type=analog";
 
-	/*
 	private static final String HeaderAudioLatency = "Audio-Latency";
-	private static final long   HeaderAudioLatencyFrames = 88400;
-	*/
+
+	private final RaopAudioHandler m_audioHandler;
 
 	private String m_cseq;
 
+	/**
+	 * Creates an instance which advertises the latency of the session
+	 * managed by the given audio handler
+	 *
+	 * @param audioHandler handler owning the session's audio output queue
+	 */
+	public RaopRtspHeaderHandler(final RaopAudioHandler audioHandler) {
+		m_audioHandler = audioHandler;
+	}
+
 	@Override
 	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt)
 		throws Exception
@@ -61,12 +70,18 @@ public class RaopRtspHeaderHandler extends SimpleChannelHandler
 	{
 		final HttpResponse resp = (HttpResponse)evt.getMessage();
 
+		/* Computed on every response, so that the sender learns about
+		 * changes of the jitter buffer's target depth and the line's fill level
+		 */
+		final long audioLatencyFrames = m_audioHandler.getAudioLatencyFrames();
+		if (audioLatencyFrames >= 0)
+			resp.setHeader(HeaderAudioLatency, Long.toString(audioLatencyFrames));
+
 		synchronized(this) {
 			if (m_cseq != null)
 				resp.setHeader(HeaderCSeq, m_cseq);
 
 			resp.setHeader(HeaderAudioJackStatus, HeaderAudioJackStatusDefault);
-			//resp.setHeader(HeaderAudioLatency, Long.toString(HeaderAudioLatencyFrames));
 		}
 
 		super.writeRequested(ctx, evt);
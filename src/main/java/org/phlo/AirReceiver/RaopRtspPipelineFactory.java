@@ -27,6 +27,7 @@ public class RaopRtspPipelineFactory implements ChannelPipelineFactory {
 	@Override
 	public ChannelPipeline getPipeline() throws Exception {
 		final ChannelPipeline pipeline = Channels.pipeline();
+		final RaopAudioHandler audioHandler = new RaopAudioHandler(AirReceiver.ExecutorService, AirReceiver.TimingScheduler);
 
 		pipeline.addLast("executionHandler", AirReceiver.ChannelExecutionHandler);
 		pipeline.addLast("closeOnShutdownHandler", AirReceiver.CloseChannelOnShutdownHandler);
@@ -36,9 +37,9 @@ public class RaopRtspPipelineFactory implements ChannelPipelineFactory {
 		pipeline.addLast("logger", new RtspLoggingHandler());
 		pipeline.addLast("errorResponse", new RtspErrorResponseHandler());
 		pipeline.addLast("challengeResponse", new RaopRtspChallengeResponseHandler(AirReceiver.HardwareAddressBytes));
-		pipeline.addLast("header", new RaopRtspHeaderHandler());
+		pipeline.addLast("header", new RaopRtspHeaderHandler(audioHandler));
 		pipeline.addLast("options", new RaopRtspOptionsHandler());
-		pipeline.addLast("audio", new RaopAudioHandler(AirReceiver.ExecutorService));
+		pipeline.addLast("audio", audioHandler);
 		pipeline.addLast("unsupportedResponse", new RtspUnsupportedResponseHandler());
 
 		return pipeline;
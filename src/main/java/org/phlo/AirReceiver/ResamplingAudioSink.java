@@ -0,0 +1,210 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.phlo.audio.*;
+
+/**
+ * Audio sink which resamples the samples written to it and passes them on
+ * to a sink running at a different rate, e.g. to a line opened at the device's
+ * native rate of 48000 Hz. Doing so in-process avoids the conversion layers of
+ * the sound system, whose buffering and latency we have no control over.
+ * <p>
+ * The sink presents itself with the rate of the samples written to it. Its
+ * buffer size, available space and playback position are converted from the
+ * underlying sink's, and {@link #getLatency()} includes the resampler's delay.
+ */
+public class ResamplingAudioSink implements AudioSink {
+	/**
+	 * Number of frames resampled at once
+	 */
+	private static final int BlockFrames = 1024;
+
+	/**
+	 * Resampler filter length and bandwidth, see {@link PolyphaseResampler}
+	 */
+	private static final int ResamplerHalfTaps = 16;
+	private static final double ResamplerCutoff = 0.9;
+
+	private final AudioFormat m_format;
+	private final int m_bytesPerFrame;
+
+	/**
+	 * The sink the resampled samples are written to
+	 */
+	private final AudioSink m_sink;
+	private final int m_sinkBytesPerFrame;
+
+	private final PolyphaseResampler m_resampler;
+
+	/**
+	 * Samples written to this sink and to the underlying sink, and accessors
+	 * for converting them to and from {@link #m_inputBlock} and {@link #m_outputBlock}
+	 */
+	private final byte[] m_inputBytes;
+	private final byte[] m_outputBytes;
+	private final SampleIndexedAccessor m_inputAccessor;
+	private final SampleIndexedAccessor m_outputAccessor;
+
+	/**
+	 * Blocks of normalized samples before and after resampling
+	 */
+	private final SampleBuffer m_inputBlock;
+	private final SampleBuffer m_outputBlock;
+
+	/**
+	 * @param format format of the samples written to this sink
+	 * @param sink sink the samples are passed on to. Must have the same format except for the sample rate
+	 */
+	public ResamplingAudioSink(final AudioFormat format, final AudioSink sink) {
+		final AudioFormat sinkFormat = sink.getFormat();
+		if (format.getChannels() != sinkFormat.getChannels())
+			throw new IllegalArgumentException("Sink has " + sinkFormat.getChannels() + " channels, but " + format.getChannels() + " are required");
+
+		m_format = format;
+		m_bytesPerFrame = format.getFrameSize();
+		m_sink = sink;
+		m_sinkBytesPerFrame = sinkFormat.getFrameSize();
+
+		final int channels = format.getChannels();
+		m_resampler = new PolyphaseResampler(
+			channels,
+			Math.round(format.getSampleRate()),
+			Math.round(sinkFormat.getSampleRate()),
+			ResamplerHalfTaps,
+			ResamplerCutoff
+		);
+
+		final SampleDimensions inputDimensions = new SampleDimensions(channels, BlockFrames);
+		final SampleDimensions outputDimensions = new SampleDimensions(channels, m_resampler.getMaxOutputFrames(BlockFrames));
+		final SampleByteBufferFormat inputFormat = new SampleByteBufferFormat(format);
+		final SampleByteBufferFormat outputFormat = new SampleByteBufferFormat(sinkFormat);
+		m_inputBytes = new byte[BlockFrames * m_bytesPerFrame];
+		m_outputBytes = new byte[outputDimensions.samples * m_sinkBytesPerFrame];
+		m_inputAccessor = inputFormat.getAccessor(inputFormat.wrapBytes(m_inputBytes), inputDimensions);
+		m_outputAccessor = outputFormat.getAccessor(outputFormat.wrapBytes(m_outputBytes), outputDimensions);
+		m_inputBlock = new SampleBuffer(inputDimensions);
+		m_outputBlock = new SampleBuffer(outputDimensions);
+	}
+
+	/**
+	 * Converts a number of frames of the underlying sink into frames of this sink
+	 */
+	private long fromSinkFrames(final long sinkFrames) {
+		return sinkFrames * m_resampler.getInputRate() / m_resampler.getOutputRate();
+	}
+
+	@Override
+	public AudioFormat getFormat() {
+		return m_format;
+	}
+
+	@Override
+	public int getBufferSize() {
+		return (int)fromSinkFrames(m_sink.getBufferSize() / m_sinkBytesPerFrame) * m_bytesPerFrame;
+	}
+
+	@Override
+	public void start() {
+		m_sink.start();
+	}
+
+	@Override
+	public void stop() {
+		m_sink.stop();
+	}
+
+	@Override
+	public void close() {
+		m_sink.close();
+	}
+
+	@Override
+	public boolean isActive() {
+		return m_sink.isActive();
+	}
+
+	/**
+	 * One frame less than the underlying sink's space converts to, since the
+	 * resampler might produce one frame more than the ratio suggests
+	 */
+	@Override
+	public int available() {
+		final long sinkFrames = m_sink.available() / m_sinkBytesPerFrame;
+		return (int)Math.max(0, fromSinkFrames(sinkFrames) - 1) * m_bytesPerFrame;
+	}
+
+	@Override
+	public int write(final byte[] b, int off, int len) {
+		len -= len % m_bytesPerFrame;
+
+		final int channels = m_format.getChannels();
+		int written = 0;
+		while (written < len) {
+			final int inputFrames = Math.min(BlockFrames, (len - written) / m_bytesPerFrame);
+			System.arraycopy(b, off + written, m_inputBytes, 0, inputFrames * m_bytesPerFrame);
+
+			for(int c=0; c < channels; ++c) {
+				for(int s=0; s < inputFrames; ++s)
+					m_inputBlock.setSample(c, s, m_inputAccessor.getSample(c, s));
+			}
+
+			final int outputFrames = m_resampler.process(m_inputBlock, inputFrames, m_outputBlock);
+
+			for(int c=0; c < channels; ++c) {
+				for(int s=0; s < outputFrames; ++s)
+					m_outputAccessor.setSample(c, s, m_outputBlock.getSample(c, s));
+			}
+
+			final int outputLength = outputFrames * m_sinkBytesPerFrame;
+			if (m_sink.write(m_outputBytes, 0, outputLength) < outputLength)
+				break;
+
+			written += inputFrames * m_bytesPerFrame;
+		}
+
+		return written;
+	}
+
+	@Override
+	public long getLongFramePosition() {
+		return fromSinkFrames(m_sink.getLongFramePosition());
+	}
+
+	@Override
+	public double getLatency() {
+		return m_sink.getLatency() + m_resampler.getLatency();
+	}
+
+	@Override
+	public float getGain() {
+		return m_sink.getGain();
+	}
+
+	@Override
+	public void setGain(final float gain) {
+		m_sink.setGain(gain);
+	}
+
+	@Override
+	public String toString() {
+		return m_sink + " resampled from " + m_resampler.getInputRate() + " to " + m_resampler.getOutputRate() + " Hz";
+	}
+}
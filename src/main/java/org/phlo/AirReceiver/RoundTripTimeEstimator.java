@@ -0,0 +1,118 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+/**
+ * Estimates a round-trip time and derives a timeout from it.
+ * <p>
+ * Follows the retransmission timer computation of TCP (RFC 6298). The smoothed
+ * round-trip time and its mean deviation are exponential averages with weights
+ * 1/8 and 1/4, and the timeout is the smoothed round-trip time plus four
+ * deviations, at least one clock granularity. Unlike TCP's, the timeout's bounds
+ * are configurable, since audio packets are worthless after a few seconds anyway.
+ */
+public class RoundTripTimeEstimator {
+	/**
+	 * Weight of a new sample in the smoothed round-trip time
+	 */
+	private static final double SmoothedWeight = 1.0 / 8.0;
+
+	/**
+	 * Weight of a new sample in the round-trip time deviation
+	 */
+	private static final double DeviationWeight = 1.0 / 4.0;
+
+	/**
+	 * Smoothed round-trip time
+	 */
+	private final RunningExponentialAverage m_smoothed = new RunningExponentialAverage();
+
+	/**
+	 * Smoothed mean deviation of the round-trip time
+	 */
+	private final RunningExponentialAverage m_deviation = new RunningExponentialAverage();
+
+	private final double m_granularity;
+	private final double m_minTimeout;
+	private final double m_maxTimeout;
+
+	/**
+	 * Creates an estimator without samples
+	 *
+	 * @param granularity resolution of the clock used to act upon timeouts, in seconds
+	 * @param minTimeout lower bound of the timeout in seconds
+	 * @param maxTimeout upper bound of the timeout in seconds
+	 */
+	public RoundTripTimeEstimator(final double granularity, final double minTimeout, final double maxTimeout) {
+		m_granularity = granularity;
+		m_minTimeout = minTimeout;
+		m_maxTimeout = maxTimeout;
+	}
+
+	/**
+	 * Adds a round-trip time sample
+	 *
+	 * @param roundTripTime measured round-trip time in seconds
+	 */
+	public void add(final double roundTripTime) {
+		if (m_smoothed.isEmpty()) {
+			m_smoothed.add(roundTripTime, 1.0);
+			m_deviation.add(0.5 * roundTripTime, 1.0);
+		}
+		else {
+			/* The deviation is updated using the previous smoothed round-trip time */
+			m_deviation.add(Math.abs(m_smoothed.get() - roundTripTime), DeviationWeight);
+			m_smoothed.add(roundTripTime, SmoothedWeight);
+		}
+	}
+
+	/**
+	 * Returns true until {@link #add(double)} has been called at least once
+	 */
+	public boolean isEmpty() {
+		return m_smoothed.isEmpty();
+	}
+
+	/**
+	 * @return smoothed round-trip time in seconds, NaN if empty
+	 */
+	public double getSmoothed() {
+		return m_smoothed.get();
+	}
+
+	/**
+	 * @return smoothed mean deviation of the round-trip time in seconds, NaN if empty
+	 */
+	public double getDeviation() {
+		return m_deviation.get();
+	}
+
+	/**
+	 * Returns the time after which a reply should be considered lost
+	 *
+	 * @return timeout in seconds, NaN if empty
+	 */
+	public double getTimeout() {
+		if (isEmpty())
+			return Double.NaN;
+
+		final double timeout = m_smoothed.get() + Math.max(m_granularity, 4.0 * m_deviation.get());
+		return Math.min(m_maxTimeout, Math.max(m_minTimeout, timeout));
+	}
+}
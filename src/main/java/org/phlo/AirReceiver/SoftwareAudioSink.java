@@ -0,0 +1,241 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phlo.AirReceiver;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Base class for audio sinks without sound hardware.
+ * <p>
+ * Emulates a line's playback clock. In real-time mode, the playback position
+ * advances at the sample rate while the sink is started and samples are
+ * buffered, and {@link #write} blocks while the buffer is full, just like a
+ * {@link javax.sound.sampled.SourceDataLine}. Otherwise, samples are played
+ * the moment they are written, so the sink never throttles the pipeline.
+ * <p>
+ * Subclasses only pass the samples on, see {@link #output}.
+ */
+public abstract class SoftwareAudioSink implements AudioSink {
+	private static Logger s_logger = Logger.getLogger(SoftwareAudioSink.class.getName());
+
+	private final AudioFormat m_format;
+	private final int m_bufferSize;
+	private final int m_bytesPerFrame;
+	private final boolean m_realTime;
+
+	private boolean m_active = false;
+	private boolean m_closed = false;
+	/**
+	 * Set once {@link #output} failed. Guarded by {@link #m_outputLock}
+	 */
+	private boolean m_outputFailed = false;
+
+	/**
+	 * Frames written so far
+	 */
+	private long m_framesWritten = 0;
+
+	/**
+	 * Frames played so far. Fractional, since the clock advances continuously
+	 */
+	private double m_framesPlayed = 0;
+
+	/**
+	 * Time up to which {@link #m_framesPlayed} is accurate
+	 */
+	private long m_playedNanoTime = System.nanoTime();
+
+	private float m_gain = 0.0f;
+
+	/**
+	 * Serializes {@link #output} and {@link #closeOutput}. Separate from the
+	 * sink's monitor, so the clock can be queried while samples are passed on
+	 */
+	private final Object m_outputLock = new Object();
+
+	/**
+	 * @param format sample format
+	 * @param bufferSize buffer size in bytes
+	 * @param realTime true to play at the sample rate, false to play without delay
+	 */
+	protected SoftwareAudioSink(final AudioFormat format, final int bufferSize, final boolean realTime) {
+		m_format = format;
+		m_bytesPerFrame = format.getFrameSize();
+		m_bufferSize = Math.max(bufferSize - bufferSize % m_bytesPerFrame, m_bytesPerFrame);
+		m_realTime = realTime;
+	}
+
+	/**
+	 * Passes samples on to the sink's destination
+	 *
+	 * @param b sample data in the sink's format
+	 * @param off offset of the first byte
+	 * @param len number of bytes
+	 * @throws IOException if the destination failed
+	 */
+	protected abstract void output(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Releases the sink's destination
+	 *
+	 * @throws IOException if the destination failed
+	 */
+	protected abstract void closeOutput() throws IOException;
+
+	/**
+	 * Advances the playback position to the current time
+	 */
+	private void advance() {
+		final long now = System.nanoTime();
+		if (!m_realTime)
+			m_framesPlayed = m_framesWritten;
+		else if (m_active)
+			m_framesPlayed = Math.min(m_framesWritten, m_framesPlayed + (now - m_playedNanoTime) * 1e-9 * m_format.getSampleRate());
+		m_playedNanoTime = now;
+	}
+
+	/**
+	 * @return number of buffered bytes
+	 */
+	private int buffered() {
+		return (int)(m_framesWritten - (long)m_framesPlayed) * m_bytesPerFrame;
+	}
+
+	@Override
+	public AudioFormat getFormat() {
+		return m_format;
+	}
+
+	@Override
+	public int getBufferSize() {
+		return m_bufferSize;
+	}
+
+	@Override
+	public synchronized void start() {
+		advance();
+		m_active = true;
+	}
+
+	@Override
+	public synchronized void stop() {
+		advance();
+		m_active = false;
+	}
+
+	@Override
+	public void close() {
+		synchronized(this) {
+			if (m_closed)
+				return;
+			m_closed = true;
+			m_active = false;
+			notifyAll();
+		}
+
+		synchronized(m_outputLock) {
+			try {
+				closeOutput();
+			}
+			catch (final IOException e) {
+				s_logger.log(Level.WARNING, "Failed to close audio sink " + this, e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean isActive() {
+		return m_active;
+	}
+
+	@Override
+	public synchronized int available() {
+		advance();
+		return m_bufferSize - buffered();
+	}
+
+	@Override
+	public int write(final byte[] b, final int off, int len) {
+		len -= len % m_bytesPerFrame;
+
+		synchronized(m_outputLock) {
+			synchronized(this) {
+				if (m_closed)
+					return 0;
+			}
+
+			try {
+				if (!m_outputFailed)
+					output(b, off, len);
+			}
+			catch (final IOException e) {
+				/* Keep the clock running, so a lost reader doesn't stall playback */
+				s_logger.log(Level.WARNING, "Audio sink " + this + " failed, discarding samples from now on", e);
+				m_outputFailed = true;
+			}
+		}
+
+		synchronized(this) {
+			advance();
+			m_framesWritten += len / m_bytesPerFrame;
+
+			/* Block until the samples fit into the buffer, like a line does */
+			while (m_realTime && !m_closed && (buffered() > m_bufferSize)) {
+				final double waitFrames = (buffered() - m_bufferSize) / m_bytesPerFrame;
+				final long waitMillis = Math.max(1, (long)Math.ceil(1e3 * waitFrames / m_format.getSampleRate()));
+				try {
+					wait(waitMillis);
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				advance();
+			}
+		}
+
+		return len;
+	}
+
+	@Override
+	public synchronized long getLongFramePosition() {
+		advance();
+		return (long)m_framesPlayed;
+	}
+
+	@Override
+	public double getLatency() {
+		return 0.0;
+	}
+
+	/**
+	 * The gain is recorded but not applied, samples are passed on unchanged
+	 */
+	@Override
+	public synchronized float getGain() {
+		return m_gain;
+	}
+
+	@Override
+	public synchronized void setGain(final float gain) {
+		m_gain = gain;
+	}
+}
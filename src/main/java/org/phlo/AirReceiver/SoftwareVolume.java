@@ -0,0 +1,253 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Applies the output gain to 16-bit PCM samples in software.
+ * <p>
+ * The gain is applied in the same pass which converts unsigned samples
+ * to signed ones if necessary, so the samples are touched only once.
+ * Gain changes are applied as linear ramps over {@link #RampSeconds},
+ * which avoids the clicks of sudden gain jumps. Gains are looked up in a
+ * precomputed table of fixed-point factors, and the result may optionally
+ * be dithered with triangular (TPDF) noise of one LSB to mask the
+ * quantization of reduced gains. Muted samples aren't dithered.
+ * <p>
+ * The gain is set by any thread, {@link #process} must only be called by
+ * the thread which writes the samples.
+ */
+public class SoftwareVolume {
+	/**
+	 * System property enabling TPDF dither, either {@code true} or {@code false}
+	 */
+	public static final String DitherProperty = "org.phlo.AirReceiver.softwareVolumeDither";
+
+	/**
+	 * Duration of the ramp between two gains
+	 */
+	public static final double RampSeconds = 0.01;
+
+	/**
+	 * Gains below this are treated as mute. AirPlay clients send -144 dB to mute
+	 */
+	public static final float MinGain = -96.0f;
+
+	/**
+	 * Resolution of the gain table in dB
+	 */
+	private static final float GainTableStep = 0.05f;
+
+	/**
+	 * Number of fractional bits of the fixed-point gain factors
+	 */
+	private static final int GainFractionBits = 30;
+
+	private static final int UnityGainFactor = 1 << GainFractionBits;
+
+	/**
+	 * Fixed-point gain factors for gains from 0 dB down to {@link #MinGain}
+	 * in steps of {@link #GainTableStep}
+	 */
+	private static final int[] s_gainTable = new int[Math.round(-MinGain / GainTableStep) + 1];
+	static {
+		for(int i=0; i < s_gainTable.length; ++i)
+			s_gainTable[i] = (int)Math.round(UnityGainFactor * Math.pow(10.0, -i * GainTableStep / 20.0));
+	}
+
+	/**
+	 * Returns the fixed-point factor for a gain, bounded to at most 0 dB
+	 *
+	 * @param gain gain in dB
+	 * @return gain factor, {@link #UnityGainFactor} corresponding to 0 dB
+	 */
+	static int getGainFactor(final float gain) {
+		if (gain >= 0.0f)
+			return UnityGainFactor;
+		else if (gain < MinGain)
+			return 0;
+		else
+			return s_gainTable[Math.round(-gain / GainTableStep)];
+	}
+
+	/**
+	 * Bytes per frame, and the offset of the sample's high and low byte
+	 */
+	private final int m_bytesPerFrame;
+	private final int m_highByte;
+	private final int m_lowByte;
+
+	/**
+	 * True if the samples are unsigned and must be converted to signed ones
+	 */
+	private final boolean m_convertUnsignedToSigned;
+
+	private final boolean m_dither;
+
+	/**
+	 * Length of a ramp in frames
+	 */
+	private final int m_rampFrames;
+
+	/**
+	 * Requested gain in dB
+	 */
+	private volatile float m_requestedGain = 0.0f;
+
+	/**
+	 * Gain in dB the current ramp leads to
+	 */
+	private float m_targetGain = 0.0f;
+
+	/**
+	 * Current and target fixed-point gain factor, the per-frame
+	 * change of the factor and the frames left in the ramp
+	 */
+	private int m_gainFactor = UnityGainFactor;
+	private int m_targetGainFactor = UnityGainFactor;
+	private int m_gainFactorStep = 0;
+	private int m_rampFramesRemaining = 0;
+
+	/**
+	 * State of the xorshift generator producing the dither
+	 */
+	private int m_random = 0x2545f491;
+
+	/**
+	 * Creates a software volume for samples in the given format
+	 *
+	 * @param format format of the samples, must use 16-bit PCM samples
+	 * @param convertUnsignedToSigned true to convert unsigned samples to signed ones
+	 * @param dither true to apply TPDF dither to samples whose gain is reduced
+	 */
+	public SoftwareVolume(final AudioFormat format, final boolean convertUnsignedToSigned, final boolean dither) {
+		if (format.getSampleSizeInBits() != 16)
+			throw new IllegalArgumentException("Sample size " + format.getSampleSizeInBits() + " is not supported, must be 16 bits");
+
+		m_bytesPerFrame = format.getChannels() * 2;
+		m_highByte = format.isBigEndian() ? 0 : 1;
+		m_lowByte = 1 - m_highByte;
+		m_convertUnsignedToSigned = convertUnsignedToSigned;
+		m_dither = dither;
+		m_rampFrames = Math.max(1, (int)Math.round(format.getSampleRate() * RampSeconds));
+	}
+
+	/**
+	 * Creates a software volume for samples in the given format, with dither
+	 * enabled by {@link #DitherProperty}
+	 *
+	 * @param format format of the samples, must use 16-bit PCM samples
+	 * @param convertUnsignedToSigned true to convert unsigned samples to signed ones
+	 */
+	public SoftwareVolume(final AudioFormat format, final boolean convertUnsignedToSigned) {
+		this(format, convertUnsignedToSigned, "true".equalsIgnoreCase(System.getProperty(DitherProperty)));
+	}
+
+	/**
+	 * Sets the gain. Samples processed from now on ramp to the new gain
+	 *
+	 * @param gain gain in dB
+	 */
+	public void setGain(final float gain) {
+		m_requestedGain = gain;
+	}
+
+	/**
+	 * @return the requested gain in dB
+	 */
+	public float getGain() {
+		return m_requestedGain;
+	}
+
+	/**
+	 * Applies the gain to the range [off,off+len) of the provided sample data
+	 * in place, converting unsigned samples to signed ones if necessary.
+	 *
+	 * @param samples sample data
+	 * @param off sample data offset
+	 * @param len sample data length, a multiple of the frame size
+	 */
+	public void process(final byte[] samples, final int off, final int len) {
+		/* Start a ramp if the requested gain changed */
+		final float requestedGain = m_requestedGain;
+		if (requestedGain != m_targetGain) {
+			m_targetGain = requestedGain;
+			m_targetGainFactor = getGainFactor(requestedGain);
+			m_gainFactorStep = (int)(((long)m_targetGainFactor - m_gainFactor) / m_rampFrames);
+			m_rampFramesRemaining = m_rampFrames;
+		}
+
+		/* At unity gain, only convert samples if necessary. Note that this only affects the high bytes */
+		if ((m_rampFramesRemaining == 0) && (m_gainFactor == UnityGainFactor)) {
+			if (m_convertUnsignedToSigned) {
+				for(int i = off + m_highByte; i < off + len; i += 2)
+					samples[i] = (byte)((samples[i] & 0xff) - 0x80);
+			}
+			return;
+		}
+
+		/* Keep the state in locals while looping, and store it afterwards */
+		final int highByte = m_highByte;
+		final int lowByte = m_lowByte;
+		final int bytesPerFrame = m_bytesPerFrame;
+		final int signOffset = m_convertUnsignedToSigned ? 0x8000 : 0;
+		final long roundingOffset = 1L << (GainFractionBits - 1);
+		int gainFactor = m_gainFactor;
+		int rampFramesRemaining = m_rampFramesRemaining;
+		for(int frame = off; frame < off + len; frame += bytesPerFrame) {
+			/* Advance the ramp once per frame, so all channels get the same gain */
+			if (rampFramesRemaining > 0)
+				gainFactor = (--rampFramesRemaining > 0) ? gainFactor + m_gainFactorStep : m_targetGainFactor;
+			final boolean dither = m_dither && (gainFactor != 0);
+
+			for(int i = frame; i < frame + bytesPerFrame; i += 2) {
+				final int sample = (short)((((samples[i + highByte] & 0xff) << 8) | (samples[i + lowByte] & 0xff)) - signOffset);
+
+				long scaled = (long)sample * gainFactor + roundingOffset;
+				if (dither) {
+					/* Sum of two uniform values of up to one LSB each */
+					scaled += (long)nextRandom() + nextRandom() - UnityGainFactor;
+				}
+				int result = (int)(scaled >> GainFractionBits);
+				if (result > Short.MAX_VALUE)
+					result = Short.MAX_VALUE;
+				else if (result < Short.MIN_VALUE)
+					result = Short.MIN_VALUE;
+
+				samples[i + highByte] = (byte)(result >> 8);
+				samples[i + lowByte] = (byte)result;
+			}
+		}
+		m_gainFactor = gainFactor;
+		m_rampFramesRemaining = rampFramesRemaining;
+	}
+
+	/**
+	 * @return a pseudo-random value in [0, {@link #UnityGainFactor})
+	 */
+	private int nextRandom() {
+		int random = m_random;
+		random ^= random << 13;
+		random ^= random >>> 17;
+		random ^= random << 5;
+		m_random = random;
+		return random >>> (32 - GainFractionBits);
+	}
+}
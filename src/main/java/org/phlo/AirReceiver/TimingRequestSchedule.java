@@ -0,0 +1,121 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+/**
+ * Decides when to send the next timing request.
+ * <p>
+ * A session starts with a quick burst of requests, so the clock offset is
+ * known before the first packets are played. Afterwards, the interval starts
+ * at a minimum and grows geometrically up to a maximum as long as responses
+ * agree with the estimate. A response which doesn't resets it to the minimum.
+ */
+public class TimingRequestSchedule {
+	/**
+	 * Factor by which the interval grows per agreeing response
+	 */
+	private static final double BackOffFactor = 2.0;
+
+	private final int m_burstRequests;
+	private final double m_burstInterval;
+	private final double m_minInterval;
+	private final double m_maxInterval;
+	private final double m_maxResidual;
+
+	/**
+	 * Number of requests of the burst still to be sent
+	 */
+	private int m_burstRemaining;
+
+	/**
+	 * Interval after the burst
+	 */
+	private double m_interval;
+
+	/**
+	 * Creates a schedule, starting with a burst
+	 *
+	 * @param burstRequests number of requests sent at session start
+	 * @param burstInterval seconds between the requests of the burst
+	 * @param minInterval shortest number of seconds between requests after the burst
+	 * @param maxInterval longest number of seconds between requests
+	 * @param maxResidual largest deviation of a response from the estimate in seconds
+	 *        for which the interval still grows
+	 */
+	public TimingRequestSchedule(final int burstRequests, final double burstInterval, final double minInterval, final double maxInterval, final double maxResidual) {
+		m_burstRequests = burstRequests;
+		m_burstInterval = burstInterval;
+		m_minInterval = minInterval;
+		m_maxInterval = maxInterval;
+		m_maxResidual = maxResidual;
+		reset();
+	}
+
+	/**
+	 * Restarts with a burst, e.g. for a new session
+	 */
+	public synchronized void reset() {
+		m_burstRemaining = m_burstRequests;
+		m_interval = m_minInterval;
+	}
+
+	/**
+	 * Records that a request was sent and returns when to send the next one
+	 *
+	 * @return seconds until the next request
+	 */
+	public synchronized double requestSent() {
+		if (m_burstRemaining > 0) {
+			--m_burstRemaining;
+			if (m_burstRemaining > 0)
+				return m_burstInterval;
+		}
+		return m_interval;
+	}
+
+	/**
+	 * Records a response's deviation from the estimate and adapts the interval.
+	 * Responses to the burst are ignored, the estimate is still converging then.
+	 *
+	 * @param residual deviation of the offset indicated by a response from the
+	 *        estimated one, in seconds, less what the response's delay explains
+	 */
+	public synchronized void responseReceived(final double residual) {
+		if (m_burstRemaining > 0)
+			return;
+
+		if (Math.abs(residual) > m_maxResidual)
+			m_interval = m_minInterval;
+		else
+			m_interval = Math.min(m_maxInterval, m_interval * BackOffFactor);
+	}
+
+	/**
+	 * @return seconds between requests after the burst
+	 */
+	public synchronized double getInterval() {
+		return m_interval;
+	}
+
+	/**
+	 * @return true while the burst is being sent
+	 */
+	public synchronized boolean isBursting() {
+		return m_burstRemaining > 0;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phlo.AirReceiver;
+
+import java.io.*;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Audio sink which records the samples into a WAV file. The file's header
+ * is completed once the sink is closed.
+ */
+public class WavFileAudioSink extends SoftwareAudioSink {
+	private static final int HeaderSize = 44;
+
+	private final File m_file;
+	private final RandomAccessFile m_output;
+
+	/**
+	 * Bytes per sample of a single channel
+	 */
+	private final int m_bytesPerSample;
+
+	/**
+	 * True if the samples must be converted from big to little endian
+	 */
+	private final boolean m_swapBytes;
+
+	/**
+	 * True if the sign of the samples must be flipped. WAV stores
+	 * 8-bit samples unsigned, and larger samples signed.
+	 */
+	private final boolean m_flipSign;
+
+	/**
+	 * Samples converted to the WAV format
+	 */
+	private byte[] m_scratch = new byte[0];
+
+	private long m_dataSize = 0;
+
+	/**
+	 * Creates the file and writes a preliminary header
+	 *
+	 * @param format sample format
+	 * @param bufferSize buffer size in bytes
+	 * @param realTime true to consume samples at the sample rate, false to write them immediately
+	 * @param file the file to create
+	 * @throws IOException if the file cannot be created
+	 */
+	public WavFileAudioSink(final AudioFormat format, final int bufferSize, final boolean realTime, final File file)
+		throws IOException
+	{
+		super(format, bufferSize, realTime);
+
+		if (format.getSampleSizeInBits() % 8 != 0)
+			throw new IOException("Sample size " + format.getSampleSizeInBits() + " is not supported");
+
+		m_file = file;
+		m_bytesPerSample = format.getSampleSizeInBits() / 8;
+		m_swapBytes = format.isBigEndian() && (m_bytesPerSample > 1);
+		m_flipSign = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) == (m_bytesPerSample == 1);
+
+		m_output = new RandomAccessFile(file, "rw");
+		m_output.setLength(0);
+		writeHeader();
+	}
+
+	/**
+	 * Writes the RIFF header for the data written so far
+	 */
+	private void writeHeader() throws IOException {
+		final AudioFormat format = getFormat();
+		final int blockAlign = format.getChannels() * m_bytesPerSample;
+
+		m_output.seek(0);
+		m_output.writeBytes("RIFF");
+		writeLittleEndian(HeaderSize - 8 + m_dataSize, 4);
+		m_output.writeBytes("WAVE");
+		m_output.writeBytes("fmt ");
+		writeLittleEndian(16, 4);
+		writeLittleEndian(1 /* PCM */, 2);
+		writeLittleEndian(format.getChannels(), 2);
+		writeLittleEndian(Math.round(format.getSampleRate()), 4);
+		writeLittleEndian(Math.round(format.getSampleRate()) * blockAlign, 4);
+		writeLittleEndian(blockAlign, 2);
+		writeLittleEndian(format.getSampleSizeInBits(), 2);
+		m_output.writeBytes("data");
+		writeLittleEndian(m_dataSize, 4);
+	}
+
+	private void writeLittleEndian(final long value, final int bytes) throws IOException {
+		for(int i=0; i < bytes; ++i)
+			m_output.write((int)(value >>> (8 * i)) & 0xff);
+	}
+
+	@Override
+	protected void output(final byte[] b, final int off, final int len) throws IOException {
+		if (m_scratch.length < len)
+			m_scratch = new byte[len];
+
+		/* Convert each sample to little endian, and flip the sign bit if necessary */
+		for(int s=0; s < len; s += m_bytesPerSample) {
+			for(int i=0; i < m_bytesPerSample; ++i)
+				m_scratch[s + i] = b[off + s + (m_swapBytes ? m_bytesPerSample - 1 - i : i)];
+			if (m_flipSign)
+				m_scratch[s + m_bytesPerSample - 1] ^= (byte)0x80;
+		}
+
+		m_output.seek(HeaderSize + m_dataSize);
+		m_output.write(m_scratch, 0, len);
+		m_dataSize += len;
+	}
+
+	@Override
+	protected void closeOutput() throws IOException {
+		try {
+			writeHeader();
+		}
+		finally {
+			m_output.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "wav:" + m_file;
+	}
+}
@@ -8,4 +8,17 @@ public final class Functions {
 	public static float sinc(float x) {
 		return (float)Math.sin(x) / x;
 	}
+
+	/**
+	 * Zeroth order modified bessel function of the first kind, used for Kaiser windows
+	 */
+	public static double besselI0(final double x) {
+		double sum = 1.0;
+		double term = 1.0;
+		for(int k=1; term > 1e-12 * sum; ++k) {
+			term *= (x / (2.0 * k)) * (x / (2.0 * k));
+			sum += term;
+		}
+		return sum;
+	}
 }
@@ -0,0 +1,99 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.audio;
+
+/**
+ * Derives a playback rate from the measured timing error of a stream.
+ * <p>
+ * A proportional-integral controller. The proportional term corrects the
+ * current timing error, the integral term converges towards the drift between
+ * the clocks the samples and the output are timed by. The rate deviates from
+ * the nominal rate by at most the given maximum, so that a resampler can slew
+ * it inaudibly. The integral term is bounded by the same maximum, which avoids
+ * wind-up while the deviation is saturated.
+ */
+public final class PlaybackRateController {
+	private final double m_maxDeviation;
+	private final double m_proportionalGain;
+	private final double m_integralGain;
+
+	/**
+	 * Integral term, as a rate deviation
+	 */
+	private double m_integral = 0.0;
+
+	/**
+	 * Current ratio of input to output frames
+	 */
+	private double m_ratio = 1.0;
+
+	/**
+	 * Creates a controller
+	 *
+	 * @param maxDeviation largest deviation of the ratio from one, e.g. 0.001 for 0.1%
+	 * @param proportionalGain rate deviation per second of timing error
+	 * @param integralGain rate deviation per second of timing error and second of time
+	 */
+	public PlaybackRateController(final double maxDeviation, final double proportionalGain, final double integralGain) {
+		m_maxDeviation = maxDeviation;
+		m_proportionalGain = proportionalGain;
+		m_integralGain = integralGain;
+	}
+
+	/**
+	 * Updates the ratio
+	 *
+	 * @param errorSeconds time by which the samples are due after the output's end.
+	 *        Positive errors lower the ratio, i.e. stretch the output
+	 * @param elapsedSeconds time since the last update
+	 * @return the ratio of input frames to output frames
+	 */
+	public double update(final double errorSeconds, final double elapsedSeconds) {
+		m_integral = clamp(m_integral + m_integralGain * errorSeconds * elapsedSeconds);
+		m_ratio = 1.0 - clamp(m_proportionalGain * errorSeconds + m_integral);
+		return m_ratio;
+	}
+
+	/**
+	 * @return the ratio of input frames to output frames
+	 */
+	public double getRatio() {
+		return m_ratio;
+	}
+
+	/**
+	 * @return the amount by which the ratio is lowered to compensate
+	 *         the clock drift, as estimated by the integral term
+	 */
+	public double getDrift() {
+		return m_integral;
+	}
+
+	/**
+	 * Restores the nominal rate and forgets the past errors
+	 */
+	public void reset() {
+		m_integral = 0.0;
+		m_ratio = 1.0;
+	}
+
+	private double clamp(final double deviation) {
+		return Math.max(-m_maxDeviation, Math.min(m_maxDeviation, deviation));
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.audio;
+
+import java.util.Arrays;
+
+/**
+ * Band-limited resampler with a fixed rational ratio, e.g. from 44100 Hz to 48000 Hz.
+ * <p>
+ * Conceptually, the input is upsampled by {@link #getInterpolation()}, low-pass
+ * filtered and decimated by {@link #getDecimation()}. Only the filter phases
+ * which contribute to an output frame are evaluated, and since the ratio is exact,
+ * each phase's coefficients are precomputed. No interpolation between phases is
+ * needed, unlike for {@link SincResampler}.
+ * <p>
+ * Works on blocks of normalized float samples, see {@link SampleIndexedAccessor}.
+ * The resampler streams, i.e. it keeps the input frames the next output frames
+ * still depend on, which delays the output by {@link #getLatency()}. It allocates
+ * nothing after construction and is not thread-safe.
+ */
+public final class PolyphaseResampler {
+	/**
+	 * Kaiser window shape parameter, see {@link SincResampler}
+	 */
+	private static final double KaiserBeta = 8.0;
+
+	/**
+	 * Largest supported interpolation factor, which limits the size of the filter table
+	 */
+	public static final int MaxInterpolation = 4096;
+
+	private final int m_channels;
+	private final int m_inputRate;
+	private final int m_outputRate;
+
+	/**
+	 * Interpolation and decimation factor
+	 */
+	private final int m_interpolation;
+	private final int m_decimation;
+
+	/**
+	 * Number of input frames on either side of an output frame's position
+	 */
+	private final int m_halfTaps;
+
+	private final int m_taps;
+
+	/**
+	 * Filter coefficients, {@link #m_taps} per phase, ordered from the oldest
+	 * to the newest input frame
+	 */
+	private final float[] m_filter;
+
+	/**
+	 * Last {@link #m_taps} input frames per channel, stored twice so that
+	 * they can be read in one piece starting at {@link #m_historyStart}
+	 */
+	private final float[][] m_history;
+
+	private int m_historyStart;
+
+	/**
+	 * Filter phase of the next output frame. Output frames are produced
+	 * while it is smaller than the interpolation factor
+	 */
+	private int m_phase;
+
+	/**
+	 * Creates a resampler
+	 *
+	 * @param channels number of channels
+	 * @param inputRate input sample rate
+	 * @param outputRate output sample rate
+	 * @param halfTaps number of input frames on either side of an output frame which it
+	 *        depends on. Increased when downsampling, to keep the transition band's width
+	 * @param cutoff cutoff frequency relative to the lower one of the two nyquist frequencies, in (0, 1]
+	 */
+	public PolyphaseResampler(final int channels, final int inputRate, final int outputRate, final int halfTaps, final double cutoff) {
+		if ((channels <= 0) || (inputRate <= 0) || (outputRate <= 0) || (halfTaps <= 0))
+			throw new IllegalArgumentException("Channels, sample rates and taps must be positive");
+		if ((cutoff <= 0.0) || (cutoff > 1.0))
+			throw new IllegalArgumentException("Cutoff must be in (0, 1], but was " + cutoff);
+
+		final int divisor = gcd(inputRate, outputRate);
+		m_channels = channels;
+		m_inputRate = inputRate;
+		m_outputRate = outputRate;
+		m_interpolation = outputRate / divisor;
+		m_decimation = inputRate / divisor;
+		if (m_interpolation > MaxInterpolation)
+			throw new IllegalArgumentException("Resampling from " + inputRate + " to " + outputRate + " requires an interpolation factor of " + m_interpolation + ", at most " + MaxInterpolation + " are supported");
+
+		/* When downsampling, the filter's cutoff is below the input's nyquist frequency */
+		final double scale = Math.min(1.0, (double)outputRate / inputRate);
+		m_halfTaps = (int)Math.ceil(halfTaps / scale);
+		m_taps = 2 * m_halfTaps;
+		m_history = new float[channels][2 * m_taps];
+
+		/* Tap i of phase p weights the input frame i - (taps - 1) relative to the newest one.
+		 * The output frame lies at p / interpolation - halfTaps relative to that one,
+		 * i.e. at distance p / interpolation + (taps - 1 - i) - halfTaps from tap i. Each
+		 * phase is normalized to unity gain at DC
+		 */
+		m_filter = new float[m_interpolation * m_taps];
+		final double bandwidth = cutoff * scale;
+		final double windowNormalization = Functions.besselI0(KaiserBeta);
+		final double[] phase = new double[m_taps];
+		for(int p=0; p < m_interpolation; ++p) {
+			double sum = 0.0;
+			for(int i=0; i < m_taps; ++i) {
+				final double distance = (double)p / m_interpolation + (m_taps - 1 - i) - m_halfTaps;
+				final double relative = distance / m_halfTaps;
+				phase[i] = 0.0;
+				if (Math.abs(relative) >= 1.0)
+					continue;
+				final double lowPass = (distance == 0.0) ? 1.0 : Functions.sinc(Math.PI * bandwidth * distance);
+				final double window = Functions.besselI0(KaiserBeta * Math.sqrt(1.0 - relative * relative)) / windowNormalization;
+				phase[i] = lowPass * window;
+				sum += phase[i];
+			}
+			for(int i=0; i < m_taps; ++i)
+				m_filter[p * m_taps + i] = (float)(phase[i] / sum);
+		}
+
+		reset();
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			final int r = a % b;
+			a = b;
+			b = r;
+		}
+		return a;
+	}
+
+	/**
+	 * Discards the buffered input, as if the resampler was just created
+	 */
+	public void reset() {
+		for(final float[] history: m_history)
+			Arrays.fill(history, 0.0f);
+		m_historyStart = 0;
+		m_phase = 0;
+	}
+
+	public int getInputRate() {
+		return m_inputRate;
+	}
+
+	public int getOutputRate() {
+		return m_outputRate;
+	}
+
+	/**
+	 * @return the factor the input is conceptually upsampled by
+	 */
+	public int getInterpolation() {
+		return m_interpolation;
+	}
+
+	/**
+	 * @return the factor the upsampled input is conceptually downsampled by
+	 */
+	public int getDecimation() {
+		return m_decimation;
+	}
+
+	/**
+	 * @return the number of input frames each output frame depends on
+	 */
+	public int getTaps() {
+		return m_taps;
+	}
+
+	/**
+	 * Returns the delay added by the resampler. Output frame n corresponds to
+	 * the input at frame {@code n * inputRate / outputRate} minus this delay.
+	 *
+	 * @return delay in seconds
+	 */
+	public double getLatency() {
+		return (double)m_halfTaps / m_inputRate;
+	}
+
+	/**
+	 * Returns an upper bound for the number of output frames produced
+	 * by {@link #process} from the given number of input frames
+	 *
+	 * @param inputFrames number of input frames
+	 * @return maximal number of output frames
+	 */
+	public int getMaxOutputFrames(final int inputFrames) {
+		return (int)(((long)inputFrames * m_interpolation + m_decimation - 1) / m_decimation) + 1;
+	}
+
+	/**
+	 * Resamples a block of frames
+	 *
+	 * @param input input samples
+	 * @param inputFrames number of input frames, starting with the first one
+	 * @param output output samples. Must have room for {@link #getMaxOutputFrames(int)} frames
+	 * @return number of output frames written, starting with the first one
+	 */
+	public int process(final SampleIndexedAccessor input, final int inputFrames, final SampleIndexedAccessor output) {
+		input.getDimensions().assertContains(m_channels, inputFrames);
+		output.getDimensions().assertContains(m_channels, getMaxOutputFrames(inputFrames));
+
+		final int channels = m_channels;
+		final int taps = m_taps;
+		final int interpolation = m_interpolation;
+		final int decimation = m_decimation;
+		final float[] filter = m_filter;
+		final float[][] history = m_history;
+
+		int start = m_historyStart;
+		int phase = m_phase;
+		int outputFrames = 0;
+		for(int s=0; s < inputFrames; ++s) {
+			/* Append the input frame */
+			for(int c=0; c < channels; ++c) {
+				final float sample = input.getSample(c, s);
+				history[c][start] = sample;
+				history[c][start + taps] = sample;
+			}
+			if (++start == taps)
+				start = 0;
+
+			/* Produce the output frames which lie before the next input frame */
+			for(; phase < interpolation; phase += decimation) {
+				final int row = phase * taps;
+				for(int c=0; c < channels; ++c) {
+					final float[] channelHistory = history[c];
+					float sum = 0.0f;
+					for(int i=0; i < taps; ++i)
+						sum += filter[row + i] * channelHistory[start + i];
+					output.setSample(c, outputFrames, sum);
+				}
+				++outputFrames;
+			}
+			phase -= interpolation;
+		}
+		m_historyStart = start;
+		m_phase = phase;
+
+		return outputFrames;
+	}
+}
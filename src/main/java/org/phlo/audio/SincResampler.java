@@ -0,0 +1,260 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.audio;
+
+/**
+ * Band-limited resampler with a variable ratio, for interleaved 16-bit samples.
+ * <p>
+ * Each output frame is interpolated from {@link #getTaps()} input frames around
+ * its (fractional) input position, weighted by a Kaiser-windowed sinc. The filter
+ * is precomputed for a fixed number of phases per input frame, and coefficients
+ * for positions between two phases are linearly interpolated. Changing the ratio
+ * only changes the distance between consecutive output positions, so the output
+ * stays continuous while the ratio is slewed.
+ * <p>
+ * The resampler streams, i.e. it keeps the input frames the next output frames
+ * still depend on. This delays the output by about half the filter length. It
+ * allocates nothing after construction and is not thread-safe.
+ */
+public final class SincResampler {
+	/**
+	 * Kaiser window shape parameter, trading the stop band attenuation (about 80 dB)
+	 * against the width of the transition band
+	 */
+	private static final double KaiserBeta = 8.0;
+
+	private final int m_channels;
+
+	/**
+	 * Number of input frames on either side of an output frame's position
+	 */
+	private final int m_halfTaps;
+
+	private final int m_taps;
+
+	/**
+	 * Number of precomputed filter phases per input frame
+	 */
+	private final int m_phases;
+
+	/**
+	 * Filter coefficients, {@link #m_taps} per phase for phases 0 to {@link #m_phases},
+	 * the last one being the first one shifted by one input frame
+	 */
+	private final float[] m_filter;
+
+	/**
+	 * Coefficients for the current output frame
+	 */
+	private final float[] m_coefficients;
+
+	/**
+	 * Largest number of input frames accepted at once
+	 */
+	private final int m_maxInputFrames;
+
+	/**
+	 * Input frames the next output frames depend on, interleaved,
+	 * followed by room for {@link #m_maxInputFrames} frames
+	 */
+	private final float[] m_history;
+
+	private int m_historyFrames;
+
+	/**
+	 * Position of the next output frame in {@link #m_history}, in input frames
+	 */
+	private double m_position;
+
+	/**
+	 * Input frames per output frame
+	 */
+	private double m_ratio = 1.0;
+
+	/**
+	 * Creates a resampler
+	 *
+	 * @param channels number of channels
+	 * @param halfTaps number of input frames on either side of an output frame which it depends on
+	 * @param phases number of precomputed filter phases per input frame
+	 * @param cutoff cutoff frequency relative to the nyquist frequency, in (0, 1]
+	 * @param maxInputFrames largest number of input frames passed to {@link #process} at once
+	 */
+	public SincResampler(final int channels, final int halfTaps, final int phases, final double cutoff, final int maxInputFrames) {
+		if ((channels <= 0) || (halfTaps <= 0) || (phases <= 0) || (maxInputFrames <= 0))
+			throw new IllegalArgumentException("Channels, taps, phases and input frames must be positive");
+		if ((cutoff <= 0.0) || (cutoff > 1.0))
+			throw new IllegalArgumentException("Cutoff must be in (0, 1], but was " + cutoff);
+
+		m_channels = channels;
+		m_halfTaps = halfTaps;
+		m_taps = 2 * halfTaps;
+		m_phases = phases;
+		m_maxInputFrames = maxInputFrames;
+		m_coefficients = new float[m_taps];
+		m_history = new float[(m_taps + maxInputFrames) * channels];
+
+		/* Tap j of phase p weights the input frame at distance (j - halfTaps + 1) - p/phases
+		 * from the output frame's position. Each phase is normalized to unity gain at DC
+		 */
+		m_filter = new float[(phases + 1) * m_taps];
+		final double windowNormalization = Functions.besselI0(KaiserBeta);
+		for(int p=0; p <= phases; ++p) {
+			double sum = 0.0;
+			final double[] phase = new double[m_taps];
+			for(int j=0; j < m_taps; ++j) {
+				final double distance = (j - halfTaps + 1) - (double)p / phases;
+				final double relative = distance / halfTaps;
+				if (Math.abs(relative) >= 1.0)
+					continue;
+				final double lowPass = (distance == 0.0) ? 1.0 : Functions.sinc(Math.PI * cutoff * distance);
+				final double window = Functions.besselI0(KaiserBeta * Math.sqrt(1.0 - relative * relative)) / windowNormalization;
+				phase[j] = lowPass * window;
+				sum += phase[j];
+			}
+			for(int j=0; j < m_taps; ++j)
+				m_filter[p * m_taps + j] = (float)(phase[j] / sum);
+		}
+
+		reset();
+	}
+
+	/**
+	 * Discards the buffered input, as if the resampler was just created.
+	 * The ratio is kept.
+	 */
+	public void reset() {
+		/* Start with silence before the first input frame */
+		m_historyFrames = m_halfTaps - 1;
+		for(int i=0; i < m_historyFrames * m_channels; ++i)
+			m_history[i] = 0.0f;
+		m_position = m_halfTaps - 1;
+	}
+
+	/**
+	 * @return the number of input frames each output frame depends on
+	 */
+	public int getTaps() {
+		return m_taps;
+	}
+
+	/**
+	 * @return the number of input frames consumed per output frame
+	 */
+	public double getRatio() {
+		return m_ratio;
+	}
+
+	/**
+	 * Sets the number of input frames consumed per output frame. Takes effect
+	 * with the next output frame.
+	 *
+	 * @param ratio input frames per output frame
+	 */
+	public void setRatio(final double ratio) {
+		if (!(ratio > 0.0))
+			throw new IllegalArgumentException("Ratio must be positive, but was " + ratio);
+		m_ratio = ratio;
+	}
+
+	/**
+	 * Returns an upper bound for the number of output frames produced
+	 * by {@link #process} from the given number of input frames
+	 *
+	 * @param inputFrames number of input frames
+	 * @return maximal number of output frames
+	 */
+	public int getMaxOutputFrames(final int inputFrames) {
+		return (int)Math.floor((m_historyFrames + inputFrames - m_halfTaps - m_position) / m_ratio) + 1;
+	}
+
+	/**
+	 * Resamples interleaved frames
+	 *
+	 * @param input input samples
+	 * @param inputOffset offset of the first input sample
+	 * @param inputFrames number of input frames, at most the maximum passed to the constructor
+	 * @param output output samples
+	 * @param outputOffset offset of the first output sample
+	 * @return number of output frames written. The output must have room for
+	 *         {@link #getMaxOutputFrames(int)} frames
+	 */
+	public int process(final short[] input, final int inputOffset, final int inputFrames, final short[] output, final int outputOffset) {
+		if (inputFrames > m_maxInputFrames)
+			throw new IllegalArgumentException("At most " + m_maxInputFrames + " input frames are supported, but got " + inputFrames);
+		if (output.length - outputOffset < getMaxOutputFrames(inputFrames) * m_channels)
+			throw new IllegalArgumentException("Output must have room for " + getMaxOutputFrames(inputFrames) + " frames");
+
+		final int channels = m_channels;
+		final int taps = m_taps;
+		final float[] history = m_history;
+		final float[] filter = m_filter;
+		final float[] coefficients = m_coefficients;
+
+		/* Append input */
+		final int historyStart = m_historyFrames * channels;
+		for(int i=0; i < inputFrames * channels; ++i)
+			history[historyStart + i] = input[inputOffset + i];
+		m_historyFrames += inputFrames;
+
+		/* Produce output frames as long as all the input frames they depend on are available */
+		int outputFrames = 0;
+		int o = outputOffset;
+		double position = m_position;
+		final int lastPosition = m_historyFrames - m_halfTaps;
+		while (position < lastPosition) {
+			final int frame = (int)position;
+			final double phasePosition = (position - frame) * m_phases;
+			final int phase = (int)phasePosition;
+			final float fraction = (float)(phasePosition - phase);
+
+			/* Interpolate the coefficients between the two closest phases */
+			final int row = phase * taps;
+			for(int j=0; j < taps; ++j) {
+				final float c = filter[row + j];
+				coefficients[j] = c + fraction * (filter[row + taps + j] - c);
+			}
+
+			/* Apply them to each channel */
+			final int first = (frame - m_halfTaps + 1) * channels;
+			for(int c=0; c < channels; ++c) {
+				float sum = 0.0f;
+				for(int j=0, h = first + c; j < taps; ++j, h += channels)
+					sum += coefficients[j] * history[h];
+
+				final int sample = Math.round(sum);
+				output[o++] = (short)((sample > Short.MAX_VALUE) ? Short.MAX_VALUE : ((sample < Short.MIN_VALUE) ? Short.MIN_VALUE : sample));
+			}
+
+			++outputFrames;
+			position += m_ratio;
+		}
+
+		/* Discard the input frames no longer needed */
+		final int discard = Math.min((int)position - (m_halfTaps - 1), m_historyFrames);
+		if (discard > 0) {
+			System.arraycopy(history, discard * channels, history, 0, (m_historyFrames - discard) * channels);
+			m_historyFrames -= discard;
+			position -= discard;
+		}
+		m_position = position;
+
+		return outputFrames;
+	}
+}
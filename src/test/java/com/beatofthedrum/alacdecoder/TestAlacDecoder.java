@@ -0,0 +1,418 @@
+/*
+** TestAlacDecoder.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+package com.beatofthedrum.alacdecoder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+
+/*
+** Compares AlacDecoder's output against the reference AlacDecodeUtils
+** on a corpus of generated frames.
+*/
+public class TestAlacDecoder
+{
+	private static final int SamplesPerFrame = 352;
+	private static final int RiceHistoryMult = 40;
+	private static final int RiceInitialHistory = 10;
+	private static final int RiceKModifier = 14;
+
+	private static final class BitWriter
+	{
+		private final byte[] bytes;
+		private int bit = 0;
+
+		public BitWriter(int length)
+		{
+			bytes = new byte[length];
+		}
+
+		public void write(int value, int count)
+		{
+			for (int i = count - 1; i >= 0; --i)
+			{
+				if (((value >> i) & 1) != 0)
+					bytes[bit / 8] |= 0x80 >> (bit % 8);
+				++bit;
+			}
+		}
+
+		/* appends random bits, each of which is set with the given probability */
+		public void fill(Random random, double oneProbability)
+		{
+			while (bit < bytes.length * 8)
+				write((random.nextDouble() < oneProbability) ? 1 : 0, 1);
+		}
+
+		public byte[] getBytes()
+		{
+			return bytes;
+		}
+	}
+
+	/*
+	** Generates a frame with a valid header and random contents. Compressed
+	** frames carry random predictor parameters followed by random entropy coded
+	** data, in which bits are set with probability oneProbability. Small
+	** probabilities yield small residuals, like real audio does.
+	*/
+	static byte[] randomFrame(Random random, int samplesPerFrame, boolean stereo, boolean compressed, double oneProbability)
+	{
+		final BitWriter writer = new BitWriter(64 + samplesPerFrame * 2 * 4);
+
+		writer.write(stereo ? 1 : 0, 3);
+		writer.write(random.nextInt(), 16);
+
+		final boolean hasSize = random.nextInt(8) == 0;
+		writer.write(hasSize ? 1 : 0, 1);
+		writer.write((compressed && (random.nextInt(4) == 0)) ? 1 : 0, 2);
+		writer.write(compressed ? 0 : 1, 1);
+		if (hasSize)
+			writer.write(1 + random.nextInt(samplesPerFrame), 32);
+
+		if (compressed)
+		{
+			if (stereo)
+			{
+				writer.write(random.nextInt(32), 8);
+				writer.write(random.nextInt(256), 8);
+			}
+			else
+				writer.write(random.nextInt(), 16);
+
+			for (int channel = 0; channel < (stereo ? 2 : 1); ++channel)
+			{
+				writer.write(0, 4); /* adaptive fir */
+				writer.write(random.nextInt(16), 4);
+				writer.write(random.nextInt(8), 3);
+
+				final int coefNum;
+				switch (random.nextInt(4))
+				{
+					case 0: coefNum = 0; break;
+					case 1: coefNum = 0x1f; break;
+					default: coefNum = random.nextInt(32); break;
+				}
+				writer.write(coefNum, 5);
+				for (int i = 0; i < coefNum; ++i)
+					writer.write(random.nextInt(2048) - 1024, 16);
+			}
+		}
+
+		writer.fill(random, oneProbability);
+		return writer.getBytes();
+	}
+
+	private static AlacFile createReference(int sampleSize)
+	{
+		final AlacFile alac = AlacDecodeUtils.create_alac(sampleSize, 2);
+		alac.setinfo_max_samples_per_frame = SamplesPerFrame;
+		alac.setinfo_sample_size = sampleSize;
+		alac.setinfo_rice_historymult = RiceHistoryMult;
+		alac.setinfo_rice_initialhistory = RiceInitialHistory;
+		alac.setinfo_rice_kmodifier = RiceKModifier;
+		return alac;
+	}
+
+	private void testConformance(int sampleSize)
+	{
+		final Random random = new Random(sampleSize);
+		final AlacFile reference = createReference(sampleSize);
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, sampleSize, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+
+		final int outputInts = SamplesPerFrame * 2 * ((sampleSize == 16) ? 1 : 3);
+		final int[] referenceOutput = new int[outputInts];
+		final int[] output = new int[outputInts];
+
+		int compared = 0;
+		int skipped = 0;
+		for (int frame = 0; frame < 20000; ++frame)
+		{
+			final boolean stereo = random.nextInt(4) != 0;
+			final boolean compressed = random.nextInt(4) != 0;
+			final double oneProbability = 0.05 + 0.5 * random.nextDouble();
+			final byte[] input = randomFrame(random, SamplesPerFrame, stereo, compressed, oneProbability);
+
+			Arrays.fill(referenceOutput, 0x5a5a5a5a);
+			Arrays.fill(output, 0x5a5a5a5a);
+
+			final int referenceBytes;
+			try
+			{
+				referenceBytes = AlacDecodeUtils.decode_frame(reference, input, referenceOutput, 0);
+			}
+			catch (ArrayIndexOutOfBoundsException e)
+			{
+				/* Random data may make the reference run past its fixed-size buffers */
+				++skipped;
+				continue;
+			}
+			final int bytes = decoder.decodeFrame(input, 0, input.length, output);
+
+			Assert.assertEquals("output size of frame " + frame, referenceBytes, bytes);
+			final int validInts = (sampleSize == 16) ? bytes / 2 : bytes;
+			for (int i = 0; i < validInts; ++i)
+			{
+				if (referenceOutput[i] != output[i])
+					Assert.fail("frame " + frame + " (stereo " + stereo + ", compressed " + compressed + ") differs at " + i + ": " + referenceOutput[i] + " != " + output[i]);
+			}
+			++compared;
+		}
+
+		System.out.println("ALAC " + sampleSize + " bit conformance: " + compared + " frames identical, " + skipped + " frames rejected by the reference decoder");
+		Assert.assertTrue(compared > 10000);
+	}
+
+	@Test
+	public void testConformance16()
+	{
+		testConformance(16);
+	}
+
+	@Test
+	public void testConformance24()
+	{
+		testConformance(24);
+	}
+
+	@Test
+	public void testUncompressedRoundTrip()
+	{
+		final Random random = new Random(1);
+		final short[] samples = new short[SamplesPerFrame * 2];
+		final BitWriter writer = new BitWriter((23 + samples.length * 16 + 7) / 8);
+		writer.write(1, 3);
+		writer.write(0, 19);
+		writer.write(1, 1);
+		for (int i = 0; i < samples.length; ++i)
+		{
+			samples[i] = (short)random.nextInt();
+			writer.write(samples[i] & 0xffff, 16);
+		}
+
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+		final int[] output = new int[samples.length];
+		Assert.assertEquals(SamplesPerFrame * 4, decoder.decodeFrame(writer.getBytes(), 0, writer.getBytes().length, output));
+		for (int i = 0; i < samples.length; ++i)
+			Assert.assertEquals(samples[i], output[i]);
+	}
+
+	@Test
+	public void testDecodePerformance()
+	{
+		final Random random = new Random(2);
+		final byte[][] frames = new byte[64][];
+		for (int i = 0; i < frames.length; ++i)
+			frames[i] = randomFrame(random, SamplesPerFrame, true, true, 0.2);
+
+		final AlacFile reference = createReference(16);
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+		final int[] output = new int[SamplesPerFrame * 2];
+		final int frameCount = 100000;
+
+		for (int round = 0; round < 2; ++round)
+		{
+			final long referenceStart = System.nanoTime();
+			for (int i = 0; i < frameCount; ++i)
+				AlacDecodeUtils.decode_frame(reference, frames[i % frames.length], output, 0);
+			final long referenceEnd = System.nanoTime();
+
+			final long start = System.nanoTime();
+			for (int i = 0; i < frameCount; ++i)
+				decoder.decodeFrame(frames[i % frames.length], 0, frames[i % frames.length].length, output);
+			final long end = System.nanoTime();
+
+			/* The first round only warms up the JIT */
+			if (round == 0)
+				continue;
+
+			final double referenceFramesPerSecond = frameCount / ((referenceEnd - referenceStart) * 1e-9);
+			final double framesPerSecond = frameCount / ((end - start) * 1e-9);
+			System.out.println("AlacDecodeUtils decodes " + Math.round(referenceFramesPerSecond) + " frames per second, AlacDecoder " + Math.round(framesPerSecond) + " frames per second (" + Math.round(100.0 * (framesPerSecond / referenceFramesPerSecond - 1.0)) + "% faster)");
+		}
+	}
+
+	/* The two-pass output stage the packed output replaces */
+	private static void packSamples(int[] samples, int count, byte[] bytes, int offset)
+	{
+		for (int i = 0; i < count; ++i)
+		{
+			final int pcmSampleUnsigned = samples[i] + 0x8000;
+
+			bytes[offset++] = (byte)(pcmSampleUnsigned >> 8);
+			bytes[offset++] = (byte)pcmSampleUnsigned;
+		}
+	}
+
+	@Test
+	public void testPackedOutput()
+	{
+		final Random random = new Random(3);
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+		final int[] samples = new int[SamplesPerFrame * 2];
+		final byte[] expected = new byte[SamplesPerFrame * 4 + 3];
+		final byte[] packed = new byte[SamplesPerFrame * 4 + 3];
+
+		for (int frame = 0; frame < 10000; ++frame)
+		{
+			final boolean stereo = random.nextInt(4) != 0;
+			final boolean compressed = random.nextInt(4) != 0;
+			final byte[] input = randomFrame(random, SamplesPerFrame, stereo, compressed, 0.05 + 0.5 * random.nextDouble());
+
+			Arrays.fill(expected, (byte)0x5a);
+			Arrays.fill(packed, (byte)0x5a);
+
+			final int bytes = decoder.decodeFrame(input, 0, input.length, samples);
+			packSamples(samples, bytes / 2, expected, 3);
+
+			Assert.assertEquals(bytes, decoder.decodeFrame(input, 0, input.length, packed, 3));
+			Assert.assertArrayEquals("frame " + frame + " (stereo " + stereo + ", compressed " + compressed + ")", expected, packed);
+		}
+	}
+
+	@Test
+	public void testPackedOutputFormats()
+	{
+		final Random random = new Random(5);
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+		final int[] samples = new int[SamplesPerFrame * 2];
+		final byte[] packed = new byte[SamplesPerFrame * 4];
+
+		for (int frame = 0; frame < 1000; ++frame)
+		{
+			final boolean stereo = random.nextInt(4) != 0;
+			final byte[] input = randomFrame(random, SamplesPerFrame, stereo, true, 0.05 + 0.5 * random.nextDouble());
+			final int bytes = decoder.decodeFrame(input, 0, input.length, samples);
+
+			for (int format = 0; format < 4; ++format)
+			{
+				final boolean signed = (format & 1) != 0;
+				final boolean bigEndian = (format & 2) != 0;
+				Assert.assertEquals(bytes, decoder.decodeFrame(input, 0, input.length, packed, 0, signed, bigEndian));
+
+				for (int i = 0; i < bytes / 2; ++i)
+				{
+					final int high = packed[2 * i + (bigEndian ? 0 : 1)] & 0xff;
+					final int low = packed[2 * i + (bigEndian ? 1 : 0)] & 0xff;
+					final int sample = signed ? (short)((high << 8) | low) : ((high << 8) | low) - 0x8000;
+					Assert.assertEquals("frame " + frame + ", signed " + signed + ", big endian " + bigEndian + ", sample " + i, (short)samples[i], sample);
+				}
+			}
+		}
+	}
+
+	/*
+	** Frames with more than one channel element aren't supported, and must
+	** overwrite a previously decoded frame with silence.
+	*/
+	@Test
+	public void testUnsupportedChannelsDecodeToSilence()
+	{
+		final Random random = new Random(6);
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+		final int[] samples = new int[SamplesPerFrame * 2];
+		final byte[] packed = new byte[SamplesPerFrame * 4];
+		final byte[] valid = randomFrame(random, SamplesPerFrame, true, true, 0.5);
+		final byte[] unsupported = { (byte)0x40, 0, 0, 0 };
+
+		for (int format = 0; format < 4; ++format)
+		{
+			final boolean signed = (format & 1) != 0;
+			final boolean bigEndian = (format & 2) != 0;
+			decoder.decodeFrame(valid, 0, valid.length, packed, 0, signed, bigEndian);
+			Assert.assertEquals(packed.length, decoder.decodeFrame(unsupported, 0, unsupported.length, packed, 0, signed, bigEndian));
+
+			for (int i = 0; i < packed.length / 2; ++i)
+			{
+				Assert.assertEquals(signed ? 0 : (byte)0x80, packed[2 * i + (bigEndian ? 0 : 1)]);
+				Assert.assertEquals(0, packed[2 * i + (bigEndian ? 1 : 0)]);
+			}
+		}
+
+		decoder.decodeFrame(valid, 0, valid.length, samples);
+		Assert.assertEquals(packed.length, decoder.decodeFrame(unsupported, 0, unsupported.length, samples));
+		Assert.assertArrayEquals(new int[samples.length], samples);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownPredictionTypeRejected()
+	{
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+
+		/* compressed mono frame using prediction type 1 */
+		final BitWriter writer = new BitWriter(64);
+		writer.write(0, 3);
+		writer.write(0, 16);
+		writer.write(0, 1);
+		writer.write(0, 2);
+		writer.write(0, 1);
+		writer.write(0, 16);
+		writer.write(1, 4);
+		decoder.decodeFrame(writer.getBytes(), 0, 64, new byte[SamplesPerFrame * 4], 0);
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testPackedOutputRequires16Bit()
+	{
+		final AlacDecoder decoder = new AlacDecoder(SamplesPerFrame, 24, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+		decoder.decodeFrame(new byte[16], 0, 16, new byte[SamplesPerFrame * 6], 0);
+	}
+
+	private void testPackedOutputPerformance(int samplesPerFrame)
+	{
+		final Random random = new Random(4);
+		final byte[][] frames = new byte[16][];
+		for (int i = 0; i < frames.length; ++i)
+			frames[i] = randomFrame(random, samplesPerFrame, true, (i % 2) == 0, 0.2);
+
+		final AlacDecoder decoder = new AlacDecoder(samplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+		final int[] samples = new int[samplesPerFrame * 2];
+		final byte[] bytes = new byte[samplesPerFrame * 4];
+		final int frameCount = 20000000 / samplesPerFrame;
+
+		for (int round = 0; round < 2; ++round)
+		{
+			final long twoPassStart = System.nanoTime();
+			for (int i = 0; i < frameCount; ++i)
+			{
+				final byte[] frame = frames[i % frames.length];
+				final int length = decoder.decodeFrame(frame, 0, frame.length, samples);
+				packSamples(samples, length / 2, bytes, 0);
+			}
+			final long twoPassEnd = System.nanoTime();
+
+			final long fusedStart = System.nanoTime();
+			for (int i = 0; i < frameCount; ++i)
+			{
+				final byte[] frame = frames[i % frames.length];
+				decoder.decodeFrame(frame, 0, frame.length, bytes, 0);
+			}
+			final long fusedEnd = System.nanoTime();
+
+			/* The first round only warms up the JIT */
+			if (round == 0)
+				continue;
+
+			final double twoPassNsPerFrame = (double)(twoPassEnd - twoPassStart) / frameCount;
+			final double fusedNsPerFrame = (double)(fusedEnd - fusedStart) / frameCount;
+			System.out.println(samplesPerFrame + " samples per frame: two-pass output " + Math.round(twoPassNsPerFrame) + " ns per frame, packed output " + Math.round(fusedNsPerFrame) + " ns per frame");
+		}
+	}
+
+	@Test
+	public void testPackedOutputPerformance352()
+	{
+		testPackedOutputPerformance(352);
+	}
+
+	@Test
+	public void testPackedOutputPerformance4096()
+	{
+		testPackedOutputPerformance(4096);
+	}
+}
@@ -0,0 +1,181 @@
+/*
+** TestAlacEncoder.java
+**
+** Distributed under the BSD Software License (see license.txt)
+**
+*/
+package com.beatofthedrum.alacdecoder;
+
+import java.util.Random;
+
+import org.junit.*;
+
+/*
+** Encodes synthetic signals with AlacEncoder and checks that both
+** AlacDecodeUtils and AlacDecoder restore them exactly.
+*/
+public class TestAlacEncoder
+{
+	private static final int RiceHistoryMult = 40;
+	private static final int RiceInitialHistory = 10;
+	private static final int RiceKModifier = 14;
+
+	private static final int SampleRate = 44100;
+
+	/*
+	** Generates interleaved stereo samples: two detuned sines plus noise of
+	** the given amplitude. Amplitude 0 yields plain tones, large amplitudes
+	** yield noise which doesn't compress.
+	*/
+	static int[] signal(Random random, int samples, int noiseAmplitude)
+	{
+		final int[] pcm = new int[samples * 2];
+		final double leftFrequency = 100 + random.nextInt(2000);
+		final double rightFrequency = leftFrequency * (1.0 + 0.01 * random.nextDouble());
+		for (int i = 0; i < samples; ++i)
+		{
+			final double t = (double)i / SampleRate;
+			pcm[i * 2] = clamp16(Math.round(12000 * Math.sin(2 * Math.PI * leftFrequency * t)) + noise(random, noiseAmplitude));
+			pcm[i * 2 + 1] = clamp16(Math.round(12000 * Math.sin(2 * Math.PI * rightFrequency * t)) + noise(random, noiseAmplitude));
+		}
+		return pcm;
+	}
+
+	private static int noise(Random random, int amplitude)
+	{
+		return (amplitude > 0) ? random.nextInt(2 * amplitude + 1) - amplitude : 0;
+	}
+
+	private static int clamp16(long sample)
+	{
+		return (int)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+	}
+
+	private static AlacFile createReference(int samplesPerFrame)
+	{
+		final AlacFile alac = AlacDecodeUtils.create_alac(16, 2);
+		alac.setinfo_max_samples_per_frame = samplesPerFrame;
+		alac.setinfo_sample_size = 16;
+		alac.setinfo_rice_historymult = RiceHistoryMult;
+		alac.setinfo_rice_initialhistory = RiceInitialHistory;
+		alac.setinfo_rice_kmodifier = RiceKModifier;
+		return alac;
+	}
+
+	/*
+	** Encodes pcm frame by frame and decodes each frame with both decoders.
+	** Returns the total size of the encoded frames.
+	*/
+	private long roundTrip(int samplesPerFrame, int[] pcm, boolean compressed)
+	{
+		final AlacEncoder encoder = new AlacEncoder(samplesPerFrame, RiceHistoryMult, RiceInitialHistory, RiceKModifier);
+		final AlacFile reference = createReference(samplesPerFrame);
+		final AlacDecoder decoder = new AlacDecoder(samplesPerFrame, 16, RiceHistoryMult, RiceInitialHistory, RiceKModifier, 2);
+
+		final byte[] frame = new byte[encoder.getMaxFrameBytes()];
+		final int[] referenceOutput = new int[samplesPerFrame * 2];
+		final int[] output = new int[samplesPerFrame * 2];
+
+		long totalBytes = 0;
+		for (int offset = 0; offset < pcm.length; offset += samplesPerFrame * 2)
+		{
+			final int samples = Math.min(samplesPerFrame, (pcm.length - offset) / 2);
+			final int bytes = compressed ?
+				encoder.encodeFrame(pcm, offset, samples, frame, 0) :
+				encoder.encodeUncompressedFrame(pcm, offset, samples, frame, 0);
+			Assert.assertTrue(bytes <= frame.length);
+			totalBytes += bytes;
+
+			Assert.assertEquals(samples * 4, AlacDecodeUtils.decode_frame(reference, frame, 0, bytes, referenceOutput, 0));
+			Assert.assertEquals(samples * 4, decoder.decodeFrame(frame, 0, bytes, output));
+			for (int i = 0; i < samples * 2; ++i)
+			{
+				if ((referenceOutput[i] != pcm[offset + i]) || (output[i] != pcm[offset + i]))
+					Assert.fail("sample " + (offset + i) + " encoded as " + pcm[offset + i] + ", decoded as " + referenceOutput[i] + " and " + output[i]);
+			}
+		}
+
+		return totalBytes;
+	}
+
+	@Test
+	public void testCompressedRoundTrip()
+	{
+		final Random random = new Random(1);
+		for (final int samplesPerFrame: new int[] { 352, 4096 })
+		{
+			for (final int noiseAmplitude: new int[] { 0, 4, 256, 40000 })
+			{
+				/* a partial frame at the end exercises explicit sample counts */
+				final int[] pcm = signal(random, samplesPerFrame * 20 + samplesPerFrame / 3, noiseAmplitude);
+				final long rawBytes = pcm.length * 2;
+				final long bytes = roundTrip(samplesPerFrame, pcm, true);
+				System.out.println("AlacEncoder compresses " + samplesPerFrame + " samples per frame with noise amplitude " + noiseAmplitude + " to " + Math.round(100.0 * bytes / rawBytes) + "%");
+
+				/* noise must fall back to uncompressed frames, which add a few bytes each */
+				if (noiseAmplitude <= 4)
+					Assert.assertTrue(bytes < rawBytes / 2);
+				else
+					Assert.assertTrue(bytes <= rawBytes + 21 * 8);
+			}
+		}
+	}
+
+	@Test
+	public void testUncompressedRoundTrip()
+	{
+		final Random random = new Random(2);
+		final int[] pcm = signal(random, 352 * 10 + 100, 40000);
+		pcm[0] = Short.MIN_VALUE;
+		pcm[1] = Short.MAX_VALUE;
+		roundTrip(352, pcm, false);
+	}
+
+	@Test
+	public void testExtremes()
+	{
+		final int[] pcm = new int[352 * 2 * 4];
+		for (int i = 0; i < pcm.length; ++i)
+		{
+			switch ((i / 64) % 4)
+			{
+				case 0: pcm[i] = 0; break;
+				case 1: pcm[i] = ((i & 1) == 0) ? Short.MAX_VALUE : Short.MIN_VALUE; break;
+				case 2: pcm[i] = ((i & 2) == 0) ? Short.MAX_VALUE : Short.MIN_VALUE; break;
+				default: pcm[i] = 1; break;
+			}
+		}
+		roundTrip(352, pcm, true);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testOversizedFrame()
+	{
+		final AlacEncoder encoder = new AlacEncoder(352, RiceHistoryMult, RiceInitialHistory, RiceKModifier);
+		encoder.encodeFrame(new int[353 * 2], 0, 353, new byte[encoder.getMaxFrameBytes() * 2], 0);
+	}
+
+	@Test
+	public void testEncodePerformance()
+	{
+		final Random random = new Random(3);
+		final int[] pcm = signal(random, SampleRate * 10, 64);
+		final AlacEncoder encoder = new AlacEncoder(352, RiceHistoryMult, RiceInitialHistory, RiceKModifier);
+		final byte[] frame = new byte[encoder.getMaxFrameBytes()];
+
+		for (int round = 0; round < 3; ++round)
+		{
+			final long start = System.nanoTime();
+			for (int offset = 0; offset + 352 * 2 <= pcm.length; offset += 352 * 2)
+				encoder.encodeFrame(pcm, offset, 352, frame, 0);
+			final long end = System.nanoTime();
+
+			/* The first rounds only warm up the JIT */
+			if (round < 2)
+				continue;
+
+			final double seconds = (end - start) / 1e9;
+			System.out.println("AlacEncoder encodes 10 seconds of audio in " + Math.round(seconds * 1000) + " ms (" + Math.round(10.0 / seconds) + "x real time)");
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package org.gps.air.receiver.test;
+
+import org.gps.air.receiver.Impl.LinkedSortedQueue;
+import org.gps.air.receiver.Impl.SequenceJitterBuffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SequenceJitterBuffer} and benchmarks it against {@link LinkedSortedQueue}.
+ */
+public class SequenceJitterBufferTest {
+
+    @Test
+    public void testOrder() {
+        SequenceJitterBuffer<Integer> buffer = new SequenceJitterBuffer<Integer>(16);
+
+        int[] sequences = {1, 3, 2, 5, 4};
+        for (int sequence : sequences) {
+            Assert.assertTrue(buffer.put(sequence, sequence));
+        }
+
+        for (int sequence = 1; sequence <= 5; ++sequence) {
+            Assert.assertEquals(buffer.poll(), Integer.valueOf(sequence));
+        }
+        Assert.assertNull(buffer.poll());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testWrapAround() {
+        SequenceJitterBuffer<Integer> buffer = new SequenceJitterBuffer<Integer>(16);
+
+        int[] sequences = {0xfffd, 0xffff, 1, 0xfffe, 0, 2};
+        for (int sequence : sequences) {
+            Assert.assertTrue(buffer.put(sequence, sequence));
+        }
+
+        int[] expected = {0xfffd, 0xfffe, 0xffff, 0, 1, 2};
+        for (int sequence : expected) {
+            Assert.assertEquals(buffer.poll(), Integer.valueOf(sequence));
+        }
+        Assert.assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testRejects() {
+        SequenceJitterBuffer<Integer> buffer = new SequenceJitterBuffer<Integer>(10);
+        Assert.assertEquals(buffer.getCapacity(), 16);
+
+        Assert.assertTrue(buffer.put(100, 100));
+        Assert.assertFalse(buffer.put(100, 100), "Duplicate");
+        Assert.assertFalse(buffer.put(116, 116), "Too far ahead");
+        Assert.assertTrue(buffer.put(102, 102));
+
+        // 101 is skipped, then arrives late.
+        Assert.assertEquals(buffer.poll(), Integer.valueOf(100));
+        Assert.assertEquals(buffer.poll(), Integer.valueOf(102));
+        Assert.assertFalse(buffer.put(101, 101), "Late");
+
+        // The sender jumped while the buffer was empty.
+        Assert.assertTrue(buffer.put(5000, 5000));
+        Assert.assertTrue(buffer.put(5001, 5001));
+        Assert.assertEquals(buffer.span(), 2);
+        Assert.assertEquals(buffer.poll(), Integer.valueOf(5000));
+        Assert.assertEquals(buffer.poll(), Integer.valueOf(5001));
+    }
+
+    @Test
+    public void testPollBefore() {
+        SequenceJitterBuffer<Integer> buffer = new SequenceJitterBuffer<Integer>(16);
+        Assert.assertNull(buffer.pollBefore(5));
+
+        int[] sequences = {0xfffe, 0xffff, 1, 2, 3};
+        for (int sequence : sequences) {
+            Assert.assertTrue(buffer.put(sequence, sequence));
+        }
+
+        // Drains across the wrap-around and the missing sequence 0, and keeps the rest.
+        Assert.assertEquals(buffer.pollBefore(2), Integer.valueOf(0xfffe));
+        Assert.assertEquals(buffer.pollBefore(2), Integer.valueOf(0xffff));
+        Assert.assertEquals(buffer.pollBefore(2), Integer.valueOf(1));
+        Assert.assertNull(buffer.pollBefore(2));
+        Assert.assertEquals(buffer.span(), 2);
+
+        // Drained sequences are late now.
+        Assert.assertFalse(buffer.put(0, 0), "Late");
+
+        Assert.assertEquals(buffer.poll(), Integer.valueOf(2));
+        Assert.assertEquals(buffer.poll(), Integer.valueOf(3));
+        Assert.assertNull(buffer.pollBefore(100));
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final int packets = 1000000;
+        final SequenceJitterBuffer<Integer> buffer = new SequenceJitterBuffer<Integer>(1024);
+        final int[] arrivals = reordered(packets, new Random(0));
+
+        final long[] result = new long[2];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long count = 0;
+                long sum = 0;
+                int previous = -1;
+                while (true) {
+                    Integer value = buffer.poll();
+                    if (value == null) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            break;
+                        }
+                        Thread.yield();
+                        continue;
+                    }
+                    if (value <= previous) {
+                        throw new IllegalStateException("Out of order: " + value + " after " + previous);
+                    }
+                    previous = value;
+                    ++count;
+                    sum += value;
+                }
+                result[0] = count;
+                result[1] = sum;
+            }
+        });
+        consumer.start();
+
+        long putCount = 0;
+        long putSum = 0;
+        for (int arrival : arrivals) {
+            // Back off while the consumer lags too far behind.
+            while (buffer.span() > 512) {
+                Thread.yield();
+            }
+            if (buffer.put(arrival & 0xffff, arrival)) {
+                ++putCount;
+                putSum += arrival;
+            }
+        }
+        while (!buffer.isEmpty()) {
+            Thread.yield();
+        }
+        consumer.interrupt();
+        consumer.join();
+
+        // Every accepted value is polled exactly once.
+        Assert.assertEquals(result[0], putCount);
+        Assert.assertEquals(result[1], putSum);
+    }
+
+    /**
+     * A value which records who took ownership of it
+     */
+    private static class Owned {
+        final AtomicInteger owners = new AtomicInteger(0);
+    }
+
+    @Test
+    public void testSkippedWhilePut() throws InterruptedException {
+        final int packets = 1000000;
+        final SequenceJitterBuffer<Owned> buffer = new SequenceJitterBuffer<Owned>(16);
+        final Owned[] values = new Owned[packets];
+        for (int i = 0; i < packets; ++i) {
+            values[i] = new Owned();
+        }
+
+        // Two consumers poll continuously, skipping the sequences the producer put late
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread[] consumers = new Thread[2];
+        for (int c = 0; c < consumers.length; ++c) {
+            consumers[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        Owned value = buffer.poll();
+                        if (value != null) {
+                            value.owners.incrementAndGet();
+                        } else if (done.get() && buffer.isEmpty()) {
+                            break;
+                        }
+                    }
+                }
+            });
+            consumers[c].start();
+        }
+
+        // Every pair of packets arrives swapped, and every 1000 packets the sender jumps
+        // ahead, so the producer both takes back skipped values and restarts the buffer
+        int sequence = 0;
+        for (int i = 0; i + 1 < packets; i += 2) {
+            if (i % 1000 == 0) {
+                while (!buffer.isEmpty()) {
+                    Thread.yield();
+                }
+                sequence += 5000;
+            }
+            if (!buffer.put((sequence + 1) & 0xffff, values[i + 1])) {
+                values[i + 1].owners.incrementAndGet();
+            }
+            if (!buffer.put(sequence & 0xffff, values[i])) {
+                values[i].owners.incrementAndGet();
+            }
+            sequence += 2;
+        }
+        done.set(true);
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+
+        // Each value was either returned by poll or rejected by put, never both
+        for (int i = 0; i < packets; ++i) {
+            Assert.assertEquals(values[i].owners.get(), 1, "Owners of value " + i);
+        }
+    }
+
+    /**
+     * Arrival order with adjacent packets swapped and some packets delayed by up to 8 others
+     */
+    private static int[] reordered(int packets, Random random) {
+        int[] arrivals = inOrder(packets);
+        for (int i = 0; i + 8 < packets; ++i) {
+            if (random.nextDouble() < 0.1) {
+                int j = i + 1 + random.nextInt(8);
+                int delayed = arrivals[i];
+                System.arraycopy(arrivals, i + 1, arrivals, i, j - i);
+                arrivals[j] = delayed;
+            }
+        }
+        return arrivals;
+    }
+
+    private static int[] inOrder(int packets) {
+        int[] arrivals = new int[packets];
+        for (int i = 0; i < packets; ++i) {
+            arrivals[i] = i;
+        }
+        return arrivals;
+    }
+
+    /**
+     * Arrival order in which every 100 packets, a burst of 20 is held back behind the next 40
+     */
+    private static int[] bursty(int packets) {
+        int[] arrivals = new int[packets];
+        int a = 0;
+        for (int block = 0; block + 100 <= packets; block += 100) {
+            for (int i = 20; i < 60; ++i) {
+                arrivals[a++] = block + i;
+            }
+            for (int i = 0; i < 20; ++i) {
+                arrivals[a++] = block + i;
+            }
+            for (int i = 60; i < 100; ++i) {
+                arrivals[a++] = block + i;
+            }
+        }
+        while (a < packets) {
+            arrivals[a] = a;
+            ++a;
+        }
+        return arrivals;
+    }
+
+    /**
+     * Puts the packets and drains the queue whenever 300 were put, like the audio enqueuer does.
+     *
+     * @return nanoseconds per packet
+     */
+    private static double benchmarkJitterBuffer(int[] arrivals) {
+        SequenceJitterBuffer<Integer> buffer = new SequenceJitterBuffer<Integer>(1024);
+        Integer value = 0;
+
+        long start = System.nanoTime();
+        int batch = 0;
+        for (int arrival : arrivals) {
+            buffer.put(arrival & 0xffff, value);
+            if (++batch == 300) {
+                while (buffer.poll() != null) {
+                }
+                batch = 0;
+            }
+        }
+        while (buffer.poll() != null) {
+        }
+        return (double) (System.nanoTime() - start) / arrivals.length;
+    }
+
+    private static double benchmarkLinkedSortedQueue(int[] arrivals) {
+        LinkedSortedQueue<Long, Integer> queue = new LinkedSortedQueue<Long, Integer>();
+        Integer value = 0;
+
+        long start = System.nanoTime();
+        int batch = 0;
+        for (int arrival : arrivals) {
+            queue.put((long) arrival * 352, value);
+            if (++batch == 300) {
+                while (queue.firstKeyValueRemove() != null) {
+                }
+                batch = 0;
+            }
+        }
+        while (queue.firstKeyValueRemove() != null) {
+        }
+        return (double) (System.nanoTime() - start) / arrivals.length;
+    }
+
+    @Test
+    public void testBenchmark() {
+        int packets = 1000000;
+        int[][] patterns = {inOrder(packets), reordered(packets, new Random(1)), bursty(packets)};
+        String[] names = {"in-order", "reordered", "bursty"};
+
+        // Warm up
+        benchmarkJitterBuffer(patterns[1]);
+        benchmarkLinkedSortedQueue(patterns[1]);
+
+        for (int p = 0; p < patterns.length; ++p) {
+            double jitterBuffer = benchmarkJitterBuffer(patterns[p]);
+            double linkedSortedQueue = benchmarkLinkedSortedQueue(patterns[p]);
+            System.out.println(names[p] + " arrival: SequenceJitterBuffer " + Math.round(jitterBuffer * 10) / 10.0
+                    + " ns/packet, LinkedSortedQueue " + Math.round(linkedSortedQueue * 10) / 10.0 + " ns/packet");
+        }
+    }
+}
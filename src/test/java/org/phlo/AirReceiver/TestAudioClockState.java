@@ -0,0 +1,183 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;
+
+public class TestAudioClockState {
+	private static final int ReaderThreads = 4;
+
+	/**
+	 * Minimal interface of the clock state, implemented by both
+	 * {@link AudioClockState} and the monitor-based baseline below
+	 */
+	private static interface ClockState {
+		long getNextFrameTime();
+		long addFramesWritten(long frames);
+	}
+
+	/**
+	 * Clock state guarded by a monitor, as the queues used to do it
+	 */
+	private static class SynchronizedClockState implements ClockState {
+		private long m_frameTimeOffset = 0;
+		private long m_framesWritten = 0;
+
+		@Override
+		public synchronized long getNextFrameTime() {
+			return m_frameTimeOffset + m_framesWritten;
+		}
+
+		@Override
+		public synchronized long addFramesWritten(final long frames) {
+			m_framesWritten += frames;
+			return m_framesWritten;
+		}
+	}
+
+	private static class SequenceLockClockState implements ClockState {
+		private final AudioClockState m_state = new AudioClockState();
+
+		@Override
+		public long getNextFrameTime() {
+			return m_state.getNextFrameTime();
+		}
+
+		@Override
+		public long addFramesWritten(final long frames) {
+			return m_state.addFramesWritten(frames);
+		}
+	}
+
+	@Test
+	public void testUpdates() {
+		final AudioClockState state = new AudioClockState();
+		Assert.assertEquals(0, state.getNextFrameTime());
+
+		Assert.assertEquals(352, state.addFramesWritten(352));
+		Assert.assertEquals(704, state.addFramesWritten(352));
+		Assert.assertEquals(704, state.getFramesWritten());
+
+		Assert.assertEquals(0, state.setFrameTimeOffset(1000));
+		Assert.assertEquals(1000, state.setFrameTimeOffset(2000));
+		Assert.assertEquals(2000, state.getFrameTimeOffset());
+		Assert.assertEquals(2704, state.getNextFrameTime());
+	}
+
+	@Test
+	public void testConcurrentReaders() throws InterruptedException {
+		final AudioClockState state = new AudioClockState();
+		state.setFrameTimeOffset(-1000);
+
+		final int updates = 200000;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+
+		/* Readers must see the next frame time grow monotonically */
+		final Thread[] readers = new Thread[ReaderThreads];
+		for(int i=0; i < readers.length; ++i) {
+			readers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long previous = Long.MIN_VALUE;
+					while (!done.get()) {
+						final long nextFrameTime = state.getNextFrameTime();
+						if ((nextFrameTime < previous) || (nextFrameTime < -1000) || (nextFrameTime > updates - 1000))
+							failed.set(true);
+						previous = nextFrameTime;
+					}
+				}
+			});
+			readers[i].start();
+		}
+
+		for(int i=0; i < updates; ++i)
+			state.addFramesWritten(1);
+
+		done.set(true);
+		for(final Thread reader: readers)
+			reader.join();
+
+		Assert.assertFalse(failed.get());
+		Assert.assertEquals(updates - 1000, state.getNextFrameTime());
+	}
+
+	@Test
+	public void testContention() throws InterruptedException {
+		System.out.println("Clock state updates with " + ReaderThreads + " readers on " + Runtime.getRuntime().availableProcessors() + " available processors");
+
+		/* The first run is a warm up */
+		for(int run=0; run < 2; ++run) {
+			measureWriter("monitor", new SynchronizedClockState(), run > 0);
+			measureWriter("sequence lock", new SequenceLockClockState(), run > 0);
+		}
+	}
+
+	/**
+	 * Measures the average and the longest time the writer takes to update
+	 * the state while {@link #ReaderThreads} threads read it continuously.
+	 * The longest time shows how long the writer was blocked by readers
+	 *
+	 * @param name name of the state's implementation
+	 * @param state state to update
+	 * @param report whether to print the results
+	 */
+	private void measureWriter(final String name, final ClockState state, final boolean report) throws InterruptedException {
+		final int updates = 1000000;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicLong reads = new AtomicLong(0);
+
+		final Thread[] readers = new Thread[ReaderThreads];
+		for(int i=0; i < readers.length; ++i) {
+			readers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long count = 0;
+					while (!done.get()) {
+						state.getNextFrameTime();
+						++count;
+					}
+					reads.addAndGet(count);
+				}
+			});
+			readers[i].start();
+		}
+
+		long maxNanos = 0;
+		final long start = System.nanoTime();
+		for(int i=0; i < updates; ++i) {
+			final long updateStart = System.nanoTime();
+			state.addFramesWritten(1);
+			maxNanos = Math.max(maxNanos, System.nanoTime() - updateStart);
+		}
+		final long end = System.nanoTime();
+
+		done.set(true);
+		for(final Thread reader: readers)
+			reader.join();
+
+		Assert.assertEquals(updates, state.getNextFrameTime());
+		Assert.assertTrue(reads.get() > 0);
+
+		if (report)
+			System.out.println("Writer with " + name + " takes " + (end - start) / updates + " ns per update on average, at most " + maxNanos / 1000 + " us");
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.*;
+
+public class TestAudioOutputQueue {
+	private static final int FramesPerPacket = 352;
+	private static final int BytesPerFrame = 4;
+
+	private static final AudioStreamInformationProvider StreamInfo = new AudioStreamInformationProvider() {
+		@Override
+		public AudioFormat getAudioFormat() {
+			return new AudioFormat(44100, 16, 2, true, false);
+		}
+
+		@Override
+		public int getFramesPerPacket() {
+			return FramesPerPacket;
+		}
+
+		@Override
+		public double getPacketsPerSecond() {
+			return 44100.0 / FramesPerPacket;
+		}
+	};
+
+	private static Set<Thread> findThreads(final String name) {
+		final Set<Thread> threads = new HashSet<Thread>();
+		for(final Thread thread: Thread.getAllStackTraces().keySet()) {
+			if (name.equals(thread.getName()))
+				threads.add(thread);
+		}
+		return threads;
+	}
+
+	/**
+	 * Streams packets in real time through a queue writing to a {@link NullAudioSink},
+	 * and checks that neither the enqueuer thread nor {@link AudioOutputQueue#enqueue}
+	 * allocate once they reached a steady state. Packets are skipped during the
+	 * warm-up period only. Since the enqueuer
+	 * logs warnings about gaps and late packets, the measurement starts over whenever
+	 * the queue logged something, e.g. because the feeding thread was starved
+	 */
+	@Test
+	public void testSteadyStateAllocation() throws Exception {
+		final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+		Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+
+		final AtomicInteger logRecords = new AtomicInteger(0);
+		final Handler logCounter = new Handler() {
+			@Override
+			public void publish(final LogRecord record) {
+				logRecords.incrementAndGet();
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		final Logger queueLogger = Logger.getLogger(AudioOutputQueue.class.getName());
+		queueLogger.addHandler(logCounter);
+
+		/* Other tests may have left enqueuer threads behind, so look for the new one */
+		final Set<Thread> otherEnqueuers = findThreads("Audio Enqueuer");
+		System.setProperty(AudioSinks.AudioSinkProperty, "null");
+		final AudioOutputQueue queue;
+		try {
+			queue = new AudioOutputQueue(StreamInfo);
+		}
+		finally {
+			System.clearProperty(AudioSinks.AudioSinkProperty);
+		}
+
+		try {
+			final Set<Thread> enqueuers = findThreads("Audio Enqueuer");
+			enqueuers.removeAll(otherEnqueuers);
+			Assert.assertEquals(1, enqueuers.size());
+			final long enqueuerId = enqueuers.iterator().next().getId();
+
+			final long producerId = Thread.currentThread().getId();
+			long enqueueBytes = 0;
+
+			final PcmBufferPool pool = new PcmBufferPool(FramesPerPacket * BytesPerFrame, 64);
+			long frameTime = queue.getNextFrameTime() + 4410;
+			final long warmUpEndFrameTime = frameTime + 11025;
+			final long startNanos = System.nanoTime();
+			long measureStartBytes = -1;
+			long measureStartEnqueueBytes = 0;
+			long measureStartNanos = 0;
+			int measureStartRecords = 0;
+			long measureEndBytes = -1;
+			long measureEndEnqueueBytes = 0;
+			long measureEndNanos = 0;
+			long allocatedBytes = -1;
+			long allocatedEnqueueBytes = -1;
+			double seconds = 0;
+			while (true) {
+				/* Keep about 0.2 seconds queued */
+				while (frameTime - queue.getNextFrameTime() < 8820) {
+					if ((frameTime >= warmUpEndFrameTime) || ((frameTime / FramesPerPacket) % 8 != 4)) {
+						final PcmBuffer buffer = pool.acquire();
+						buffer.setLength(FramesPerPacket * BytesPerFrame);
+						buffer.setFrameTime(frameTime);
+
+						/* Only enqueue() is measured on this thread */
+						final long enqueueStartBytes = allocationBean.getThreadAllocatedBytes(producerId);
+						queue.enqueue(buffer);
+						enqueueBytes += allocationBean.getThreadAllocatedBytes(producerId) - enqueueStartBytes;
+					}
+					frameTime += FramesPerPacket;
+				}
+
+				/* Measure for 1.5 seconds after a warm-up period, starting over whenever the
+				 * queue logged something. The allocated bytes are read before the log records
+				 * are counted, and are accepted only if no record appeared one round later.
+				 * The queue's code is still being compiled during the first seconds, which
+				 * may allocate a few bytes once, so a window which saw allocations is
+				 * measured again until the time is up
+				 */
+				final long nowNanos = System.nanoTime();
+				if (nowNanos - startNanos >= 10000000000L) {
+					Assert.assertTrue("No steady state without log messages within 10 seconds", allocatedBytes >= 0);
+					break;
+				}
+				if (nowNanos - startNanos > 1000000000L) {
+					final long bytes = allocationBean.getThreadAllocatedBytes(enqueuerId);
+					final int records = logRecords.get();
+					if ((measureStartBytes < 0) || (records != measureStartRecords)) {
+						measureStartBytes = bytes;
+						measureStartEnqueueBytes = enqueueBytes;
+						measureStartNanos = nowNanos;
+						measureStartRecords = records;
+						measureEndBytes = -1;
+					}
+					else if (measureEndBytes >= 0) {
+						allocatedBytes = measureEndBytes - measureStartBytes;
+						allocatedEnqueueBytes = measureEndEnqueueBytes - measureStartEnqueueBytes;
+						seconds = (measureEndNanos - measureStartNanos) * 1e-9;
+						if ((allocatedBytes == 0) && (allocatedEnqueueBytes == 0))
+							break;
+						measureStartBytes = -1;
+					}
+					else if (nowNanos - measureStartNanos > 1500000000L) {
+						measureEndBytes = bytes;
+						measureEndEnqueueBytes = enqueueBytes;
+						measureEndNanos = nowNanos;
+					}
+				}
+
+				Thread.sleep(5);
+			}
+			System.out.println("AudioOutputQueue: enqueuer allocated " + allocatedBytes + " bytes, enqueue() " + allocatedEnqueueBytes + " bytes in " + Math.round(seconds * 1000) / 1000.0 + " seconds of steady state");
+
+			Assert.assertEquals(0, allocatedBytes);
+			Assert.assertEquals(0, allocatedEnqueueBytes);
+		}
+		finally {
+			queue.close();
+			queueLogger.removeHandler(logCounter);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phlo.AirReceiver;
+
+import java.io.File;
+
+import javax.sound.sampled.*;
+
+import org.junit.*;
+
+public class TestAudioSinks {
+	private static final AudioFormat Format = new AudioFormat(44100, 16, 2, true, true);
+
+	@Test
+	public void testUnthrottledClock() {
+		final AudioSink sink = new NullAudioSink(Format, 4096, false);
+		sink.start();
+
+		/* Writes far more than the buffer holds without blocking */
+		final byte[] samples = new byte[44100 * 4];
+		final long start = System.nanoTime();
+		Assert.assertEquals(samples.length, sink.write(samples, 0, samples.length));
+		Assert.assertTrue(System.nanoTime() - start < 500000000L);
+		Assert.assertEquals(44100, sink.getLongFramePosition());
+		Assert.assertEquals(4096, sink.available());
+		sink.close();
+	}
+
+	@Test
+	public void testRealTimeClock() throws Exception {
+		final AudioSink sink = new NullAudioSink(Format, 4410 * 4, true);
+
+		/* The clock doesn't run before the sink is started */
+		final byte[] samples = new byte[4410 * 4];
+		sink.write(samples, 0, samples.length);
+		Thread.sleep(20);
+		Assert.assertEquals(0, sink.getLongFramePosition());
+		Assert.assertEquals(0, sink.available());
+
+		/* Writing 0.3 seconds into a 0.1 second buffer blocks for about 0.2 seconds */
+		sink.start();
+		final long start = System.nanoTime();
+		sink.write(samples, 0, samples.length);
+		sink.write(samples, 0, samples.length);
+		final double seconds = (System.nanoTime() - start) * 1e-9;
+		Assert.assertTrue("blocked for " + seconds + " seconds", (seconds > 0.15) && (seconds < 0.5));
+		Assert.assertTrue(sink.getLongFramePosition() >= 4410 * 2 * 0.9);
+
+		/* The clock stops once the buffered samples were played */
+		Thread.sleep(200);
+		Assert.assertEquals(4410 * 3, sink.getLongFramePosition());
+		Thread.sleep(20);
+		Assert.assertEquals(4410 * 3, sink.getLongFramePosition());
+		sink.close();
+	}
+
+	@Test
+	public void testWavFile() throws Exception {
+		final File file = File.createTempFile("TestAudioSinks", ".wav");
+		file.deleteOnExit();
+
+		final AudioSink sink = new WavFileAudioSink(Format, 4096, false, file);
+		sink.start();
+		final short[] expected = { 0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 0x1234 };
+		final byte[] samples = new byte[expected.length * 2];
+		for(int i=0; i < expected.length; ++i) {
+			samples[2*i] = (byte)(expected[i] >> 8);
+			samples[2*i + 1] = (byte)expected[i];
+		}
+		sink.write(samples, 0, samples.length);
+		sink.write(samples, 0, samples.length);
+		sink.close();
+
+		final AudioInputStream stream = AudioSystem.getAudioInputStream(file);
+		try {
+			Assert.assertEquals(44100.0f, stream.getFormat().getSampleRate(), 0.0f);
+			Assert.assertEquals(2, stream.getFormat().getChannels());
+			Assert.assertEquals(16, stream.getFormat().getSampleSizeInBits());
+			Assert.assertFalse(stream.getFormat().isBigEndian());
+			Assert.assertEquals(expected.length, stream.getFrameLength());
+
+			final byte[] data = new byte[samples.length * 2 + 4];
+			Assert.assertEquals(samples.length * 2, stream.read(data));
+			for(int i=0; i < expected.length * 2; ++i)
+				Assert.assertEquals(expected[i % expected.length], (short)((data[2*i] & 0xff) | (data[2*i + 1] << 8)));
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void testPreferredFormat() {
+		final AudioFormat unsignedFormat = new AudioFormat(44100, 16, 2, false, true);
+		try {
+			/* WAV files hold signed little endian samples */
+			System.setProperty(AudioSinks.AudioSinkProperty, "wav:/dev/null");
+			final AudioFormat wavFormat = AudioSinks.getPreferredFormat(unsignedFormat);
+			Assert.assertEquals(AudioFormat.Encoding.PCM_SIGNED, wavFormat.getEncoding());
+			Assert.assertFalse(wavFormat.isBigEndian());
+			Assert.assertEquals(16, wavFormat.getSampleSizeInBits());
+			Assert.assertEquals(2, wavFormat.getChannels());
+			Assert.assertEquals(44100.0f, wavFormat.getSampleRate(), 0.0f);
+
+			/* The null sink takes any byte order */
+			System.setProperty(AudioSinks.AudioSinkProperty, "null");
+			final AudioFormat nullFormat = AudioSinks.getPreferredFormat(unsignedFormat);
+			Assert.assertEquals(AudioFormat.Encoding.PCM_SIGNED, nullFormat.getEncoding());
+			Assert.assertTrue(nullFormat.isBigEndian());
+		}
+		finally {
+			System.clearProperty(AudioSinks.AudioSinkProperty);
+		}
+	}
+
+	@Test
+	public void testResampling() throws Exception {
+		try {
+			System.setProperty(AudioSinks.AudioSinkProperty, "null");
+			System.setProperty(AudioSinks.AudioSinkRealTimeProperty, "false");
+			System.setProperty(AudioSinks.AudioSinkSampleRateProperty, "48000");
+			final AudioSink sink = AudioSinks.open(Format, 4410 * 4);
+			Assert.assertTrue(sink instanceof ResamplingAudioSink);
+			Assert.assertEquals(Format, sink.getFormat());
+			Assert.assertEquals(16.0 / 44100.0, sink.getLatency(), 1e-9);
+			Assert.assertEquals(4410 * 4, sink.getBufferSize());
+
+			/* The position is reported in frames at the rate of the written samples */
+			sink.start();
+			final byte[] samples = new byte[44100 * 4];
+			Assert.assertEquals(samples.length, sink.write(samples, 0, samples.length));
+			Assert.assertEquals(44100, sink.getLongFramePosition());
+			sink.close();
+		}
+		finally {
+			System.clearProperty(AudioSinks.AudioSinkProperty);
+			System.clearProperty(AudioSinks.AudioSinkRealTimeProperty);
+			System.clearProperty(AudioSinks.AudioSinkSampleRateProperty);
+		}
+	}
+}
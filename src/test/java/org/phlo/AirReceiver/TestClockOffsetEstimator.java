@@ -0,0 +1,84 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+
+import org.junit.*;
+
+public class TestClockOffsetEstimator {
+	/**
+	 * Adds a sample of a remote clock with the given offset at time zero and skew,
+	 * whose request was delayed by the given number of seconds more than the response
+	 */
+	private static void add(final ClockOffsetEstimator estimator, final double localTime, final double offset, final double skew, final double roundTripTime, final double requestDelay) {
+		estimator.add(localTime, offset + skew * localTime + 0.5 * requestDelay, roundTripTime + requestDelay);
+	}
+
+	@Test
+	public void testEmpty() {
+		final ClockOffsetEstimator estimator = new ClockOffsetEstimator(10, 0.005);
+		Assert.assertTrue(estimator.isEmpty());
+		Assert.assertTrue(Double.isNaN(estimator.getOffset(0.0)));
+		Assert.assertEquals(0.0, estimator.getSkew(), 0.0);
+
+		estimator.add(100.0, 5.0, 0.001);
+		Assert.assertFalse(estimator.isEmpty());
+		Assert.assertEquals(5.0, estimator.getOffset(100.0), 1e-12);
+		Assert.assertEquals(5.0, estimator.getOffset(200.0), 1e-12);
+		Assert.assertEquals(0.001, estimator.getMinRoundTripTime(), 1e-12);
+	}
+
+	@Test
+	public void testDelayedResponse() {
+		final ClockOffsetEstimator estimator = new ClockOffsetEstimator(300, 0.005);
+		for(int i=0; i < 10; ++i)
+			add(estimator, 0.2 * i, 1000.0, 0.0, 0.001, 0.0);
+
+		/* A request delayed by 100 ms would pull the offset by 50 ms, but is ignored */
+		add(estimator, 2.0, 1000.0, 0.0, 0.001, 0.1);
+		Assert.assertEquals(1000.0, estimator.getOffset(2.0), 1e-9);
+
+		/* One delayed by 2 ms is within the tolerance, but weighted down */
+		add(estimator, 2.2, 1000.0, 0.0, 0.001, 0.002);
+		Assert.assertEquals(1000.0, estimator.getOffset(2.2), 1e-4);
+		Assert.assertEquals(12, estimator.size());
+	}
+
+	@Test
+	public void testSkew() {
+		final ClockOffsetEstimator estimator = new ClockOffsetEstimator(300, 0.005);
+		final Random random = new Random(0);
+		final double skew = 50e-6;
+
+		/* Round-trip times vary between 1 and 3 ms, and one in ten requests is held up for 20 ms */
+		for(int i=0; i < 600; ++i) {
+			final double delay = (random.nextInt(10) == 0) ? 0.02 : random.nextDouble() * 0.002;
+			add(estimator, 0.2 * i, -3.5, skew, 0.001, delay);
+
+			/* The skew is only estimated once the samples span a few seconds */
+			if (i < 10)
+				Assert.assertEquals(0.0, estimator.getSkew(), 0.0);
+		}
+		Assert.assertEquals(300, estimator.size());
+
+		/* Within 10 ppm, and the offset extrapolated a second ahead within 0.5 ms */
+		Assert.assertEquals(skew, estimator.getSkew(), 10e-6);
+		Assert.assertEquals(-3.5 + skew * 121.0, estimator.getOffset(121.0), 0.5e-3);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.*;
+
+public class TestDriftCorrector {
+	private static final int FramesPerPacket = 352;
+
+	/**
+	 * Passes a constant signal through the corrector, and checks that the
+	 * samples come back unchanged in the format they were passed in
+	 */
+	private static void testConstant(final boolean signed, final boolean bigEndian) {
+		final AudioFormat format = new AudioFormat(44100, 16, 2, signed, bigEndian);
+		final DriftCorrector corrector = new DriftCorrector(format, FramesPerPacket);
+		final int high = bigEndian ? 0 : 1;
+		final int low = 1 - high;
+		final int flip = signed ? 0 : 0x8000;
+
+		final byte[] packet = new byte[FramesPerPacket * 4];
+		for(int i=0; i < FramesPerPacket * 2; ++i) {
+			final int sample = ((i % 2 == 0) ? 1000 : -1000) ^ flip;
+			packet[2*i + high] = (byte)(sample >> 8);
+			packet[2*i + low] = (byte)sample;
+		}
+
+		for(int p=0; p < 10; ++p) {
+			final int frames = corrector.process(packet, 0, FramesPerPacket, 0.0);
+			final byte[] output = corrector.getOutput();
+
+			/* Skip the resampler's warm-up */
+			if (p == 0)
+				continue;
+			for(int i=0; i < frames * 2; ++i) {
+				final int sample = (short)((((output[2*i + high] & 0xff) << 8) | (output[2*i + low] & 0xff)) ^ flip);
+				Assert.assertEquals((i % 2 == 0) ? 1000 : -1000, sample, 2);
+			}
+		}
+	}
+
+	@Test
+	public void testFormats() {
+		testConstant(true, false);
+		testConstant(true, true);
+		testConstant(false, false);
+		testConstant(false, true);
+	}
+
+	@Test
+	public void testUnsupportedFormat() {
+		Assert.assertFalse(DriftCorrector.isSupported(new AudioFormat(44100, 8, 2, true, false)));
+		Assert.assertTrue(DriftCorrector.isSupported(new AudioFormat(44100, 16, 2, false, true)));
+	}
+
+	/**
+	 * Samples due after the line's end must be stretched, samples due before it shortened
+	 */
+	@Test
+	public void testErrorAdjustsRate() {
+		final AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		final byte[] packet = new byte[FramesPerPacket * 4];
+
+		for(final double error: new double[] { DriftCorrector.MaxErrorSeconds, -DriftCorrector.MaxErrorSeconds }) {
+			final DriftCorrector corrector = new DriftCorrector(format, FramesPerPacket);
+			long outputFrames = 0;
+			for(int p=0; p < 1000; ++p)
+				outputFrames += corrector.process(packet, 0, FramesPerPacket, error);
+
+			/* The ratio saturates at a deviation of 0.1% right away */
+			final long inputFrames = 1000L * FramesPerPacket;
+			Assert.assertEquals(inputFrames / (1.0 - Math.signum(error) * 0.001), outputFrames, 64);
+			Assert.assertTrue(error * corrector.getDrift() > 0.0);
+		}
+	}
+}
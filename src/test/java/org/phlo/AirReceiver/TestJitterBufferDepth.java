@@ -0,0 +1,113 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestJitterBufferDepth {
+	private static final double SampleRate = 44100;
+	private static final int FramesPerPacket = 352;
+	private static final double PacketSeconds = FramesPerPacket / SampleRate;
+
+	@Test
+	public void testNoJitter() {
+		final JitterBufferDepth depth = new JitterBufferDepth(JitterBufferDepth.Policy.Balanced, SampleRate);
+		Assert.assertEquals(0.25, depth.getTargetSeconds(), 1e-9);
+
+		/* Packets arriving exactly at the sample rate, with a constant transit time */
+		for(int p=0; p < 1000; ++p)
+			depth.packetArrived(p * FramesPerPacket, Math.round((1.0 + p * PacketSeconds) * 1e9), true);
+
+		Assert.assertEquals(0.0, depth.getJitterSeconds(), 1e-6);
+		Assert.assertEquals(0.25, depth.getTargetSeconds(), 1e-6);
+	}
+
+	@Test
+	public void testJitter() {
+		final JitterBufferDepth depth = new JitterBufferDepth(JitterBufferDepth.Policy.Balanced, SampleRate);
+
+		/* Transit time alternating between 0 and 10ms, i.e. |D| = 10ms for every packet */
+		for(int p=0; p < 1000; ++p)
+			depth.packetArrived(p * FramesPerPacket, Math.round((1.0 + p * PacketSeconds + (p % 2) * 0.01) * 1e9), true);
+
+		Assert.assertEquals(0.01, depth.getJitterSeconds(), 1e-4);
+		Assert.assertEquals(0.25 + 4 * 0.01, depth.getTargetSeconds(), 1e-3);
+	}
+
+	@Test
+	public void testRecovery() {
+		final JitterBufferDepth depth = new JitterBufferDepth(JitterBufferDepth.Policy.Robust, SampleRate);
+
+		for(int p=0; p < 1000; ++p) {
+			final long arrival = Math.round((1.0 + p * PacketSeconds) * 1e9);
+			if (p % 10 == 5) {
+				/* Packet lost, its retransmit arrives 200ms later */
+				depth.packetArrived(p * FramesPerPacket, arrival + 200000000L, false);
+			}
+			else {
+				depth.packetArrived(p * FramesPerPacket, arrival, true);
+			}
+		}
+
+		/* The retransmit arrives after 200ms, while the in-order stream's latest packet
+		 * is about 200ms newer, so it's late by roughly 200ms
+		 */
+		Assert.assertEquals(0.2, depth.getRecoverySeconds(), PacketSeconds * 2);
+		Assert.assertTrue(depth.getTargetSeconds() > 0.75 + 2 * 0.19);
+		Assert.assertTrue(depth.getTargetSeconds() <= JitterBufferDepth.Policy.Robust.getMaxSeconds());
+	}
+
+	@Test
+	public void testReset() {
+		final JitterBufferDepth depth = new JitterBufferDepth(JitterBufferDepth.Policy.Balanced, SampleRate);
+
+		for(int p=0; p < 1000; ++p)
+			depth.packetArrived(p * FramesPerPacket, Math.round((1.0 + p * PacketSeconds) * 1e9), true);
+
+		/* A 30 second pause, after which the RTP time jumps ahead by an hour */
+		depth.reset();
+		final long resumeFrameTime = 1000L * FramesPerPacket + Math.round(3600 * SampleRate);
+		final double resumeSeconds = 1.0 + 1000 * PacketSeconds + 30.0;
+		for(int p=0; p < 1000; ++p)
+			depth.packetArrived(resumeFrameTime + p * FramesPerPacket, Math.round((resumeSeconds + p * PacketSeconds) * 1e9), true);
+
+		Assert.assertEquals(0.0, depth.getJitterSeconds(), 1e-6);
+		Assert.assertEquals(0.25, depth.getTargetSeconds(), 1e-6);
+	}
+
+	@Test
+	public void testPolicyProperty() {
+		try {
+			System.setProperty(JitterBufferDepth.PolicyProperty, "low-latency");
+			Assert.assertEquals(JitterBufferDepth.Policy.LowLatency, JitterBufferDepth.Policy.fromSystemProperty());
+			System.clearProperty(JitterBufferDepth.PolicyProperty);
+			Assert.assertEquals(JitterBufferDepth.Policy.Balanced, JitterBufferDepth.Policy.fromSystemProperty());
+			System.setProperty(JitterBufferDepth.PolicyProperty, "bogus");
+			try {
+				JitterBufferDepth.Policy.fromSystemProperty();
+				Assert.fail("Unknown policy should fail");
+			}
+			catch (final IllegalArgumentException e) {
+				/* Expected */
+			}
+		}
+		finally {
+			System.clearProperty(JitterBufferDepth.PolicyProperty);
+		}
+	}
+}
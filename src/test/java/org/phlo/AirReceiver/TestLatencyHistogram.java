@@ -0,0 +1,75 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.phlo.AirReceiver;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+
+public class TestLatencyHistogram {
+	@Test
+	public void testEmpty() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getPercentileNanos(50));
+		Assert.assertEquals(0, histogram.getMaxNanos());
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for(int i=1; i <= 10; ++i)
+			histogram.add(i);
+
+		Assert.assertEquals(10, histogram.getCount());
+		Assert.assertEquals(5, histogram.getPercentileNanos(50));
+		Assert.assertEquals(10, histogram.getPercentileNanos(100));
+		Assert.assertEquals(10, histogram.getMaxNanos());
+	}
+
+	@Test
+	public void testPercentileAccuracy() {
+		final Random random = new Random(1);
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final long[] latencies = new long[100000];
+		for(int i=0; i < latencies.length; ++i) {
+			/* Log-normally distributed around 2ms */
+			latencies[i] = Math.round(2e6 * Math.exp(random.nextGaussian()));
+			histogram.add(latencies[i]);
+		}
+		Arrays.sort(latencies);
+
+		for(final double percentile: new double[] { 1, 50, 90, 99, 99.9 }) {
+			final long exact = latencies[(int)Math.ceil(latencies.length * percentile / 100.0) - 1];
+			final long estimate = histogram.getPercentileNanos(percentile);
+			Assert.assertTrue("p" + percentile + " estimated as " + estimate + " but is " + exact, estimate >= exact);
+			Assert.assertTrue("p" + percentile + " estimated as " + estimate + " but is " + exact, estimate <= exact * 1.125);
+		}
+		Assert.assertEquals(latencies[latencies.length - 1], histogram.getMaxNanos());
+	}
+
+	@Test
+	public void testExtremes() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		histogram.add(-5);
+		histogram.add(Long.MAX_VALUE);
+
+		Assert.assertEquals(0, histogram.getPercentileNanos(50));
+		Assert.assertEquals(Long.MAX_VALUE, histogram.getPercentileNanos(100));
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestLinePositionEstimator {
+	private static final double SampleRate = 44100.0;
+
+	@Test
+	public void testInterpolation() {
+		final LinePositionEstimator estimator = new LinePositionEstimator(SampleRate);
+
+		/* The line reports its position in steps of 441 frames, i.e. every 10 ms. The
+		 * estimate is queried every 0.1 ms, and stays within one step of the truth
+		 */
+		double previous = Double.NEGATIVE_INFINITY;
+		double maxError = 0.0;
+		for(long nanoTime=0; nanoTime < 1000000000L; nanoTime += 100000L) {
+			final double truePosition = nanoTime * 1e-9 * SampleRate;
+			final long linePosition = (long)(truePosition / 441) * 441;
+			final double position = estimator.getPosition(linePosition, nanoTime);
+
+			Assert.assertTrue(position >= previous);
+			if (nanoTime >= 20000000L)
+				maxError = Math.max(maxError, Math.abs(position - truePosition));
+			previous = position;
+		}
+
+		/* Once a step was seen, the estimate tracks the position to within the query interval */
+		Assert.assertTrue("Error of " + maxError + " frames", maxError < 0.2e-3 * SampleRate);
+	}
+
+	@Test
+	public void testStall() {
+		final LinePositionEstimator estimator = new LinePositionEstimator(SampleRate);
+		estimator.getPosition(0, 0);
+		estimator.getPosition(441, 10000000L);
+
+		/* A stalled line is extrapolated by at most one step */
+		Assert.assertEquals(441.0 + 220.5, estimator.getPosition(441, 15000000L), 1e-6);
+		Assert.assertEquals(882.0, estimator.getPosition(441, 1000000000L), 1e-6);
+
+		/* The estimate doesn't go back when the line catches up */
+		Assert.assertEquals(882.0, estimator.getPosition(500, 1000000000L), 1e-6);
+		Assert.assertEquals(900.0, estimator.getPosition(900, 1000000000L), 1e-6);
+	}
+
+	@Test
+	public void testReset() {
+		final LinePositionEstimator estimator = new LinePositionEstimator(SampleRate);
+		estimator.getPosition(0, 0);
+		estimator.getPosition(44100, 1000000000L);
+
+		/* A line reset starts over, without extrapolating */
+		Assert.assertEquals(0.0, estimator.getPosition(0, 2000000000L), 0.0);
+		Assert.assertEquals(0.0, estimator.getPosition(0, 2010000000L), 0.0);
+	}
+
+	@Test
+	public void testMonotonicClock() {
+		double previous = MonotonicClock.getNowSecondsTime();
+		Assert.assertEquals(MonotonicClock.NtpEpochOffset + System.currentTimeMillis() * 1e-3, previous, 1.0);
+		for(int i=0; i < 100000; ++i) {
+			final double now = MonotonicClock.getNowSecondsTime();
+			Assert.assertTrue(now >= previous);
+			previous = now;
+		}
+	}
+}
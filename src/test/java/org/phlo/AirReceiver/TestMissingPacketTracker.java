@@ -0,0 +1,240 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.*;
+
+public class TestMissingPacketTracker {
+	@Test
+	public void testAddRemove() {
+		final MissingPacketTracker tracker = new MissingPacketTracker(16, 0.005);
+
+		Assert.assertTrue(tracker.add(5, 100, 1.0, 0.5));
+		Assert.assertFalse(tracker.add(5, 200, 2.0, 1.5));
+		Assert.assertTrue(tracker.contains(5));
+		Assert.assertEquals(1, tracker.size());
+		Assert.assertEquals(100, tracker.getRequiredUntilFrameTime(5));
+		Assert.assertEquals(1.0, tracker.getRequiredUntilSecondsTime(5), 0.0);
+		Assert.assertEquals(0.5, tracker.getExpectedUntilSecondsTime(5), 0.0);
+
+		tracker.sentRetransmitRequest(5, 0.25, 0.75);
+		Assert.assertEquals(1, tracker.getRetransmitRequestCount(5));
+		Assert.assertEquals(0.25, tracker.getRequestSecondsTime(5), 0.0);
+		Assert.assertEquals(0.75, tracker.getExpectedUntilSecondsTime(5), 0.0);
+
+		Assert.assertTrue(tracker.remove(5));
+		Assert.assertFalse(tracker.remove(5));
+		Assert.assertFalse(tracker.contains(5));
+		Assert.assertEquals(0, tracker.size());
+		Assert.assertEquals(MissingPacketTracker.None, tracker.first());
+
+		/* Re-adding resets the retransmit count */
+		tracker.add(5, 100, 1.0, 0.5);
+		Assert.assertEquals(0, tracker.getRetransmitRequestCount(5));
+	}
+
+	@Test
+	public void testOrder() {
+		final MissingPacketTracker tracker = new MissingPacketTracker(16, 0.005);
+
+		/* Wraps around */
+		final int[] sequences = { 0xfffe, 0xffff, 0, 1, 2 };
+		for(final int sequence: sequences)
+			tracker.add(sequence, 0, 0.0, 0.0);
+
+		/* Remove the head, a middle and the tail entry while iterating */
+		int index = 0;
+		int next;
+		for(int sequence = tracker.first(); sequence != MissingPacketTracker.None; sequence = next) {
+			next = tracker.next(sequence);
+			Assert.assertEquals(sequences[index++], sequence);
+			if ((sequence == 0xfffe) || (sequence == 0) || (sequence == 2))
+				tracker.remove(sequence);
+		}
+		Assert.assertEquals(sequences.length, index);
+
+		Assert.assertEquals(2, tracker.size());
+		Assert.assertEquals(0xffff, tracker.first());
+		Assert.assertEquals(1, tracker.next(0xffff));
+		Assert.assertEquals(MissingPacketTracker.None, tracker.next(1));
+
+		tracker.add(7, 0, 0.0, 0.0);
+		Assert.assertEquals(7, tracker.next(1));
+
+		tracker.clear();
+		Assert.assertEquals(0, tracker.size());
+		Assert.assertEquals(MissingPacketTracker.None, tracker.first());
+		Assert.assertFalse(tracker.contains(0xffff));
+		Assert.assertFalse(tracker.contains(7));
+	}
+
+	@Test
+	public void testExpire() {
+		final MissingPacketTracker tracker = new MissingPacketTracker(16, 0.01);
+		final int[] due = new int[16];
+
+		/* Deadline is the earlier of the expected and the required time */
+		tracker.add(1, 0, 100.25, 100.105);
+		tracker.add(2, 0, 100.055, 100.5);
+		tracker.add(3, 0, 103.0, 102.0);
+
+		Assert.assertEquals(0, tracker.expire(100.0, due));
+		Assert.assertEquals(0, tracker.expire(100.055, due));
+		/* Fires once the tick containing the deadline ended */
+		Assert.assertEquals(1, tracker.expire(100.06, due));
+		Assert.assertEquals(2, due[0]);
+		Assert.assertEquals(0, tracker.expire(100.06, due));
+		Assert.assertTrue(tracker.contains(2));
+
+		/* Expired packets stay tracked but don't fire again until re-scheduled */
+		Assert.assertEquals(1, tracker.expire(100.2, due));
+		Assert.assertEquals(1, due[0]);
+		tracker.sentRetransmitRequest(1, 100.2, 100.22);
+		/* A deadline in an already expired tick fires with the next one */
+		tracker.sentRetransmitRequest(2, 100.2, 100.0);
+		Assert.assertEquals(0, tracker.expire(100.205, due));
+		Assert.assertEquals(2, tracker.expire(100.23, due));
+
+		/* Removed packets don't fire. Packet 3 fires after more than a revolution */
+		tracker.add(4, 0, 101.0, 101.0);
+		tracker.remove(4);
+		Assert.assertEquals(0, tracker.expire(101.5, due));
+		Assert.assertEquals(1, tracker.expire(102.5, due));
+		Assert.assertEquals(3, due[0]);
+	}
+
+	@Test
+	public void testExpireOverflow() {
+		final MissingPacketTracker tracker = new MissingPacketTracker(16, 0.01);
+		for(int sequence=0; sequence < 10; ++sequence)
+			tracker.add(sequence, 0, 1.0, 0.5);
+
+		final int[] due = new int[4];
+		Assert.assertEquals(4, tracker.expire(1.0, due));
+		Assert.assertEquals(4, tracker.expire(1.0, due));
+		Assert.assertEquals(2, tracker.expire(1.0, due));
+		Assert.assertEquals(0, tracker.expire(1.0, due));
+		Assert.assertEquals(10, tracker.size());
+	}
+
+	@Test
+	public void testCapacity() {
+		final MissingPacketTracker tracker = new MissingPacketTracker(3, 0.005);
+		Assert.assertEquals(3, tracker.getCapacity());
+
+		tracker.add(1, 0, 0.0, 0.0);
+		tracker.add(2, 0, 0.0, 0.0);
+		tracker.add(3, 0, 0.0, 0.0);
+		Assert.assertFalse(tracker.add(3, 0, 0.0, 0.0));
+		try {
+			tracker.add(4, 0, 0.0, 0.0);
+			Assert.fail();
+		}
+		catch (final IllegalStateException e) {
+			/* Expected */
+		}
+
+		/* Removing a packet frees its entry */
+		tracker.remove(2);
+		Assert.assertTrue(tracker.add(4, 0, 0.0, 0.0));
+		Assert.assertEquals(1, tracker.first());
+		Assert.assertEquals(3, tracker.next(1));
+		Assert.assertEquals(4, tracker.next(3));
+	}
+
+	/**
+	 * Adds and removes random sequences, and compares the tracked
+	 * packets with those of a simple set
+	 */
+	@Test
+	public void testRandomAddRemove() {
+		final int capacity = 129;
+		final MissingPacketTracker tracker = new MissingPacketTracker(capacity, 0.005);
+		final Set<Integer> tracked = new LinkedHashSet<Integer>();
+		final Random random = new Random(0);
+
+		for(int i=0; i < 200000; ++i) {
+			/* Sequences from a small range, so that they collide in the index */
+			final int sequence = random.nextInt(4 * capacity) * 97 & 0xffff;
+			if (tracked.contains(sequence)) {
+				Assert.assertEquals(sequence, tracker.getRequiredUntilFrameTime(sequence));
+				Assert.assertTrue(tracker.remove(sequence));
+				tracked.remove(sequence);
+			}
+			else if (tracked.size() < capacity) {
+				Assert.assertTrue(tracker.add(sequence, sequence, 1.0, 1.0));
+				tracked.add(sequence);
+			}
+			else {
+				Assert.assertFalse(tracker.contains(sequence));
+			}
+			Assert.assertEquals(tracked.size(), tracker.size());
+		}
+
+		/* Every tracked packet is found, in the order it was added */
+		int sequence = tracker.first();
+		for(final int expected: tracked) {
+			Assert.assertTrue(tracker.contains(expected));
+			Assert.assertEquals(expected, sequence);
+			sequence = tracker.next(sequence);
+		}
+		Assert.assertEquals(MissingPacketTracker.None, sequence);
+	}
+
+	/**
+	 * Simulates a session with the given loss rate, each lost packet being retransmitted
+	 * after the given number of packets, and returns the nanoseconds spent per packet
+	 * marking and unmarking packets.
+	 */
+	private static double simulate(final double loss, final int inFlight, final int packets) {
+		final MissingPacketTracker tracker = new MissingPacketTracker(inFlight + 1, 0.005);
+		final Random random = new Random(0);
+
+		final long startNanos = System.nanoTime();
+		for(int p=0; p < packets; ++p) {
+			final int sequence = p & 0xffff;
+			if (random.nextDouble() < loss)
+				tracker.add(sequence, p, p, p);
+
+			/* The packet lost inFlight packets ago is retransmitted */
+			tracker.remove((p - inFlight) & 0xffff);
+		}
+		final long endNanos = System.nanoTime();
+
+		return (double)(endNanos - startNanos) / packets;
+	}
+
+	@Test
+	public void testConstantCost() {
+		final int packets = 2000000;
+
+		/* Warm up */
+		simulate(0.5, 64, packets);
+
+		for(final double loss: new double[] { 0.01, 0.1, 0.5 }) {
+			for(final int inFlight: new int[] { 4, 64, 1024 }) {
+				final double nanos = simulate(loss, inFlight, packets);
+				System.out.println("MissingPacketTracker: loss " + loss + ", " + inFlight + " packets in flight, " + Math.round(nanos * 10) / 10.0 + " ns per packet");
+			}
+		}
+	}
+}
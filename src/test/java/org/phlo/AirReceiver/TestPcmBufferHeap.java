@@ -0,0 +1,50 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+
+import org.junit.*;
+
+public class TestPcmBufferHeap {
+	@Test
+	public void testOrder() {
+		final PcmBufferPool pool = new PcmBufferPool(4, 1);
+		final PcmBufferHeap heap = new PcmBufferHeap(100);
+		final Random random = new Random(0);
+
+		for(int i=0; i < 100; ++i) {
+			final PcmBuffer buffer = pool.acquire();
+			buffer.setFrameTime(random.nextInt(50));
+			Assert.assertTrue(heap.add(buffer));
+		}
+		Assert.assertFalse(heap.add(pool.acquire()));
+		Assert.assertEquals(100, heap.size());
+
+		long previous = Long.MIN_VALUE;
+		for(int i=0; i < 100; ++i) {
+			final long frameTime = heap.peek().getFrameTime();
+			Assert.assertEquals(frameTime, heap.poll().getFrameTime());
+			Assert.assertTrue(frameTime >= previous);
+			previous = frameTime;
+		}
+		Assert.assertNull(heap.peek());
+		Assert.assertNull(heap.poll());
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestPcmBufferInbox {
+	@Test
+	public void testCapacity() {
+		final PcmBufferPool pool = new PcmBufferPool(4, 1);
+		final PcmBufferInbox inbox = new PcmBufferInbox(3);
+
+		/* Rounded up to four */
+		for(int i=0; i < 4; ++i)
+			Assert.assertTrue(inbox.offer(pool.acquire()));
+		Assert.assertFalse(inbox.offer(pool.acquire()));
+		Assert.assertEquals(4, inbox.getTail());
+
+		Assert.assertNotNull(inbox.poll());
+		Assert.assertEquals(1, inbox.getHead());
+		Assert.assertTrue(inbox.offer(pool.acquire()));
+	}
+
+	/**
+	 * Several producers offer buffers while one consumer polls. Every buffer must
+	 * arrive exactly once, and each producer's buffers in the order they were offered
+	 */
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final int producers = 4;
+		final int buffersPerProducer = 100000;
+		final PcmBufferPool pool = new PcmBufferPool(4, 1);
+		final PcmBufferInbox inbox = new PcmBufferInbox(64);
+
+		final Thread[] threads = new Thread[producers];
+		for(int p=0; p < producers; ++p) {
+			final int producer = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0; i < buffersPerProducer; ++i) {
+						final PcmBuffer buffer = pool.acquire();
+						buffer.setSequence(producer);
+						buffer.setFrameTime(i);
+						while (!inbox.offer(buffer))
+							Thread.yield();
+					}
+				}
+			});
+			threads[p].start();
+		}
+
+		final long[] next = new long[producers];
+		int received = 0;
+		while (received < producers * buffersPerProducer) {
+			final PcmBuffer buffer = inbox.poll();
+			if (buffer == null) {
+				Thread.yield();
+				continue;
+			}
+			Assert.assertEquals(next[buffer.getSequence()]++, buffer.getFrameTime());
+			++received;
+		}
+		for(final Thread thread: threads)
+			thread.join();
+
+		Assert.assertNull(inbox.poll());
+		for(int p=0; p < producers; ++p)
+			Assert.assertEquals(buffersPerProducer, next[p]);
+	}
+}
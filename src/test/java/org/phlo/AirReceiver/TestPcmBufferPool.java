@@ -0,0 +1,73 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestPcmBufferPool {
+	@Test
+	public void testReuse() {
+		final PcmBufferPool pool = new PcmBufferPool(1408, 2);
+
+		final PcmBuffer first = pool.acquire();
+		Assert.assertEquals(1408, first.getBytes().length);
+		Assert.assertEquals(0, first.getLength());
+		first.setLength(1408);
+		first.release();
+		Assert.assertEquals(1, pool.getFreeCount());
+
+		final PcmBuffer second = pool.acquire();
+		Assert.assertSame(first, second);
+		Assert.assertEquals(0, second.getLength());
+		Assert.assertEquals(0, pool.getFreeCount());
+		second.release();
+	}
+
+	@Test
+	public void testReferenceCounting() {
+		final PcmBufferPool pool = new PcmBufferPool(16, 2);
+
+		final PcmBuffer buffer = pool.acquire();
+		buffer.retain();
+		buffer.release();
+		Assert.assertEquals(0, pool.getFreeCount());
+		buffer.release();
+		Assert.assertEquals(1, pool.getFreeCount());
+
+		try {
+			buffer.release();
+			Assert.fail("Releasing a released buffer should fail");
+		}
+		catch (final IllegalStateException e) {
+			/* Expected */
+		}
+	}
+
+	@Test
+	public void testCapacity() {
+		final PcmBufferPool pool = new PcmBufferPool(16, 2);
+
+		final PcmBuffer[] buffers = new PcmBuffer[3];
+		for(int i=0; i < buffers.length; ++i)
+			buffers[i] = pool.acquire();
+		for(final PcmBuffer buffer: buffers)
+			buffer.release();
+
+		Assert.assertEquals(2, pool.getFreeCount());
+	}
+}
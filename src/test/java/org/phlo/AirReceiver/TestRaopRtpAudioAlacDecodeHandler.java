@@ -0,0 +1,139 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.*;
+
+public class TestRaopRtpAudioAlacDecodeHandler {
+	private static final int FramesPerPacket = 352;
+
+	private static final String[] FormatOptions = {
+		Integer.toString(FramesPerPacket), "0", "16", "40", "10", "14", "2", "255", "0", "0", "44100"
+	};
+
+	/**
+	 * Builds an uncompressed stereo ALAC frame containing the given samples
+	 *
+	 * @param samples interleaved signed 16-bit samples
+	 * @return ALAC frame
+	 */
+	static byte[] uncompressedFrame(final short[] samples) {
+		final byte[] frame = new byte[(3 + 4 + 12 + 1 + 2 + 1 + samples.length * 16 + 7) / 8];
+		int bit = 0;
+		bit = putBits(frame, bit, 1, 3); /* two channels */
+		bit = putBits(frame, bit, 0, 4);
+		bit = putBits(frame, bit, 0, 12);
+		bit = putBits(frame, bit, 0, 1); /* no sample count */
+		bit = putBits(frame, bit, 0, 2); /* no uncompressed bytes */
+		bit = putBits(frame, bit, 1, 1); /* not compressed */
+		for(final short sample: samples)
+			bit = putBits(frame, bit, sample & 0xffff, 16);
+		return frame;
+	}
+
+	private static int putBits(final byte[] bytes, int bit, final int value, final int count) {
+		for(int i = count - 1; i >= 0; --i) {
+			if (((value >> i) & 1) != 0)
+				bytes[bit / 8] |= 0x80 >> (bit % 8);
+			++bit;
+		}
+		return bit;
+	}
+
+	private static RaopRtpPacket.AudioTransmit transmitPacket(final byte[] payload) {
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(payload.length);
+		packet.setSequence(42);
+		packet.setTimeStamp(4711);
+		packet.getPayload().setBytes(0, payload);
+		return packet;
+	}
+
+	private static short[] randomSamples(final long seed) {
+		final Random random = new Random(seed);
+		final short[] samples = new short[FramesPerPacket * 2];
+		for(int i=0; i < samples.length; ++i)
+			samples[i] = (short)random.nextInt();
+		return samples;
+	}
+
+	@Test
+	public void testDecodeUncompressed() throws Exception {
+		final RaopRtpAudioAlacDecodeHandler decoder = new RaopRtpAudioAlacDecodeHandler(FormatOptions);
+		final short[] samples = randomSamples(1);
+
+		final PcmBuffer pcmBuffer = (PcmBuffer)decoder.decode(null, null, transmitPacket(uncompressedFrame(samples)));
+		Assert.assertEquals(42, pcmBuffer.getSequence());
+		Assert.assertEquals(4711, pcmBuffer.getFrameTime());
+
+		final byte[] pcm = pcmBuffer.getBytes();
+		Assert.assertEquals(samples.length * 2, pcmBuffer.getLength());
+		for(int i=0; i < samples.length; ++i)
+			Assert.assertEquals("sample " + i, samples[i] + 0x8000, ((pcm[2*i] & 0xff) << 8) | (pcm[2*i + 1] & 0xff));
+		pcmBuffer.release();
+	}
+
+	@Test
+	public void testDecodeSignedLittleEndian() throws Exception {
+		final AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		final RaopRtpAudioAlacDecodeHandler decoder = new RaopRtpAudioAlacDecodeHandler(FormatOptions, format);
+		Assert.assertSame(format, decoder.getAudioFormat());
+		final short[] samples = randomSamples(2);
+
+		final PcmBuffer pcmBuffer = (PcmBuffer)decoder.decode(null, null, transmitPacket(uncompressedFrame(samples)));
+		final byte[] pcm = pcmBuffer.getBytes();
+		Assert.assertEquals(samples.length * 2, pcmBuffer.getLength());
+		for(int i=0; i < samples.length; ++i)
+			Assert.assertEquals("sample " + i, samples[i], (short)((pcm[2*i] & 0xff) | (pcm[2*i + 1] << 8)));
+		pcmBuffer.release();
+	}
+
+	@Test
+	public void testDecodeAllocationFree() throws Exception {
+		final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+		Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+		final RaopRtpAudioAlacDecodeHandler decoder = new RaopRtpAudioAlacDecodeHandler(FormatOptions);
+		final RaopRtpPacket.AudioTransmit[] packets = new RaopRtpPacket.AudioTransmit[16];
+		for(int i=0; i < packets.length; ++i)
+			packets[i] = transmitPacket(uncompressedFrame(randomSamples(i)));
+
+		/* Warm up, so that the decode path is compiled */
+		for(int i=0; i < 20000; ++i)
+			((PcmBuffer)decoder.decode(null, null, packets[i % packets.length])).release();
+
+		final int packetCount = 10000;
+		final long threadId = Thread.currentThread().getId();
+		allocationBean.getThreadAllocatedBytes(threadId);
+		final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+		for(int i=0; i < packetCount; ++i)
+			((PcmBuffer)decoder.decode(null, null, packets[i % packets.length])).release();
+		final long allocatedAfter = allocationBean.getThreadAllocatedBytes(threadId);
+
+		final long allocatedPerPacket = (allocatedAfter - allocatedBefore) / packetCount;
+		System.out.println("ALAC decode allocated " + (allocatedAfter - allocatedBefore) + " bytes for " + packetCount + " packets");
+		Assert.assertEquals(0, allocatedPerPacket);
+	}
+}
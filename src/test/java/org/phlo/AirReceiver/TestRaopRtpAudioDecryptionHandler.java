@@ -0,0 +1,146 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.*;
+
+public class TestRaopRtpAudioDecryptionHandler {
+	/**
+	 * Payload size of a typical ALAC packet. Not a multiple of
+	 * the block size, so there are trailing unencrypted bytes
+	 */
+	private static final int PayloadLength = 1411;
+
+	private static final Random s_random = new Random(1);
+	private static final SecretKey s_aesKey = new SecretKeySpec(randomBytes(16), "AES");
+	private static final IvParameterSpec s_aesIv = new IvParameterSpec(randomBytes(16));
+
+	private static byte[] randomBytes(final int length) {
+		final byte[] bytes = new byte[length];
+		s_random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Encrypts the whole blocks of the plain text the way the sender does
+	 */
+	private static byte[] encrypt(final byte[] plain) throws Exception {
+		final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, s_aesKey, s_aesIv);
+		final byte[] encrypted = Arrays.copyOf(plain, plain.length);
+		cipher.doFinal(plain, 0, plain.length & ~0xf, encrypted, 0);
+		return encrypted;
+	}
+
+	private static RaopRtpPacket.AudioTransmit audioPacket(final byte[] payload) {
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(payload.length);
+		packet.getPayload().setBytes(0, payload);
+		return packet;
+	}
+
+	/**
+	 * Creates a decryption handler, or returns null if the provider
+	 * is unusable on this JRE (the Bouncy Castle cipher is instantiated
+	 * through a private constructor, which newer JREs may refuse)
+	 */
+	private static RaopRtpAudioDecryptionHandler createHandler(final AirTunesCrytography.CipherProvider provider) throws Exception {
+		try {
+			return new RaopRtpAudioDecryptionHandler(s_aesKey, s_aesIv, provider);
+		}
+		catch (final RuntimeException e) {
+			System.out.println("AES cipher provider " + provider + " unavailable: " + e);
+			return null;
+		}
+	}
+
+	private void testDecrypt(final AirTunesCrytography.CipherProvider provider) throws Exception {
+		final RaopRtpAudioDecryptionHandler handler = createHandler(provider);
+		Assume.assumeTrue(handler != null);
+
+		/* Decrypt multiple packets to verify that the cipher is restarted for each one */
+		for(int i=0; i < 4; ++i) {
+			final byte[] plain = randomBytes(PayloadLength);
+			final RaopRtpPacket.AudioTransmit packet = audioPacket(encrypt(plain));
+			handler.decode(null, null, packet);
+
+			final byte[] decrypted = new byte[PayloadLength];
+			packet.getPayload().getBytes(0, decrypted);
+			Assert.assertArrayEquals(plain, decrypted);
+		}
+
+		/* Buffers without a backing array take the scratch buffer path */
+		final byte[] plain = randomBytes(PayloadLength);
+		final byte[] encrypted = encrypt(plain);
+		final ChannelBuffer directPayload = ChannelBuffers.directBuffer(PayloadLength);
+		directPayload.writerIndex(PayloadLength);
+		final RaopRtpPacket.AudioTransmit packet = new RaopRtpPacket.AudioTransmit(ChannelBuffers.wrappedBuffer(
+			ChannelBuffers.copiedBuffer(audioPacket(encrypted).getBuffer().toByteBuffer(0, RaopRtpPacket.AudioTransmit.Length)),
+			directPayload
+		));
+		packet.getPayload().setBytes(0, encrypted);
+		Assert.assertFalse(packet.getBuffer().hasArray());
+		handler.decode(null, null, packet);
+
+		final byte[] decrypted = new byte[PayloadLength];
+		packet.getPayload().getBytes(0, decrypted);
+		Assert.assertArrayEquals(plain, decrypted);
+	}
+
+	@Test
+	public void testDecryptJdk() throws Exception {
+		testDecrypt(AirTunesCrytography.CipherProvider.Jdk);
+	}
+
+	@Test
+	public void testDecryptBouncyCastle() throws Exception {
+		testDecrypt(AirTunesCrytography.CipherProvider.BouncyCastle);
+	}
+
+	@Test
+	public void testDecryptPerformance() throws Exception {
+		final int packetCount = 50000;
+		final RaopRtpPacket.AudioTransmit packet = audioPacket(encrypt(randomBytes(PayloadLength)));
+
+		for(final AirTunesCrytography.CipherProvider provider: AirTunesCrytography.CipherProvider.values()) {
+			final RaopRtpAudioDecryptionHandler handler = createHandler(provider);
+			if (handler == null)
+				continue;
+
+			/* Warm up. Decrypting the same packet repeatedly is fine for timing purposes */
+			for(int i=0; i < packetCount; ++i)
+				handler.decode(null, null, packet);
+
+			final long start = System.nanoTime();
+			for(int i=0; i < packetCount; ++i)
+				handler.decode(null, null, packet);
+			final long end = System.nanoTime();
+
+			System.out.println("AES decrypt with provider " + provider + " takes " + (double)(end - start) / packetCount + " nanoseconds per " + PayloadLength + " byte packet");
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestRoundTripTimeEstimator {
+	@Test
+	public void testFirstSample() {
+		final RoundTripTimeEstimator estimator = new RoundTripTimeEstimator(0.005, 0.01, 1.0);
+		Assert.assertTrue(estimator.isEmpty());
+		Assert.assertTrue(Double.isNaN(estimator.getTimeout()));
+
+		estimator.add(0.1);
+		Assert.assertFalse(estimator.isEmpty());
+		Assert.assertEquals(0.1, estimator.getSmoothed(), 1e-9);
+		Assert.assertEquals(0.05, estimator.getDeviation(), 1e-9);
+		Assert.assertEquals(0.3, estimator.getTimeout(), 1e-9);
+	}
+
+	@Test
+	public void testSmoothing() {
+		final RoundTripTimeEstimator estimator = new RoundTripTimeEstimator(0.005, 0.01, 1.0);
+		estimator.add(0.1);
+		estimator.add(0.2);
+
+		/* Deviation uses the previous smoothed value */
+		Assert.assertEquals(0.75 * 0.05 + 0.25 * 0.1, estimator.getDeviation(), 1e-9);
+		Assert.assertEquals(0.875 * 0.1 + 0.125 * 0.2, estimator.getSmoothed(), 1e-9);
+
+		/* Converges on a stable network, the timeout being bounded by the granularity */
+		for(int i=0; i < 200; ++i)
+			estimator.add(0.02);
+		Assert.assertEquals(0.02, estimator.getSmoothed(), 1e-6);
+		Assert.assertEquals(0.025, estimator.getTimeout(), 1e-5);
+	}
+
+	@Test
+	public void testBounds() {
+		final RoundTripTimeEstimator estimator = new RoundTripTimeEstimator(0.0, 0.01, 0.5);
+		estimator.add(0.0);
+		Assert.assertEquals(0.01, estimator.getTimeout(), 1e-9);
+		estimator.add(2.0);
+		Assert.assertEquals(0.5, estimator.getTimeout(), 1e-9);
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.AirReceiver;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.*;
+
+public class TestSoftwareVolume {
+	private static final AudioFormat SignedFormat = new AudioFormat(44100, 16, 2, true, false);
+	private static final AudioFormat UnsignedFormat = new AudioFormat(44100, 16, 2, false, false);
+	private static final int FramesPerPacket = 352;
+
+	private static byte[] encode(final int[] samples, final int offset) {
+		final byte[] bytes = new byte[samples.length * 2];
+		for(int i=0; i < samples.length; ++i) {
+			final int sample = samples[i] + offset;
+			bytes[2*i] = (byte)sample;
+			bytes[2*i + 1] = (byte)(sample >> 8);
+		}
+		return bytes;
+	}
+
+	private static int decode(final byte[] bytes, final int index) {
+		return (short)((bytes[2*index] & 0xff) | (bytes[2*index + 1] << 8));
+	}
+
+	private static int[] randomSamples(final int count, final Random random) {
+		final int[] samples = new int[count];
+		for(int i=0; i < count; ++i)
+			samples[i] = random.nextInt(0x10000) - 0x8000;
+		return samples;
+	}
+
+	@Test
+	public void testUnity() {
+		final int[] samples = randomSamples(2 * FramesPerPacket, new Random(0));
+		final byte[] signed = encode(samples, 0);
+		final SoftwareVolume volume = new SoftwareVolume(SignedFormat, false, true);
+		volume.process(signed, 0, signed.length);
+		Assert.assertArrayEquals(encode(samples, 0), signed);
+
+		/* Unsigned samples are converted */
+		final byte[] unsigned = encode(samples, 0x8000);
+		final SoftwareVolume convertingVolume = new SoftwareVolume(UnsignedFormat, true, false);
+		convertingVolume.process(unsigned, 0, unsigned.length);
+		Assert.assertArrayEquals(encode(samples, 0), unsigned);
+	}
+
+	@Test
+	public void testGainTable() {
+		Assert.assertEquals(1 << 30, SoftwareVolume.getGainFactor(0.0f));
+		Assert.assertEquals(1 << 30, SoftwareVolume.getGainFactor(3.0f));
+		Assert.assertEquals(0, SoftwareVolume.getGainFactor(-144.0f));
+		Assert.assertEquals(0.5, SoftwareVolume.getGainFactor(-6.0206f) / (double)(1 << 30), 0.003);
+		Assert.assertEquals(0.1, SoftwareVolume.getGainFactor(-20.0f) / (double)(1 << 30), 0.001);
+	}
+
+	@Test
+	public void testRamp() {
+		final SoftwareVolume volume = new SoftwareVolume(UnsignedFormat, true, false);
+		final int rampFrames = (int)Math.round(44100 * SoftwareVolume.RampSeconds);
+
+		/* A constant signal ramps down linearly to half its level */
+		final int[] samples = new int[2 * (rampFrames + FramesPerPacket)];
+		java.util.Arrays.fill(samples, 20000);
+		final byte[] bytes = encode(samples, 0x8000);
+		volume.setGain(-6.0206f);
+		volume.process(bytes, 0, bytes.length);
+
+		int previous = 20000;
+		for(int frame=0; frame < samples.length / 2; ++frame) {
+			final int left = decode(bytes, 2*frame);
+			Assert.assertEquals(left, decode(bytes, 2*frame + 1));
+			Assert.assertTrue(left <= previous);
+			Assert.assertTrue("Step of " + (previous - left) + " at frame " + frame, previous - left <= 10000 / rampFrames + 1);
+			previous = left;
+		}
+		Assert.assertEquals(10000, previous, 30);
+
+		/* Muting ramps down to exact silence, without dither */
+		final SoftwareVolume ditheredVolume = new SoftwareVolume(SignedFormat, false, true);
+		final byte[] muted = encode(samples, 0);
+		ditheredVolume.setGain(-144.0f);
+		ditheredVolume.process(muted, 0, muted.length);
+		for(int i = 2 * rampFrames; i < samples.length; ++i)
+			Assert.assertEquals(0, decode(muted, i));
+	}
+
+	@Test
+	public void testDither() {
+		final int[] samples = randomSamples(2 * FramesPerPacket * 10, new Random(1));
+		final byte[] plain = encode(samples, 0);
+		final byte[] dithered = encode(samples, 0);
+
+		final SoftwareVolume plainVolume = new SoftwareVolume(SignedFormat, false, false);
+		final SoftwareVolume ditheredVolume = new SoftwareVolume(SignedFormat, false, true);
+		plainVolume.setGain(-10.0f);
+		ditheredVolume.setGain(-10.0f);
+		plainVolume.process(plain, 0, plain.length);
+		ditheredVolume.process(dithered, 0, dithered.length);
+
+		/* Dither moves samples by at most one LSB, and does move some */
+		int changed = 0;
+		for(int i=0; i < samples.length; ++i) {
+			final int difference = decode(dithered, i) - decode(plain, i);
+			Assert.assertTrue(Math.abs(difference) <= 1);
+			if (difference != 0)
+				++changed;
+		}
+		Assert.assertTrue(changed > samples.length / 10);
+	}
+
+	/**
+	 * Processes the given number of packets, switching the gain every 50 packets if
+	 * requested, and returns the nanoseconds spent per packet
+	 */
+	private static double benchmark(final SoftwareVolume volume, final float gain, final boolean ramps, final int packets) {
+		final byte[] packet = encode(randomSamples(2 * FramesPerPacket, new Random(2)), 0);
+
+		volume.setGain(gain);
+		final long startNanos = System.nanoTime();
+		for(int p=0; p < packets; ++p) {
+			if (ramps && (p % 50 == 0))
+				volume.setGain(((p / 50) % 2 == 0) ? gain : gain - 10.0f);
+			volume.process(packet, 0, packet.length);
+		}
+		final long endNanos = System.nanoTime();
+
+		return (double)(endNanos - startNanos) / packets;
+	}
+
+	@Test
+	public void testBenchmark() {
+		final int packets = 200000;
+
+		/* Warm up */
+		benchmark(new SoftwareVolume(UnsignedFormat, true, true), -10.0f, true, packets);
+
+		final String[] names = { "unity gain", "unity gain, unsigned", "-10 dB", "-10 dB, ramps", "-10 dB, ramps, dither" };
+		final SoftwareVolume[] volumes = {
+			new SoftwareVolume(SignedFormat, false, false),
+			new SoftwareVolume(UnsignedFormat, true, false),
+			new SoftwareVolume(SignedFormat, false, false),
+			new SoftwareVolume(SignedFormat, false, false),
+			new SoftwareVolume(SignedFormat, false, true)
+		};
+		final float[] gains = { 0.0f, 0.0f, -10.0f, -10.0f, -10.0f };
+		final boolean[] ramps = { false, false, false, true, true };
+		for(int i=0; i < names.length; ++i) {
+			final double nanos = benchmark(volumes[i], gains[i], ramps[i], packets);
+			System.out.println("SoftwareVolume: " + names[i] + ", " + Math.round(nanos * 10) / 10.0 + " ns per packet of " + FramesPerPacket + " frames");
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.AirReceiver;
+
+import org.junit.*;
+
+public class TestTimingRequestSchedule {
+	@Test
+	public void testBurst() {
+		final TimingRequestSchedule schedule = new TimingRequestSchedule(4, 0.05, 0.2, 2.0, 0.001);
+		Assert.assertTrue(schedule.isBursting());
+
+		/* Responses to the burst don't change the interval */
+		for(int i=0; i < 3; ++i) {
+			Assert.assertEquals(0.05, schedule.requestSent(), 0.0);
+			schedule.responseReceived(0.0);
+		}
+		Assert.assertEquals(0.2, schedule.requestSent(), 0.0);
+		Assert.assertFalse(schedule.isBursting());
+		Assert.assertEquals(0.2, schedule.getInterval(), 0.0);
+	}
+
+	@Test
+	public void testBackOff() {
+		final TimingRequestSchedule schedule = new TimingRequestSchedule(0, 0.05, 0.2, 2.0, 0.001);
+		Assert.assertEquals(0.2, schedule.requestSent(), 0.0);
+
+		/* Agreeing responses double the interval, up to the maximum */
+		final double[] expected = { 0.4, 0.8, 1.6, 2.0, 2.0 };
+		for(final double interval: expected) {
+			schedule.responseReceived(0.0005);
+			Assert.assertEquals(interval, schedule.requestSent(), 1e-12);
+		}
+
+		/* A deviating response tightens it again */
+		schedule.responseReceived(-0.002);
+		Assert.assertEquals(0.2, schedule.requestSent(), 0.0);
+
+		/* A new session starts with a burst again */
+		schedule.responseReceived(0.0);
+		schedule.reset();
+		Assert.assertEquals(0.2, schedule.getInterval(), 0.0);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.audio;
+
+import org.junit.*;
+
+public class TestPlaybackRateController {
+	@Test
+	public void testBounds() {
+		final PlaybackRateController controller = new PlaybackRateController(0.001, 0.2, 0.02);
+		Assert.assertEquals(1.0, controller.getRatio(), 0.0);
+
+		/* Positive errors stretch the output, negative ones compress it, within the bounds */
+		Assert.assertEquals(1.0 - 0.001, controller.update(1.0, 0.008), 1e-12);
+		controller.reset();
+		Assert.assertEquals(1.0 + 0.001, controller.update(-1.0, 0.008), 1e-12);
+		controller.reset();
+		Assert.assertEquals(1.0 - 0.2 * 0.002, controller.update(0.002, 0.0), 1e-12);
+	}
+
+	/**
+	 * Simulates an output whose clock runs faster than the sender's by the given
+	 * fraction, and checks that the controller compensates the drift. A packet's
+	 * frames make up 1 / ratio output frames, which the output plays in
+	 * 1 / (1 + drift) of the sender's time
+	 */
+	private static void simulateDrift(final double drift) {
+		final PlaybackRateController controller = new PlaybackRateController(0.001, 0.2, 0.02);
+		final double packetSeconds = 352.0 / 44100.0;
+
+		/* errorSeconds is the time by which the samples are due after the output's end */
+		double errorSeconds = 0.0;
+		double maxLateError = 0.0;
+		for(int p=0; p < (int)(600.0 / packetSeconds); ++p) {
+			final double ratio = controller.update(errorSeconds, packetSeconds);
+			errorSeconds += packetSeconds * (1.0 - 1.0 / ((1.0 + drift) * ratio));
+			if (p * packetSeconds > 300.0)
+				maxLateError = Math.max(maxLateError, Math.abs(errorSeconds));
+		}
+
+		Assert.assertTrue("Error of " + maxLateError + " seconds", maxLateError < 0.0005);
+		Assert.assertEquals(drift, controller.getDrift(), Math.abs(drift) * 0.05 + 1e-6);
+	}
+
+	@Test
+	public void testDrift() {
+		simulateDrift(0.0001);
+		simulateDrift(-0.0005);
+		simulateDrift(0.0);
+	}
+}
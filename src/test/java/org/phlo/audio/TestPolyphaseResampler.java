@@ -0,0 +1,118 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.phlo.audio;
+
+import org.junit.*;
+
+public class TestPolyphaseResampler {
+	private static final int BlockFrames = 1000;
+
+	/**
+	 * Resamples a 1 kHz sine on the left and its negation on the right channel, and
+	 * compares the output to the sine sampled at the output rate, delayed by the latency
+	 */
+	private static void testSine(final int inputRate, final int outputRate) {
+		final PolyphaseResampler resampler = new PolyphaseResampler(2, inputRate, outputRate, 16, 0.9);
+		final SampleBuffer input = new SampleBuffer(new SampleDimensions(2, BlockFrames));
+		final SampleBuffer output = new SampleBuffer(new SampleDimensions(2, resampler.getMaxOutputFrames(BlockFrames)));
+		final double latency = resampler.getLatency();
+
+		long inputFrames = 0;
+		long outputFrames = 0;
+		double maxError = 0.0;
+		for(int b=0; b < 50; ++b) {
+			for(int s=0; s < BlockFrames; ++s) {
+				final float sample = (float)(0.5 * Math.sin(2.0 * Math.PI * 1000.0 * (inputFrames + s) / inputRate));
+				input.setSample(0, s, sample);
+				input.setSample(1, s, -sample);
+			}
+			final int frames = resampler.process(input, BlockFrames, output);
+			Assert.assertTrue(frames <= resampler.getMaxOutputFrames(BlockFrames));
+			for(int s=0; s < frames; ++s, ++outputFrames) {
+				final double time = (double)outputFrames / outputRate - latency;
+				if (time < (double)resampler.getTaps() / inputRate)
+					continue;
+				final double expected = 0.5 * Math.sin(2.0 * Math.PI * 1000.0 * time);
+				maxError = Math.max(maxError, Math.abs(output.getSample(0, s) - expected));
+				Assert.assertEquals(-output.getSample(0, s), output.getSample(1, s), 1e-6);
+			}
+			inputFrames += BlockFrames;
+		}
+
+		/* Exactly one output frame per (inputRate / outputRate) input frames */
+		Assert.assertEquals(Math.ceil((double)inputFrames * outputRate / inputRate), outputFrames, 0.0);
+		Assert.assertTrue(inputRate + " -> " + outputRate + " Hz: error of " + maxError, maxError < 1e-3);
+	}
+
+	@Test
+	public void testUpsampling() {
+		final PolyphaseResampler resampler = new PolyphaseResampler(2, 44100, 48000, 16, 0.9);
+		Assert.assertEquals(160, resampler.getInterpolation());
+		Assert.assertEquals(147, resampler.getDecimation());
+		Assert.assertEquals(16.0 / 44100.0, resampler.getLatency(), 1e-12);
+
+		testSine(44100, 48000);
+		testSine(44100, 96000);
+	}
+
+	@Test
+	public void testDownsampling() {
+		testSine(48000, 44100);
+		testSine(44100, 32000);
+	}
+
+	@Test
+	public void testIdentity() {
+		final PolyphaseResampler resampler = new PolyphaseResampler(1, 44100, 44100, 16, 1.0);
+		final SampleBuffer input = new SampleBuffer(new SampleDimensions(1, BlockFrames));
+		final SampleBuffer output = new SampleBuffer(new SampleDimensions(1, resampler.getMaxOutputFrames(BlockFrames)));
+		for(int s=0; s < BlockFrames; ++s)
+			input.setSample(0, s, (s % 7) / 7.0f);
+
+		/* Same rates and a full-band filter pass the input through, delayed by half the filter length */
+		Assert.assertEquals(BlockFrames, resampler.process(input, BlockFrames, output));
+		for(int s=16; s < BlockFrames; ++s)
+			Assert.assertEquals(input.getSample(0, s - 16), output.getSample(0, s), 1e-6);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnsupportedRatio() {
+		new PolyphaseResampler(2, 44100, 48001, 16, 0.9);
+	}
+
+	@Test
+	public void testBenchmark() {
+		final PolyphaseResampler resampler = new PolyphaseResampler(2, 44100, 48000, 16, 0.9);
+		final SampleBuffer input = new SampleBuffer(new SampleDimensions(2, 352));
+		final SampleBuffer output = new SampleBuffer(new SampleDimensions(2, resampler.getMaxOutputFrames(352)));
+		for(int s=0; s < 352; ++s) {
+			input.setSample(0, s, (float)Math.sin(s * 0.1));
+			input.setSample(1, s, (float)Math.cos(s * 0.1));
+		}
+
+		final int packets = 20000;
+		for(int p=0; p < packets; ++p)
+			resampler.process(input, 352, output);
+		final long start = System.nanoTime();
+		for(int p=0; p < packets; ++p)
+			resampler.process(input, 352, output);
+		final double microsPerPacket = (System.nanoTime() - start) * 1e-3 / packets;
+
+		System.out.println("PolyphaseResampler: 44100 -> 48000 Hz takes " + Math.round(microsPerPacket * 10) / 10.0 + " us per packet, " + Math.round(microsPerPacket * 1e-6 * 44100 / 352 * 1e4) / 100.0 + "% of a core");
+	}
+}
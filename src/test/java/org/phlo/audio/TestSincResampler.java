@@ -0,0 +1,134 @@
+/*
+ * This file is part of AirReceiver.
+ *
+ * AirReceiver is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * AirReceiver is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with AirReceiver.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.phlo.audio;
+
+import org.junit.*;
+
+public class TestSincResampler {
+	private static final double SampleRate = 44100.0;
+	private static final int FramesPerPacket = 352;
+
+	private static SincResampler createResampler() {
+		return new SincResampler(2, 16, 128, 0.9, FramesPerPacket);
+	}
+
+	/**
+	 * Fills a stereo packet with a sine on the left and its negation on the right
+	 */
+	private static void sine(final short[] packet, final long firstFrame, final double frequency, final double amplitude) {
+		for(int i=0; i < FramesPerPacket; ++i) {
+			final short sample = (short)Math.round(amplitude * Math.sin(2.0 * Math.PI * frequency * (firstFrame + i) / SampleRate));
+			packet[2*i] = sample;
+			packet[2*i + 1] = (short)-sample;
+		}
+	}
+
+	@Test
+	public void testUnityRatio() {
+		final SincResampler resampler = createResampler();
+		final short[] input = new short[FramesPerPacket * 2];
+		final short[] output = new short[(FramesPerPacket + 4) * 2];
+
+		/* Passes a 1 kHz sine. Output frames correspond to the input frames with the same
+		 * index, but lag behind the input by half the filter length
+		 */
+		long inputFrames = 0;
+		long outputFrames = 0;
+		double maxError = 0.0;
+		for(int p=0; p < 100; ++p) {
+			sine(input, inputFrames, 1000.0, 10000.0);
+			final int frames = resampler.process(input, 0, FramesPerPacket, output, 0);
+			for(int i=0; i < frames; ++i, ++outputFrames) {
+				if (outputFrames < resampler.getTaps())
+					continue;
+				final double expected = 10000.0 * Math.sin(2.0 * Math.PI * 1000.0 * outputFrames / SampleRate);
+				maxError = Math.max(maxError, Math.abs(output[2*i] - expected));
+				Assert.assertEquals(-output[2*i], output[2*i + 1], 1);
+			}
+			inputFrames += FramesPerPacket;
+		}
+		Assert.assertEquals(inputFrames - resampler.getTaps() / 2, outputFrames);
+		Assert.assertTrue("Error of " + maxError, maxError < 10.0);
+	}
+
+	@Test
+	public void testVariableRatio() {
+		final SincResampler resampler = createResampler();
+		final short[] input = new short[FramesPerPacket * 2];
+		final short[] output = new short[(FramesPerPacket + 4) * 2];
+
+		/* Slews between -0.1% and +0.1% while resampling a 5 kHz sine. The output stays a
+		 * sine, so consecutive samples never differ by more than its steepest slope allows
+		 */
+		final double maxStep = 10000.0 * 2.0 * Math.PI * 5000.0 / SampleRate * 1.01;
+		long inputFrames = 0;
+		long outputFrames = 0;
+		int previous = 0;
+		for(int p=0; p < 1000; ++p) {
+			resampler.setRatio(1.0 + 0.001 * Math.sin(p / 50.0));
+			sine(input, inputFrames, 5000.0, 10000.0);
+			final int frames = resampler.process(input, 0, FramesPerPacket, output, 0);
+			Assert.assertTrue(frames <= resampler.getMaxOutputFrames(0) + FramesPerPacket + 1);
+			for(int i=0; i < frames; ++i, ++outputFrames) {
+				if (outputFrames >= resampler.getTaps())
+					Assert.assertTrue("Step of " + Math.abs(output[2*i] - previous) + " at frame " + outputFrames, Math.abs(output[2*i] - previous) <= maxStep);
+				previous = output[2*i];
+			}
+			inputFrames += FramesPerPacket;
+		}
+
+		/* The ratio averaged to about one */
+		Assert.assertEquals(inputFrames, outputFrames, 0.0002 * inputFrames + resampler.getTaps());
+
+		/* A constant ratio changes the number of output frames accordingly */
+		resampler.reset();
+		resampler.setRatio(1.001);
+		outputFrames = 0;
+		for(int p=0; p < 1000; ++p) {
+			sine(input, p * FramesPerPacket, 5000.0, 10000.0);
+			outputFrames += resampler.process(input, 0, FramesPerPacket, output, 0);
+		}
+		Assert.assertEquals(1000 * FramesPerPacket / 1.001, outputFrames, resampler.getTaps());
+	}
+
+	@Test
+	public void testBenchmark() {
+		final SincResampler resampler = createResampler();
+		final short[] input = new short[FramesPerPacket * 2];
+		final short[] output = new short[(FramesPerPacket + 4) * 2];
+		sine(input, 0, 1000.0, 10000.0);
+
+		final int packets = (int)(60 * SampleRate / FramesPerPacket);
+		for(int round=0; round < 2; ++round) {
+			final long startNanos = System.nanoTime();
+			for(int p=0; p < packets; ++p) {
+				resampler.setRatio(1.0 + 0.001 * Math.sin(p / 50.0));
+				resampler.process(input, 0, FramesPerPacket, output, 0);
+			}
+			final long endNanos = System.nanoTime();
+
+			/* The first round only warms up the JIT */
+			if (round == 0)
+				continue;
+
+			final double seconds = (endNanos - startNanos) * 1e-9;
+			System.out.println("SincResampler: " + resampler.getTaps() + " taps, " + Math.round((endNanos - startNanos) / (double)packets) + " ns per packet of " + FramesPerPacket + " stereo frames, " + Math.round(seconds / 60.0 * 1000.0) / 10.0 + "% of a core per stream");
+		}
+	}
+}